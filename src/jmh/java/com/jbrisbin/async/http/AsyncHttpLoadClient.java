@@ -0,0 +1,62 @@
+package com.jbrisbin.async.http;
+
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Drives an {@link AsyncHttpClient} with a transport of its own.
+ *
+ * @author Jon Brisbin <jon@jbrisbin.com>
+ */
+class AsyncHttpLoadClient implements LoadClient {
+
+	private final String host;
+	private final int port;
+	private AsyncHttpClient client;
+	private Map<String, String> keepAliveHeaders;
+	private Map<String, String> closeHeaders;
+
+	AsyncHttpLoadClient(String host, int port) {
+		this.host = host;
+		this.port = port;
+	}
+
+	@Override public String getName() {
+		return "async-http";
+	}
+
+	@Override public void start(int concurrency) throws Exception {
+		HttpClientTransport transport = new HttpClientTransport();
+		transport.getConnectionPool().setMaxConnectionsPerRoute(concurrency);
+		client = AsyncHttpClient.connect(host, port, transport);
+
+		// The client doesn't send a Host header itself
+		keepAliveHeaders = new HashMap<String, String>();
+		keepAliveHeaders.put("Host", host + ":" + port);
+		closeHeaders = new HashMap<String, String>(keepAliveHeaders);
+		closeHeaders.put(Http11Headers.CONNECTION, "close");
+	}
+
+	@Override public int execute(String url, byte[] upload, boolean keepAlive) throws Exception {
+		Map<String, String> headers = (keepAlive ? keepAliveHeaders : closeHeaders);
+		Request request;
+		if (null != upload) {
+			request = new Request(new URL(url), Request.Method.PUT, headers, ByteBuffer.wrap(upload), "application/octet-stream");
+		} else {
+			request = new Request(new URL(url), Request.Method.GET, headers);
+		}
+		Response response = client.send(request);
+		ByteBuffer body = response.get();
+		if (response.getStatus() != 200) {
+			throw new HttpException("Unexpected status", response.getStatus());
+		}
+		return (null != body ? body.remaining() : 0);
+	}
+
+	@Override public void stop() throws Exception {
+		client.dispose();
+	}
+
+}
@@ -0,0 +1,62 @@
+package com.jbrisbin.async.http;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import org.glassfish.grizzly.Buffer;
+import org.glassfish.grizzly.memory.Buffers;
+import org.glassfish.grizzly.memory.MemoryManager;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Cost of draining a buffer of <code>size</code> bytes through a {@link BufferReadableByteChannel}
+ * into an 8KB buffer.
+ *
+ * @author Jon Brisbin <jon@jbrisbin.com>
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+public class BufferReadableByteChannelBenchmark {
+
+	private static final int READ_SIZE = 8192;
+
+	@Param({"8192", "65536", "1048576"})
+	public int size;
+
+	private Buffer buffer;
+	private BufferReadableByteChannel channel;
+	private ByteBuffer dst;
+
+	@Setup
+	public void setup() {
+		buffer = Buffers.wrap(MemoryManager.DEFAULT_MEMORY_MANAGER, new byte[size]);
+		channel = new BufferReadableByteChannel(buffer);
+		dst = ByteBuffer.allocate(READ_SIZE);
+	}
+
+	@Benchmark
+	public int read() throws Exception {
+		buffer.rewind();
+		int read = 0;
+		while (buffer.hasRemaining()) {
+			dst.clear();
+			read += channel.read(dst);
+		}
+		return read;
+	}
+
+}
@@ -0,0 +1,71 @@
+package com.jbrisbin.async.http;
+
+import java.io.IOException;
+
+import org.eclipse.jetty.client.ContentExchange;
+import org.eclipse.jetty.client.HttpClient;
+import org.eclipse.jetty.client.HttpExchange;
+import org.eclipse.jetty.io.ByteArrayBuffer;
+import org.eclipse.jetty.util.thread.QueuedThreadPool;
+
+/**
+ * Drives Jetty's asynchronous {@link HttpClient} with the same number of selector and worker threads
+ * an {@link HttpClientTransport} gets by default.
+ *
+ * @author Jon Brisbin <jon@jbrisbin.com>
+ */
+class JettyLoadClient implements LoadClient {
+
+	private HttpClient client;
+
+	@Override public String getName() {
+		return "jetty";
+	}
+
+	@Override public void start(int concurrency) throws Exception {
+		int workers = Runtime.getRuntime().availableProcessors() * 2;
+		QueuedThreadPool threadPool = new QueuedThreadPool();
+		threadPool.setName("jetty-client");
+		threadPool.setMinThreads(workers);
+		threadPool.setMaxThreads(workers + concurrency);
+		threadPool.setDaemon(true);
+
+		client = new HttpClient();
+		client.setConnectorType(HttpClient.CONNECTOR_SELECT_CHANNEL);
+		client.setThreadPool(threadPool);
+		client.setMaxConnectionsPerAddress(concurrency);
+		client.setTimeout(30000);
+		client.start();
+	}
+
+	@Override public int execute(String url, byte[] upload, boolean keepAlive) throws Exception {
+		ContentExchange exchange = new ContentExchange(false);
+		exchange.setURL(url);
+		if (null != upload) {
+			exchange.setMethod("PUT");
+			exchange.setRequestContentType("application/octet-stream");
+			exchange.setRequestContent(new ByteArrayBuffer(upload));
+		} else {
+			exchange.setMethod("GET");
+		}
+		if (!keepAlive) {
+			exchange.setRequestHeader(Http11Headers.CONNECTION, "close");
+		}
+		client.send(exchange);
+
+		int state = exchange.waitForDone();
+		if (state != HttpExchange.STATUS_COMPLETED) {
+			throw new IOException("Exchange finished in state " + state);
+		}
+		if (exchange.getResponseStatus() != 200) {
+			throw new HttpException("Unexpected status", exchange.getResponseStatus());
+		}
+		byte[] body = exchange.getResponseContentBytes();
+		return (null != body ? body.length : 0);
+	}
+
+	@Override public void stop() throws Exception {
+		client.stop();
+	}
+
+}
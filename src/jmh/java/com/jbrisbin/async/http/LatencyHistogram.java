@@ -0,0 +1,92 @@
+package com.jbrisbin.async.http;
+
+/**
+ * Records latencies in nanoseconds with about 1% precision, in the same log-linear layout
+ * HdrHistogram uses: values below 256 get a bucket each and every power of two above that is split
+ * into 128 equal buckets. Recording never allocates. Not thread-safe; give each thread its own and
+ * {@link #add(LatencyHistogram) add} them up afterwards.
+ *
+ * @author Jon Brisbin <jon@jbrisbin.com>
+ */
+class LatencyHistogram {
+
+	private static final int LINEAR_BUCKETS = 256;
+	private static final int SUB_BUCKETS = 128;
+	private static final int SUB_BUCKET_SHIFT = 7;
+	private static final int MAX_SHIFT = 40;
+
+	private final long[] counts = new long[LINEAR_BUCKETS + MAX_SHIFT * SUB_BUCKETS];
+	private long count = 0;
+	private long sum = 0;
+	private long max = 0;
+
+	void record(long nanos) {
+		counts[index(nanos)]++;
+		count++;
+		sum += nanos;
+		if (nanos > max) {
+			max = nanos;
+		}
+	}
+
+	void add(LatencyHistogram other) {
+		for (int i = 0; i < counts.length; i++) {
+			counts[i] += other.counts[i];
+		}
+		count += other.count;
+		sum += other.sum;
+		max = Math.max(max, other.max);
+	}
+
+	long getCount() {
+		return count;
+	}
+
+	long getMax() {
+		return max;
+	}
+
+	double getMean() {
+		return (count > 0 ? (double) sum / count : 0);
+	}
+
+	/**
+	 * @return the highest value that's equivalent to the value at the given percentile, which is what
+	 *         HdrHistogram reports too.
+	 */
+	long getValueAtPercentile(double percentile) {
+		if (count == 0) {
+			return 0;
+		}
+		long target = Math.max((long) Math.ceil(percentile / 100 * count), 1);
+		long seen = 0;
+		for (int i = 0; i < counts.length; i++) {
+			seen += counts[i];
+			if (seen >= target) {
+				return Math.min(highestEquivalentValue(i), max);
+			}
+		}
+		return max;
+	}
+
+	private int index(long value) {
+		if (value < LINEAR_BUCKETS) {
+			return (int) Math.max(value, 0);
+		}
+		int shift = (63 - Long.numberOfLeadingZeros(value)) - SUB_BUCKET_SHIFT;
+		if (shift > MAX_SHIFT) {
+			return counts.length - 1;
+		}
+		return LINEAR_BUCKETS + (shift - 1) * SUB_BUCKETS + (int) ((value >> shift) - SUB_BUCKETS);
+	}
+
+	private static long highestEquivalentValue(int index) {
+		if (index < LINEAR_BUCKETS) {
+			return index;
+		}
+		int shift = (index - LINEAR_BUCKETS) / SUB_BUCKETS + 1;
+		long subBucket = (index - LINEAR_BUCKETS) % SUB_BUCKETS + SUB_BUCKETS;
+		return ((subBucket + 1) << shift) - 1;
+	}
+
+}
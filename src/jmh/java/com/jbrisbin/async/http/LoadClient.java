@@ -0,0 +1,28 @@
+package com.jbrisbin.async.http;
+
+/**
+ * One of the HTTP clients {@link LoadTest} drives. Every implementation gets the same requests from
+ * the same number of threads, each of which waits for its response before sending the next one.
+ *
+ * @author Jon Brisbin <jon@jbrisbin.com>
+ */
+interface LoadClient {
+
+	String getName();
+
+	/**
+	 * Get ready to be called from <code>concurrency</code> threads at once.
+	 */
+	void start(int concurrency) throws Exception;
+
+	/**
+	 * Send a request and wait for the whole response. A non-null <code>upload</code> is PUT, otherwise
+	 * the request is a GET. Throws if the request fails or the response isn't a 200.
+	 *
+	 * @return the number of response body bytes read.
+	 */
+	int execute(String url, byte[] upload, boolean keepAlive) throws Exception;
+
+	void stop() throws Exception;
+
+}
@@ -0,0 +1,206 @@
+package com.jbrisbin.async.http;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadInfo;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Drives {@link AsyncHttpClient} and Jetty's HttpClient with the same closed-loop workloads against
+ * a {@link LoopbackServer} and prints throughput, latency percentiles and how fast each client
+ * allocates. Every combination of client, download or upload, body size, keep-alive or a new
+ * connection per request, and number of concurrent callers is run for a warmup period and then
+ * measured.
+ * <p>
+ * Options are given as <code>name=value</code> arguments, lists separated by commas:
+ * <pre>
+ * clients=async-http,jetty  directions=download,upload  sizes=128,16384,1048576
+ * connections=keepalive,close  concurrency=1,16,64  warmup=3  duration=10
+ * </pre>
+ * Allocation is only counted for the client's threads and the calling threads, not the server's;
+ * it needs a JVM whose ThreadMXBean reports allocated bytes.
+ *
+ * @author Jon Brisbin <jon@jbrisbin.com>
+ */
+public class LoadTest {
+
+	private static final String HEADER_FORMAT = "%-10s %-8s %8s %-9s %7s %10s %9s %9s %9s %9s %9s %10s %10s %6s%n";
+	private static final String ROW_FORMAT = "%-10s %-8s %8d %-9s %7d %10.0f %9.1f %9.3f %9.3f %9.3f %9.3f %10.1f %10.2f %6d%n";
+
+	public static void main(String[] args) throws Exception {
+		Map<String, String> options = new HashMap<String, String>();
+		options.put("clients", "async-http,jetty");
+		options.put("directions", "download,upload");
+		options.put("sizes", "128,16384,1048576");
+		options.put("connections", "keepalive,close");
+		options.put("concurrency", "1,16,64");
+		options.put("warmup", "3");
+		options.put("duration", "10");
+		for (String arg : args) {
+			int i = arg.indexOf('=');
+			if (i < 1 || !options.containsKey(arg.substring(0, i))) {
+				System.err.println("Unknown option " + arg + ", expected one of " + options.keySet());
+				System.exit(1);
+			}
+			options.put(arg.substring(0, i), arg.substring(i + 1));
+		}
+		long warmup = Long.parseLong(options.get("warmup")) * 1000;
+		long duration = Long.parseLong(options.get("duration")) * 1000;
+
+		LoopbackServer server = new LoopbackServer().start();
+		try {
+			System.out.printf(HEADER_FORMAT, "client", "op", "bytes", "conn", "threads", "req/s", "MB/s", "p50 ms", "p99 ms", "p999 ms", "max ms", "alloc MB/s", "alloc KB/op", "errors");
+			for (String name : options.get("clients").split(",")) {
+				LoadClient client = createClient(name, server);
+				for (String direction : options.get("directions").split(",")) {
+					boolean upload = "upload".equals(direction);
+					for (String size : options.get("sizes").split(",")) {
+						int bytes = Integer.parseInt(size);
+						String url = server.url(upload ? 0 : bytes);
+						byte[] body = (upload ? new byte[bytes] : null);
+						for (String connection : options.get("connections").split(",")) {
+							boolean keepAlive = !"close".equals(connection);
+							for (String concurrency : options.get("concurrency").split(",")) {
+								int threads = Integer.parseInt(concurrency);
+								client.start(threads);
+								try {
+									run(client, url, body, keepAlive, threads, warmup);
+									Result result = run(client, url, body, keepAlive, threads, duration);
+									result.print(client.getName(), direction, bytes, connection, threads);
+								} finally {
+									client.stop();
+								}
+							}
+						}
+					}
+				}
+			}
+		} finally {
+			server.stop();
+		}
+		System.exit(0);
+	}
+
+	private static LoadClient createClient(String name, LoopbackServer server) {
+		if ("async-http".equals(name)) {
+			return new AsyncHttpLoadClient("localhost", server.getPort());
+		} else if ("jetty".equals(name)) {
+			return new JettyLoadClient();
+		}
+		throw new IllegalArgumentException("Unknown client " + name);
+	}
+
+	private static Result run(final LoadClient client,
+	                          final String url,
+	                          final byte[] upload,
+	                          final boolean keepAlive,
+	                          int threads,
+	                          long millis) throws Exception {
+		ExecutorService callers = Executors.newFixedThreadPool(threads);
+		final long deadline = System.nanoTime() + millis * 1000000;
+		List<Callable<Result>> tasks = new ArrayList<Callable<Result>>(threads);
+		for (int i = 0; i < threads; i++) {
+			tasks.add(new Callable<Result>() {
+				@Override public Result call() throws Exception {
+					Result result = new Result();
+					long now = System.nanoTime();
+					while (now < deadline) {
+						try {
+							result.bytes += client.execute(url, upload, keepAlive);
+							result.bytes += (null != upload ? upload.length : 0);
+							long end = System.nanoTime();
+							result.latencies.record(end - now);
+							now = end;
+						} catch (Exception e) {
+							result.errors++;
+							now = System.nanoTime();
+						}
+					}
+					return result;
+				}
+			});
+		}
+
+		long allocatedBefore = allocatedBytes();
+		long start = System.nanoTime();
+		List<Future<Result>> results = callers.invokeAll(tasks);
+		long elapsed = System.nanoTime() - start;
+		long allocatedAfter = allocatedBytes();
+		callers.shutdown();
+
+		Result total = new Result();
+		for (Future<Result> f : results) {
+			total.add(f.get());
+		}
+		total.elapsedNanos = elapsed;
+		total.allocatedBytes = (allocatedBefore < 0 || allocatedAfter < 0 ? -1 : allocatedAfter - allocatedBefore);
+		return total;
+	}
+
+	/**
+	 * @return the bytes allocated so far by every live thread other than the server's, or -1 if the
+	 *         JVM can't tell.
+	 */
+	private static long allocatedBytes() {
+		ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+		if (!(threads instanceof com.sun.management.ThreadMXBean)) {
+			return -1;
+		}
+		com.sun.management.ThreadMXBean allocations = (com.sun.management.ThreadMXBean) threads;
+		if (!allocations.isThreadAllocatedMemorySupported() || !allocations.isThreadAllocatedMemoryEnabled()) {
+			return -1;
+		}
+		long[] ids = threads.getAllThreadIds();
+		ThreadInfo[] infos = threads.getThreadInfo(ids);
+		long[] bytes = allocations.getThreadAllocatedBytes(ids);
+		long total = 0;
+		for (int i = 0; i < ids.length; i++) {
+			if (null != infos[i] && bytes[i] > 0 && !infos[i].getThreadName().startsWith(LoopbackServer.THREAD_NAME_PREFIX)) {
+				total += bytes[i];
+			}
+		}
+		return total;
+	}
+
+	private static class Result {
+		private final LatencyHistogram latencies = new LatencyHistogram();
+		private long errors = 0;
+		private long bytes = 0;
+		private long elapsedNanos = 0;
+		private long allocatedBytes = -1;
+
+		private void add(Result other) {
+			latencies.add(other.latencies);
+			errors += other.errors;
+			bytes += other.bytes;
+		}
+
+		private void print(String client, String direction, int size, String connection, int threads) {
+			double seconds = elapsedNanos / 1e9;
+			long requests = latencies.getCount();
+			System.out.printf(ROW_FORMAT,
+					client,
+					direction,
+					size,
+					connection,
+					threads,
+					requests / seconds,
+					bytes / seconds / (1024 * 1024),
+					latencies.getValueAtPercentile(50) / 1e6,
+					latencies.getValueAtPercentile(99) / 1e6,
+					latencies.getValueAtPercentile(99.9) / 1e6,
+					latencies.getMax() / 1e6,
+					(allocatedBytes < 0 ? Double.NaN : allocatedBytes / seconds / (1024 * 1024)),
+					(allocatedBytes < 0 || requests == 0 ? Double.NaN : (double) allocatedBytes / requests / 1024),
+					errors);
+		}
+	}
+
+}
@@ -0,0 +1,110 @@
+package com.jbrisbin.async.http;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.glassfish.grizzly.Buffer;
+import org.glassfish.grizzly.filterchain.BaseFilter;
+import org.glassfish.grizzly.filterchain.FilterChainBuilder;
+import org.glassfish.grizzly.filterchain.FilterChainContext;
+import org.glassfish.grizzly.filterchain.NextAction;
+import org.glassfish.grizzly.filterchain.TransportFilter;
+import org.glassfish.grizzly.http.HttpContent;
+import org.glassfish.grizzly.http.HttpRequestPacket;
+import org.glassfish.grizzly.http.HttpResponsePacket;
+import org.glassfish.grizzly.http.HttpServerFilter;
+import org.glassfish.grizzly.http.KeepAlive;
+import org.glassfish.grizzly.memory.Buffers;
+import org.glassfish.grizzly.nio.transport.TCPNIOServerConnection;
+import org.glassfish.grizzly.nio.transport.TCPNIOTransport;
+import org.glassfish.grizzly.nio.transport.TCPNIOTransportBuilder;
+
+/**
+ * A bare Grizzly HTTP server that stands in for Riak in the benchmarks. Any request body is read and
+ * thrown away, and the response body is as many bytes as the last segment of the path asks for, so
+ * <code>/bytes/1024</code> returns 1KB. Connections are kept alive for as many requests as the
+ * client cares to send.
+ *
+ * @author Jon Brisbin <jon@jbrisbin.com>
+ */
+class LoopbackServer {
+
+	static final String THREAD_NAME_PREFIX = "loopback-server";
+
+	private final ConcurrentHashMap<Integer, byte[]> bodies = new ConcurrentHashMap<Integer, byte[]>();
+	private TCPNIOTransport transport;
+	private int port;
+
+	LoopbackServer start() throws IOException {
+		KeepAlive keepAlive = new KeepAlive();
+		keepAlive.setMaxRequestsCount(Integer.MAX_VALUE);
+
+		FilterChainBuilder fcb = FilterChainBuilder.stateless();
+		fcb.add(new TransportFilter());
+		fcb.add(new HttpServerFilter(true, 8192, keepAlive, null));
+		fcb.add(new ResponderFilter());
+
+		// Named so the load test can tell the server's threads from the client's
+		TCPNIOTransportBuilder tb = TCPNIOTransportBuilder.newInstance();
+		tb.getSelectorThreadPoolConfig().setPoolName(THREAD_NAME_PREFIX + "-selector");
+		tb.getWorkerThreadPoolConfig().setPoolName(THREAD_NAME_PREFIX + "-worker");
+		transport = tb.build();
+		transport.setProcessor(fcb.build());
+		transport.setTcpNoDelay(true);
+		TCPNIOServerConnection server = transport.bind("localhost", 0);
+		port = ((InetSocketAddress) server.getLocalAddress()).getPort();
+		transport.start();
+		return this;
+	}
+
+	void stop() throws IOException {
+		if (null != transport) {
+			transport.stop();
+		}
+	}
+
+	int getPort() {
+		return port;
+	}
+
+	String url(int responseSize) {
+		return "http://localhost:" + port + "/bytes/" + responseSize;
+	}
+
+	private byte[] body(int size) {
+		byte[] body = bodies.get(size);
+		if (null == body) {
+			body = new byte[size];
+			for (int i = 0; i < size; i++) {
+				body[i] = (byte) ('a' + (i % 26));
+			}
+			bodies.putIfAbsent(size, body);
+		}
+		return body;
+	}
+
+	private class ResponderFilter extends BaseFilter {
+		@Override public NextAction handleRead(FilterChainContext ctx) throws IOException {
+			HttpContent content = ctx.getMessage();
+			if (!content.isLast()) {
+				return ctx.getStopAction();
+			}
+
+			HttpRequestPacket request = (HttpRequestPacket) content.getHttpHeader();
+			String uri = request.getRequestURI();
+			int size = Integer.parseInt(uri.substring(uri.lastIndexOf('/') + 1));
+
+			HttpResponsePacket response = request.getResponse();
+			response.setStatus(200);
+			response.setContentType("application/octet-stream");
+			response.setContentLength(size);
+			Buffer body = (size > 0 ? Buffers.wrap(ctx.getMemoryManager(), body(size)) : Buffers.EMPTY_BUFFER);
+			ctx.write(HttpContent.builder(response).content(body).last(true).build());
+			ctx.notifyDownstream(HttpServerFilter.RESPONSE_COMPLETE_EVENT);
+
+			return ctx.getStopAction();
+		}
+	}
+
+}
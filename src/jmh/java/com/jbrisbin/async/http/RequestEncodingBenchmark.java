@@ -0,0 +1,66 @@
+package com.jbrisbin.async.http;
+
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.glassfish.grizzly.http.HttpRequestPacket;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Cost of turning a {@link Request} into the request line and headers that {@link
+ * RequestResponseFilter#handleWrite} hands to the HTTP codec.
+ *
+ * @author Jon Brisbin <jon@jbrisbin.com>
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+public class RequestEncodingBenchmark {
+
+	@Param({"0", "8", "32"})
+	public int headerCount;
+
+	private Request get;
+	private Request put;
+
+	@Setup
+	public void setup() throws Exception {
+		Map<String, String> headers = new HashMap<String, String>();
+		for (int i = 0; i < headerCount; i++) {
+			headers.put("X-Riak-Meta-Header-" + i, "value-" + i);
+		}
+		get = new Request(new URL("http://localhost:8098/riak/bucket/key?r=2&pr=1"), Request.Method.GET, headers);
+		put = new Request(new URL("http://localhost:8098/riak/bucket/key?w=2&dw=1"),
+				Request.Method.PUT,
+				headers,
+				ByteBuffer.allocate(1024),
+				"application/json");
+	}
+
+	@Benchmark
+	public HttpRequestPacket encodeGet() {
+		return RequestResponseFilter.createRequestPacket(get);
+	}
+
+	@Benchmark
+	public HttpRequestPacket encodePut() {
+		return RequestResponseFilter.createRequestPacket(put);
+	}
+
+}
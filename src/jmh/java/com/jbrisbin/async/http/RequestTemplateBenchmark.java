@@ -0,0 +1,85 @@
+package com.jbrisbin.async.http;
+
+import java.net.URL;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.glassfish.grizzly.Buffer;
+import org.glassfish.grizzly.filterchain.FilterChainContext;
+import org.glassfish.grizzly.http.HttpRequestPacket;
+import org.glassfish.grizzly.nio.transport.TCPNIOConnection;
+import org.glassfish.grizzly.nio.transport.TCPNIOTransport;
+import org.glassfish.grizzly.nio.transport.TCPNIOTransportBuilder;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Cost of encoding the header of a <code>GET</code> into the bytes that go on the wire, built header
+ * by header as {@link RequestResponseFilter#createRequestPacket} does, against one made from a
+ * {@link RequestTemplate}. Both go through the {@link ClientCodecFilter} of a connection that's never
+ * opened.
+ *
+ * @author Jon Brisbin <jon@jbrisbin.com>
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+public class RequestTemplateBenchmark {
+
+	@Param({"0", "8", "32"})
+	public int headerCount;
+
+	private ClientCodecFilter codec;
+	private FilterChainContext ctx;
+	private Request built;
+	private Request templated;
+
+	@Setup
+	public void setup() throws Exception {
+		TCPNIOTransport transport = TCPNIOTransportBuilder.newInstance().build();
+		transport.setMemoryManager(new BufferPool().getMemoryManager());
+		codec = new ClientCodecFilter();
+		ctx = FilterChainContext.create(new TCPNIOConnection(transport, null));
+
+		Map<String, String> headers = new HashMap<String, String>();
+		for (int i = 0; i < headerCount; i++) {
+			headers.put("X-Riak-Meta-Header-" + i, "value-" + i);
+		}
+		built = new Request(new URL("http://localhost:8098/riak/bucket/key?r=2&pr=1"), Request.Method.GET, headers);
+		RequestTemplate template = new AsyncHttpClient("localhost", 8098).template(Request.Method.GET, headers);
+		templated = template.newRequest("/riak/bucket/key?r=2&pr=1");
+	}
+
+	@Benchmark
+	public int builder() {
+		HttpRequestPacket requestp = RequestResponseFilter.createRequestPacket(built);
+		requestp.addHeader("Accept-Encoding", RequestResponseFilter.COMPRESSED_ENCODINGS);
+		return encode(requestp);
+	}
+
+	@Benchmark
+	public int template() {
+		return encode(templated.getTemplate().createRequestPacket(templated, true));
+	}
+
+	private int encode(HttpRequestPacket requestp) {
+		Buffer header = codec.encodeHttpPacket(ctx, requestp);
+		int length = header.remaining();
+		header.tryDispose();
+		return length;
+	}
+
+}
@@ -0,0 +1,90 @@
+package com.jbrisbin.async.http;
+
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import org.glassfish.grizzly.Buffer;
+import org.glassfish.grizzly.memory.Buffers;
+import org.glassfish.grizzly.memory.MemoryManager;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Cost of {@link Response#addContent} collecting a body that arrives in <code>chunks</code> pieces
+ * of <code>chunkSize</code> bytes, both aggregated into a single buffer and handed to a {@link
+ * ResponseConsumer} as it arrives.
+ *
+ * @author Jon Brisbin <jon@jbrisbin.com>
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+public class ResponseAggregationBenchmark {
+
+	@Param({"1", "16", "256"})
+	public int chunks;
+	@Param({"256", "8192"})
+	public int chunkSize;
+
+	private URL url;
+	private ByteBuffer chunk;
+	private Buffer buffer;
+
+	@Setup
+	public void setup() throws Exception {
+		url = new URL("http://localhost:8098/riak/bucket/key");
+		byte[] bytes = new byte[chunkSize];
+		chunk = ByteBuffer.wrap(bytes);
+		buffer = Buffers.wrap(MemoryManager.DEFAULT_MEMORY_MANAGER, bytes);
+	}
+
+	@Benchmark
+	public ByteBuffer aggregate() throws Exception {
+		Response response = new Request(url, Request.Method.GET).getResponse();
+		for (int i = 0; i < chunks; i++) {
+			response.addContent(chunk.duplicate(), false);
+		}
+		response.addContent((ByteBuffer) null, true);
+		return response.get();
+	}
+
+	@Benchmark
+	public Response consume(final Blackhole bh) throws Exception {
+		Response response = new Request(url, Request.Method.GET).getResponse();
+		response.setConsumer(new ResponseConsumer() {
+			@Override public void headers(Response response) {
+			}
+
+			@Override public void chunk(Response response, ByteBuffer chunk) {
+				bh.consume(chunk.get(chunk.limit() - 1));
+			}
+
+			@Override public void completed(Response response) {
+			}
+
+			@Override public void failed(Response response, Throwable t) {
+			}
+		});
+		for (int i = 0; i < chunks; i++) {
+			buffer.rewind();
+			response.addContent(buffer, false);
+		}
+		response.addContent((Buffer) null, true);
+		return response;
+	}
+
+}
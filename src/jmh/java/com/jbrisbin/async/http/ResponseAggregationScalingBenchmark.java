@@ -0,0 +1,83 @@
+package com.jbrisbin.async.http;
+
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Throughput of {@link Response#addContent} aggregating bodies on 1, 2 and 4 threads and on every
+ * core at once, each thread working on responses of its own the way connections do. Body handling
+ * shares no state between responses, so throughput should grow with the number of threads until the
+ * cores run out.
+ *
+ * @author Jon Brisbin <jon@jbrisbin.com>
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+public class ResponseAggregationScalingBenchmark {
+
+	@Param({"1", "16"})
+	public int chunks;
+	@Param({"1024"})
+	public int chunkSize;
+
+	private URL url;
+	private ByteBuffer chunk;
+
+	@Setup
+	public void setup() throws Exception {
+		url = new URL("http://localhost:8098/riak/bucket/key");
+		chunk = ByteBuffer.wrap(new byte[chunkSize]);
+	}
+
+	@Benchmark
+	@Threads(1)
+	public ByteBuffer oneThread() throws Exception {
+		return aggregate();
+	}
+
+	@Benchmark
+	@Threads(2)
+	public ByteBuffer twoThreads() throws Exception {
+		return aggregate();
+	}
+
+	@Benchmark
+	@Threads(4)
+	public ByteBuffer fourThreads() throws Exception {
+		return aggregate();
+	}
+
+	@Benchmark
+	@Threads(Threads.MAX)
+	public ByteBuffer allCores() throws Exception {
+		return aggregate();
+	}
+
+	private ByteBuffer aggregate() throws Exception {
+		Response response = new Request(url, Request.Method.GET).getResponse();
+		for (int i = 0; i < chunks; i++) {
+			response.addContent(chunk.duplicate(), false);
+		}
+		response.addContent((ByteBuffer) null, true);
+		return response.get();
+	}
+
+}
@@ -0,0 +1,94 @@
+package com.jbrisbin.async.http;
+
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Full round trips through an {@link AsyncHttpClient} to a {@link LoopbackServer} over a real
+ * socket, reported both as throughput and as a latency distribution. <code>bodySize</code> is the
+ * size of the response body for GETs and of the request body for PUTs, which are sent either with a
+ * Content-Length or chunked through {@link AsyncHttpClient#start(Request)}.
+ *
+ * @author Jon Brisbin <jon@jbrisbin.com>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 10, time = 2)
+@Fork(1)
+public class RoundTripBenchmark {
+
+	private static final int CHUNK_SIZE = 8192;
+
+	@Param({"128", "1048576"})
+	public int bodySize;
+
+	private LoopbackServer server;
+	private AsyncHttpClient client;
+	private URL getUrl;
+	private URL putUrl;
+	private Map<String, String> headers;
+	private ByteBuffer body;
+
+	@Setup
+	public void setup() throws Exception {
+		server = new LoopbackServer().start();
+		client = AsyncHttpClient.connect("localhost", server.getPort(), new HttpClientTransport());
+		getUrl = new URL(server.url(bodySize));
+		putUrl = new URL(server.url(0));
+		// Grizzly rejects HTTP/1.1 requests without a Host header, which the client doesn't add itself
+		headers = Collections.singletonMap("Host", "localhost:" + server.getPort());
+		body = ByteBuffer.allocate(bodySize);
+	}
+
+	@TearDown
+	public void tearDown() throws Exception {
+		client.dispose();
+		server.stop();
+	}
+
+	@Benchmark
+	public ByteBuffer get() throws Exception {
+		return client.send(new Request(getUrl, Request.Method.GET, headers)).get();
+	}
+
+	@Benchmark
+	public ByteBuffer putFixedLength() throws Exception {
+		Request put = new Request(putUrl, Request.Method.PUT, headers, body.duplicate(), "application/octet-stream");
+		return client.send(put).get();
+	}
+
+	@Benchmark
+	public ByteBuffer putChunked() throws Exception {
+		Request put = new Request(putUrl, Request.Method.PUT, headers);
+		put.setChunked(true);
+		WritableByteChannel channel = client.start(put);
+		ByteBuffer src = body.duplicate();
+		while (src.hasRemaining()) {
+			ByteBuffer chunk = src.slice();
+			chunk.limit(Math.min(CHUNK_SIZE, chunk.remaining()));
+			src.position(src.position() + chunk.remaining());
+			channel.write(chunk);
+		}
+		return client.complete(put).get();
+	}
+
+}
@@ -2,26 +2,22 @@ package com.jbrisbin.async.http;
 
 import static com.jbrisbin.async.http.Request.Method.*;
 
+import java.io.File;
 import java.io.IOException;
 import java.net.URL;
-import java.nio.ByteBuffer;
 import java.nio.channels.WritableByteChannel;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
-import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
 import java.util.concurrent.TimeUnit;
-import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicReference;
 
+import org.glassfish.grizzly.CompletionHandler;
 import org.glassfish.grizzly.Connection;
+import org.glassfish.grizzly.EmptyCompletionHandler;
+import org.glassfish.grizzly.WriteResult;
 import org.glassfish.grizzly.filterchain.Filter;
-import org.glassfish.grizzly.filterchain.FilterChain;
-import org.glassfish.grizzly.filterchain.FilterChainBuilder;
-import org.glassfish.grizzly.filterchain.TransportFilter;
-import org.glassfish.grizzly.http.HttpClientFilter;
-import org.glassfish.grizzly.memory.ByteBufferWrapper;
-import org.glassfish.grizzly.nio.transport.TCPNIOTransport;
-import org.glassfish.grizzly.nio.transport.TCPNIOTransportBuilder;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -34,18 +30,41 @@ public class AsyncHttpClient {
 
 	private String host = "localhost";
 	private Integer port = 80;
-	private Long timeout = 30L;
-	private TCPNIOTransport transport = null;
-	private FilterChain filterChain;
-	private Connection connection = null;
-
+	private long connectTimeout = 30000L;
+	private long readTimeout = 60000L;
+	private long requestTimeout = 0L;
+	private RetryPolicy retryPolicy = null;
+	private ResponseCache responseCache = null;
+	private int maxPipelineDepth = 8;
+	private long maxQueuedBytes = 1024 * 1024;
+	private final AtomicReference<WritableByteChannel> transferChannel = new AtomicReference<WritableByteChannel>();
+	private Executor callbackExecutor = null;
+	private final HttpClientTransport transport;
+	private boolean disposed = false;
+
+	/**
+	 * Clients created implicitly by a {@link Request} don't hold a reference to a transport and always
+	 * use whatever the current default transport is.
+	 */
 	AsyncHttpClient(String host, Integer port) {
 		this.host = host;
 		this.port = port;
+		this.transport = null;
+	}
+
+	AsyncHttpClient(String host, Integer port, HttpClientTransport transport) {
+		this.host = host;
+		this.port = port;
+		this.transport = transport;
+		transport.retain();
 	}
 
 	public static AsyncHttpClient connect(String host, Integer port) {
-		return new AsyncHttpClient(host, port);
+		return new AsyncHttpClient(host, port, HttpClientTransport.getDefault());
+	}
+
+	public static AsyncHttpClient connect(String host, Integer port, HttpClientTransport transport) {
+		return new AsyncHttpClient(host, port, transport);
 	}
 
 	public static Request GET(String url) throws IOException {
@@ -64,10 +83,18 @@ public class AsyncHttpClient {
 		return new Request(new URL(url), PUT, headers);
 	}
 
+	public static Upload PUT(String url, File file) throws IOException {
+		return new Upload(new URL(url), PUT, file);
+	}
+
 	public static Request POST(String url, Map<String, String> headers, byte[] content) throws IOException {
 		return new Request(new URL(url), POST, headers);
 	}
 
+	public static Upload POST(String url, File file) throws IOException {
+		return new Upload(new URL(url), POST, file);
+	}
+
 	public static Request DELETE(String url) throws IOException {
 		return new Request(new URL(url), DELETE);
 	}
@@ -76,47 +103,154 @@ public class AsyncHttpClient {
 		return new Request(new URL(url), DELETE, headers);
 	}
 
-	private void startTransport() throws IOException {
-		if (null == transport) {
-			TCPNIOTransportBuilder tb = TCPNIOTransportBuilder.newInstance();
-			tb.setTcpNoDelay(true);
-			tb.setKeepAlive(false);
-			transport = tb.build();
+	/**
+	 * Write to the request's connection, leasing one first if it doesn't have one yet. Until the lease
+	 * comes through, writes are queued on the request.
+	 */
+	private void write(final Request request, Object message) throws IOException {
+		write(request, message, null);
+	}
 
-			FilterChainBuilder fcb = FilterChainBuilder.stateless();
-			fcb.add(new TransportFilter());
-			fcb.add(new HttpClientFilter());
-			fcb.add(new RequestResponseFilter());
-			filterChain = fcb.build();
+	void write(final Request request, Object message, CompletionHandler<WriteResult> handler) throws IOException {
+		if (request.write(message, handler)) {
+			lease(request);
+		}
+	}
 
-			transport.setProcessor(filterChain);
-			transport.start();
+	private void lease(final Request... requests) throws IOException {
+		for (Request request : requests) {
+			request.startDeadlines(timeout(request.getReadTimeout(), readTimeout), timeout(request.getRequestTimeout(), requestTimeout));
+		}
+		long leaseTimeout = timeout(requests[0].getConnectTimeout(), connectTimeout);
+		HttpClientTransport t = getTransport();
+		try {
+			if (t.isHttp2PriorKnowledge()) {
+				t.getConnectionPool().leaseSession(t.getTransport(), host, port, leaseTimeout, TimeUnit.MILLISECONDS, new EmptyCompletionHandler<Http2Session>() {
+					@Override public void completed(Http2Session session) {
+						connected(session, requests);
+					}
+
+					@Override public void failed(Throwable throwable) {
+						connectFailed(throwable, requests);
+					}
+				});
+				return;
+			}
+			t.getConnectionPool().lease(t.getTransport(), host, port, leaseTimeout, TimeUnit.MILLISECONDS, new EmptyCompletionHandler<Connection>() {
+				@Override public void completed(Connection connection) {
+					connected(connection, requests);
+				}
+
+				@Override public void failed(Throwable throwable) {
+					connectFailed(throwable, requests);
+				}
+			});
+		} catch (IOException e) {
+			connectFailed(e, requests);
+			throw e;
 		}
 	}
 
-	private Connection getConnection() throws IOException {
-		if (null == connection) {
-			startTransport();
-			try {
-				connection = transport.connect(host, port).get(timeout, TimeUnit.SECONDS);
-			} catch (InterruptedException e) {
-				log.error(e.getMessage(), e);
-			} catch (ExecutionException e) {
-				log.error(e.getMessage(), e);
-			} catch (TimeoutException e) {
-				log.error(e.getMessage(), e);
+	private static void connected(Connection connection, Request... requests) {
+		List<Request> live = new ArrayList<Request>(requests.length);
+		for (Request request : requests) {
+			// Requests that timed out while waiting don't get written at all
+			if (!request.getResponse().isDone()) {
+				live.add(request);
+			}
+		}
+		if (live.isEmpty()) {
+			ConnectionPool.release(connection, true);
+			return;
+		}
+		// Every request is registered before the first one is written so the connection can't be
+		// handed back to the pool while the rest of a pipelined batch is still being written.
+		for (Request request : live) {
+			RequestResponseFilter.enqueue(connection, request);
+		}
+		try {
+			for (Request request : live) {
+				if (!request.connected(connection)) {
+					// It timed out just now. It's been registered, so the responses on this connection
+					// would no longer line up with their requests.
+					ConnectionPool.release(connection, false);
+					return;
+				}
 			}
+		} catch (IOException e) {
+			// Closing the connection fails every request registered on it
+			ConnectionPool.release(connection, false);
 		}
-		return connection;
 	}
 
-	private int findRequestResponseFilterIndex() {
-		for (int i = 0; i < filterChain.size(); i++) {
-			if (filterChain.get(i) instanceof RequestResponseFilter) {
-				return i;
+	/**
+	 * Every request gets a stream of its own on the session, so there's nothing to line up.
+	 */
+	private static void connected(Http2Session session, Request... requests) {
+		for (Request request : requests) {
+			if (request.getResponse().isDone()) {
+				continue;
+			}
+			try {
+				request.connected(session.getConnection());
+			} catch (IOException e) {
+				request.abort(e);
 			}
 		}
-		throw new IllegalStateException("No HttpClientFilter found in the filter chain! This should not happen.");
+	}
+
+	/**
+	 * @return how long, in milliseconds, the whole of <code>request</code> may take: its own request
+	 *         timeout, or else this client's. 0 means no limit.
+	 */
+	long totalTimeout(Request request) {
+		return timeout(request.getRequestTimeout(), requestTimeout);
+	}
+
+	/**
+	 * @return the request's own timeout, unless it's left it at -1.
+	 */
+	private static long timeout(long requestValue, long clientValue) {
+		return (requestValue >= 0 ? requestValue : clientValue);
+	}
+
+	private static void connectFailed(Throwable failure, Request... requests) {
+		if (log.isDebugEnabled())
+			log.debug("Couldn't get a connection: " + failure.getMessage(), failure);
+		for (Request request : requests) {
+			request.connectFailed(failure);
+			request.getResponse().getFuture().failure(failure);
+		}
+	}
+
+	private boolean isRetryable(Request request) {
+		return null != retryPolicy
+				&& request.isRepeatable()
+				&& null == request.getResponse().getConsumer();
+	}
+
+	private boolean isPipelinable(Request request) {
+		return maxPipelineDepth > 1
+				&& null == retryPolicy
+				&& null == responseCache
+				&& !getTransport().isHttp2PriorKnowledge()
+				&& !getTransport().isCoalesceRequests()
+				&& null == request.getConnection()
+				&& request.getMethod().isIdempotent()
+				&& !(request instanceof Upload);
+	}
+
+	private void pipeline(List<Request> requests) throws IOException {
+		if (requests.size() == 1) {
+			send(requests.get(0));
+			return;
+		}
+		Request[] batch = requests.toArray(new Request[requests.size()]);
+		for (Request request : batch) {
+			prepareResponse(request);
+			request.write(Request.FINISH);
+		}
+		lease(batch);
 	}
 
 	public String getHost() {
@@ -137,87 +271,318 @@ public class AsyncHttpClient {
 		return this;
 	}
 
+	/**
+	 * @return the connect timeout, in seconds.
+	 * @deprecated use {@link #getConnectTimeout()}.
+	 */
+	@Deprecated
 	public Long getTimeout() {
-		return timeout;
+		return TimeUnit.MILLISECONDS.toSeconds(connectTimeout);
 	}
 
+	/**
+	 * @deprecated use {@link #setConnectTimeout(long)}, which takes milliseconds.
+	 */
+	@Deprecated
 	public AsyncHttpClient setTimeout(Long timeout) {
-		this.timeout = timeout;
-		transport.setConnectionTimeout(timeout.intValue());
+		return setConnectTimeout(TimeUnit.SECONDS.toMillis(timeout));
+	}
+
+	/**
+	 * @return how long, in milliseconds, a request waits for a connection, whether that's for the
+	 *         pool to make room or for a new one to be opened. Requests can set their own.
+	 */
+	public long getConnectTimeout() {
+		return connectTimeout;
+	}
+
+	public AsyncHttpClient setConnectTimeout(long connectTimeout) {
+		this.connectTimeout = connectTimeout;
+		return this;
+	}
+
+	/**
+	 * @return how long, in milliseconds, a request's connection may go without sending or receiving
+	 *         anything before the request fails. 0 waits forever. Requests can set their own.
+	 */
+	public long getReadTimeout() {
+		return readTimeout;
+	}
+
+	public AsyncHttpClient setReadTimeout(long readTimeout) {
+		this.readTimeout = readTimeout;
+		return this;
+	}
+
+	/**
+	 * @return how long, in milliseconds, a request may take from being sent to its response being
+	 *         complete. 0, the default, waits forever. Requests can set their own.
+	 */
+	public long getRequestTimeout() {
+		return requestTimeout;
+	}
+
+	public AsyncHttpClient setRequestTimeout(long requestTimeout) {
+		this.requestTimeout = requestTimeout;
+		return this;
+	}
+
+	public RetryPolicy getRetryPolicy() {
+		return retryPolicy;
+	}
+
+	/**
+	 * Retry, and possibly hedge, the requests this client sends whenever <code>retryPolicy</code>
+	 * allows it. Only idempotent requests whose body is in memory and whose response isn't streamed
+	 * are ever sent more than once, and requests that might be aren't pipelined. <code>null</code>,
+	 * the default, sends every request once.
+	 */
+	public AsyncHttpClient setRetryPolicy(RetryPolicy retryPolicy) {
+		this.retryPolicy = retryPolicy;
 		return this;
 	}
 
+	public ResponseCache getResponseCache() {
+		return responseCache;
+	}
+
+	/**
+	 * Answer <code>GET</code>s from <code>responseCache</code> when it can, and store their responses
+	 * in it. Requests whose responses are streamed skip the cache, and requests that might be answered
+	 * from it aren't pipelined. <code>null</code>, the default, sends every request to the server.
+	 */
+	public AsyncHttpClient setResponseCache(ResponseCache responseCache) {
+		this.responseCache = responseCache;
+		return this;
+	}
+
+	public int getMaxPipelineDepth() {
+		return maxPipelineDepth;
+	}
+
+	/**
+	 * Set how many idempotent requests {@link #send(Request...)} may write to one connection before
+	 * reading any responses. A depth of 1 turns pipelining off.
+	 */
+	public AsyncHttpClient setMaxPipelineDepth(int maxPipelineDepth) {
+		this.maxPipelineDepth = maxPipelineDepth;
+		return this;
+	}
+
+	/**
+	 * @return how many bytes of a streamed request body may be waiting to be written before the
+	 *         channel returned by {@link #start(Request)} stops taking more.
+	 */
+	public long getMaxQueuedBytes() {
+		return maxQueuedBytes;
+	}
+
+	/**
+	 * Bound the bytes a streamed request body may have waiting in the connection's write queue. The
+	 * transport's own per-connection limit, if it has one, is never exceeded either.
+	 *
+	 * @see RequestByteChannel
+	 */
+	public AsyncHttpClient setMaxQueuedBytes(long maxQueuedBytes) {
+		this.maxQueuedBytes = maxQueuedBytes;
+		return this;
+	}
+
+	private long maxQueuedBodyBytes() {
+		int transportLimit = getTransport().getMaxPendingBytesPerConnection();
+		return (transportLimit > 0 ? Math.min(maxQueuedBytes, transportLimit) : maxQueuedBytes);
+	}
+
+	public HttpClientTransport getTransport() {
+		return (null != transport ? transport : HttpClientTransport.getDefault());
+	}
+
+	public ConnectionPool getConnectionPool() {
+		return getTransport().getConnectionPool();
+	}
+
+	/**
+	 * Filters are added to the shared {@link HttpClientTransport}'s filter chain, so they see the
+	 * traffic of every client using that transport.
+	 */
 	public AsyncHttpClient addUpstreamFilter(Filter filter) {
-		filterChain.add(findRequestResponseFilterIndex() - 1, filter);
+		getTransport().addUpstreamFilter(filter);
 		return this;
 	}
 
 	public AsyncHttpClient addFilter(int idx, Filter filter) {
-		filterChain.add(idx, filter);
+		getTransport().addFilter(idx, filter);
 		return this;
 	}
 
 	public AsyncHttpClient addDownstreamFilter(Filter filter) {
-		filterChain.add(filter);
+		getTransport().addDownstreamFilter(filter);
 		return this;
 	}
 
+	/**
+	 * Write the body of the response to the next request sent through this client straight into
+	 * <code>channel</code>, as {@link Response#transferTo(WritableByteChannel)} would. Only that one
+	 * response is written, so the bodies of concurrent or pipelined requests can't end up mixed
+	 * together in the channel; requests after it, and one that already has a {@link ResponseConsumer}
+	 * of its own, aggregate their bodies as usual. Pass <code>null</code> to take back a channel no
+	 * request has used yet.
+	 */
 	public AsyncHttpClient transferTo(WritableByteChannel channel) {
+		transferChannel.set(channel);
+		return this;
+	}
+
+	public Executor getCallbackExecutor() {
+		return callbackExecutor;
+	}
 
+	/**
+	 * Run the {@link ResponseCallback}s of this client's responses on <code>callbackExecutor</code>.
+	 * <code>null</code>, the default, uses the transport's {@link HttpClientTransport#getCallbackExecutor()
+	 * callback executor}.
+	 */
+	public AsyncHttpClient setCallbackExecutor(Executor callbackExecutor) {
+		this.callbackExecutor = callbackExecutor;
 		return this;
 	}
 
-	@SuppressWarnings({"unchecked"})
-	public WritableByteChannel start(Request request) throws IOException {
-		getConnection().write(request);
-		return new RequestByteChannel(request);
+	private void prepareResponse(Request request) {
+		Response response = request.getResponse();
+		response.setCallbackExecutor(null != callbackExecutor ? callbackExecutor : getTransport().getCallbackExecutor());
+		if (null == response.getConsumer()) {
+			WritableByteChannel channel = transferChannel.getAndSet(null);
+			if (null != channel) {
+				response.transferTo(channel);
+			}
+		}
+	}
+
+	/**
+	 * Make a template for requests to this client with the same method and headers, which are encoded
+	 * once rather than for every request.
+	 */
+	public RequestTemplate template(Request.Method method, Map<String, String> headers) {
+		return template(method, headers, "application/octet-stream");
+	}
+
+	/**
+	 * @param contentType the content type of the bodies of <code>PUT</code> and <code>POST</code>
+	 *                    requests made from the template.
+	 * @see #template(Request.Method, Map)
+	 */
+	public RequestTemplate template(Request.Method method, Map<String, String> headers, String contentType) {
+		return new RequestTemplate(this, method, headers, contentType);
+	}
+
+	/**
+	 * Start a request whose body is written through the returned channel. Returns right away; the
+	 * request line, headers and anything written to the channel go out once there's a connection.
+	 */
+	public RequestByteChannel start(Request request) throws IOException {
+		prepareResponse(request);
+		write(request, request);
+		return new RequestByteChannel(this, request, maxQueuedBodyBytes());
 	}
 
-	@SuppressWarnings({"unchecked"})
 	public Response complete(Request request) throws IOException {
-		request.setComplete(true);
-		getConnection().write(request);
+		prepareResponse(request);
+		write(request, Request.FINISH);
 		return request.getResponse();
 	}
 
-	@SuppressWarnings({"unchecked"})
+	/**
+	 * Send a request without waiting for a connection. If one can't be had, the {@link Response}
+	 * fails with the reason why.
+	 */
 	public Response send(Request request) throws IOException {
-		getConnection().write(request);
+		prepareResponse(request);
+		final ResponseCache cache = responseCache;
+		if (null != cache) {
+			if (cache.isCacheable(request)) {
+				new CacheExchange(this, request, cache).start();
+				return request.getResponse();
+			} else if (ResponseCache.invalidates(request)) {
+				// Before and after, so a GET that's in flight meanwhile can't put back what this changes
+				final String key = ResponseCache.key(this, request);
+				cache.remove(key);
+				request.getResponse().addDoneListener(new Runnable() {
+					@Override public void run() {
+						cache.remove(key);
+					}
+				});
+			}
+		}
+		exchange(request);
 		return request.getResponse();
 	}
 
-	@SuppressWarnings({"unchecked"})
-	public List<Response> send(Request... requests) throws IOException {
-		List<Response> responses = new ArrayList<Response>();
-		for (Request request : requests) {
-			responses.add(send(request));
+	/**
+	 * Send a request without looking in the cache, sharing the exchange with identical requests in
+	 * flight if the transport coalesces them.
+	 */
+	void exchange(Request request) throws IOException {
+		HttpClientTransport t = getTransport();
+		if (t.isCoalesceRequests() && SingleFlight.isCoalescable(request)) {
+			t.getSingleFlight().send(this, request);
+		} else {
+			startExchange(request);
 		}
-		return responses;
 	}
 
-	public void dispose() throws IOException {
-		transport.stop();
+	/**
+	 * Send a request of its own, retrying it if the retry policy allows.
+	 */
+	void startExchange(Request request) throws IOException {
+		if (isRetryable(request)) {
+			new RetryExchange(this, request, retryPolicy).start();
+		} else {
+			write(request, Request.FINISH);
+		}
 	}
 
-	private class RequestByteChannel implements WritableByteChannel {
-		private Request request;
-
-		private RequestByteChannel(Request request) {
-			this.request = request;
-		}
+	/**
+	 * Send one attempt at a request that's being retried or hedged.
+	 */
+	void sendAttempt(Request attempt) throws IOException {
+		write(attempt, Request.FINISH);
+	}
 
-		@SuppressWarnings({"unchecked"})
-		@Override public int write(ByteBuffer byteBuffer) throws IOException {
-			int size = byteBuffer.remaining();
-			getConnection().write(new ByteBufferWrapper(byteBuffer));
-			return size;
+	/**
+	 * Send a batch of requests. Idempotent requests are pipelined, up to the maximum pipeline depth per
+	 * connection; everything else gets a connection of its own.
+	 */
+	@SuppressWarnings({"unchecked"})
+	public List<Response> send(Request... requests) throws IOException {
+		List<Response> responses = new ArrayList<Response>(requests.length);
+		List<Request> pipeline = new ArrayList<Request>();
+		for (Request request : requests) {
+			if (isPipelinable(request)) {
+				pipeline.add(request);
+				if (pipeline.size() >= maxPipelineDepth) {
+					pipeline(pipeline);
+					pipeline.clear();
+				}
+			} else {
+				send(request);
+			}
+			responses.add(request.getResponse());
 		}
-
-		@Override public boolean isOpen() {
-			return true;
+		if (!pipeline.isEmpty()) {
+			pipeline(pipeline);
 		}
+		return responses;
+	}
 
-		@Override public void close() throws IOException {
+	/**
+	 * Let go of the shared {@link HttpClientTransport}. The transport, and every connection it has
+	 * open, is stopped once the last client using it has been disposed, unless it's the default
+	 * transport, which is left running for other requests.
+	 */
+	public synchronized void dispose() throws IOException {
+		if (!disposed && null != transport) {
+			disposed = true;
+			transport.release();
 		}
 	}
 
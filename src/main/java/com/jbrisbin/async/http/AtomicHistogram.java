@@ -0,0 +1,86 @@
+package com.jbrisbin.async.http;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Thread-safe histogram of nanosecond timings with about 3% precision. Values below 64 get a bucket
+ * each and every power of two above that is split into 32 buckets, so all the memory it will ever
+ * need is allocated up front and recording a value is a single atomic increment.
+ *
+ * @author Jon Brisbin <jon@jbrisbin.com>
+ */
+class AtomicHistogram {
+
+	private static final int LINEAR_BUCKETS = 64;
+	private static final int SUB_BUCKETS = 32;
+	private static final int SUB_BUCKET_SHIFT = 5;
+	// 2^45ns is almost 10 hours
+	private static final int MAX_SHIFT = 40;
+
+	private final AtomicLongArray counts = new AtomicLongArray(LINEAR_BUCKETS + MAX_SHIFT * SUB_BUCKETS);
+	private final StripedCounter sum = new StripedCounter();
+
+	void record(long nanos) {
+		counts.incrementAndGet(index(nanos));
+		sum.add(nanos);
+	}
+
+	long getCount() {
+		long count = 0;
+		for (int i = 0; i < counts.length(); i++) {
+			count += counts.get(i);
+		}
+		return count;
+	}
+
+	double getMean() {
+		long count = getCount();
+		return (count > 0 ? (double) sum.sum() / count : 0);
+	}
+
+	/**
+	 * @return the highest value equivalent to the value at <code>percentile</code>, or 0 if nothing
+	 *         has been recorded.
+	 */
+	long getValueAtPercentile(double percentile) {
+		long[] snapshot = new long[counts.length()];
+		long count = 0;
+		for (int i = 0; i < snapshot.length; i++) {
+			snapshot[i] = counts.get(i);
+			count += snapshot[i];
+		}
+		if (count == 0) {
+			return 0;
+		}
+		long target = Math.max((long) Math.ceil(percentile / 100 * count), 1);
+		long seen = 0;
+		for (int i = 0; i < snapshot.length; i++) {
+			seen += snapshot[i];
+			if (seen >= target) {
+				return highestEquivalentValue(i);
+			}
+		}
+		return highestEquivalentValue(snapshot.length - 1);
+	}
+
+	private int index(long value) {
+		if (value < LINEAR_BUCKETS) {
+			return (int) Math.max(value, 0);
+		}
+		int shift = (63 - Long.numberOfLeadingZeros(value)) - SUB_BUCKET_SHIFT;
+		if (shift > MAX_SHIFT) {
+			return counts.length() - 1;
+		}
+		return LINEAR_BUCKETS + (shift - 1) * SUB_BUCKETS + (int) ((value >> shift) - SUB_BUCKETS);
+	}
+
+	private static long highestEquivalentValue(int index) {
+		if (index < LINEAR_BUCKETS) {
+			return index;
+		}
+		int shift = (index - LINEAR_BUCKETS) / SUB_BUCKETS + 1;
+		long subBucket = (index - LINEAR_BUCKETS) % SUB_BUCKETS + SUB_BUCKETS;
+		return ((subBucket + 1) << shift) - 1;
+	}
+
+}
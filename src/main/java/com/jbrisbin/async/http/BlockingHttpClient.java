@@ -0,0 +1,133 @@
+package com.jbrisbin.async.http;
+
+import static com.jbrisbin.async.http.Request.Method.*;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * A blocking front end to an {@link AsyncHttpClient}, for callers that would rather write
+ * straight-line code than chain callbacks. Each call sends its request over the client's shared
+ * transport and parks the calling thread until the response is done. No thread is held while the
+ * request waits on a connection or on the server, and waiting never holds a monitor, so lots of
+ * threads, virtual threads included, can block on it at once for little more than the cost of the
+ * requests themselves.
+ * <p>
+ * A response that fails is thrown as an {@link IOException}; an error status comes back as an
+ * <code>IOException</code> caused by an {@link HttpException}. A thread that's interrupted while it
+ * waits gives up on its request.
+ *
+ * @author Jon Brisbin <jon@jbrisbin.com>
+ */
+public class BlockingHttpClient {
+
+	private final AsyncHttpClient client;
+
+	public BlockingHttpClient(AsyncHttpClient client) {
+		this.client = client;
+	}
+
+	public static BlockingHttpClient connect(String host, Integer port) {
+		return new BlockingHttpClient(AsyncHttpClient.connect(host, port));
+	}
+
+	public static BlockingHttpClient connect(String host, Integer port, HttpClientTransport transport) {
+		return new BlockingHttpClient(AsyncHttpClient.connect(host, port, transport));
+	}
+
+	public AsyncHttpClient getClient() {
+		return client;
+	}
+
+	public Response get(String url) throws IOException {
+		return execute(new Request(new URL(url), GET));
+	}
+
+	public Response get(String url, Map<String, String> headers) throws IOException {
+		return execute(new Request(new URL(url), GET, headers));
+	}
+
+	public Response put(String url, String contentType, byte[] content) throws IOException {
+		return execute(new Request(new URL(url), PUT, null, ByteBuffer.wrap(content), contentType));
+	}
+
+	public Response post(String url, String contentType, byte[] content) throws IOException {
+		return execute(new Request(new URL(url), POST, null, ByteBuffer.wrap(content), contentType));
+	}
+
+	public Response delete(String url) throws IOException {
+		return execute(new Request(new URL(url), DELETE));
+	}
+
+	/**
+	 * Send a request and wait for its response to be done. The request's own deadlines, or the
+	 * client's, are what bound the wait.
+	 */
+	public Response execute(Request request) throws IOException {
+		Response response = client.send(request);
+		try {
+			response.get();
+		} catch (InterruptedException e) {
+			throw interrupted(request, e);
+		} catch (ExecutionException e) {
+			throw failed(request, e.getCause());
+		} catch (CancellationException e) {
+			throw failed(request, e);
+		}
+		return response;
+	}
+
+	/**
+	 * Send a request and wait at most <code>timeout</code> for its response, giving up on the request
+	 * if it takes longer than that.
+	 */
+	public Response execute(Request request, long timeout, TimeUnit unit) throws IOException {
+		Response response = client.send(request);
+		try {
+			response.get(timeout, unit);
+		} catch (InterruptedException e) {
+			throw interrupted(request, e);
+		} catch (ExecutionException e) {
+			throw failed(request, e.getCause());
+		} catch (CancellationException e) {
+			throw failed(request, e);
+		} catch (TimeoutException e) {
+			RequestTimeoutException timedOut = new RequestTimeoutException("No response from " + request.getUrl() + " within " + unit.toMillis(timeout) + "ms", RequestTimeoutException.Kind.REQUEST);
+			request.abort(timedOut);
+			throw failed(request, timedOut);
+		}
+		return response;
+	}
+
+	/**
+	 * Let go of the underlying client's transport.
+	 *
+	 * @see AsyncHttpClient#dispose()
+	 */
+	public void dispose() throws IOException {
+		client.dispose();
+	}
+
+	private static IOException interrupted(Request request, InterruptedException e) {
+		request.abort(new CancellationException("Interrupted waiting on " + request.getUrl()));
+		Thread.currentThread().interrupt();
+		InterruptedIOException ioe = new InterruptedIOException("Interrupted waiting on " + request.getUrl());
+		ioe.initCause(e);
+		return ioe;
+	}
+
+	private static IOException failed(Request request, Throwable cause) {
+		if (cause instanceof IOException) {
+			return (IOException) cause;
+		}
+		return new IOException(request.getMethod() + " " + request.getUrl() + " failed: " + cause.getMessage(), cause);
+	}
+
+}
@@ -0,0 +1,227 @@
+package com.jbrisbin.async.http;
+
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.glassfish.grizzly.Buffer;
+import org.glassfish.grizzly.memory.ByteBufferManager;
+import org.glassfish.grizzly.memory.ByteBufferWrapper;
+import org.glassfish.grizzly.memory.MemoryManager;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Pool of reusable heap or direct buffers in power-of-two size classes. Requests bigger than the
+ * largest size class fall back to a Grizzly {@link ByteBufferManager}, which is also installed as
+ * the {@link MemoryManager} of the {@link HttpClientTransport} using this pool, so reads land in the
+ * same kind of memory.
+ * <p>
+ * A buffer goes back to the pool when it's disposed, which Grizzly does itself once a pooled buffer
+ * has been written to a connection. With leak detection turned on, buffers that are garbage
+ * collected without having been disposed are logged along with where they were acquired.
+ * <p>
+ * Only what's written through a {@link RequestByteChannel} comes from the pool. A body set on a
+ * {@link Request} is wrapped as it is, since copying it into a pooled buffer costs more than the
+ * wrapper it saves. Reads aren't pooled either: Grizzly leaves parsed headers and the content it
+ * splits off pointing into the buffer it read into, with no point at which it's done with it, so
+ * giving that buffer back could let the next read overwrite them. That's why a {@link
+ * ResponseConsumer} has to copy any chunk it wants to keep rather than releasing it.
+ *
+ * @author Jon Brisbin <jon@jbrisbin.com>
+ */
+public class BufferPool {
+
+	private static final Logger log = LoggerFactory.getLogger(BufferPool.class);
+	private static final int MIN_SIZE_SHIFT = 8;
+	private static final int UNPOOLED = -1;
+
+	private final boolean direct;
+	private final int maxBufferSize;
+	private final int maxPooledPerSize;
+	private final ByteBufferManager memoryManager;
+	private final ConcurrentLinkedQueue<ByteBuffer>[] sizeClasses;
+	private final AtomicInteger[] pooledCounts;
+	private volatile boolean leakDetection = false;
+	private final ReferenceQueue<PooledBuffer> leakQueue = new ReferenceQueue<PooledBuffer>();
+	private final ConcurrentHashMap<Reference<PooledBuffer>, Exception> leases = new ConcurrentHashMap<Reference<PooledBuffer>, Exception>();
+
+	public BufferPool() {
+		this(false, 64 * 1024, 256);
+	}
+
+	/**
+	 * @param direct           whether to pool direct rather than heap buffers.
+	 * @param maxBufferSize    the largest size class; bigger requests aren't pooled.
+	 * @param maxPooledPerSize how many idle buffers to keep per size class.
+	 */
+	@SuppressWarnings({"unchecked"})
+	public BufferPool(boolean direct, int maxBufferSize, int maxPooledPerSize) {
+		this.direct = direct;
+		this.maxBufferSize = maxBufferSize;
+		this.maxPooledPerSize = maxPooledPerSize;
+		this.memoryManager = new ByteBufferManager(direct, maxBufferSize, ByteBufferManager.DEFAULT_SMALL_BUFFER_SIZE);
+		int classes = Math.max(sizeClass(maxBufferSize) + 1, 1);
+		this.sizeClasses = new ConcurrentLinkedQueue[classes];
+		this.pooledCounts = new AtomicInteger[classes];
+		for (int i = 0; i < classes; i++) {
+			sizeClasses[i] = new ConcurrentLinkedQueue<ByteBuffer>();
+			pooledCounts[i] = new AtomicInteger();
+		}
+	}
+
+	public boolean isDirect() {
+		return direct;
+	}
+
+	public int getMaxBufferSize() {
+		return maxBufferSize;
+	}
+
+	public MemoryManager getMemoryManager() {
+		return memoryManager;
+	}
+
+	public boolean isLeakDetection() {
+		return leakDetection;
+	}
+
+	/**
+	 * Record where each buffer is acquired and log any buffer that's garbage collected without being
+	 * disposed. Costs an exception per acquire, so it's meant for debugging.
+	 */
+	public BufferPool setLeakDetection(boolean leakDetection) {
+		this.leakDetection = leakDetection;
+		return this;
+	}
+
+	/**
+	 * @return the number of idle buffers currently held by the pool.
+	 */
+	public int getPooledCount() {
+		int count = 0;
+		for (AtomicInteger i : pooledCounts) {
+			count += i.get();
+		}
+		return count;
+	}
+
+	/**
+	 * Get a buffer with at least <code>size</code> bytes of capacity, positioned at zero and limited to
+	 * <code>size</code>. The buffer returns to the pool when it's disposed.
+	 */
+	public Buffer acquire(int size) {
+		if (leakDetection) {
+			reportLeaks();
+		}
+		int sizeClass;
+		ByteBuffer bb;
+		if (size > maxBufferSize) {
+			// Too big to pool, but it still needs PooledBuffer's get(ByteBuffer)
+			sizeClass = UNPOOLED;
+			bb = memoryManager.allocateByteBuffer(size);
+		} else {
+			sizeClass = sizeClass(size);
+			bb = sizeClasses[sizeClass].poll();
+			if (null != bb) {
+				pooledCounts[sizeClass].decrementAndGet();
+				bb.clear();
+			} else {
+				bb = (direct ? ByteBuffer.allocateDirect(1 << (sizeClass + MIN_SIZE_SHIFT)) : ByteBuffer.allocate(1 << (sizeClass + MIN_SIZE_SHIFT)));
+			}
+		}
+		bb.limit(size);
+
+		PooledBuffer buffer = new PooledBuffer(bb, sizeClass);
+		buffer.allowBufferDispose(true);
+		if (leakDetection) {
+			buffer.leakRef = new WeakReference<PooledBuffer>(buffer, leakQueue);
+			leases.put(buffer.leakRef, new Exception("Buffer of " + size + " bytes acquired here"));
+		}
+		return buffer;
+	}
+
+	/**
+	 * Copy the remaining bytes of <code>src</code> into a pooled buffer, leaving <code>src</code>
+	 * consumed. The returned buffer is flipped and ready to be written.
+	 */
+	public Buffer copyOf(ByteBuffer src) {
+		Buffer buffer = acquire(src.remaining());
+		buffer.put(src);
+		buffer.flip();
+		return buffer;
+	}
+
+	private void release(ByteBuffer bb, int sizeClass, Reference<PooledBuffer> leakRef) {
+		if (null != leakRef) {
+			leases.remove(leakRef);
+		}
+		if (UNPOOLED == sizeClass) {
+			memoryManager.releaseByteBuffer(bb);
+			return;
+		}
+		if (pooledCounts[sizeClass].incrementAndGet() <= maxPooledPerSize) {
+			sizeClasses[sizeClass].offer(bb);
+		} else {
+			pooledCounts[sizeClass].decrementAndGet();
+		}
+	}
+
+	private void reportLeaks() {
+		Reference<? extends PooledBuffer> ref;
+		while (null != (ref = leakQueue.poll())) {
+			Exception acquired = leases.remove(ref);
+			if (null != acquired) {
+				log.error("Pooled buffer was garbage collected without being disposed", acquired);
+			}
+		}
+	}
+
+	private static int sizeClass(int size) {
+		int shift = 32 - Integer.numberOfLeadingZeros(Math.max(size, 1) - 1);
+		return Math.max(shift - MIN_SIZE_SHIFT, 0);
+	}
+
+	private class PooledBuffer extends ByteBufferWrapper {
+		private final int sizeClass;
+		private final AtomicBoolean disposed = new AtomicBoolean(false);
+		private WeakReference<PooledBuffer> leakRef = null;
+
+		private PooledBuffer(ByteBuffer underlyingByteBuffer, int sizeClass) {
+			super(underlyingByteBuffer);
+			this.sizeClass = sizeClass;
+		}
+
+		/**
+		 * Grizzly 2.1.1's version copies nothing and moves the position backwards when this buffer has
+		 * more left than fits in <code>dst</code>, which is just what happens when the transport copies a
+		 * big chunk into its write buffer piece by piece, so the write never finishes.
+		 */
+		@Override public Buffer get(ByteBuffer dst) {
+			int length = Math.min(visible.remaining(), dst.remaining());
+			int limit = visible.limit();
+			try {
+				visible.limit(visible.position() + length);
+				dst.put(visible);
+			} finally {
+				visible.limit(limit);
+			}
+			return this;
+		}
+
+		@Override public void dispose() {
+			if (disposed.compareAndSet(false, true)) {
+				prepareDispose();
+				ByteBuffer bb = visible;
+				visible = null;
+				release(bb, sizeClass, leakRef);
+			}
+		}
+	}
+
+}
@@ -33,7 +33,8 @@ public class BufferReadableByteChannel implements ReadableByteChannel {
 		int start = buffer.position();
 		buffer.get(byteBuffer);
 		int length = buffer.position() - start;
-		log.debug("Read " + length + " bytes");
+		if (log.isDebugEnabled())
+			log.debug("Read " + length + " bytes");
 		return length;
 	}
 
@@ -41,6 +42,9 @@ public class BufferReadableByteChannel implements ReadableByteChannel {
 		return true;
 	}
 
+	/**
+	 * Dispose of the buffer, which returns it to its {@link BufferPool} if it came from one.
+	 */
 	@Override public void close() throws IOException {
 		buffer.dispose();
 	}
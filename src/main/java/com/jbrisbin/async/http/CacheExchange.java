@@ -0,0 +1,97 @@
+package com.jbrisbin.async.http;
+
+import static com.jbrisbin.async.http.Http11Headers.*;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Collections;
+import java.util.concurrent.ExecutionException;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Answers a <code>GET</code> from a {@link ResponseCache} if it can, and otherwise sends it, made
+ * conditional if there's a stale response to revalidate, and stores what comes back. What's sent is
+ * a copy of the request, so the caller's response only completes once, however it's answered.
+ *
+ * @author Jon Brisbin <jon@jbrisbin.com>
+ */
+class CacheExchange implements Runnable {
+
+	private static final Logger log = LoggerFactory.getLogger(CacheExchange.class);
+
+	private final AsyncHttpClient client;
+	private final Request request;
+	private final ResponseCache cache;
+	private final String key;
+	private ResponseCache.Entry stale = null;
+	private Request attempt = null;
+	private long requestTime = 0;
+
+	CacheExchange(AsyncHttpClient client, Request request, ResponseCache cache) {
+		this.client = client;
+		this.request = request;
+		this.cache = cache;
+		this.key = ResponseCache.key(client, request);
+	}
+
+	void start() throws IOException {
+		long now = System.currentTimeMillis();
+		ResponseCache.Entry entry = cache.get(key, request);
+		if (null != entry && cache.isFresh(entry, request, now)) {
+			if (log.isDebugEnabled())
+				log.debug("Cache hit for " + key);
+			cache.hit();
+			request.getResponse().completeFromCache(entry.status, entry.headers, entry.body(), entry.age(now));
+			return;
+		}
+
+		attempt = request.newAttempt();
+		if (null != entry && (null != entry.etag || null != entry.lastModified)) {
+			stale = entry;
+			if (null != entry.etag) {
+				attempt.setHeaders(Collections.singletonMap(IF_NONE_MATCH, entry.etag));
+			}
+			if (null != entry.lastModified) {
+				attempt.setHeaders(Collections.singletonMap(IF_MODIFIED_SINCE, entry.lastModified));
+			}
+			if (log.isDebugEnabled())
+				log.debug("Revalidating " + key);
+		}
+		attempt.getResponse().addDoneListener(this);
+		requestTime = now;
+		client.exchange(attempt);
+	}
+
+	/**
+	 * Called once the response from the network is done.
+	 */
+	@Override public void run() {
+		Response response = attempt.getResponse();
+		if (response.isCancelled()) {
+			return;
+		}
+		ByteBuffer body;
+		try {
+			body = response.getFuture().get();
+		} catch (ExecutionException e) {
+			request.getResponse().failFrom(response, e.getCause());
+			return;
+		} catch (InterruptedException e) {
+			// It's done, so get() doesn't wait
+			Thread.currentThread().interrupt();
+			return;
+		}
+		long responseTime = System.currentTimeMillis();
+		if (304 == response.getStatus() && null != stale) {
+			ResponseCache.Entry entry = cache.revalidated(key, stale, request, response, requestTime, responseTime);
+			request.getResponse().completeFromCache(entry.status, entry.headers, entry.body(), entry.age(responseTime));
+			return;
+		}
+		cache.miss();
+		cache.put(key, request, response, body, requestTime, responseTime);
+		request.getResponse().completeFrom(response, body);
+	}
+
+}
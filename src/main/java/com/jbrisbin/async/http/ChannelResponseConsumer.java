@@ -0,0 +1,82 @@
+package com.jbrisbin.async.http;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * Writes a response body straight into a {@link WritableByteChannel} as it arrives. Given a {@link
+ * FileChannel} and a starting position, chunks are written at explicit positions, which leaves the
+ * channel's own position alone and lets several downloads share one file.
+ * <p>
+ * Writes happen on the transport's threads, so the channel should be a blocking one. A write that
+ * fails, or one that takes nothing because the channel isn't ready, aborts the request rather than
+ * read the rest of the body only to throw it away.
+ *
+ * @author Jon Brisbin <jon@jbrisbin.com>
+ */
+public class ChannelResponseConsumer implements ResponseConsumer {
+
+	private final WritableByteChannel channel;
+	private final FileChannel fileChannel;
+	private long position;
+	private long bytesWritten = 0;
+	private boolean failed = false;
+
+	public ChannelResponseConsumer(WritableByteChannel channel) {
+		this.channel = channel;
+		this.fileChannel = null;
+		this.position = -1;
+	}
+
+	public ChannelResponseConsumer(FileChannel channel, long position) {
+		this.channel = channel;
+		this.fileChannel = channel;
+		this.position = position;
+	}
+
+	public WritableByteChannel getChannel() {
+		return channel;
+	}
+
+	public long getBytesWritten() {
+		return bytesWritten;
+	}
+
+	@Override public void headers(Response response) {
+	}
+
+	@Override public void chunk(Response response, ByteBuffer chunk) {
+		if (failed || response.getStatus() >= 400) {
+			// An error's body is no part of what's being downloaded
+			return;
+		}
+		try {
+			while (chunk.hasRemaining()) {
+				int written;
+				if (null != fileChannel) {
+					written = fileChannel.write(chunk, position);
+					position += written;
+				} else {
+					written = channel.write(chunk);
+				}
+				if (written == 0) {
+					// Trying again would only spin on the transport's thread
+					throw new IOException("Couldn't write the body of " + response.getRequest().getUrl() + " to " + channel + ": it took nothing");
+				}
+				bytesWritten += written;
+			}
+		} catch (IOException e) {
+			failed = true;
+			response.getRequest().abort(e);
+		}
+	}
+
+	@Override public void completed(Response response) {
+	}
+
+	@Override public void failed(Response response, Throwable t) {
+	}
+
+}
@@ -0,0 +1,152 @@
+package com.jbrisbin.async.http;
+
+import java.io.IOException;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import org.glassfish.grizzly.Buffer;
+import org.glassfish.grizzly.CompletionHandler;
+import org.glassfish.grizzly.Connection;
+import org.glassfish.grizzly.Grizzly;
+import org.glassfish.grizzly.WriteResult;
+import org.glassfish.grizzly.attributes.Attribute;
+import org.glassfish.grizzly.filterchain.FilterChainContext;
+import org.glassfish.grizzly.filterchain.NextAction;
+import org.glassfish.grizzly.http.HttpClientFilter;
+import org.glassfish.grizzly.http.HttpContent;
+import org.glassfish.grizzly.http.HttpHeader;
+import org.glassfish.grizzly.http.HttpPacket;
+import org.glassfish.grizzly.http.HttpRequestPacket;
+import org.glassfish.grizzly.http.HttpResponsePacket;
+import org.glassfish.grizzly.impl.FutureImpl;
+import org.glassfish.grizzly.memory.MemoryManager;
+
+/**
+ * {@link HttpClientFilter} that can have more than one request outstanding on a connection.
+ * <p>
+ * The stock filter only remembers the first request written to a connection that isn't waiting on
+ * a response yet, so when requests are pipelined every response after the first is parsed without
+ * its request, and a response to a <code>HEAD</code> is taken to have a body. This keeps every
+ * request written in order and hands the stock filter the right one as each response starts. The
+ * stock filter also drops anything read after a response that has no body, so that's passed back to
+ * be parsed as the next response.
+ * <p>
+ * It also completes writes that a content encoding takes in without producing anything yet, which
+ * the stock filter drops without a word, so whoever is waiting on them isn't left hanging.
+ * <p>
+ * The header of a request made from a {@link RequestTemplate} is encoded with just its request line
+ * and body length, followed by the template's headers as they were encoded when it was made.
+ *
+ * @author Jon Brisbin <jon@jbrisbin.com>
+ */
+class ClientCodecFilter extends HttpClientFilter {
+
+	// Attributes are looked up by name, so these are the same ones HttpClientFilter uses
+	private static final Attribute<HttpRequestPacket> REQUEST_IN_PROCESS = Grizzly.DEFAULT_ATTRIBUTE_BUILDER.createAttribute("HttpClientFilter.httpRequest");
+	private static final Attribute<Object> RESPONSE_IN_PROCESS = Grizzly.DEFAULT_ATTRIBUTE_BUILDER.createAttribute("HttpClientFilter.httpResponse");
+	private static final Attribute<Queue<HttpRequestPacket>> REQUESTS_SENT = Grizzly.DEFAULT_ATTRIBUTE_BUILDER.createAttribute("ClientCodecFilter.requestsSent");
+
+	@SuppressWarnings({"unchecked"})
+	@Override public NextAction handleWrite(FilterChainContext ctx) throws IOException {
+		Object message = ctx.getMessage();
+		HttpHeader header = null;
+		if (message instanceof HttpHeader) {
+			header = (HttpHeader) message;
+		} else if (message instanceof HttpContent) {
+			header = ((HttpContent) message).getHttpHeader();
+		}
+		// Only the first write of a request goes in the queue, before its header is sent, so a
+		// response can't come back ahead of it
+		if (null != header && header.isRequest() && !header.isCommitted()) {
+			requestsSent(ctx.getConnection()).offer((HttpRequestPacket) header);
+		}
+		FilterChainContext.TransportContext tc = ctx.getTransportContext();
+		CompletionHandler handler = tc.getCompletionHandler();
+		FutureImpl future = tc.getFuture();
+		NextAction action = super.handleWrite(ctx);
+		if (message instanceof HttpContent && message == ctx.getMessage()) {
+			// Nothing was handed on to the transport, so nothing else will complete the write
+			WriteResult result = WriteResult.create(ctx.getConnection(), message, null, 0);
+			if (null != handler) {
+				handler.completed(result);
+			}
+			if (null != future) {
+				future.result(result);
+			}
+		}
+		return action;
+	}
+
+	@Override protected Buffer encodeHttpPacket(FilterChainContext ctx, HttpPacket input) {
+		byte[] templateHeaders = null;
+		if (input instanceof HttpRequestPacket && !((HttpRequestPacket) input).isCommitted()) {
+			templateHeaders = RequestTemplate.encodedHeaders((HttpRequestPacket) input);
+		}
+		Buffer encoded = super.encodeHttpPacket(ctx, input);
+		if (null == templateHeaders || null == encoded) {
+			return encoded;
+		}
+		// The template's headers end with the blank line the codec ended its own with, so they go in
+		// its place. The codec has given back whatever room was left in its buffer, so this is a new one.
+		MemoryManager memoryManager = ctx.getConnection().getTransport().getMemoryManager();
+		encoded.limit(encoded.limit() - 2);
+		Buffer header = memoryManager.allocate(encoded.remaining() + templateHeaders.length);
+		header.put(encoded);
+		header.put(templateHeaders);
+		header.flip();
+		header.allowBufferDispose(true);
+		encoded.tryDispose();
+		return header;
+	}
+
+	@Override public NextAction handleRead(FilterChainContext ctx) throws IOException {
+		Connection connection = ctx.getConnection();
+		if (null == RESPONSE_IN_PROCESS.get(connection)) {
+			HttpRequestPacket request = requestsSent(connection).poll();
+			if (null != request) {
+				REQUEST_IN_PROCESS.set(connection, request);
+			} else {
+				REQUEST_IN_PROCESS.remove(connection);
+			}
+		}
+		Object input = ctx.getMessage();
+		NextAction action = super.handleRead(ctx);
+		Object parsed = ctx.getMessage();
+		if (parsed instanceof HttpContent && input instanceof Buffer && ((Buffer) input).hasRemaining()) {
+			HttpContent content = (HttpContent) parsed;
+			if (content.isLast() && !content.getContent().hasRemaining() && isBodiless((HttpResponsePacket) content.getHttpHeader())) {
+				// What was read after the header is the next pipelined response, handed on the way the codec
+				// hands on its own remainders
+				return ctx.getInvokeAction(((Buffer) input).slice());
+			}
+		}
+		return action;
+	}
+
+	/**
+	 * @return whether the response can't have a body, whatever its headers say.
+	 */
+	private static boolean isBodiless(HttpResponsePacket response) {
+		int status = response.getStatus();
+		HttpRequestPacket request = response.getRequest();
+		return (null != request && request.isHeadRequest())
+				|| (status >= 100 && status < 200)
+				|| 204 == status
+				|| 304 == status;
+	}
+
+	private static Queue<HttpRequestPacket> requestsSent(Connection connection) {
+		Queue<HttpRequestPacket> requests = REQUESTS_SENT.get(connection);
+		if (null == requests) {
+			synchronized (connection) {
+				requests = REQUESTS_SENT.get(connection);
+				if (null == requests) {
+					requests = new ConcurrentLinkedQueue<HttpRequestPacket>();
+					REQUESTS_SENT.set(connection, requests);
+				}
+			}
+		}
+		return requests;
+	}
+
+}
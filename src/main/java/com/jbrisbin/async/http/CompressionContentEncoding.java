@@ -0,0 +1,524 @@
+package com.jbrisbin.async.http;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import org.glassfish.grizzly.Buffer;
+import org.glassfish.grizzly.Connection;
+import org.glassfish.grizzly.Grizzly;
+import org.glassfish.grizzly.attributes.Attribute;
+import org.glassfish.grizzly.http.ContentEncoding;
+import org.glassfish.grizzly.http.HttpContent;
+import org.glassfish.grizzly.http.HttpHeader;
+import org.glassfish.grizzly.http.ParsingResult;
+import org.glassfish.grizzly.memory.Buffers;
+import org.glassfish.grizzly.memory.ByteBufferArray;
+import org.glassfish.grizzly.memory.CompositeBuffer;
+import org.glassfish.grizzly.memory.MemoryManager;
+
+/**
+ * The <code>gzip</code> and <code>deflate</code> content encodings. Response bodies are inflated
+ * chunk by chunk as they're read, so a compressed body is never buffered whole. A gzip trailer that
+ * doesn't match what was inflated fails the body, and so does a body that ends before its compressed
+ * data does, which the {@link RequestResponseFilter} checks with {@link #isTruncated}, since the last
+ * chunk of a chunked body is empty and never reaches {@link #decode}. Request bodies are gzipped if
+ * the {@link RequestResponseFilter} marked the request with {@link #compress}.
+ * <p>
+ * Each {@link Inflater} and {@link Deflater} holds native memory until it's ended, so they're reset
+ * and kept for the next message rather than left for the garbage collector. Each message inflates or
+ * deflates into one scratch array of its own, and only the bytes produced are copied out into
+ * buffers from the transport's {@link MemoryManager}.
+ * <p>
+ * Grizzly's own GZipContentEncoding also claims <code>deflate</code> but can only read gzip, which
+ * is why {@link HttpClientTransport} installs these in its place.
+ *
+ * @author Jon Brisbin <jon@jbrisbin.com>
+ */
+class CompressionContentEncoding implements ContentEncoding {
+
+	static final String GZIP = "gzip";
+	static final String DEFLATE = "deflate";
+
+	private static final Attribute<Boolean> COMPRESS = Grizzly.DEFAULT_ATTRIBUTE_BUILDER.createAttribute("compress-content");
+	private static final Attribute<Inflation> GZIP_INFLATION = Grizzly.DEFAULT_ATTRIBUTE_BUILDER.createAttribute(GZIP + "-inflation");
+	private static final Attribute<Inflation> DEFLATE_INFLATION = Grizzly.DEFAULT_ATTRIBUTE_BUILDER.createAttribute(DEFLATE + "-inflation");
+	private static final int CHUNK_SIZE = 8192;
+	private static final int MAX_POOLED = 64;
+	private static final int GZIP_MAGIC = 0x8b1f;
+	private static final int GZIP_HEADER_SIZE = 10;
+	private static final int GZIP_TRAILER_SIZE = 8;
+	private static final int FHCRC = 2;
+	private static final int FEXTRA = 4;
+	private static final int FNAME = 8;
+	private static final int FCOMMENT = 16;
+	private static final byte[] GZIP_HEADER = {0x1f, (byte) 0x8b, Deflater.DEFLATED, 0, 0, 0, 0, 0, 0, (byte) 0xff};
+
+	private final String name;
+	private final boolean gzip;
+	private final Attribute<Inflation> inflation;
+	private final Attribute<Deflation> deflation;
+	private final ConcurrentLinkedQueue<Inflater> inflaters = new ConcurrentLinkedQueue<Inflater>();
+	private final ConcurrentLinkedQueue<Inflater> rawInflaters = new ConcurrentLinkedQueue<Inflater>();
+	private final ConcurrentLinkedQueue<Deflater> deflaters = new ConcurrentLinkedQueue<Deflater>();
+	private final AtomicInteger pooledInflaters = new AtomicInteger();
+	private final AtomicInteger pooledRawInflaters = new AtomicInteger();
+	private final AtomicInteger pooledDeflaters = new AtomicInteger();
+
+	CompressionContentEncoding(String name) {
+		this.name = name;
+		this.gzip = GZIP.equals(name);
+		this.inflation = (gzip ? GZIP_INFLATION : DEFLATE_INFLATION);
+		this.deflation = Grizzly.DEFAULT_ATTRIBUTE_BUILDER.createAttribute(name + "-deflation");
+	}
+
+	/**
+	 * Have the body of a request gzipped on its way out. Has to be called before the header is
+	 * written.
+	 */
+	static void compress(HttpHeader header) {
+		COMPRESS.set(header, Boolean.TRUE);
+	}
+
+	/**
+	 * Call once the last of a response has been read.
+	 *
+	 * @return whether its body ended before the compressed data in it did.
+	 */
+	static boolean isTruncated(HttpHeader header) {
+		return isTruncated(GZIP_INFLATION.remove(header)) | isTruncated(DEFLATE_INFLATION.remove(header));
+	}
+
+	private static boolean isTruncated(Inflation state) {
+		if (null == state || state.finished) {
+			return false;
+		}
+		if (null != state.inflater) {
+			// Left in whatever state it was cut off in, so it's no good to anyone else
+			state.inflater.end();
+			state.inflater = null;
+		}
+		return true;
+	}
+
+	@Override public String getName() {
+		return name;
+	}
+
+	@Override public String[] getAliases() {
+		return (gzip ? new String[]{GZIP, "x-gzip"} : new String[]{DEFLATE});
+	}
+
+	@Override public boolean wantDecode(HttpHeader header) {
+		return true;
+	}
+
+	@Override public boolean wantEncode(HttpHeader header) {
+		return gzip && Boolean.TRUE.equals(COMPRESS.get(header));
+	}
+
+	@Override public ParsingResult decode(Connection connection, HttpContent httpContent) {
+		HttpHeader header = httpContent.getHttpHeader();
+		Buffer input = httpContent.getContent();
+		Inflation state = inflation.get(header);
+		if (null == state) {
+			state = new Inflation();
+			inflation.set(header, state);
+		}
+
+		Buffer output = null;
+		if (!state.finished) {
+			try {
+				if (input.isComposite()) {
+					ByteBufferArray array = input.toByteBufferArray();
+					ByteBuffer[] buffers = array.getArray();
+					for (int i = 0; i < array.size(); i++) {
+						output = inflate(connection, state, buffers[i], output);
+					}
+					array.restore();
+					array.recycle();
+				} else {
+					output = inflate(connection, state, input.toByteBuffer(), output);
+				}
+			} catch (DataFormatException e) {
+				release(state);
+				throw new IllegalStateException("Couldn't inflate " + name + " content: " + e.getMessage(), e);
+			}
+		}
+		input.tryDispose();
+
+		if (state.finished) {
+			release(state);
+		}
+		if (httpContent.isLast() && state.finished) {
+			inflation.remove(header);
+		}
+		if (null == output) {
+			// Nothing to pass on yet, unless this is the end of the body
+			if (httpContent.isLast()) {
+				return ParsingResult.create(withContent(httpContent, Buffers.EMPTY_BUFFER), null);
+			}
+			return ParsingResult.create(null, null);
+		}
+		return ParsingResult.create(withContent(httpContent, output), null);
+	}
+
+	@Override public HttpContent encode(Connection connection, HttpContent httpContent) {
+		HttpHeader header = httpContent.getHttpHeader();
+		Buffer input = httpContent.getContent();
+		Deflation state = deflation.get(header);
+		if (null == state) {
+			state = new Deflation(acquireDeflater());
+			deflation.set(header, state);
+		}
+
+		Buffer output = null;
+		if (!state.headerWritten) {
+			output = append(connection, output, GZIP_HEADER, GZIP_HEADER.length);
+			state.headerWritten = true;
+		}
+		if (input.isComposite()) {
+			ByteBufferArray array = input.toByteBufferArray();
+			ByteBuffer[] buffers = array.getArray();
+			for (int i = 0; i < array.size(); i++) {
+				output = deflate(connection, state, buffers[i], output);
+			}
+			array.restore();
+			array.recycle();
+		} else if (input.hasRemaining()) {
+			output = deflate(connection, state, input.toByteBuffer(), output);
+		}
+		input.tryDispose();
+
+		if (httpContent.isLast()) {
+			Deflater deflater = state.deflater;
+			deflater.finish();
+			while (!deflater.finished()) {
+				output = drain(connection, state, output);
+			}
+			byte[] trailer = state.scratch();
+			writeInt(trailer, 0, (int) state.crc.getValue());
+			writeInt(trailer, 4, deflater.getTotalIn());
+			output = append(connection, output, trailer, 8);
+			release(deflater);
+			deflation.remove(header);
+		}
+
+		if (null == output) {
+			// An empty chunk would end a chunked body, so hold off until there's something to write
+			if (httpContent.isLast()) {
+				return withContent(httpContent, Buffers.EMPTY_BUFFER);
+			}
+			return null;
+		}
+		return withContent(httpContent, output);
+	}
+
+	private Buffer inflate(Connection connection, Inflation state, ByteBuffer src, Buffer output) throws DataFormatException {
+		if (state.finished || !src.hasRemaining()) {
+			return output;
+		}
+		byte[] bytes;
+		int offset;
+		int length = src.remaining();
+		if (src.hasArray()) {
+			bytes = src.array();
+			offset = src.arrayOffset() + src.position();
+		} else {
+			bytes = new byte[length];
+			src.duplicate().get(bytes);
+			offset = 0;
+		}
+
+		if (null == state.inflater) {
+			if (gzip) {
+				// Collect the gzip header, which is usually all in the first chunk
+				state.header = concat(state.header, bytes, offset, length);
+				int headerLength = gzipHeaderLength(state.header);
+				if (headerLength < 0) {
+					return output;
+				}
+				bytes = state.header;
+				offset = headerLength;
+				length = bytes.length - headerLength;
+				state.header = null;
+				state.raw = true;
+			} else {
+				// Some servers send raw deflate data instead of the zlib format the spec asks for, which
+				// takes the first two bytes to tell apart
+				if (null != state.header || length < 2) {
+					state.header = concat(state.header, bytes, offset, length);
+					if (state.header.length < 2) {
+						return output;
+					}
+					bytes = state.header;
+					offset = 0;
+					length = bytes.length;
+					state.header = null;
+				}
+				state.raw = !isZlibHeader(bytes[offset], bytes[offset + 1]);
+			}
+			state.inflater = acquireInflater(state.raw);
+		}
+
+		Inflater inflater = state.inflater;
+		if (inflater.finished()) {
+			// Only the gzip trailer is left
+			readTrailer(state, bytes, offset, length);
+			return output;
+		}
+		inflater.setInput(bytes, offset, length);
+		byte[] out = state.scratch();
+		while (!inflater.finished()) {
+			int n = inflater.inflate(out);
+			if (n > 0) {
+				if (gzip) {
+					state.crc.update(out, 0, n);
+				}
+				output = append(connection, output, out, n);
+			} else if (inflater.needsInput()) {
+				break;
+			} else if (inflater.needsDictionary()) {
+				throw new DataFormatException("Preset dictionaries aren't supported");
+			}
+		}
+		if (inflater.finished()) {
+			if (gzip) {
+				// Anything left over is the start of the gzip trailer
+				int remaining = inflater.getRemaining();
+				readTrailer(state, bytes, offset + length - remaining, remaining);
+			} else {
+				// zlib's own checksum was verified by the inflater
+				state.finished = true;
+			}
+		}
+		return output;
+	}
+
+	/**
+	 * Collect the gzip trailer and, once it's all there, check the CRC-32 and size it gives against
+	 * what was inflated. Anything after it is ignored.
+	 */
+	private void readTrailer(Inflation state, byte[] bytes, int offset, int length) throws DataFormatException {
+		state.trailer = concat(state.trailer, bytes, offset, length);
+		if (state.trailer.length < GZIP_TRAILER_SIZE) {
+			return;
+		}
+		if (readInt(state.trailer, 0) != (int) state.crc.getValue()) {
+			throw new DataFormatException("CRC-32 in the gzip trailer doesn't match the content");
+		}
+		if (readInt(state.trailer, 4) != (int) state.inflater.getBytesWritten()) {
+			throw new DataFormatException("Size in the gzip trailer doesn't match the content");
+		}
+		state.trailer = null;
+		state.finished = true;
+	}
+
+	private Buffer deflate(Connection connection, Deflation state, ByteBuffer src, Buffer output) {
+		int length = src.remaining();
+		byte[] bytes;
+		int offset;
+		if (src.hasArray()) {
+			bytes = src.array();
+			offset = src.arrayOffset() + src.position();
+		} else {
+			bytes = new byte[length];
+			src.duplicate().get(bytes);
+			offset = 0;
+		}
+		state.crc.update(bytes, offset, length);
+		state.deflater.setInput(bytes, offset, length);
+		while (!state.deflater.needsInput()) {
+			output = drain(connection, state, output);
+		}
+		return output;
+	}
+
+	private Buffer drain(Connection connection, Deflation state, Buffer output) {
+		byte[] out = state.scratch();
+		int n = state.deflater.deflate(out);
+		return (n > 0 ? append(connection, output, out, n) : output);
+	}
+
+	private static HttpContent withContent(HttpContent httpContent, Buffer content) {
+		return HttpContent.builder(httpContent.getHttpHeader())
+				.content(content)
+				.last(httpContent.isLast())
+				.build();
+	}
+
+	/**
+	 * Copy the first <code>length</code> bytes of <code>bytes</code> onto the end of
+	 * <code>output</code>, which can then reuse <code>bytes</code>.
+	 */
+	private static Buffer append(Connection connection, Buffer output, byte[] bytes, int length) {
+		MemoryManager memoryManager = connection.getTransport().getMemoryManager();
+		Buffer buffer = memoryManager.allocate(length);
+		buffer.put(bytes, 0, length);
+		buffer.flip();
+		buffer.allowBufferDispose(true);
+		if (null == output) {
+			return buffer;
+		}
+		output = Buffers.appendBuffers(memoryManager, output, buffer);
+		if (output.isComposite()) {
+			output.allowBufferDispose(true);
+			((CompositeBuffer) output).allowInternalBuffersDispose(true);
+		}
+		return output;
+	}
+
+	private Inflater acquireInflater(boolean raw) {
+		ConcurrentLinkedQueue<Inflater> pool = (raw ? rawInflaters : inflaters);
+		Inflater inflater = pool.poll();
+		if (null != inflater) {
+			(raw ? pooledRawInflaters : pooledInflaters).decrementAndGet();
+			return inflater;
+		}
+		return new Inflater(raw);
+	}
+
+	private void release(Inflation state) {
+		Inflater inflater = state.inflater;
+		if (null == inflater) {
+			return;
+		}
+		state.inflater = null;
+		state.finished = true;
+		inflater.reset();
+		AtomicInteger count = (state.raw ? pooledRawInflaters : pooledInflaters);
+		if (count.incrementAndGet() <= MAX_POOLED) {
+			(state.raw ? rawInflaters : inflaters).offer(inflater);
+		} else {
+			count.decrementAndGet();
+			inflater.end();
+		}
+	}
+
+	private Deflater acquireDeflater() {
+		Deflater deflater = deflaters.poll();
+		if (null != deflater) {
+			pooledDeflaters.decrementAndGet();
+			return deflater;
+		}
+		return new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+	}
+
+	private void release(Deflater deflater) {
+		deflater.reset();
+		if (pooledDeflaters.incrementAndGet() <= MAX_POOLED) {
+			deflaters.offer(deflater);
+		} else {
+			pooledDeflaters.decrementAndGet();
+			deflater.end();
+		}
+	}
+
+	private static boolean isZlibHeader(byte cmf, byte flg) {
+		return (cmf & 0x0f) == Deflater.DEFLATED && (((cmf & 0xff) << 8) | (flg & 0xff)) % 31 == 0;
+	}
+
+	/**
+	 * @return the length of the gzip header at the start of <code>b</code>, or -1 if it isn't all
+	 *         there yet.
+	 */
+	private static int gzipHeaderLength(byte[] b) {
+		if (b.length < GZIP_HEADER_SIZE) {
+			return -1;
+		}
+		if (((b[0] & 0xff) | ((b[1] & 0xff) << 8)) != GZIP_MAGIC || b[2] != Deflater.DEFLATED) {
+			throw new IllegalStateException("Not in gzip format");
+		}
+		int flags = b[3] & 0xff;
+		int i = GZIP_HEADER_SIZE;
+		if ((flags & FEXTRA) != 0) {
+			if (b.length < i + 2) {
+				return -1;
+			}
+			i += 2 + ((b[i] & 0xff) | ((b[i + 1] & 0xff) << 8));
+		}
+		if ((flags & FNAME) != 0) {
+			i = skipZeroTerminated(b, i);
+		}
+		if ((flags & FCOMMENT) != 0 && i >= 0) {
+			i = skipZeroTerminated(b, i);
+		}
+		if ((flags & FHCRC) != 0 && i >= 0) {
+			i += 2;
+		}
+		return (i >= 0 && i <= b.length ? i : -1);
+	}
+
+	private static int skipZeroTerminated(byte[] b, int i) {
+		for (; i < b.length; i++) {
+			if (b[i] == 0) {
+				return i + 1;
+			}
+		}
+		return -1;
+	}
+
+	private static byte[] concat(byte[] head, byte[] bytes, int offset, int length) {
+		int headLength = (null != head ? head.length : 0);
+		byte[] b = new byte[headLength + length];
+		if (null != head) {
+			System.arraycopy(head, 0, b, 0, headLength);
+		}
+		System.arraycopy(bytes, offset, b, headLength, length);
+		return b;
+	}
+
+	private static int readInt(byte[] b, int offset) {
+		return (b[offset] & 0xff)
+				| ((b[offset + 1] & 0xff) << 8)
+				| ((b[offset + 2] & 0xff) << 16)
+				| ((b[offset + 3] & 0xff) << 24);
+	}
+
+	private static void writeInt(byte[] b, int offset, int value) {
+		b[offset] = (byte) value;
+		b[offset + 1] = (byte) (value >> 8);
+		b[offset + 2] = (byte) (value >> 16);
+		b[offset + 3] = (byte) (value >> 24);
+	}
+
+	private static class Inflation {
+		private Inflater inflater = null;
+		private boolean raw = false;
+		private byte[] header = null;
+		private final CRC32 crc = new CRC32();
+		private byte[] trailer = null;
+		private boolean finished = false;
+		private byte[] scratch = null;
+
+		private byte[] scratch() {
+			if (null == scratch) {
+				scratch = new byte[CHUNK_SIZE];
+			}
+			return scratch;
+		}
+	}
+
+	private static class Deflation {
+		private final Deflater deflater;
+		private final CRC32 crc = new CRC32();
+		private boolean headerWritten = false;
+		private byte[] scratch = null;
+
+		private Deflation(Deflater deflater) {
+			this.deflater = deflater;
+		}
+
+		private byte[] scratch() {
+			if (null == scratch) {
+				scratch = new byte[CHUNK_SIZE];
+			}
+			return scratch;
+		}
+	}
+
+}
@@ -0,0 +1,738 @@
+package com.jbrisbin.async.http;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.glassfish.grizzly.CompletionHandler;
+import org.glassfish.grizzly.Connection;
+import org.glassfish.grizzly.EmptyCompletionHandler;
+import org.glassfish.grizzly.Grizzly;
+import org.glassfish.grizzly.attributes.Attribute;
+import org.glassfish.grizzly.nio.transport.TCPNIOTransport;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Keep-alive pool of client {@link Connection}s, keyed by host and port. Each {@link
+ * HttpClientTransport} owns one.
+ * <p>
+ * A connection is leased for one request/response exchange and handed back by the {@link
+ * RequestResponseFilter} once the last chunk of the response has been read. Idle connections are
+ * reused most-recently-used first and are closed once they exceed the idle timeout or the maximum
+ * lifetime. Leases never block: a lease that has to wait for the route to make room, or for a new
+ * connection to be resolved and opened, gets its connection through a {@link CompletionHandler}.
+ *
+ * @author Jon Brisbin <jon@jbrisbin.com>
+ */
+public class ConnectionPool {
+
+	private static final Logger log = LoggerFactory.getLogger(ConnectionPool.class);
+	private static final Attribute<PooledConnection> POOLED_CONNECTION = Grizzly.DEFAULT_ATTRIBUTE_BUILDER.createAttribute("pooled-connection");
+	private static final long EVICTION_INTERVAL = 5000L;
+	private static final HashedWheelTimer timer = HashedWheelTimer.DEFAULT;
+
+	private final HttpClientTransport clientTransport;
+	private final ConcurrentHashMap<String, Route> routes = new ConcurrentHashMap<String, Route>();
+	private volatile int maxConnectionsPerRoute = 20;
+	private volatile long idleTimeout = 60000L;
+	private volatile long maxLifetime = 600000L;
+	private volatile long connectAttemptDelay = 250L;
+	private volatile HashedWheelTimer.Timeout evictionTask = null;
+	private volatile boolean closed = false;
+
+	ConnectionPool(HttpClientTransport clientTransport) {
+		this.clientTransport = clientTransport;
+	}
+
+	public int getMaxConnectionsPerRoute() {
+		return maxConnectionsPerRoute;
+	}
+
+	public ConnectionPool setMaxConnectionsPerRoute(int maxConnectionsPerRoute) {
+		this.maxConnectionsPerRoute = maxConnectionsPerRoute;
+		return this;
+	}
+
+	/**
+	 * @return how long, in milliseconds, a connection may sit idle in the pool before it's closed.
+	 */
+	public long getIdleTimeout() {
+		return idleTimeout;
+	}
+
+	public ConnectionPool setIdleTimeout(long idleTimeout) {
+		this.idleTimeout = idleTimeout;
+		return this;
+	}
+
+	/**
+	 * @return how long, in milliseconds, a connection may be reused for after it was opened.
+	 */
+	public long getMaxLifetime() {
+		return maxLifetime;
+	}
+
+	public ConnectionPool setMaxLifetime(long maxLifetime) {
+		this.maxLifetime = maxLifetime;
+		return this;
+	}
+
+	/**
+	 * @return how long, in milliseconds, to wait for one of a host's addresses to connect before also
+	 *         trying the next.
+	 */
+	public long getConnectAttemptDelay() {
+		return connectAttemptDelay;
+	}
+
+	public ConnectionPool setConnectAttemptDelay(long connectAttemptDelay) {
+		this.connectAttemptDelay = connectAttemptDelay;
+		return this;
+	}
+
+	/**
+	 * @return the number of open connections, leased or idle, across all routes.
+	 */
+	public int getConnectionCount() {
+		int count = 0;
+		for (Route route : routes.values()) {
+			count += route.total;
+		}
+		return count;
+	}
+
+	/**
+	 * @return the number of idle connections across all routes.
+	 */
+	public int getIdleCount() {
+		int count = 0;
+		for (Route route : routes.values()) {
+			count += route.idle.size();
+		}
+		return count;
+	}
+
+	/**
+	 * Lease a connection to the given host, reusing an idle one if there is one and opening a new
+	 * one otherwise. If the route is already at its maximum number of connections, the lease waits
+	 * for one to be released. Never blocks: <code>handler</code> is given the connection, or the
+	 * reason there isn't one, once it's ready or <code>timeout</code> has passed.
+	 */
+	void lease(TCPNIOTransport transport, String host, int port, long timeout, TimeUnit unit, CompletionHandler<Connection> handler) {
+		getRoute(host, port).lease(transport, System.nanoTime() + unit.toNanos(timeout), handler);
+	}
+
+	/**
+	 * Lease the HTTP/2 session to the given host, opening a connection for it if there isn't one that
+	 * can take new requests. Leases that arrive while the connection is being opened share it, and
+	 * the first lease's <code>timeout</code>. The session's connection stays leased for as long as it's
+	 * open.
+	 */
+	void leaseSession(TCPNIOTransport transport, String host, int port, long timeout, TimeUnit unit, CompletionHandler<Http2Session> handler) {
+		getRoute(host, port).leaseSession(transport, System.nanoTime() + unit.toNanos(timeout), handler);
+	}
+
+	/**
+	 * Hand a leased connection back to the pool it came from. Connections that aren't reusable, or
+	 * weren't leased from a pool, are closed.
+	 */
+	static void release(Connection connection, boolean reusable) {
+		PooledConnection pc = POOLED_CONNECTION.get(connection);
+		if (null != pc) {
+			pc.route.release(pc, reusable);
+		} else {
+			closeQuietly(connection);
+		}
+	}
+
+	/**
+	 * Close every idle connection that has exceeded the idle timeout or its maximum lifetime. This is
+	 * run periodically in the background but can be called directly.
+	 */
+	public void evictExpired() {
+		long now = System.currentTimeMillis();
+		for (Route route : routes.values()) {
+			route.evict(now, false);
+		}
+	}
+
+	/**
+	 * Start evicting expired connections in the background. Called when the transport starts, so a
+	 * transport that's never started isn't kept alive by the timer.
+	 */
+	synchronized void start() {
+		if (!closed && null == evictionTask) {
+			scheduleEviction();
+		}
+	}
+
+	/**
+	 * Close every idle connection in the pool, fail any leases still waiting for a connection and stop
+	 * evicting. Leased connections are closed along with their transport.
+	 */
+	void close() {
+		synchronized (this) {
+			closed = true;
+			if (null != evictionTask) {
+				evictionTask.cancel();
+			}
+		}
+		long now = System.currentTimeMillis();
+		for (Route route : routes.values()) {
+			route.evict(now, true);
+		}
+	}
+
+	private void scheduleEviction() {
+		evictionTask = timer.schedule(new Runnable() {
+			@Override public void run() {
+				evictExpired();
+				synchronized (ConnectionPool.this) {
+					if (!closed) {
+						scheduleEviction();
+					}
+				}
+			}
+		}, EVICTION_INTERVAL, TimeUnit.MILLISECONDS);
+	}
+
+	private Route getRoute(String host, int port) {
+		String key = host + ":" + port;
+		Route route = routes.get(key);
+		if (null == route) {
+			Route newRoute = new Route(host, port);
+			route = routes.putIfAbsent(key, newRoute);
+			if (null == route) {
+				route = newRoute;
+			}
+		}
+		return route;
+	}
+
+	/**
+	 * Start at <code>first</code> and alternate between the address families, keeping their order
+	 * otherwise.
+	 */
+	static InetAddress[] order(InetAddress[] addresses, int first) {
+		if (addresses.length < 2) {
+			return addresses;
+		}
+		List<InetAddress> preferred = new ArrayList<InetAddress>(addresses.length);
+		List<InetAddress> other = new ArrayList<InetAddress>(addresses.length);
+		for (int i = 0; i < addresses.length; i++) {
+			InetAddress address = addresses[(first + i) % addresses.length];
+			if (preferred.isEmpty() || preferred.get(0).getClass() == address.getClass()) {
+				preferred.add(address);
+			} else {
+				other.add(address);
+			}
+		}
+		InetAddress[] ordered = new InetAddress[addresses.length];
+		int i = 0;
+		for (int j = 0; j < preferred.size() || j < other.size(); j++) {
+			if (j < preferred.size()) {
+				ordered[i++] = preferred.get(j);
+			}
+			if (j < other.size()) {
+				ordered[i++] = other.get(j);
+			}
+		}
+		return ordered;
+	}
+
+	private static void closeQuietly(Connection connection) {
+		try {
+			connection.close();
+		} catch (IOException e) {
+			log.debug(e.getMessage(), e);
+		}
+	}
+
+	private class Route {
+		private final String host;
+		private final int port;
+		private final ReentrantLock lock = new ReentrantLock();
+		private final LinkedList<PooledConnection> idle = new LinkedList<PooledConnection>();
+		private final LinkedList<Waiter> waiters = new LinkedList<Waiter>();
+		private final AtomicInteger nextAddress = new AtomicInteger();
+		private volatile int total = 0;
+		private Http2Session session = null;
+		private LinkedList<CompletionHandler<Http2Session>> sessionWaiters = null;
+
+		private Route(String host, int port) {
+			this.host = host;
+			this.port = port;
+		}
+
+		private void lease(TCPNIOTransport transport, long deadline, CompletionHandler<Connection> handler) {
+			PooledConnection reused = null;
+			LinkedList<PooledConnection> expired = null;
+			boolean connect = false;
+			lock.lock();
+			try {
+				long now = System.currentTimeMillis();
+				PooledConnection pc;
+				while (null != (pc = idle.pollFirst())) {
+					boolean reusable = pc.isReusable(now);
+					pc.idle = false;
+					if (reusable) {
+						reused = pc;
+						break;
+					}
+					discard(pc);
+					if (null == expired) {
+						expired = new LinkedList<PooledConnection>();
+					}
+					expired.add(pc);
+				}
+				if (null == reused) {
+					if (total < maxConnectionsPerRoute) {
+						total++;
+						connect = true;
+					} else {
+						Waiter waiter = new Waiter(this, transport, deadline, handler);
+						waiters.add(waiter);
+						waiter.timeout = timer.schedule(waiter, deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+					}
+				}
+			} finally {
+				lock.unlock();
+			}
+
+			if (null != expired) {
+				for (PooledConnection pc : expired) {
+					closeQuietly(pc.connection);
+				}
+			}
+			if (null != reused) {
+				handler.completed(reused.connection);
+			} else if (connect) {
+				new Connect(this, transport, deadline, handler).start();
+			}
+		}
+
+		private void leaseSession(TCPNIOTransport transport, long deadline, CompletionHandler<Http2Session> handler) {
+			Http2Session s;
+			boolean connect = false;
+			lock.lock();
+			try {
+				s = session;
+				if (null == s || !s.isOpen()) {
+					s = null;
+					if (null == sessionWaiters) {
+						sessionWaiters = new LinkedList<CompletionHandler<Http2Session>>();
+						connect = true;
+					}
+					sessionWaiters.add(handler);
+				}
+			} finally {
+				lock.unlock();
+			}
+
+			if (null != s) {
+				handler.completed(s);
+			} else if (connect) {
+				lease(transport, deadline, new EmptyCompletionHandler<Connection>() {
+					@Override public void completed(Connection connection) {
+						sessionOpened(connection);
+					}
+
+					@Override public void failed(Throwable throwable) {
+						sessionFailed(throwable);
+					}
+				});
+			}
+		}
+
+		private void sessionOpened(Connection connection) {
+			Http2Session s;
+			try {
+				s = Http2Session.start(connection, clientTransport);
+			} catch (IOException e) {
+				ConnectionPool.release(connection, false);
+				sessionFailed(e);
+				return;
+			}
+			LinkedList<CompletionHandler<Http2Session>> opened;
+			lock.lock();
+			try {
+				session = s;
+				opened = sessionWaiters;
+				sessionWaiters = null;
+			} finally {
+				lock.unlock();
+			}
+			for (CompletionHandler<Http2Session> handler : opened) {
+				handler.completed(s);
+			}
+		}
+
+		private void sessionFailed(Throwable failure) {
+			LinkedList<CompletionHandler<Http2Session>> failed;
+			lock.lock();
+			try {
+				failed = sessionWaiters;
+				sessionWaiters = null;
+			} finally {
+				lock.unlock();
+			}
+			for (CompletionHandler<Http2Session> handler : failed) {
+				handler.failed(failure);
+			}
+		}
+
+		private void release(PooledConnection pc, boolean reusable) {
+			boolean close = false;
+			Waiter waiter;
+			lock.lock();
+			try {
+				if (pc.closed || pc.idle) {
+					return;
+				}
+				long now = System.currentTimeMillis();
+				if (reusable && pc.isReusable(now)) {
+					pc.lastUsed = now;
+					// Hand it straight to whoever has been waiting longest
+					waiter = waiters.poll();
+					if (null == waiter) {
+						pc.idle = true;
+						idle.addFirst(pc);
+					}
+				} else {
+					discard(pc);
+					close = true;
+					waiter = nextWaiter();
+				}
+			} finally {
+				lock.unlock();
+			}
+			if (close) {
+				closeQuietly(pc.connection);
+			}
+			if (null != waiter) {
+				if (close) {
+					waiter.connect();
+				} else {
+					waiter.completed(pc.connection);
+				}
+			}
+		}
+
+		private void closed(PooledConnection pc) {
+			Waiter waiter = null;
+			lock.lock();
+			try {
+				if (!pc.closed) {
+					if (pc.idle) {
+						idle.remove(pc);
+						pc.idle = false;
+					}
+					discard(pc);
+					waiter = nextWaiter();
+				}
+			} finally {
+				lock.unlock();
+			}
+			if (null != waiter) {
+				waiter.connect();
+			}
+		}
+
+		private void connectFailed() {
+			Waiter waiter;
+			lock.lock();
+			try {
+				total--;
+				waiter = nextWaiter();
+			} finally {
+				lock.unlock();
+			}
+			if (null != waiter) {
+				waiter.connect();
+			}
+		}
+
+		private void evict(long now, boolean all) {
+			LinkedList<PooledConnection> expired = null;
+			LinkedList<Waiter> connecting = null;
+			LinkedList<Waiter> abandoned = null;
+			lock.lock();
+			try {
+				// Oldest idle connections are at the tail
+				for (Iterator<PooledConnection> iter = idle.descendingIterator(); iter.hasNext(); ) {
+					PooledConnection pc = iter.next();
+					if (all || !pc.isReusable(now)) {
+						iter.remove();
+						pc.idle = false;
+						discard(pc);
+						if (null == expired) {
+							expired = new LinkedList<PooledConnection>();
+						}
+						expired.add(pc);
+					}
+				}
+				if (all) {
+					abandoned = new LinkedList<Waiter>(waiters);
+					waiters.clear();
+				} else {
+					Waiter waiter;
+					while (null != (waiter = nextWaiter())) {
+						if (null == connecting) {
+							connecting = new LinkedList<Waiter>();
+						}
+						connecting.add(waiter);
+					}
+				}
+			} finally {
+				lock.unlock();
+			}
+			if (null != expired) {
+				for (PooledConnection pc : expired) {
+					if (log.isDebugEnabled())
+						log.debug("Evicting idle connection " + pc.connection);
+					closeQuietly(pc.connection);
+				}
+			}
+			if (null != connecting) {
+				for (Waiter waiter : connecting) {
+					waiter.connect();
+				}
+			}
+			if (null != abandoned) {
+				for (Waiter waiter : abandoned) {
+					waiter.failed(new IOException("Connection pool closed"));
+				}
+			}
+		}
+
+		/**
+		 * Take the next waiter if there's room for it to open a connection of its own. Must be called
+		 * with the lock held.
+		 */
+		private Waiter nextWaiter() {
+			if (!waiters.isEmpty() && total < maxConnectionsPerRoute) {
+				total++;
+				return waiters.poll();
+			}
+			return null;
+		}
+
+		private boolean removeWaiter(Waiter waiter) {
+			lock.lock();
+			try {
+				return waiters.remove(waiter);
+			} finally {
+				lock.unlock();
+			}
+		}
+
+		private void discard(PooledConnection pc) {
+			pc.closed = true;
+			total--;
+		}
+	}
+
+	/**
+	 * A lease waiting for a route that's at its maximum number of connections.
+	 */
+	private class Waiter implements Runnable {
+		private final Route route;
+		private final TCPNIOTransport transport;
+		private final long deadline;
+		private final CompletionHandler<Connection> handler;
+		private volatile HashedWheelTimer.Timeout timeout;
+
+		private Waiter(Route route, TCPNIOTransport transport, long deadline, CompletionHandler<Connection> handler) {
+			this.route = route;
+			this.transport = transport;
+			this.deadline = deadline;
+			this.handler = handler;
+		}
+
+		@Override public void run() {
+			if (route.removeWaiter(this)) {
+				handler.failed(new RequestTimeoutException("Timed out waiting for a connection to " + route.host + ":" + route.port, RequestTimeoutException.Kind.CONNECT));
+			}
+		}
+
+		private void completed(Connection connection) {
+			cancelTimeout();
+			handler.completed(connection);
+		}
+
+		private void failed(Throwable failure) {
+			cancelTimeout();
+			handler.failed(failure);
+		}
+
+		private void connect() {
+			cancelTimeout();
+			new Connect(route, transport, deadline, handler).start();
+		}
+
+		private void cancelTimeout() {
+			HashedWheelTimer.Timeout t = timeout;
+			if (null != t) {
+				t.cancel();
+			}
+		}
+	}
+
+	/**
+	 * Opens a new connection for a route, after resolving its host. Whichever of the host's addresses
+	 * answers first wins. Attempts are started one at a time, {@link #getConnectAttemptDelay()} apart
+	 * or as soon as the previous one fails, and alternate between IPv6 and IPv4 so a family that's
+	 * unreachable only costs the delay. The first address tried moves along with every new connection
+	 * to spread them across all of them.
+	 */
+	private class Connect extends EmptyCompletionHandler<Connection> implements Runnable {
+		private final Route route;
+		private final TCPNIOTransport transport;
+		private final long deadline;
+		private final CompletionHandler<Connection> handler;
+		private final long start = System.nanoTime();
+		private final AtomicInteger attempts = new AtomicInteger();
+		private final AtomicInteger failures = new AtomicInteger();
+		private final AtomicBoolean done = new AtomicBoolean();
+		private volatile InetAddress[] addresses = null;
+		private volatile Throwable lastFailure = null;
+		private volatile HashedWheelTimer.Timeout timeout = null;
+
+		private Connect(Route route, TCPNIOTransport transport, long deadline, CompletionHandler<Connection> handler) {
+			this.route = route;
+			this.transport = transport;
+			this.deadline = deadline;
+			this.handler = handler;
+		}
+
+		private void start() {
+			timeout = timer.schedule(new Runnable() {
+				@Override public void run() {
+					fail(new RequestTimeoutException("Timed out connecting to " + route.host + ":" + route.port, lastFailure, RequestTimeoutException.Kind.CONNECT));
+				}
+			}, deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+			clientTransport.getHostResolver().resolve(route.host, new EmptyCompletionHandler<InetAddress[]>() {
+				@Override public void completed(InetAddress[] result) {
+					if (0 == result.length) {
+						fail(new UnknownHostException("No addresses for " + route.host));
+						return;
+					}
+					addresses = order(result, (route.nextAddress.getAndIncrement() & Integer.MAX_VALUE) % result.length);
+					attempt();
+				}
+
+				@Override public void failed(Throwable throwable) {
+					fail(throwable);
+				}
+			});
+		}
+
+		/**
+		 * Start the next attempt once the previous one has had long enough.
+		 */
+		@Override public void run() {
+			attempt();
+		}
+
+		private void attempt() {
+			int i = attempts.getAndIncrement();
+			if (done.get() || i >= addresses.length) {
+				return;
+			}
+			InetSocketAddress address = new InetSocketAddress(addresses[i], route.port);
+			if (log.isDebugEnabled())
+				log.debug("Connecting to " + route.host + " at " + address);
+			if (i + 1 < addresses.length) {
+				timer.schedule(this, connectAttemptDelay, TimeUnit.MILLISECONDS);
+			}
+			try {
+				transport.connect(address, this);
+			} catch (IOException e) {
+				failed(e);
+			}
+		}
+
+		@Override public void completed(Connection connection) {
+			if (!done.compareAndSet(false, true)) {
+				// Another address won, or we gave up
+				closeQuietly(connection);
+				return;
+			}
+			timeout.cancel();
+			HttpClientMetrics metrics = clientTransport.getMetrics();
+			if (null != metrics) {
+				metrics.connected(route.host, route.port, System.nanoTime() - start);
+			}
+
+			PooledConnection pc = new PooledConnection(route, connection);
+			POOLED_CONNECTION.set(connection, pc);
+			connection.addCloseListener(pc);
+			if (log.isDebugEnabled())
+				log.debug("Opened connection to " + route.host + ":" + route.port + ": " + connection);
+			handler.completed(connection);
+		}
+
+		@Override public void failed(Throwable throwable) {
+			lastFailure = throwable;
+			if (failures.incrementAndGet() >= addresses.length) {
+				fail(new IOException("Couldn't connect to " + route.host + ":" + route.port, throwable));
+			} else {
+				attempt();
+			}
+		}
+
+		@Override public void cancelled() {
+			failed(new CancellationException());
+		}
+
+		private void fail(Throwable failure) {
+			if (!done.compareAndSet(false, true)) {
+				return;
+			}
+			timeout.cancel();
+			HttpClientMetrics metrics = clientTransport.getMetrics();
+			if (null != metrics) {
+				metrics.connectFailed(route.host, route.port);
+			}
+			route.connectFailed();
+			handler.failed(failure);
+		}
+	}
+
+	private class PooledConnection implements Connection.CloseListener {
+		private final Route route;
+		private final Connection connection;
+		private final long created = System.currentTimeMillis();
+		private long lastUsed = created;
+		private boolean idle = false;
+		private boolean closed = false;
+
+		private PooledConnection(Route route, Connection connection) {
+			this.route = route;
+			this.connection = connection;
+		}
+
+		private boolean isReusable(long now) {
+			return connection.isOpen()
+					&& (now - created) < maxLifetime
+					&& (!idle || (now - lastUsed) < idleTimeout);
+		}
+
+		@Override public void onClosed(Connection connection) throws IOException {
+			route.closed(this);
+		}
+	}
+
+}
@@ -0,0 +1,126 @@
+package com.jbrisbin.async.http;
+
+import java.io.IOException;
+import java.net.UnknownHostException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Retries a request that couldn't connect, whose connection was reset or that got a
+ * <code>500</code>, <code>502</code>, <code>503</code> or <code>504</code>, backing off exponentially
+ * with full jitter: the <code>n</code>th retry waits anywhere from nothing up to <code>backoff *
+ * 2^(n-1)</code>, capped at {@link #getMaxBackoff()}.
+ * <p>
+ * Once enough responses have been timed, a request that's taken longer than {@link
+ * #getHedgePercentile()} of them is hedged. Latencies are tracked per policy, so give each group of
+ * replicas its own.
+ *
+ * @author Jon Brisbin <jon@jbrisbin.com>
+ */
+public class DefaultRetryPolicy implements RetryPolicy {
+
+	private final AtomicHistogram latency = new AtomicHistogram();
+	private final Random random = new Random();
+	private volatile int maxRetries = 2;
+	private volatile long backoff = 50L;
+	private volatile long maxBackoff = 1000L;
+	private volatile double hedgePercentile = 95.0;
+	private volatile long minHedgeSamples = 100L;
+
+	public int getMaxRetries() {
+		return maxRetries;
+	}
+
+	public DefaultRetryPolicy setMaxRetries(int maxRetries) {
+		this.maxRetries = maxRetries;
+		return this;
+	}
+
+	/**
+	 * @return the longest, in milliseconds, the first retry may wait.
+	 */
+	public long getBackoff() {
+		return backoff;
+	}
+
+	public DefaultRetryPolicy setBackoff(long backoff) {
+		this.backoff = backoff;
+		return this;
+	}
+
+	/**
+	 * @return the longest, in milliseconds, any retry may wait.
+	 */
+	public long getMaxBackoff() {
+		return maxBackoff;
+	}
+
+	public DefaultRetryPolicy setMaxBackoff(long maxBackoff) {
+		this.maxBackoff = maxBackoff;
+		return this;
+	}
+
+	/**
+	 * @return the percentile of response times a request has to exceed to be hedged. 0 or less turns
+	 *         hedging off.
+	 */
+	public double getHedgePercentile() {
+		return hedgePercentile;
+	}
+
+	public DefaultRetryPolicy setHedgePercentile(double hedgePercentile) {
+		this.hedgePercentile = hedgePercentile;
+		return this;
+	}
+
+	/**
+	 * @return how many responses have to have been timed before any request is hedged.
+	 */
+	public long getMinHedgeSamples() {
+		return minHedgeSamples;
+	}
+
+	public DefaultRetryPolicy setMinHedgeSamples(long minHedgeSamples) {
+		this.minHedgeSamples = minHedgeSamples;
+		return this;
+	}
+
+	@Override public long retryDelay(Request request, int retries, Throwable failure) {
+		if (retries > maxRetries || !isRetryable(failure)) {
+			return -1;
+		}
+		long ceiling = Math.min(backoff << Math.min(retries - 1, 30), maxBackoff);
+		return (ceiling > 0 ? (long) (random.nextDouble() * ceiling) : 0);
+	}
+
+	@Override public long hedgeDelay(Request request) {
+		if (hedgePercentile <= 0 || latency.getCount() < minHedgeSamples) {
+			return -1;
+		}
+		return Math.max(TimeUnit.NANOSECONDS.toMillis(latency.getValueAtPercentile(hedgePercentile)), 1);
+	}
+
+	@Override public void succeeded(Request request, long nanos) {
+		latency.record(nanos);
+	}
+
+	protected boolean isRetryable(Throwable failure) {
+		if (failure instanceof HttpException) {
+			switch (((HttpException) failure).getStatus()) {
+				case 500:
+				case 502:
+				case 503:
+				case 504:
+					return true;
+			}
+			return false;
+		} else if (failure instanceof RequestTimeoutException) {
+			// Nothing was sent if it couldn't connect; a read or request timeout has already taken as
+			// long as the caller was willing to wait
+			return ((RequestTimeoutException) failure).getKind() == RequestTimeoutException.Kind.CONNECT;
+		}
+		// A host that doesn't resolve won't for a while
+		return failure instanceof IOException && !(failure instanceof UnknownHostException);
+	}
+
+}
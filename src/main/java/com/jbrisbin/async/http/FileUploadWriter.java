@@ -0,0 +1,109 @@
+package com.jbrisbin.async.http;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+import org.glassfish.grizzly.Connection;
+import org.glassfish.grizzly.EmptyCompletionHandler;
+import org.glassfish.grizzly.WriteResult;
+import org.glassfish.grizzly.http.HttpContent;
+import org.glassfish.grizzly.memory.ByteBufferWrapper;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Writes the file of an {@link Upload} to a connection one memory-mapped region at a time, so the
+ * file's contents go from the page cache to the socket without being copied through the Java heap.
+ * The next region is only mapped once the previous one has been written, which keeps at most one
+ * region in the connection's write queue.
+ *
+ * @author Jon Brisbin <jon@jbrisbin.com>
+ */
+class FileUploadWriter extends EmptyCompletionHandler<WriteResult> {
+
+	static final long REGION_SIZE = 8 * 1024 * 1024;
+
+	private final Logger log = LoggerFactory.getLogger(getClass());
+
+	private final Connection connection;
+	private final Upload upload;
+	private final FileChannel channel;
+	private final long size;
+	private long position = 0;
+
+	FileUploadWriter(Connection connection, Upload upload) throws IOException {
+		this.connection = connection;
+		this.upload = upload;
+		this.channel = new RandomAccessFile(upload.getFile(), "r").getChannel();
+		this.size = channel.size();
+	}
+
+	void start() throws IOException {
+		try {
+			writeNext();
+		} catch (IOException e) {
+			closeChannel();
+			throw e;
+		}
+	}
+
+	@Override public void completed(WriteResult result) {
+		try {
+			writeNext();
+		} catch (IOException e) {
+			failed(e);
+		}
+	}
+
+	@Override public void failed(Throwable throwable) {
+		log.error(throwable.getMessage(), throwable);
+		closeChannel();
+		upload.getResponse().getFuture().failure(throwable);
+		Http2Session session = Http2Session.of(connection);
+		if (null != session) {
+			session.cancel(upload);
+		} else {
+			ConnectionPool.release(connection, false);
+		}
+	}
+
+	/**
+	 * Called when a region is dropped without being written, because its HTTP/2 stream was reset.
+	 */
+	@Override public void cancelled() {
+		closeChannel();
+	}
+
+	@SuppressWarnings({"unchecked"})
+	private void writeNext() throws IOException {
+		long remaining = size - position;
+		if (remaining <= 0) {
+			closeChannel();
+			if (log.isDebugEnabled())
+				log.debug("Finishing upload of " + upload.getFile());
+			connection.write(upload.getRequest().httpTrailerBuilder().build());
+			return;
+		}
+
+		long length = Math.min(REGION_SIZE, remaining);
+		MappedByteBuffer region = channel.map(FileChannel.MapMode.READ_ONLY, position, length);
+		position += length;
+		HttpContent hc = upload.getRequest().httpContentBuilder()
+				.content(new ByteBufferWrapper(region))
+				.build();
+		if (log.isDebugEnabled())
+			log.debug("Writing " + length + " bytes of " + upload.getFile() + " (" + position + "/" + size + ")");
+		connection.write(hc, this);
+	}
+
+	private void closeChannel() {
+		try {
+			channel.close();
+		} catch (IOException e) {
+			log.debug(e.getMessage(), e);
+		}
+	}
+
+}
@@ -0,0 +1,206 @@
+package com.jbrisbin.async.http;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Runs timeouts on a single thread without a heap or a <code>ScheduledFuture</code> per timeout.
+ * Timeouts are hashed into a wheel of buckets by their deadline and the thread looks at one bucket
+ * per tick, so scheduling and cancelling are constant time no matter how many are pending. A timeout
+ * fires up to one tick late, which for connect and read deadlines is neither here nor there.
+ * <p>
+ * Tasks run on the timer thread and have to be quick: a task that blocks holds up every other
+ * timeout. Cancelled timeouts are dropped the next time the wheel comes round to their bucket.
+ *
+ * @author Jon Brisbin <jon@jbrisbin.com>
+ */
+class HashedWheelTimer implements Runnable {
+
+	private static final Logger log = LoggerFactory.getLogger(HashedWheelTimer.class);
+
+	/**
+	 * The timer every transport, pool and request shares.
+	 */
+	static final HashedWheelTimer DEFAULT = new HashedWheelTimer("async-http-timer", 10, TimeUnit.MILLISECONDS, 512);
+
+	private final String name;
+	private final long tickNanos;
+	private final Bucket[] wheel;
+	private final int mask;
+	private final ConcurrentLinkedQueue<Timeout> scheduled = new ConcurrentLinkedQueue<Timeout>();
+	private final AtomicBoolean started = new AtomicBoolean();
+	private long startTime;
+	private long tick = 0;
+
+	/**
+	 * @param ticksPerWheel rounded up to a power of two.
+	 */
+	HashedWheelTimer(String name, long tickDuration, TimeUnit unit, int ticksPerWheel) {
+		this.name = name;
+		this.tickNanos = unit.toNanos(tickDuration);
+		int size = 1;
+		while (size < ticksPerWheel) {
+			size <<= 1;
+		}
+		wheel = new Bucket[size];
+		for (int i = 0; i < size; i++) {
+			wheel[i] = new Bucket();
+		}
+		mask = size - 1;
+	}
+
+	/**
+	 * Run <code>task</code> on the timer thread once <code>delay</code> has passed, unless the returned
+	 * timeout is cancelled first.
+	 */
+	Timeout schedule(Runnable task, long delay, TimeUnit unit) {
+		if (started.compareAndSet(false, true)) {
+			Thread t = new Thread(this, name);
+			t.setDaemon(true);
+			t.start();
+		}
+		Timeout timeout = new Timeout(task, System.nanoTime() + unit.toNanos(delay));
+		scheduled.offer(timeout);
+		return timeout;
+	}
+
+	@Override public void run() {
+		startTime = System.nanoTime();
+		for (; ; ) {
+			waitForNextTick();
+			transferScheduled();
+			wheel[(int) (tick & mask)].expire();
+			tick++;
+		}
+	}
+
+	private void waitForNextTick() {
+		long deadline = startTime + (tick + 1) * tickNanos;
+		for (; ; ) {
+			long sleepNanos = deadline - System.nanoTime();
+			if (sleepNanos <= 0) {
+				return;
+			}
+			try {
+				TimeUnit.NANOSECONDS.sleep(sleepNanos);
+			} catch (InterruptedException e) {
+				// Daemon thread that lives as long as the process does
+			}
+		}
+	}
+
+	private void transferScheduled() {
+		Timeout timeout;
+		while (null != (timeout = scheduled.poll())) {
+			if (timeout.isCancelled()) {
+				continue;
+			}
+			// Anything already due goes in the bucket about to be expired
+			long due = Math.max((timeout.deadline - startTime) / tickNanos, tick);
+			timeout.rounds = (due - tick) / wheel.length;
+			wheel[(int) (due & mask)].add(timeout);
+		}
+	}
+
+	/**
+	 * A pending task, which can be cancelled until it has started to run.
+	 */
+	static class Timeout {
+		private static final int PENDING = 0;
+		private static final int CANCELLED = 1;
+		private static final int EXPIRED = 2;
+
+		private final Runnable task;
+		private final long deadline;
+		private final AtomicInteger state = new AtomicInteger(PENDING);
+		// Only touched by the timer thread
+		private long rounds;
+		private Timeout next;
+		private Timeout prev;
+
+		private Timeout(Runnable task, long deadline) {
+			this.task = task;
+			this.deadline = deadline;
+		}
+
+		/**
+		 * @return <code>true</code> if the task won't run, <code>false</code> if it already has or is
+		 *         running now.
+		 */
+		boolean cancel() {
+			return state.compareAndSet(PENDING, CANCELLED);
+		}
+
+		boolean isCancelled() {
+			return state.get() == CANCELLED;
+		}
+
+		private void expire() {
+			if (!state.compareAndSet(PENDING, EXPIRED)) {
+				return;
+			}
+			try {
+				task.run();
+			} catch (Throwable t) {
+				log.error("Timeout task " + task + " failed: " + t.getMessage(), t);
+			}
+		}
+	}
+
+	/**
+	 * The timeouts hashed to one tick of the wheel, as a doubly linked list so any of them can be
+	 * unlinked in place.
+	 */
+	private static class Bucket {
+		private Timeout head;
+		private Timeout tail;
+
+		private void add(Timeout timeout) {
+			timeout.prev = tail;
+			timeout.next = null;
+			if (null == tail) {
+				head = timeout;
+			} else {
+				tail.next = timeout;
+			}
+			tail = timeout;
+		}
+
+		private void expire() {
+			Timeout timeout = head;
+			while (null != timeout) {
+				Timeout next = timeout.next;
+				if (timeout.isCancelled()) {
+					remove(timeout);
+				} else if (timeout.rounds <= 0) {
+					remove(timeout);
+					timeout.expire();
+				} else {
+					timeout.rounds--;
+				}
+				timeout = next;
+			}
+		}
+
+		private void remove(Timeout timeout) {
+			if (null == timeout.prev) {
+				head = timeout.next;
+			} else {
+				timeout.prev.next = timeout.next;
+			}
+			if (null == timeout.next) {
+				tail = timeout.prev;
+			} else {
+				timeout.next.prev = timeout.prev;
+			}
+			timeout.next = null;
+			timeout.prev = null;
+		}
+	}
+
+}
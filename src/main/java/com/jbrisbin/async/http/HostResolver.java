@@ -0,0 +1,312 @@
+package com.jbrisbin.async.http;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.security.Security;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import org.glassfish.grizzly.CompletionHandler;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Resolves host names for a {@link ConnectionPool} without blocking the caller on DNS. Lookups run on
+ * a small pool of background threads, concurrent lookups of the same host share one query, and
+ * results are cached: successful ones for {@link #getPositiveTtl()} and failed ones for {@link
+ * #getNegativeTtl()}.
+ * <p>
+ * For one more TTL after they expire, a host's addresses are still handed out while they're refreshed
+ * in the background, so a host that's in steady use never has to wait for DNS again. Past that
+ * they're too old to trust, and the next lookup waits for fresh ones. The defaults come from
+ * the <code>networkaddress.cache.ttl</code> and <code>networkaddress.cache.negative.ttl</code>
+ * security properties the JDK uses for its own cache.
+ *
+ * @author Jon Brisbin <jon@jbrisbin.com>
+ */
+public class HostResolver {
+
+	private static final Logger log = LoggerFactory.getLogger(HostResolver.class);
+	private static final long DEFAULT_POSITIVE_TTL = 30000L;
+	private static final long DEFAULT_NEGATIVE_TTL = 10000L;
+	private static final int LOOKUP_THREADS = 8;
+	private static final ThreadPoolExecutor lookups = createLookupThreads();
+
+	private final ConcurrentHashMap<String, Entry> cache = new ConcurrentHashMap<String, Entry>();
+	private final ConcurrentHashMap<String, Lookup> pending = new ConcurrentHashMap<String, Lookup>();
+	private volatile long positiveTtl = ttlProperty("networkaddress.cache.ttl", DEFAULT_POSITIVE_TTL);
+	private volatile long negativeTtl = ttlProperty("networkaddress.cache.negative.ttl", DEFAULT_NEGATIVE_TTL);
+	private volatile int maxEntries = 1024;
+
+	/**
+	 * @return how long, in milliseconds, a host's addresses are used before they're looked up again.
+	 */
+	public long getPositiveTtl() {
+		return positiveTtl;
+	}
+
+	public HostResolver setPositiveTtl(long positiveTtl) {
+		this.positiveTtl = positiveTtl;
+		return this;
+	}
+
+	/**
+	 * @return how long, in milliseconds, a host that couldn't be resolved keeps failing without
+	 *         another lookup.
+	 */
+	public long getNegativeTtl() {
+		return negativeTtl;
+	}
+
+	public HostResolver setNegativeTtl(long negativeTtl) {
+		this.negativeTtl = negativeTtl;
+		return this;
+	}
+
+	public int getMaxEntries() {
+		return maxEntries;
+	}
+
+	/**
+	 * Cache at most <code>maxEntries</code> hosts. Once it's full, the host whose entry expires first
+	 * makes room for the next one.
+	 */
+	public HostResolver setMaxEntries(int maxEntries) {
+		this.maxEntries = maxEntries;
+		return this;
+	}
+
+	/**
+	 * Look up every address of <code>host</code> and hand them to <code>handler</code>. The handler is
+	 * called right away, on the calling thread, if the host is cached or is an IP address literal, and
+	 * on a lookup thread otherwise.
+	 */
+	public void resolve(String host, CompletionHandler<InetAddress[]> handler) {
+		if (isAddressLiteral(host)) {
+			InetAddress[] addresses;
+			try {
+				addresses = InetAddress.getAllByName(host);
+			} catch (UnknownHostException e) {
+				handler.failed(e);
+				return;
+			}
+			handler.completed(addresses);
+			return;
+		}
+
+		Entry entry = cache.get(host);
+		if (null != entry) {
+			long now = System.currentTimeMillis();
+			if (now < entry.expires) {
+				if (null != entry.addresses) {
+					handler.completed(entry.addresses);
+				} else {
+					handler.failed(entry.failure);
+				}
+				return;
+			}
+			if (null != entry.addresses && now < entry.staleUntil) {
+				// Keep using what we had until the refresh is in
+				lookup(host, null);
+				handler.completed(entry.addresses);
+				return;
+			}
+		}
+		lookup(host, handler);
+	}
+
+	/**
+	 * Look up every address of <code>host</code>, waiting on DNS if need be. Only ever called on a
+	 * lookup thread, so it's free to block; override it to resolve hosts some other way.
+	 */
+	protected InetAddress[] getAllByName(String host) throws UnknownHostException {
+		return InetAddress.getAllByName(host);
+	}
+
+	/**
+	 * Forget every cached host.
+	 */
+	public void clear() {
+		cache.clear();
+	}
+
+	private void lookup(String host, CompletionHandler<InetAddress[]> handler) {
+		Lookup lookup = pending.get(host);
+		if (null == lookup) {
+			Lookup newLookup = new Lookup(host, handler);
+			lookup = pending.putIfAbsent(host, newLookup);
+			if (null == lookup) {
+				lookups.execute(newLookup);
+				return;
+			}
+		}
+		if (null != handler) {
+			lookup.addHandler(handler);
+		}
+	}
+
+	private void cache(String host, Entry entry) {
+		if (entry.expires <= entry.created) {
+			cache.remove(host);
+			return;
+		}
+		if (null == cache.put(host, entry) && cache.size() > maxEntries) {
+			evict(entry.created);
+		}
+	}
+
+	private void evict(long now) {
+		String soonest = null;
+		long soonestExpiry = Long.MAX_VALUE;
+		for (Map.Entry<String, Entry> e : cache.entrySet()) {
+			long expires = e.getValue().expires;
+			if (expires <= now) {
+				cache.remove(e.getKey());
+			} else if (expires < soonestExpiry) {
+				soonest = e.getKey();
+				soonestExpiry = expires;
+			}
+		}
+		if (cache.size() > maxEntries && null != soonest) {
+			cache.remove(soonest);
+		}
+	}
+
+	private static boolean isAddressLiteral(String host) {
+		if (host.indexOf(':') >= 0) {
+			return true;
+		}
+		for (int i = 0; i < host.length(); i++) {
+			char c = host.charAt(i);
+			if (c != '.' && (c < '0' || c > '9')) {
+				return false;
+			}
+		}
+		return host.length() > 0;
+	}
+
+	private static ThreadPoolExecutor createLookupThreads() {
+		ThreadPoolExecutor threads = new ThreadPoolExecutor(LOOKUP_THREADS, LOOKUP_THREADS,
+				60L, TimeUnit.SECONDS,
+				new LinkedBlockingQueue<Runnable>(),
+				new ThreadFactory() {
+					@Override public Thread newThread(Runnable runnable) {
+						Thread t = new Thread(runnable, "async-http-resolver");
+						t.setDaemon(true);
+						return t;
+					}
+				});
+		threads.allowCoreThreadTimeOut(true);
+		return threads;
+	}
+
+	private static long ttlProperty(String name, long defaultTtl) {
+		try {
+			String value = Security.getProperty(name);
+			if (null != value) {
+				long seconds = Long.parseLong(value.trim());
+				// -1 means forever to the JDK
+				return (seconds < 0 ? Long.MAX_VALUE / 2 : seconds * 1000);
+			}
+		} catch (NumberFormatException e) {
+			log.debug(e.getMessage(), e);
+		} catch (SecurityException e) {
+			log.debug(e.getMessage(), e);
+		}
+		return defaultTtl;
+	}
+
+	/**
+	 * A query in progress and everyone waiting for its answer.
+	 */
+	private class Lookup implements Runnable {
+		private final String host;
+		private final List<CompletionHandler<InetAddress[]>> handlers = new ArrayList<CompletionHandler<InetAddress[]>>();
+		private boolean done = false;
+		private InetAddress[] addresses = null;
+		private Throwable failure = null;
+
+		private Lookup(String host, CompletionHandler<InetAddress[]> handler) {
+			this.host = host;
+			if (null != handler) {
+				handlers.add(handler);
+			}
+		}
+
+		@Override public void run() {
+			long start = System.nanoTime();
+			InetAddress[] addresses = null;
+			Throwable failure = null;
+			try {
+				addresses = getAllByName(host);
+				cache(host, new Entry(addresses, null, positiveTtl));
+			} catch (UnknownHostException e) {
+				cache(host, new Entry(null, e, negativeTtl));
+				failure = e;
+			} catch (Throwable t) {
+				failure = t;
+			}
+			pending.remove(host);
+			if (log.isDebugEnabled())
+				log.debug("Resolved " + host + " in " + (System.nanoTime() - start) / 1000 + "us");
+
+			List<CompletionHandler<InetAddress[]>> waiting;
+			synchronized (this) {
+				this.done = true;
+				this.addresses = addresses;
+				this.failure = failure;
+				waiting = new ArrayList<CompletionHandler<InetAddress[]>>(handlers);
+				handlers.clear();
+			}
+			for (CompletionHandler<InetAddress[]> handler : waiting) {
+				complete(handler);
+			}
+		}
+
+		private void addHandler(CompletionHandler<InetAddress[]> handler) {
+			synchronized (this) {
+				if (!done) {
+					handlers.add(handler);
+					return;
+				}
+			}
+			complete(handler);
+		}
+
+		private void complete(CompletionHandler<InetAddress[]> handler) {
+			try {
+				if (null != addresses) {
+					handler.completed(addresses);
+				} else {
+					handler.failed(failure);
+				}
+			} catch (Throwable t) {
+				log.error("Error resolving " + host + ": " + t.getMessage(), t);
+			}
+		}
+	}
+
+	private static class Entry {
+		private final InetAddress[] addresses;
+		private final UnknownHostException failure;
+		private final long created = System.currentTimeMillis();
+		private final long expires;
+		private final long staleUntil;
+
+		private Entry(InetAddress[] addresses, UnknownHostException failure, long ttl) {
+			this.addresses = addresses;
+			this.failure = failure;
+			this.expires = created + ttl;
+			long staleUntil = expires + ttl;
+			// A TTL of forever overflows
+			this.staleUntil = (staleUntil < expires ? Long.MAX_VALUE : staleUntil);
+		}
+	}
+
+}
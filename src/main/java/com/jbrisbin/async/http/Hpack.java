@@ -0,0 +1,480 @@
+package com.jbrisbin.async.http;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * HPACK header compression (RFC 7541) for {@link Http2Session}. Each connection has one {@link
+ * Encoder}, used with the session's write lock held, and one {@link Decoder}, used only by the
+ * thread reading the connection.
+ * <p>
+ * Headers that repeat from request to request go into the dynamic table and are sent as a single
+ * index from then on. Paths and lengths, which rarely repeat, aren't indexed, and credentials and
+ * cookies are marked never to be indexed by anything in between.
+ *
+ * @author Jon Brisbin <jon@jbrisbin.com>
+ */
+class Hpack {
+
+	static final int DEFAULT_TABLE_SIZE = 4096;
+	/**
+	 * The most header bytes, counted the way SETTINGS_MAX_HEADER_LIST_SIZE counts them, accepted in
+	 * one response.
+	 */
+	static final int MAX_HEADER_LIST_SIZE = 65536;
+	private static final int ENTRY_OVERHEAD = 32;
+
+	private static final String[][] STATIC_TABLE = {
+			{":authority", ""},
+			{":method", "GET"},
+			{":method", "POST"},
+			{":path", "/"},
+			{":path", "/index.html"},
+			{":scheme", "http"},
+			{":scheme", "https"},
+			{":status", "200"},
+			{":status", "204"},
+			{":status", "206"},
+			{":status", "304"},
+			{":status", "400"},
+			{":status", "404"},
+			{":status", "500"},
+			{"accept-charset", ""},
+			{"accept-encoding", "gzip, deflate"},
+			{"accept-language", ""},
+			{"accept-ranges", ""},
+			{"accept", ""},
+			{"access-control-allow-origin", ""},
+			{"age", ""},
+			{"allow", ""},
+			{"authorization", ""},
+			{"cache-control", ""},
+			{"content-disposition", ""},
+			{"content-encoding", ""},
+			{"content-language", ""},
+			{"content-length", ""},
+			{"content-location", ""},
+			{"content-range", ""},
+			{"content-type", ""},
+			{"cookie", ""},
+			{"date", ""},
+			{"etag", ""},
+			{"expect", ""},
+			{"expires", ""},
+			{"from", ""},
+			{"host", ""},
+			{"if-match", ""},
+			{"if-modified-since", ""},
+			{"if-none-match", ""},
+			{"if-range", ""},
+			{"if-unmodified-since", ""},
+			{"last-modified", ""},
+			{"link", ""},
+			{"location", ""},
+			{"max-forwards", ""},
+			{"proxy-authenticate", ""},
+			{"proxy-authorization", ""},
+			{"range", ""},
+			{"referer", ""},
+			{"refresh", ""},
+			{"retry-after", ""},
+			{"server", ""},
+			{"set-cookie", ""},
+			{"strict-transport-security", ""},
+			{"transfer-encoding", ""},
+			{"user-agent", ""},
+			{"vary", ""},
+			{"via", ""},
+			{"www-authenticate", ""}
+	};
+	private static final Map<String, Integer> STATIC_NAMES = new HashMap<String, Integer>();
+	private static final Map<String, Integer> STATIC_FIELDS = new HashMap<String, Integer>();
+
+	/**
+	 * The Huffman code of every octet, and of EOS at 256, from RFC 7541 Appendix B.
+	 */
+	private static final int[] HUFFMAN_CODES = {
+			0x1ff8, 0x7fffd8, 0xfffffe2, 0xfffffe3, 0xfffffe4, 0xfffffe5, 0xfffffe6, 0xfffffe7,
+			0xfffffe8, 0xffffea, 0x3ffffffc, 0xfffffe9, 0xfffffea, 0x3ffffffd, 0xfffffeb, 0xfffffec,
+			0xfffffed, 0xfffffee, 0xfffffef, 0xffffff0, 0xffffff1, 0xffffff2, 0x3ffffffe, 0xffffff3,
+			0xffffff4, 0xffffff5, 0xffffff6, 0xffffff7, 0xffffff8, 0xffffff9, 0xffffffa, 0xffffffb,
+			0x14, 0x3f8, 0x3f9, 0xffa, 0x1ff9, 0x15, 0xf8, 0x7fa,
+			0x3fa, 0x3fb, 0xf9, 0x7fb, 0xfa, 0x16, 0x17, 0x18,
+			0x0, 0x1, 0x2, 0x19, 0x1a, 0x1b, 0x1c, 0x1d,
+			0x1e, 0x1f, 0x5c, 0xfb, 0x7ffc, 0x20, 0xffb, 0x3fc,
+			0x1ffa, 0x21, 0x5d, 0x5e, 0x5f, 0x60, 0x61, 0x62,
+			0x63, 0x64, 0x65, 0x66, 0x67, 0x68, 0x69, 0x6a,
+			0x6b, 0x6c, 0x6d, 0x6e, 0x6f, 0x70, 0x71, 0x72,
+			0xfc, 0x73, 0xfd, 0x1ffb, 0x7fff0, 0x1ffc, 0x3ffc, 0x22,
+			0x7ffd, 0x3, 0x23, 0x4, 0x24, 0x5, 0x25, 0x26,
+			0x27, 0x6, 0x74, 0x75, 0x28, 0x29, 0x2a, 0x7,
+			0x2b, 0x76, 0x2c, 0x8, 0x9, 0x2d, 0x77, 0x78,
+			0x79, 0x7a, 0x7b, 0x7ffe, 0x7fc, 0x3ffd, 0x1ffd, 0xffffffc,
+			0xfffe6, 0x3fffd2, 0xfffe7, 0xfffe8, 0x3fffd3, 0x3fffd4, 0x3fffd5, 0x7fffd9,
+			0x3fffd6, 0x7fffda, 0x7fffdb, 0x7fffdc, 0x7fffdd, 0x7fffde, 0xffffeb, 0x7fffdf,
+			0xffffec, 0xffffed, 0x3fffd7, 0x7fffe0, 0xffffee, 0x7fffe1, 0x7fffe2, 0x7fffe3,
+			0x7fffe4, 0x1fffdc, 0x3fffd8, 0x7fffe5, 0x3fffd9, 0x7fffe6, 0x7fffe7, 0xffffef,
+			0x3fffda, 0x1fffdd, 0xfffe9, 0x3fffdb, 0x3fffdc, 0x7fffe8, 0x7fffe9, 0x1fffde,
+			0x7fffea, 0x3fffdd, 0x3fffde, 0xfffff0, 0x1fffdf, 0x3fffdf, 0x7fffeb, 0x7fffec,
+			0x1fffe0, 0x1fffe1, 0x3fffe0, 0x1fffe2, 0x7fffed, 0x3fffe1, 0x7fffee, 0x7fffef,
+			0xfffea, 0x3fffe2, 0x3fffe3, 0x3fffe4, 0x7ffff0, 0x3fffe5, 0x3fffe6, 0x7ffff1,
+			0x3ffffe0, 0x3ffffe1, 0xfffeb, 0x7fff1, 0x3fffe7, 0x7ffff2, 0x3fffe8, 0x1ffffec,
+			0x3ffffe2, 0x3ffffe3, 0x3ffffe4, 0x7ffffde, 0x7ffffdf, 0x3ffffe5, 0xfffff1, 0x1ffffed,
+			0x7fff2, 0x1fffe3, 0x3ffffe6, 0x7ffffe0, 0x7ffffe1, 0x3ffffe7, 0x7ffffe2, 0xfffff2,
+			0x1fffe4, 0x1fffe5, 0x3ffffe8, 0x3ffffe9, 0xffffffd, 0x7ffffe3, 0x7ffffe4, 0x7ffffe5,
+			0xfffec, 0xfffff3, 0xfffed, 0x1fffe6, 0x3fffe9, 0x1fffe7, 0x1fffe8, 0x7ffff3,
+			0x3fffea, 0x3fffeb, 0x1ffffee, 0x1ffffef, 0xfffff4, 0xfffff5, 0x3ffffea, 0x7ffff4,
+			0x3ffffeb, 0x7ffffe6, 0x3ffffec, 0x3ffffed, 0x7ffffe7, 0x7ffffe8, 0x7ffffe9, 0x7ffffea,
+			0x7ffffeb, 0xffffffe, 0x7ffffec, 0x7ffffed, 0x7ffffee, 0x7ffffef, 0x7fffff0, 0x3ffffee,
+			0x3fffffff
+	};
+	private static final byte[] HUFFMAN_LENGTHS = {
+			13, 23, 28, 28, 28, 28, 28, 28, 28, 24, 30, 28, 28, 30, 28, 28,
+			28, 28, 28, 28, 28, 28, 30, 28, 28, 28, 28, 28, 28, 28, 28, 28,
+			6, 10, 10, 12, 13, 6, 8, 11, 10, 10, 8, 11, 8, 6, 6, 6,
+			5, 5, 5, 6, 6, 6, 6, 6, 6, 6, 7, 8, 15, 6, 12, 10,
+			13, 6, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7,
+			7, 7, 7, 7, 7, 7, 7, 7, 8, 7, 8, 13, 19, 13, 14, 6,
+			15, 5, 6, 5, 6, 5, 6, 6, 6, 5, 7, 7, 6, 6, 6, 5,
+			6, 7, 6, 5, 5, 6, 7, 7, 7, 7, 7, 15, 11, 14, 13, 28,
+			20, 22, 20, 20, 22, 22, 22, 23, 22, 23, 23, 23, 23, 23, 24, 23,
+			24, 24, 22, 23, 24, 23, 23, 23, 23, 21, 22, 23, 22, 23, 23, 24,
+			22, 21, 20, 22, 22, 23, 23, 21, 23, 22, 22, 24, 21, 22, 23, 23,
+			21, 21, 22, 21, 23, 22, 23, 23, 20, 22, 22, 22, 23, 22, 22, 23,
+			26, 26, 20, 19, 22, 23, 22, 25, 26, 26, 26, 27, 27, 26, 24, 25,
+			19, 21, 26, 27, 27, 26, 27, 24, 21, 21, 26, 26, 28, 27, 27, 27,
+			20, 24, 20, 21, 22, 21, 21, 23, 22, 22, 25, 25, 24, 24, 26, 23,
+			26, 27, 26, 26, 27, 27, 27, 27, 27, 28, 27, 27, 27, 27, 27, 26,
+			30
+	};
+	/**
+	 * Decoding tree for the Huffman code: the children of node <code>n</code> are at <code>2n</code>
+	 * and <code>2n + 1</code>, and a leaf holds <code>-(symbol + 1)</code>.
+	 */
+	private static final int[] HUFFMAN_TREE = new int[1024];
+	private static final int EOS = 256;
+
+	static {
+		for (int i = STATIC_TABLE.length - 1; i >= 0; i--) {
+			// Iterating backwards leaves the lowest index for each name
+			STATIC_NAMES.put(STATIC_TABLE[i][0], i + 1);
+			STATIC_FIELDS.put(STATIC_TABLE[i][0] + '\0' + STATIC_TABLE[i][1], i + 1);
+		}
+		int nodes = 1;
+		for (int symbol = 0; symbol < HUFFMAN_CODES.length; symbol++) {
+			int code = HUFFMAN_CODES[symbol];
+			int node = 0;
+			for (int bit = HUFFMAN_LENGTHS[symbol] - 1; bit > 0; bit--) {
+				int child = 2 * node + ((code >>> bit) & 1);
+				if (HUFFMAN_TREE[child] == 0) {
+					HUFFMAN_TREE[child] = nodes++;
+				}
+				node = HUFFMAN_TREE[child];
+			}
+			HUFFMAN_TREE[2 * node + (code & 1)] = -(symbol + 1);
+		}
+	}
+
+	/**
+	 * Turns headers into header blocks. Not thread-safe.
+	 */
+	static class Encoder {
+		private final Table table = new Table(DEFAULT_TABLE_SIZE);
+		private int sizeUpdate = -1;
+
+		/**
+		 * Use no more than <code>size</code> bytes for the dynamic table, as the peer's
+		 * SETTINGS_HEADER_TABLE_SIZE allows. The change is signalled at the start of the next block.
+		 */
+		void setMaxTableSize(int size) {
+			size = Math.min(size, DEFAULT_TABLE_SIZE);
+			if (size != table.maxSize) {
+				table.setMaxSize(size);
+				sizeUpdate = size;
+			}
+		}
+
+		/**
+		 * Called before the first header of every block.
+		 */
+		void startBlock(ByteArrayOutputStream out) {
+			if (sizeUpdate >= 0) {
+				writeInt(out, 0x20, 5, sizeUpdate);
+				sizeUpdate = -1;
+			}
+		}
+
+		/**
+		 * @param name lower case, as HTTP/2 requires.
+		 */
+		void encode(String name, String value, ByteArrayOutputStream out) {
+			int index = table.find(name, value);
+			if (index > 0) {
+				writeInt(out, 0x80, 7, index);
+				return;
+			}
+			int nameIndex = table.findName(name);
+			if (isSensitive(name)) {
+				writeInt(out, 0x10, 4, nameIndex);
+			} else if (":path".equals(name) || "content-length".equals(name)) {
+				writeInt(out, 0x00, 4, nameIndex);
+			} else {
+				writeInt(out, 0x40, 6, nameIndex);
+				table.add(name, value);
+			}
+			if (nameIndex == 0) {
+				writeString(out, name);
+			}
+			writeString(out, value);
+		}
+
+		private static boolean isSensitive(String name) {
+			return "authorization".equals(name)
+					|| "proxy-authorization".equals(name)
+					|| "cookie".equals(name)
+					|| "set-cookie".equals(name);
+		}
+
+		private static void writeInt(ByteArrayOutputStream out, int flags, int prefix, int value) {
+			int max = (1 << prefix) - 1;
+			if (value < max) {
+				out.write(flags | value);
+				return;
+			}
+			out.write(flags | max);
+			value -= max;
+			while (value >= 0x80) {
+				out.write((value & 0x7f) | 0x80);
+				value >>>= 7;
+			}
+			out.write(value);
+		}
+
+		/**
+		 * Write a string literal, Huffman coded if that makes it shorter.
+		 */
+		private static void writeString(ByteArrayOutputStream out, String s) {
+			int length = s.length();
+			long bits = 0;
+			for (int i = 0; i < length; i++) {
+				bits += HUFFMAN_LENGTHS[s.charAt(i) & 0xff];
+			}
+			int huffmanLength = (int) ((bits + 7) / 8);
+			if (huffmanLength >= length) {
+				writeInt(out, 0x00, 7, length);
+				for (int i = 0; i < length; i++) {
+					out.write(s.charAt(i));
+				}
+				return;
+			}
+			writeInt(out, 0x80, 7, huffmanLength);
+			long current = 0;
+			int pending = 0;
+			for (int i = 0; i < length; i++) {
+				int c = s.charAt(i) & 0xff;
+				current = (current << HUFFMAN_LENGTHS[c]) | HUFFMAN_CODES[c];
+				pending += HUFFMAN_LENGTHS[c];
+				while (pending >= 8) {
+					pending -= 8;
+					out.write((int) (current >>> pending));
+				}
+			}
+			if (pending > 0) {
+				// Padded with the most significant bits of EOS, which are all ones
+				out.write((int) ((current << (8 - pending)) | (0xff >>> pending)));
+			}
+		}
+	}
+
+	/**
+	 * Turns header blocks back into headers. Not thread-safe.
+	 */
+	static class Decoder {
+		private final Table table = new Table(DEFAULT_TABLE_SIZE);
+
+		/**
+		 * @return the name and value of every header in the block, in order.
+		 * @throws IOException if the block is malformed, which leaves the dynamic table unusable.
+		 */
+		List<String[]> decode(byte[] block, int offset, int length) throws IOException {
+			List<String[]> headers = new ArrayList<String[]>();
+			int[] pos = {offset};
+			int end = offset + length;
+			int listSize = 0;
+			while (pos[0] < end) {
+				int b = block[pos[0]] & 0xff;
+				String[] header;
+				if ((b & 0x80) != 0) {
+					header = table.get(readInt(block, pos, end, 7));
+				} else if ((b & 0xe0) == 0x20) {
+					int size = readInt(block, pos, end, 5);
+					if (size > DEFAULT_TABLE_SIZE) {
+						throw new IOException("HPACK table size update to " + size + " is larger than allowed");
+					}
+					table.setMaxSize(size);
+					continue;
+				} else {
+					boolean indexed = (b & 0xc0) == 0x40;
+					int nameIndex = readInt(block, pos, end, (indexed ? 6 : 4));
+					String name = (nameIndex > 0 ? table.get(nameIndex)[0] : readString(block, pos, end));
+					header = new String[]{name, readString(block, pos, end)};
+					if (indexed) {
+						table.add(header[0], header[1]);
+					}
+				}
+				listSize += header[0].length() + header[1].length() + ENTRY_OVERHEAD;
+				if (listSize > MAX_HEADER_LIST_SIZE) {
+					throw new IOException("Headers are larger than " + MAX_HEADER_LIST_SIZE + " bytes");
+				}
+				headers.add(header);
+			}
+			return headers;
+		}
+
+		private static int readInt(byte[] block, int[] pos, int end, int prefix) throws IOException {
+			int max = (1 << prefix) - 1;
+			int value = block[pos[0]++] & max;
+			if (value < max) {
+				return value;
+			}
+			for (int shift = 0; shift < 28; shift += 7) {
+				if (pos[0] >= end) {
+					throw new IOException("HPACK integer runs past the end of the header block");
+				}
+				int b = block[pos[0]++] & 0xff;
+				value += (b & 0x7f) << shift;
+				if ((b & 0x80) == 0) {
+					return value;
+				}
+			}
+			throw new IOException("HPACK integer is too large");
+		}
+
+		private static String readString(byte[] block, int[] pos, int end) throws IOException {
+			if (pos[0] >= end) {
+				throw new IOException("HPACK string runs past the end of the header block");
+			}
+			boolean huffman = (block[pos[0]] & 0x80) != 0;
+			int length = readInt(block, pos, end, 7);
+			if (length > end - pos[0]) {
+				throw new IOException("HPACK string runs past the end of the header block");
+			}
+			int start = pos[0];
+			pos[0] += length;
+			if (!huffman) {
+				char[] chars = new char[length];
+				for (int i = 0; i < length; i++) {
+					chars[i] = (char) (block[start + i] & 0xff);
+				}
+				return new String(chars);
+			}
+			StringBuilder sb = new StringBuilder(length * 8 / 5);
+			int node = 0;
+			int depth = 0;
+			boolean ones = true;
+			for (int i = start; i < start + length; i++) {
+				int b = block[i] & 0xff;
+				for (int bit = 7; bit >= 0; bit--) {
+					int set = (b >>> bit) & 1;
+					node = HUFFMAN_TREE[2 * node + set];
+					depth++;
+					ones &= (set == 1);
+					if (node < 0) {
+						int symbol = -node - 1;
+						if (symbol == EOS) {
+							throw new IOException("HPACK string contains EOS");
+						}
+						sb.append((char) symbol);
+						node = 0;
+						depth = 0;
+						ones = true;
+					} else if (node == 0) {
+						throw new IOException("Invalid Huffman code in HPACK string");
+					}
+				}
+			}
+			if (depth > 7 || !ones) {
+				throw new IOException("Invalid padding in HPACK string");
+			}
+			return sb.toString();
+		}
+	}
+
+	/**
+	 * The static table followed by a dynamic table. Dynamic entries are kept oldest first, so the
+	 * newest, index 62, is at the end of the list.
+	 */
+	private static class Table {
+		private final List<String[]> entries = new ArrayList<String[]>();
+		private int size = 0;
+		private int maxSize;
+
+		private Table(int maxSize) {
+			this.maxSize = maxSize;
+		}
+
+		private String[] get(int index) throws IOException {
+			if (index > 0 && index <= STATIC_TABLE.length) {
+				return STATIC_TABLE[index - 1];
+			}
+			int dynamic = index - STATIC_TABLE.length - 1;
+			if (dynamic < 0 || dynamic >= entries.size()) {
+				throw new IOException("HPACK index " + index + " is out of range");
+			}
+			return entries.get(entries.size() - 1 - dynamic);
+		}
+
+		private int find(String name, String value) {
+			Integer index = STATIC_FIELDS.get(name + '\0' + value);
+			if (null != index) {
+				return index;
+			}
+			for (int i = entries.size() - 1; i >= 0; i--) {
+				String[] entry = entries.get(i);
+				if (entry[0].equals(name) && entry[1].equals(value)) {
+					return STATIC_TABLE.length + entries.size() - i;
+				}
+			}
+			return 0;
+		}
+
+		private int findName(String name) {
+			Integer index = STATIC_NAMES.get(name);
+			if (null != index) {
+				return index;
+			}
+			for (int i = entries.size() - 1; i >= 0; i--) {
+				if (entries.get(i)[0].equals(name)) {
+					return STATIC_TABLE.length + entries.size() - i;
+				}
+			}
+			return 0;
+		}
+
+		private void add(String name, String value) {
+			int entrySize = name.length() + value.length() + ENTRY_OVERHEAD;
+			evict(maxSize - entrySize);
+			if (entrySize <= maxSize) {
+				entries.add(new String[]{name, value});
+				size += entrySize;
+			}
+		}
+
+		private void setMaxSize(int maxSize) {
+			this.maxSize = maxSize;
+			evict(maxSize);
+		}
+
+		private void evict(int targetSize) {
+			while (size > targetSize && !entries.isEmpty()) {
+				String[] entry = entries.remove(0);
+				size -= entry[0].length() + entry[1].length() + ENTRY_OVERHEAD;
+			}
+		}
+	}
+
+}
@@ -5,7 +5,19 @@ package com.jbrisbin.async.http;
  */
 public interface Http11Headers {
 
+	public static final String CONNECTION = "Connection";
 	public static final String CONTENT_LENGTH = "Content-Length";
 	public static final String CONTENT_TYPE = "Content-Type";
+	public static final String AGE = "Age";
+	public static final String AUTHORIZATION = "Authorization";
+	public static final String CACHE_CONTROL = "Cache-Control";
+	public static final String DATE = "Date";
+	public static final String ETAG = "ETag";
+	public static final String EXPIRES = "Expires";
+	public static final String IF_MODIFIED_SINCE = "If-Modified-Since";
+	public static final String IF_NONE_MATCH = "If-None-Match";
+	public static final String LAST_MODIFIED = "Last-Modified";
+	public static final String PRAGMA = "Pragma";
+	public static final String VARY = "Vary";
 
 }
@@ -0,0 +1,64 @@
+package com.jbrisbin.async.http;
+
+import java.io.IOException;
+
+import org.glassfish.grizzly.Buffer;
+import org.glassfish.grizzly.CompletionHandler;
+import org.glassfish.grizzly.WriteResult;
+import org.glassfish.grizzly.filterchain.BaseFilter;
+import org.glassfish.grizzly.filterchain.FilterChainContext;
+import org.glassfish.grizzly.filterchain.NextAction;
+import org.glassfish.grizzly.http.HttpContent;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Takes the place of the HTTP/1.1 codec and {@link RequestResponseFilter} on connections that speak
+ * HTTP/2, handing requests, body chunks and incoming frames to the connection's {@link
+ * Http2Session}. The frames the session writes are passed straight through to the transport.
+ *
+ * @author Jon Brisbin <jon@jbrisbin.com>
+ */
+class Http2ClientFilter extends BaseFilter {
+
+	private static final Logger log = LoggerFactory.getLogger(Http2ClientFilter.class);
+
+	@Override public NextAction handleRead(FilterChainContext ctx) throws IOException {
+		Http2Session session = Http2Session.of(ctx.getConnection());
+		if (null == session) {
+			log.error("Read on a connection without an HTTP/2 session: " + ctx.getConnection());
+			return ctx.getStopAction();
+		}
+		return session.read(ctx, (Buffer) ctx.getMessage());
+	}
+
+	@SuppressWarnings({"unchecked"})
+	@Override public NextAction handleWrite(FilterChainContext ctx) throws IOException {
+		Object o = ctx.getMessage();
+		if (o instanceof Buffer) {
+			return ctx.getInvokeAction();
+		}
+		Http2Session session = Http2Session.of(ctx.getConnection());
+		if (null == session) {
+			throw new IllegalStateException("No HTTP/2 session on " + ctx.getConnection());
+		}
+		CompletionHandler<WriteResult> handler = ctx.getTransportContext().getCompletionHandler();
+		if (o instanceof Request) {
+			session.write((Request) o, handler);
+		} else if (o instanceof HttpContent) {
+			// Body chunks written straight to the connection, by RequestByteChannel or FileUploadWriter
+			session.write((HttpContent) o, handler);
+		}
+		ctx.setMessage(null);
+		return ctx.getStopAction();
+	}
+
+	@Override public NextAction handleClose(FilterChainContext ctx) throws IOException {
+		Http2Session session = Http2Session.of(ctx.getConnection());
+		if (null != session) {
+			session.closed();
+		}
+		return ctx.getInvokeAction();
+	}
+
+}
@@ -0,0 +1,1107 @@
+package com.jbrisbin.async.http;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.glassfish.grizzly.Buffer;
+import org.glassfish.grizzly.CompletionHandler;
+import org.glassfish.grizzly.Connection;
+import org.glassfish.grizzly.Grizzly;
+import org.glassfish.grizzly.WriteResult;
+import org.glassfish.grizzly.attributes.Attribute;
+import org.glassfish.grizzly.filterchain.FilterChainContext;
+import org.glassfish.grizzly.filterchain.NextAction;
+import org.glassfish.grizzly.http.HttpContent;
+import org.glassfish.grizzly.http.HttpRequestPacket;
+import org.glassfish.grizzly.http.util.HttpStatus;
+import org.glassfish.grizzly.memory.Buffers;
+import org.glassfish.grizzly.memory.ByteBufferWrapper;
+import org.glassfish.grizzly.memory.MemoryManager;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * One HTTP/2 connection, opened with prior knowledge (RFC 7540 3.4) rather than upgraded from
+ * HTTP/1.1. Every {@link Request} sent over it gets a stream of its own, so any number of them can be
+ * in flight at once, up to the server's limit on concurrent streams; requests beyond that wait for a
+ * stream to finish. Responses complete the same {@link Response} futures, callbacks and consumers
+ * they would over HTTP/1.1.
+ * <p>
+ * Frames are written under a lock that also guards the HPACK encoder and the flow control windows,
+ * so header blocks go out in the order they were compressed. Frames are read, and header blocks
+ * decompressed, on whichever thread the connection's reads are delivered on.
+ * <p>
+ * A response whose reading has been {@link Response#pause() paused} stops getting flow control
+ * credit, so the server stops sending it once its stream's window is used up while the other streams
+ * carry on. Whatever arrives for it meanwhile, no more than one window's worth, is held until it's
+ * resumed, then delivered on one of the transport's threads.
+ *
+ * @author Jon Brisbin <jon@jbrisbin.com>
+ */
+class Http2Session {
+
+	private static final Logger log = LoggerFactory.getLogger(Http2Session.class);
+	private static final Attribute<Http2Session> SESSION = Grizzly.DEFAULT_ATTRIBUTE_BUILDER.createAttribute("http2-session");
+	private static final byte[] PREFACE = {
+			'P', 'R', 'I', ' ', '*', ' ', 'H', 'T', 'T', 'P', '/', '2', '.', '0', '\r', '\n',
+			'\r', '\n', 'S', 'M', '\r', '\n', '\r', '\n'
+	};
+
+	private static final int DATA = 0x0;
+	private static final int HEADERS = 0x1;
+	private static final int RST_STREAM = 0x3;
+	private static final int SETTINGS = 0x4;
+	private static final int PUSH_PROMISE = 0x5;
+	private static final int PING = 0x6;
+	private static final int GOAWAY = 0x7;
+	private static final int WINDOW_UPDATE = 0x8;
+	private static final int CONTINUATION = 0x9;
+
+	private static final int FLAG_END_STREAM = 0x1;
+	private static final int FLAG_ACK = 0x1;
+	private static final int FLAG_END_HEADERS = 0x4;
+	private static final int FLAG_PADDED = 0x8;
+	private static final int FLAG_PRIORITY = 0x20;
+
+	private static final int SETTINGS_HEADER_TABLE_SIZE = 0x1;
+	private static final int SETTINGS_ENABLE_PUSH = 0x2;
+	private static final int SETTINGS_MAX_CONCURRENT_STREAMS = 0x3;
+	private static final int SETTINGS_INITIAL_WINDOW_SIZE = 0x4;
+	private static final int SETTINGS_MAX_FRAME_SIZE = 0x5;
+	private static final int SETTINGS_MAX_HEADER_LIST_SIZE = 0x6;
+
+	private static final int NO_ERROR = 0x0;
+	private static final int PROTOCOL_ERROR = 0x1;
+	private static final int FLOW_CONTROL_ERROR = 0x3;
+	private static final int FRAME_SIZE_ERROR = 0x6;
+	private static final int CANCEL = 0x8;
+	private static final int COMPRESSION_ERROR = 0x9;
+
+	private static final int FRAME_HEADER_SIZE = 9;
+	private static final int DEFAULT_WINDOW_SIZE = 65535;
+	private static final int DEFAULT_MAX_FRAME_SIZE = 16384;
+	private static final int MAX_FRAME_SIZE_LIMIT = 16777215;
+	private static final int DEFAULT_MAX_CONCURRENT_STREAMS = 100;
+	private static final int STREAM_WINDOW_SIZE = 1024 * 1024;
+	private static final int CONNECTION_WINDOW_SIZE = 16 * 1024 * 1024;
+	/**
+	 * Headers that only mean something to an HTTP/1.1 connection (RFC 7540 8.1.2.2). Host is sent as
+	 * <code>:authority</code> instead.
+	 */
+	private static final Set<String> CONNECTION_HEADERS = new HashSet<String>(Arrays.asList(
+			"connection", "keep-alive", "proxy-connection", "transfer-encoding", "upgrade", "host"
+	));
+
+	private final Connection connection;
+	private final HttpClientTransport transport;
+	private final MemoryManager memoryManager;
+	private final ReentrantLock lock = new ReentrantLock();
+	private final Hpack.Encoder encoder = new Hpack.Encoder();
+	private final Map<Integer, Stream> streams = new HashMap<Integer, Stream>();
+	private final Map<HttpRequestPacket, Stream> packets = new HashMap<HttpRequestPacket, Stream>();
+	private final LinkedList<Stream> queued = new LinkedList<Stream>();
+	private int nextStreamId = 1;
+	private int maxConcurrentStreams = DEFAULT_MAX_CONCURRENT_STREAMS;
+	private int initialWindowSize = DEFAULT_WINDOW_SIZE;
+	private int maxFrameSize = DEFAULT_MAX_FRAME_SIZE;
+	private long sendWindow = DEFAULT_WINDOW_SIZE;
+	private volatile boolean goingAway = false;
+	// Only touched by the thread reading the connection
+	private final Hpack.Decoder decoder = new Hpack.Decoder();
+	private int receivedUnacknowledged = 0;
+	private ByteArrayOutputStream headerBlock = null;
+	private int headerBlockStreamId = 0;
+	private boolean headerBlockEndStream = false;
+
+	private Http2Session(Connection connection, HttpClientTransport transport) {
+		this.connection = connection;
+		this.transport = transport;
+		this.memoryManager = connection.getTransport().getMemoryManager();
+	}
+
+	/**
+	 * Start talking HTTP/2 on a newly opened connection by sending the connection preface and our
+	 * settings. Requests can be written right away; the server's settings apply once they arrive.
+	 */
+	static Http2Session start(Connection connection, HttpClientTransport transport) throws IOException {
+		Http2Session session = new Http2Session(connection, transport);
+		SESSION.set(connection, session);
+		session.lock.lock();
+		try {
+			Buffer preface = session.memoryManager.allocate(PREFACE.length);
+			preface.put(PREFACE);
+			preface.flip();
+			session.write(preface, null);
+
+			Buffer settings = session.frame(SETTINGS, 0, 0, 18);
+			settings.putShort((short) SETTINGS_ENABLE_PUSH).putInt(0);
+			settings.putShort((short) SETTINGS_INITIAL_WINDOW_SIZE).putInt(STREAM_WINDOW_SIZE);
+			settings.putShort((short) SETTINGS_MAX_HEADER_LIST_SIZE).putInt(Hpack.MAX_HEADER_LIST_SIZE);
+			settings.flip();
+			session.write(settings, null);
+
+			session.writeWindowUpdate(0, CONNECTION_WINDOW_SIZE - DEFAULT_WINDOW_SIZE);
+		} finally {
+			session.lock.unlock();
+		}
+		if (log.isDebugEnabled())
+			log.debug("Started HTTP/2 session on " + connection);
+		return session;
+	}
+
+	/**
+	 * @return the session running on <code>connection</code>, or <code>null</code> if it speaks
+	 *         HTTP/1.1.
+	 */
+	static Http2Session of(Connection connection) {
+		return SESSION.get(connection);
+	}
+
+	Connection getConnection() {
+		return connection;
+	}
+
+	/**
+	 * @return whether new requests can still be sent on this session.
+	 */
+	boolean isOpen() {
+		return connection.isOpen() && !goingAway && nextStreamId > 0;
+	}
+
+	/**
+	 * Send whatever is new about a request: its headers if it hasn't got a stream yet, the body it was
+	 * created with and the end of the stream once it's complete.
+	 */
+	void write(Request request, CompletionHandler<WriteResult> handler) throws IOException {
+		Stream stream;
+		boolean opening = false;
+		boolean upload = false;
+		lock.lock();
+		try {
+			HttpRequestPacket packet = request.getRequest();
+			if (null == packet) {
+				packet = RequestResponseFilter.createRequestPacket(request);
+				request.setRequest(packet);
+				stream = new Stream(request);
+				packets.put(packet, stream);
+				opening = true;
+			} else {
+				stream = packets.get(packet);
+				if (null == stream) {
+					// Reset, or answered already
+					cancelled(handler);
+					return;
+				}
+			}
+			int items = stream.outbound.size();
+			ByteBuffer body = request.getBody();
+			if (null != body) {
+				stream.outbound.add(new Item(new ByteBufferWrapper(body), false));
+				request.setBody(null);
+			}
+			if (request.isComplete()) {
+				if (request instanceof Upload) {
+					// The file goes out after any body chunks; the writer finishes the stream itself
+					upload = true;
+				} else {
+					stream.outbound.add(new Item(Buffers.EMPTY_BUFFER, true));
+				}
+			}
+			if (stream.outbound.size() > items) {
+				stream.outbound.getLast().handler = handler;
+			} else if (null != handler) {
+				handler.completed(null);
+			}
+
+			if (opening) {
+				if (goingAway || nextStreamId < 0) {
+					packets.remove(packet);
+					stream.discard();
+				} else {
+					queued.add(stream);
+					openQueued();
+					stream = null;
+				}
+			} else if (stream.id > 0) {
+				flush(stream);
+			}
+		} finally {
+			lock.unlock();
+		}
+		if (opening && null != stream) {
+			request.getResponse().getFuture().failure(new IOException("HTTP/2 connection to " + request.getUrl().getHost() + " can't take new requests"));
+			return;
+		}
+		if (upload) {
+			new FileUploadWriter(connection, (Upload) request).start();
+		}
+	}
+
+	/**
+	 * Send a chunk of a request's body.
+	 */
+	void write(HttpContent content, CompletionHandler<WriteResult> handler) throws IOException {
+		Buffer buffer = (null != content.getContent() ? content.getContent() : Buffers.EMPTY_BUFFER);
+		lock.lock();
+		try {
+			Stream stream = packets.get((HttpRequestPacket) content.getHttpHeader());
+			if (null == stream) {
+				dispose(buffer);
+				cancelled(handler);
+				return;
+			}
+			Item item = new Item(buffer, content.isLast());
+			item.handler = handler;
+			stream.outbound.add(item);
+			if (stream.id > 0) {
+				flush(stream);
+			}
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Give up on a request: its stream is reset and nothing more is sent or delivered for it.
+	 */
+	void cancel(Request request) {
+		boolean close;
+		lock.lock();
+		try {
+			Stream stream = (null != request.getRequest() ? packets.get(request.getRequest()) : null);
+			if (null == stream) {
+				return;
+			}
+			remove(stream);
+			if (stream.id > 0 && !stream.localEnded) {
+				writeRstStream(stream.id, CANCEL);
+			}
+			if (stream.id > 0 && log.isDebugEnabled())
+				log.debug("Cancelled stream " + stream.id + " on " + connection);
+			openQueued();
+			close = goingAway && streams.isEmpty();
+		} catch (IOException e) {
+			log.debug(e.getMessage(), e);
+			close = true;
+		} finally {
+			lock.unlock();
+		}
+		if (close) {
+			close();
+		}
+	}
+
+	/**
+	 * Fail every request still waiting for its response once the connection has closed.
+	 */
+	void closed() {
+		List<Stream> failed;
+		lock.lock();
+		try {
+			goingAway = true;
+			failed = new ArrayList<Stream>(streams.values());
+			failed.addAll(queued);
+			for (Stream stream : failed) {
+				remove(stream);
+			}
+		} finally {
+			lock.unlock();
+		}
+		for (Stream stream : failed) {
+			stream.request.getResponse().getFuture().failure(new IOException("Connection closed before the response was complete"));
+		}
+	}
+
+	/**
+	 * Read every whole frame in <code>buffer</code>, leaving a partial one for when the rest of it
+	 * arrives.
+	 */
+	NextAction read(FilterChainContext ctx, Buffer buffer) throws IOException {
+		try {
+			while (buffer.remaining() >= FRAME_HEADER_SIZE) {
+				int p = buffer.position();
+				int length = ((buffer.get(p) & 0xff) << 16) | ((buffer.get(p + 1) & 0xff) << 8) | (buffer.get(p + 2) & 0xff);
+				if (length > DEFAULT_MAX_FRAME_SIZE) {
+					throw new ProtocolException(FRAME_SIZE_ERROR, "Frame of " + length + " bytes is larger than allowed");
+				}
+				if (buffer.remaining() < FRAME_HEADER_SIZE + length) {
+					break;
+				}
+				int type = buffer.get(p + 3) & 0xff;
+				int flags = buffer.get(p + 4) & 0xff;
+				int streamId = buffer.getInt(p + 5) & 0x7fffffff;
+				byte[] payload = new byte[length];
+				buffer.position(p + FRAME_HEADER_SIZE);
+				buffer.get(payload);
+				readFrame(type, flags, streamId, payload);
+			}
+		} catch (ProtocolException e) {
+			log.error("HTTP/2 protocol error on " + connection + ": " + e.getMessage());
+			goAway(e.code);
+			return ctx.getStopAction();
+		}
+		if (buffer.hasRemaining()) {
+			return ctx.getStopAction(buffer);
+		}
+		buffer.tryDispose();
+		return ctx.getStopAction();
+	}
+
+	private void readFrame(int type, int flags, int streamId, byte[] payload) throws IOException {
+		if (null != headerBlock && (type != CONTINUATION || streamId != headerBlockStreamId)) {
+			throw new ProtocolException(PROTOCOL_ERROR, "Expected CONTINUATION for stream " + headerBlockStreamId);
+		}
+		switch (type) {
+			case DATA:
+				readData(flags, streamId, payload);
+				break;
+			case HEADERS:
+				readHeaders(flags, streamId, payload);
+				break;
+			case CONTINUATION:
+				if (null == headerBlock) {
+					throw new ProtocolException(PROTOCOL_ERROR, "Unexpected CONTINUATION");
+				}
+				appendHeaderBlock(payload, 0, payload.length, flags);
+				break;
+			case RST_STREAM:
+				readRstStream(streamId, payload);
+				break;
+			case SETTINGS:
+				readSettings(flags, streamId, payload);
+				break;
+			case PUSH_PROMISE:
+				throw new ProtocolException(PROTOCOL_ERROR, "PUSH_PROMISE with push disabled");
+			case PING:
+				if (payload.length != 8 || streamId != 0) {
+					throw new ProtocolException(FRAME_SIZE_ERROR, "Malformed PING");
+				}
+				if ((flags & FLAG_ACK) == 0) {
+					lock.lock();
+					try {
+						Buffer pong = frame(PING, FLAG_ACK, 0, 8);
+						pong.put(payload);
+						pong.flip();
+						write(pong, null);
+					} finally {
+						lock.unlock();
+					}
+				}
+				break;
+			case GOAWAY:
+				readGoAway(payload);
+				break;
+			case WINDOW_UPDATE:
+				readWindowUpdate(streamId, payload);
+				break;
+			default:
+				// PRIORITY, and frame types this client doesn't know, are ignored
+				break;
+		}
+	}
+
+	private void readData(int flags, int streamId, byte[] payload) throws IOException {
+		if (streamId == 0) {
+			throw new ProtocolException(PROTOCOL_ERROR, "DATA on stream 0");
+		}
+		int offset = 0;
+		int length = payload.length;
+		if ((flags & FLAG_PADDED) != 0) {
+			int padding = (length > 0 ? payload[0] & 0xff : 0);
+			if (padding >= length) {
+				throw new ProtocolException(PROTOCOL_ERROR, "DATA padding is longer than the frame");
+			}
+			offset = 1;
+			length -= 1 + padding;
+		}
+		boolean endStream = (flags & FLAG_END_STREAM) != 0;
+
+		Stream stream;
+		lock.lock();
+		try {
+			// The connection's window is replenished no matter which stream the data was for
+			receivedUnacknowledged += payload.length;
+			if (receivedUnacknowledged >= CONNECTION_WINDOW_SIZE / 2) {
+				writeWindowUpdate(0, receivedUnacknowledged);
+				receivedUnacknowledged = 0;
+			}
+			stream = streams.get(streamId);
+			if (null == stream) {
+				// Reset by us while the data was on its way
+				return;
+			}
+			if (0 == stream.status) {
+				throw new ProtocolException(PROTOCOL_ERROR, "DATA before HEADERS on stream " + streamId);
+			}
+			if (endStream) {
+				ended(stream);
+			} else {
+				stream.receivedUnacknowledged += payload.length;
+				if (stream.receivedUnacknowledged >= STREAM_WINDOW_SIZE / 2 && !stream.request.getResponse().isPaused()) {
+					writeWindowUpdate(streamId, stream.receivedUnacknowledged);
+					stream.receivedUnacknowledged = 0;
+				}
+			}
+		} finally {
+			lock.unlock();
+		}
+
+		stream.request.readActivity();
+		HttpClientMetrics metrics = transport.getMetrics();
+		if (null != metrics) {
+			metrics.bytesReceived(length);
+		}
+		deliverOrHold(stream, new ByteBufferWrapper(ByteBuffer.wrap(payload, offset, length)), endStream);
+	}
+
+	private void readHeaders(int flags, int streamId, byte[] payload) throws IOException {
+		if (streamId == 0) {
+			throw new ProtocolException(PROTOCOL_ERROR, "HEADERS on stream 0");
+		}
+		int offset = 0;
+		int length = payload.length;
+		if ((flags & FLAG_PADDED) != 0) {
+			int padding = (length > 0 ? payload[0] & 0xff : 0);
+			offset++;
+			length -= 1 + padding;
+		}
+		if ((flags & FLAG_PRIORITY) != 0) {
+			offset += 5;
+			length -= 5;
+		}
+		if (length < 0) {
+			throw new ProtocolException(PROTOCOL_ERROR, "HEADERS padding is longer than the frame");
+		}
+		headerBlock = new ByteArrayOutputStream(Math.max(length, 64));
+		headerBlockStreamId = streamId;
+		headerBlockEndStream = (flags & FLAG_END_STREAM) != 0;
+		appendHeaderBlock(payload, offset, length, flags);
+	}
+
+	private void appendHeaderBlock(byte[] fragment, int offset, int length, int flags) throws IOException {
+		if (headerBlock.size() + length > 2 * Hpack.MAX_HEADER_LIST_SIZE) {
+			throw new ProtocolException(PROTOCOL_ERROR, "Header block is too large");
+		}
+		headerBlock.write(fragment, offset, length);
+		if ((flags & FLAG_END_HEADERS) == 0) {
+			return;
+		}
+		byte[] block = headerBlock.toByteArray();
+		headerBlock = null;
+		List<String[]> fields;
+		try {
+			// Decoded even when the stream is gone, to keep the decoder's table in step with the server's
+			fields = decoder.decode(block, 0, block.length);
+		} catch (IOException e) {
+			throw new ProtocolException(COMPRESSION_ERROR, e.getMessage());
+		}
+		headers(headerBlockStreamId, fields, headerBlockEndStream);
+	}
+
+	private void headers(int streamId, List<String[]> fields, boolean endStream) throws IOException {
+		Stream stream;
+		lock.lock();
+		try {
+			stream = streams.get(streamId);
+		} finally {
+			lock.unlock();
+		}
+		if (null == stream) {
+			return;
+		}
+		stream.request.readActivity();
+		Response response = stream.request.getResponse();
+		ResponseHeaders respHeaders = response.getHeaders();
+		if (0 == stream.status) {
+			int status = 0;
+			for (String[] field : fields) {
+				if (":status".equals(field[0])) {
+					try {
+						status = Integer.parseInt(field[1]);
+					} catch (NumberFormatException e) {
+						status = 0;
+					}
+				}
+			}
+			if (status < 100 || status > 999) {
+				stream.request.abort(new IOException("Response without a valid :status from " + stream.request.getUrl()));
+				return;
+			}
+			if (status < 200) {
+				// Interim response; the real one follows
+				return;
+			}
+			response.setStatus(status);
+			addHeaders(respHeaders, fields);
+			lock.lock();
+			try {
+				stream.status = status;
+				if (endStream) {
+					ended(stream);
+				}
+			} finally {
+				lock.unlock();
+			}
+			response.headersReceived();
+		} else {
+			// Trailers
+			addHeaders(respHeaders, fields);
+			lock.lock();
+			try {
+				ended(stream);
+			} finally {
+				lock.unlock();
+			}
+		}
+		if (endStream) {
+			deliverOrHold(stream, Buffers.EMPTY_BUFFER, true);
+		}
+	}
+
+	private void readRstStream(int streamId, byte[] payload) throws IOException {
+		if (payload.length != 4 || streamId == 0) {
+			throw new ProtocolException(FRAME_SIZE_ERROR, "Malformed RST_STREAM");
+		}
+		int code = readInt(payload, 0);
+		Stream stream;
+		lock.lock();
+		try {
+			stream = streams.get(streamId);
+			if (null == stream) {
+				return;
+			}
+			remove(stream);
+			openQueued();
+		} finally {
+			lock.unlock();
+		}
+		stream.request.getResponse().getFuture().failure(new IOException("Stream reset by " + stream.request.getUrl().getHost() + " with error " + code));
+	}
+
+	private void readSettings(int flags, int streamId, byte[] payload) throws IOException {
+		if (streamId != 0) {
+			throw new ProtocolException(PROTOCOL_ERROR, "SETTINGS on stream " + streamId);
+		}
+		if ((flags & FLAG_ACK) != 0) {
+			return;
+		}
+		if (payload.length % 6 != 0) {
+			throw new ProtocolException(FRAME_SIZE_ERROR, "Malformed SETTINGS");
+		}
+		lock.lock();
+		try {
+			for (int i = 0; i < payload.length; i += 6) {
+				int id = ((payload[i] & 0xff) << 8) | (payload[i + 1] & 0xff);
+				int value = readInt(payload, i + 2);
+				switch (id) {
+					case SETTINGS_HEADER_TABLE_SIZE:
+						encoder.setMaxTableSize(value < 0 ? Integer.MAX_VALUE : value);
+						break;
+					case SETTINGS_MAX_CONCURRENT_STREAMS:
+						maxConcurrentStreams = (value < 0 ? Integer.MAX_VALUE : value);
+						break;
+					case SETTINGS_INITIAL_WINDOW_SIZE:
+						if (value < 0) {
+							throw new ProtocolException(FLOW_CONTROL_ERROR, "Initial window size is too large");
+						}
+						for (Stream stream : streams.values()) {
+							stream.sendWindow += value - initialWindowSize;
+						}
+						initialWindowSize = value;
+						break;
+					case SETTINGS_MAX_FRAME_SIZE:
+						if (value < DEFAULT_MAX_FRAME_SIZE || value > MAX_FRAME_SIZE_LIMIT) {
+							throw new ProtocolException(PROTOCOL_ERROR, "Invalid maximum frame size " + value);
+						}
+						maxFrameSize = value;
+						break;
+					default:
+						break;
+				}
+			}
+			Buffer ack = frame(SETTINGS, FLAG_ACK, 0, 0);
+			ack.flip();
+			write(ack, null);
+			openQueued();
+			flushAll();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	private void readGoAway(byte[] payload) throws IOException {
+		if (payload.length < 8) {
+			throw new ProtocolException(FRAME_SIZE_ERROR, "Malformed GOAWAY");
+		}
+		int lastStreamId = readInt(payload, 0) & 0x7fffffff;
+		int code = readInt(payload, 4);
+		List<Stream> refused = new ArrayList<Stream>();
+		boolean close;
+		lock.lock();
+		try {
+			goingAway = true;
+			for (Stream stream : streams.values()) {
+				if (stream.id > lastStreamId) {
+					refused.add(stream);
+				}
+			}
+			refused.addAll(queued);
+			for (Stream stream : refused) {
+				remove(stream);
+			}
+			close = streams.isEmpty();
+		} finally {
+			lock.unlock();
+		}
+		if (log.isDebugEnabled())
+			log.debug("GOAWAY from " + connection + " with error " + code + " after stream " + lastStreamId);
+		for (Stream stream : refused) {
+			// Never processed, so safe to send again on another connection
+			stream.request.getResponse().getFuture().failure(new IOException("HTTP/2 connection to " + stream.request.getUrl().getHost() + " is going away"));
+		}
+		if (close) {
+			close();
+		}
+	}
+
+	private void readWindowUpdate(int streamId, byte[] payload) throws IOException {
+		if (payload.length != 4) {
+			throw new ProtocolException(FRAME_SIZE_ERROR, "Malformed WINDOW_UPDATE");
+		}
+		int increment = readInt(payload, 0) & 0x7fffffff;
+		lock.lock();
+		try {
+			if (streamId == 0) {
+				if (increment == 0) {
+					throw new ProtocolException(PROTOCOL_ERROR, "WINDOW_UPDATE of 0");
+				}
+				sendWindow += increment;
+				if (sendWindow > Integer.MAX_VALUE) {
+					throw new ProtocolException(FLOW_CONTROL_ERROR, "Connection window is too large");
+				}
+				flushAll();
+			} else {
+				Stream stream = streams.get(streamId);
+				if (null != stream) {
+					stream.sendWindow += increment;
+					flush(stream);
+				}
+			}
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Hand a response its content, failing it with an {@link HttpException} if its status is an error.
+	 */
+	private void deliver(Stream stream, Buffer content, boolean last) {
+		Response response = stream.request.getResponse();
+		try {
+			RequestResponseFilter.complete(response, stream.status, content, last);
+		} catch (IOException e) {
+			stream.request.abort(e);
+		}
+	}
+
+	/**
+	 * Deliver content read for a stream, unless its response is paused or still has held content to
+	 * get through first, in which case it's held to keep it in order.
+	 */
+	private void deliverOrHold(Stream stream, Buffer content, boolean last) {
+		lock.lock();
+		try {
+			if (stream.draining || !stream.held.isEmpty() || stream.request.getResponse().isPaused()) {
+				stream.held.add(new Item(content, last));
+				return;
+			}
+		} finally {
+			lock.unlock();
+		}
+		deliver(stream, content, last);
+	}
+
+	/**
+	 * Deliver what was held for a stream while its response was paused, until there's nothing left or
+	 * it's paused again. Only one thread drains a stream at a time.
+	 */
+	private void drain(Stream stream) {
+		Response response = stream.request.getResponse();
+		for (; ; ) {
+			Item item;
+			lock.lock();
+			try {
+				if (response.isDone()) {
+					// Failed or cancelled; nobody wants the rest
+					stream.held.clear();
+				}
+				if (stream.held.isEmpty() || response.isPaused()) {
+					stream.draining = false;
+					return;
+				}
+				item = stream.held.poll();
+			} finally {
+				lock.unlock();
+			}
+			deliver(stream, item.buffer, item.last);
+		}
+	}
+
+	/**
+	 * Return the credit held back from a paused response, and deliver what arrived for it meanwhile.
+	 */
+	private void resumed(final Stream stream) {
+		boolean drain = false;
+		lock.lock();
+		try {
+			if (!stream.draining && !stream.held.isEmpty()) {
+				stream.draining = drain = true;
+			}
+			if (stream.id > 0 && streams.get(stream.id) == stream && stream.receivedUnacknowledged > 0) {
+				writeWindowUpdate(stream.id, stream.receivedUnacknowledged);
+				stream.receivedUnacknowledged = 0;
+			}
+		} catch (IOException e) {
+			log.debug(e.getMessage(), e);
+		} finally {
+			lock.unlock();
+		}
+		if (drain) {
+			// Not on the thread that resumed, which could be in the middle of handling a chunk itself
+			stream.request.getResponse().runOnTransportThread(connection, new Runnable() {
+				@Override public void run() {
+					drain(stream);
+				}
+			});
+		}
+	}
+
+	/**
+	 * Open queued streams while the server allows more. Must be called with the lock held.
+	 */
+	private void openQueued() throws IOException {
+		Stream stream;
+		while (streams.size() < maxConcurrentStreams && !goingAway && null != (stream = queued.poll())) {
+			if (nextStreamId < 0) {
+				queued.addFirst(stream);
+				goingAway = true;
+				break;
+			}
+			stream.id = nextStreamId;
+			nextStreamId += 2;
+			stream.sendWindow = initialWindowSize;
+			streams.put(stream.id, stream);
+
+			HttpClientMetrics metrics = transport.getMetrics();
+			if (null != metrics) {
+				// Before the write, which a fast enough response could otherwise beat
+				stream.request.getResponse().started(metrics);
+			}
+			boolean endStream = false;
+			Item end = stream.outbound.peek();
+			if (stream.outbound.size() == 1 && end.last && !end.buffer.hasRemaining()) {
+				// No body: the headers end the stream
+				stream.outbound.poll();
+				stream.localEnded = true;
+				endStream = true;
+			}
+			if (log.isDebugEnabled())
+				log.debug("Opening stream " + stream.id + ": " + stream.request.getMethod() + " " + stream.request.getUrl());
+			writeHeaders(stream, endStream, (endStream ? end.handler : null));
+			flush(stream);
+		}
+	}
+
+	private void writeHeaders(Stream stream, boolean endStream, CompletionHandler<WriteResult> handler) throws IOException {
+		Request request = stream.request;
+		URL url = request.getUrl();
+		String path = (null != url.getPath() && url.getPath().length() > 0 ? url.getPath() : "/");
+		if (null != url.getQuery()) {
+			path += "?" + url.getQuery();
+		}
+		String authority = url.getHost() + (url.getPort() > 0 ? ":" + url.getPort() : "");
+
+		ByteArrayOutputStream block = new ByteArrayOutputStream(256);
+		encoder.startBlock(block);
+		for (Map.Entry<String, String> header : request.getHeaders().entrySet()) {
+			if ("host".equalsIgnoreCase(header.getKey())) {
+				authority = header.getValue();
+			}
+		}
+		encoder.encode(":method", request.getMethod().name(), block);
+		encoder.encode(":scheme", url.getProtocol(), block);
+		encoder.encode(":authority", authority, block);
+		encoder.encode(":path", path, block);
+		for (Map.Entry<String, String> header : request.getHeaders().entrySet()) {
+			String name = header.getKey().toLowerCase();
+			if (!CONNECTION_HEADERS.contains(name) && null != header.getValue()) {
+				encoder.encode(name, header.getValue(), block);
+			}
+		}
+		if (null != request.getContentType()) {
+			encoder.encode("content-type", request.getContentType(), block);
+		}
+		Long contentLength = request.getContentLength();
+		if (!request.isChunked() && null != contentLength && contentLength >= 0) {
+			encoder.encode("content-length", contentLength.toString(), block);
+		}
+
+		byte[] bytes = block.toByteArray();
+		int offset = 0;
+		int type = HEADERS;
+		do {
+			int length = Math.min(bytes.length - offset, maxFrameSize);
+			boolean lastFrame = (offset + length == bytes.length);
+			int flags = (lastFrame ? FLAG_END_HEADERS : 0) | (type == HEADERS && endStream ? FLAG_END_STREAM : 0);
+			Buffer frame = frame(type, flags, stream.id, length);
+			frame.put(bytes, offset, length);
+			frame.flip();
+			write(frame, (lastFrame ? handler : null));
+			offset += length;
+			type = CONTINUATION;
+		} while (offset < bytes.length);
+	}
+
+	/**
+	 * Send as much of a stream's body as the flow control windows allow. Must be called with the lock
+	 * held.
+	 */
+	private void flush(Stream stream) throws IOException {
+		Item item;
+		while (null != (item = stream.outbound.peek())) {
+			int remaining = item.buffer.remaining();
+			if (remaining == 0 && !item.last) {
+				stream.outbound.poll();
+				dispose(item.buffer);
+				if (null != item.handler) {
+					item.handler.completed(null);
+				}
+				continue;
+			}
+			int length = (int) Math.min(Math.min(remaining, maxFrameSize), Math.min(sendWindow, stream.sendWindow));
+			if (length <= 0 && remaining > 0) {
+				// Blocked until the server sends a WINDOW_UPDATE
+				return;
+			}
+			boolean whole = (length == remaining);
+			Buffer frame = frame(DATA, (whole && item.last ? FLAG_END_STREAM : 0), stream.id, length);
+			int limit = item.buffer.limit();
+			item.buffer.limit(item.buffer.position() + length);
+			frame.put(item.buffer);
+			item.buffer.limit(limit);
+			frame.flip();
+			sendWindow -= length;
+			stream.sendWindow -= length;
+			HttpClientMetrics metrics = transport.getMetrics();
+			if (null != metrics && length > 0) {
+				metrics.bytesSent(length);
+			}
+			if (whole) {
+				stream.outbound.poll();
+				dispose(item.buffer);
+				if (item.last) {
+					stream.localEnded = true;
+				}
+				write(frame, item.handler);
+			} else {
+				write(frame, null);
+			}
+		}
+	}
+
+	private void flushAll() throws IOException {
+		for (Stream stream : streams.values()) {
+			flush(stream);
+		}
+	}
+
+	/**
+	 * The server has finished its response. Must be called with the lock held.
+	 */
+	private void ended(Stream stream) throws IOException {
+		remove(stream);
+		if (!stream.localEnded) {
+			// Whatever is left of the request isn't wanted (RFC 7540 8.1)
+			writeRstStream(stream.id, NO_ERROR);
+		}
+		openQueued();
+		if (goingAway && streams.isEmpty()) {
+			close();
+		}
+	}
+
+	private void remove(Stream stream) {
+		if (stream.id > 0) {
+			streams.remove(stream.id);
+		} else {
+			queued.remove(stream);
+		}
+		packets.remove(stream.request.getRequest());
+		stream.discard();
+	}
+
+	private void writeWindowUpdate(int streamId, int increment) throws IOException {
+		Buffer frame = frame(WINDOW_UPDATE, 0, streamId, 4);
+		frame.putInt(increment);
+		frame.flip();
+		write(frame, null);
+	}
+
+	private void writeRstStream(int streamId, int code) throws IOException {
+		Buffer frame = frame(RST_STREAM, 0, streamId, 4);
+		frame.putInt(code);
+		frame.flip();
+		write(frame, null);
+	}
+
+	/**
+	 * Tell the server the connection is done for and close it, which fails every open stream.
+	 */
+	private void goAway(int code) {
+		lock.lock();
+		try {
+			goingAway = true;
+			Buffer frame = frame(GOAWAY, 0, 0, 8);
+			frame.putInt(0).putInt(code);
+			frame.flip();
+			write(frame, null);
+		} catch (IOException e) {
+			log.debug(e.getMessage(), e);
+		} finally {
+			lock.unlock();
+		}
+		close();
+	}
+
+	private void close() {
+		try {
+			connection.close();
+		} catch (IOException e) {
+			log.debug(e.getMessage(), e);
+		}
+	}
+
+	/**
+	 * @return a buffer holding the frame header, ready for <code>length</code> bytes of payload.
+	 */
+	private Buffer frame(int type, int flags, int streamId, int length) {
+		Buffer frame = memoryManager.allocate(FRAME_HEADER_SIZE + length);
+		frame.put((byte) (length >>> 16)).put((byte) (length >>> 8)).put((byte) length);
+		frame.put((byte) type).put((byte) flags).putInt(streamId);
+		return frame;
+	}
+
+	@SuppressWarnings({"unchecked"})
+	private void write(Buffer frame, CompletionHandler<WriteResult> handler) throws IOException {
+		connection.write(frame, handler);
+	}
+
+	private static int readInt(byte[] b, int i) {
+		return ((b[i] & 0xff) << 24) | ((b[i + 1] & 0xff) << 16) | ((b[i + 2] & 0xff) << 8) | (b[i + 3] & 0xff);
+	}
+
+	/**
+	 * Add response headers under their usual HTTP/1.1 capitalization, since HTTP/2 sends them in lower
+	 * case. Every value of a repeated header is kept, in the order they arrived, as over HTTP/1.1.
+	 */
+	private static void addHeaders(ResponseHeaders headers, List<String[]> fields) {
+		for (String[] field : fields) {
+			if (field[0].startsWith(":")) {
+				continue;
+			}
+			char[] name = field[0].toCharArray();
+			boolean start = true;
+			for (int i = 0; i < name.length; i++) {
+				if (start) {
+					name[i] = Character.toUpperCase(name[i]);
+				}
+				start = (name[i] == '-');
+			}
+			headers.add(new String(name), field[1]);
+		}
+	}
+
+	private static void cancelled(CompletionHandler<WriteResult> handler) {
+		if (null != handler) {
+			handler.cancelled();
+		}
+	}
+
+	private static void dispose(Buffer buffer) {
+		if (Buffers.EMPTY_BUFFER != buffer) {
+			buffer.tryDispose();
+		}
+	}
+
+	private class Stream implements Runnable {
+		private final Request request;
+		private final LinkedList<Item> outbound = new LinkedList<Item>();
+		// Read while the response was paused, waiting to be delivered
+		private final LinkedList<Item> held = new LinkedList<Item>();
+		private boolean draining = false;
+		private int id = 0;
+		private long sendWindow = 0;
+		private int receivedUnacknowledged = 0;
+		private int status = 0;
+		private boolean localEnded = false;
+
+		private Stream(Request request) {
+			this.request = request;
+			request.getResponse().setResumeListener(this);
+		}
+
+		/**
+		 * Called when the response is resumed.
+		 */
+		@Override public void run() {
+			resumed(this);
+		}
+
+		/**
+		 * Drop whatever of the request hadn't been sent yet.
+		 */
+		private void discard() {
+			for (Iterator<Item> iter = outbound.iterator(); iter.hasNext(); ) {
+				Item item = iter.next();
+				iter.remove();
+				dispose(item.buffer);
+				cancelled(item.handler);
+			}
+		}
+	}
+
+	private static class Item {
+		private final Buffer buffer;
+		private final boolean last;
+		private CompletionHandler<WriteResult> handler = null;
+
+		private Item(Buffer buffer, boolean last) {
+			this.buffer = buffer;
+			this.last = last;
+		}
+	}
+
+	private static class ProtocolException extends IOException {
+		private static final long serialVersionUID = 1L;
+
+		private final int code;
+
+		private ProtocolException(int code, String message) {
+			super(message);
+			this.code = code;
+		}
+	}
+
+}
@@ -0,0 +1,56 @@
+package com.jbrisbin.async.http;
+
+/**
+ * Receives timings and counts from an {@link HttpClientTransport}. Every method but {@link
+ * #started} and {@link #stopped} is called on the I/O path, often from selector threads, so
+ * implementations have to be thread-safe, quick and shouldn't allocate. Times are in nanoseconds
+ * and byte counts are of request and response bodies, not headers.
+ *
+ * @author Jon Brisbin <jon@jbrisbin.com>
+ */
+public interface HttpClientMetrics {
+
+	/**
+	 * Called once the transport has started.
+	 */
+	void started(HttpClientTransport transport);
+
+	/**
+	 * Called once the transport has stopped.
+	 */
+	void stopped(HttpClientTransport transport);
+
+	/**
+	 * A new connection was opened. Connections reused from the pool aren't reported.
+	 */
+	void connected(String host, int port, long nanos);
+
+	void connectFailed(String host, int port);
+
+	/**
+	 * The request line and headers of a request have been written and it's now in flight.
+	 */
+	void requestStarted(Request request);
+
+	void bytesSent(long bytes);
+
+	/**
+	 * The status and headers of the response arrived, <code>nanos</code> after the request was
+	 * started.
+	 */
+	void firstByte(Request request, long nanos);
+
+	void bytesReceived(long bytes);
+
+	/**
+	 * The response was read completely, <code>nanos</code> after the request was started.
+	 */
+	void requestCompleted(Request request, int status, long nanos);
+
+	/**
+	 * The request failed or was cancelled. <code>status</code> is the status of the {@link
+	 * HttpException} the response failed with, or 0 if it failed for any other reason.
+	 */
+	void requestFailed(Request request, int status, long nanos);
+
+}
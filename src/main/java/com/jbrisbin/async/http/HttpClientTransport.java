@@ -0,0 +1,419 @@
+package com.jbrisbin.async.http;
+
+import java.io.IOException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+
+import org.glassfish.grizzly.filterchain.Filter;
+import org.glassfish.grizzly.filterchain.FilterChain;
+import org.glassfish.grizzly.filterchain.FilterChainBuilder;
+import org.glassfish.grizzly.filterchain.TransportFilter;
+import org.glassfish.grizzly.http.ContentEncoding;
+import org.glassfish.grizzly.http.GZipContentEncoding;
+import org.glassfish.grizzly.http.HttpClientFilter;
+import org.glassfish.grizzly.memory.MemoryManager;
+import org.glassfish.grizzly.nio.transport.TCPNIOTransport;
+import org.glassfish.grizzly.nio.transport.TCPNIOTransportBuilder;
+import org.glassfish.grizzly.strategies.SameThreadIOStrategy;
+import org.glassfish.grizzly.threadpool.ThreadPoolConfig;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The selector and worker threads, {@link FilterChain}, {@link ConnectionPool} and {@link
+ * BufferPool} shared by any number of {@link AsyncHttpClient}s, no matter which hosts they talk to.
+ * <p>
+ * A transport is started lazily by the first client that needs a connection and is stopped either
+ * explicitly or once every client using it has been disposed. The default transport is only ever
+ * stopped explicitly, since the clients a {@link Request} makes for itself use it without holding a
+ * reference; its threads are daemons, so it doesn't keep the JVM alive. A stopped transport can't be
+ * restarted; {@link #getDefault()} hands out a fresh one if the previous default was stopped.
+ *
+ * @author Jon Brisbin <jon@jbrisbin.com>
+ */
+public class HttpClientTransport {
+
+	private static final Logger log = LoggerFactory.getLogger(HttpClientTransport.class);
+	private static volatile HttpClientTransport defaultTransport = null;
+
+	private final FilterChain filterChain;
+	private final FilterChain http2FilterChain;
+	private final ConnectionPool connectionPool = new ConnectionPool(this);
+	private BufferPool bufferPool = new BufferPool();
+	private volatile HttpClientMetrics metrics = new JmxHttpClientMetrics();
+	private HostResolver hostResolver = new HostResolver();
+	private int selectorThreads = Runtime.getRuntime().availableProcessors();
+	private int workerThreads = Runtime.getRuntime().availableProcessors() * 2;
+	private boolean sameThreadIOStrategy = false;
+	private boolean acceptCompressed = true;
+	private long compressionThreshold = -1;
+	private boolean http2PriorKnowledge = false;
+	private int maxPendingBytesPerConnection = -1;
+	private volatile Executor callbackExecutor = null;
+	private volatile boolean coalesceRequests = false;
+	private final SingleFlight singleFlight = new SingleFlight();
+	private volatile TCPNIOTransport transport = null;
+	private int references = 0;
+	private volatile boolean stopped = false;
+
+	public HttpClientTransport() {
+		FilterChainBuilder fcb = FilterChainBuilder.stateless();
+		fcb.add(new TransportFilter());
+		HttpClientFilter httpFilter = new ClientCodecFilter();
+		for (ContentEncoding encoding : httpFilter.getContentEncodings()) {
+			if (encoding instanceof GZipContentEncoding) {
+				httpFilter.removeContentEncoding(encoding);
+			}
+		}
+		httpFilter.addContentEncoding(new CompressionContentEncoding(CompressionContentEncoding.GZIP));
+		httpFilter.addContentEncoding(new CompressionContentEncoding(CompressionContentEncoding.DEFLATE));
+		fcb.add(httpFilter);
+		fcb.add(new RequestResponseFilter(this));
+		filterChain = fcb.build();
+
+		FilterChainBuilder h2fcb = FilterChainBuilder.stateless();
+		h2fcb.add(new TransportFilter());
+		h2fcb.add(new Http2ClientFilter());
+		http2FilterChain = h2fcb.build();
+	}
+
+	/**
+	 * @return the process-wide transport used by every {@link AsyncHttpClient} that isn't given its
+	 *         own.
+	 */
+	public static HttpClientTransport getDefault() {
+		HttpClientTransport t = defaultTransport;
+		if (null != t && !t.isStopped()) {
+			return t;
+		}
+		synchronized (HttpClientTransport.class) {
+			if (null == defaultTransport || defaultTransport.isStopped()) {
+				defaultTransport = new HttpClientTransport();
+			}
+			return defaultTransport;
+		}
+	}
+
+	public int getSelectorThreads() {
+		return selectorThreads;
+	}
+
+	public HttpClientTransport setSelectorThreads(int selectorThreads) {
+		assertNotStarted();
+		this.selectorThreads = selectorThreads;
+		return this;
+	}
+
+	public int getWorkerThreads() {
+		return workerThreads;
+	}
+
+	public HttpClientTransport setWorkerThreads(int workerThreads) {
+		assertNotStarted();
+		this.workerThreads = workerThreads;
+		return this;
+	}
+
+	public boolean isSameThreadIOStrategy() {
+		return sameThreadIOStrategy;
+	}
+
+	/**
+	 * Run the filter chain on the selector threads instead of handing each event off to a worker
+	 * thread. Cheaper when callbacks are short and never block; with this set, a slow callback stalls
+	 * every other connection on the same selector.
+	 */
+	public HttpClientTransport setSameThreadIOStrategy(boolean sameThreadIOStrategy) {
+		assertNotStarted();
+		this.sameThreadIOStrategy = sameThreadIOStrategy;
+		return this;
+	}
+
+	public boolean isAcceptCompressed() {
+		return acceptCompressed;
+	}
+
+	/**
+	 * Ask servers for gzip or deflate response bodies, which are inflated as they're read. Requests
+	 * that set their own <code>Accept-Encoding</code> header are left alone either way.
+	 */
+	public HttpClientTransport setAcceptCompressed(boolean acceptCompressed) {
+		assertNotStarted();
+		this.acceptCompressed = acceptCompressed;
+		return this;
+	}
+
+	public long getCompressionThreshold() {
+		return compressionThreshold;
+	}
+
+	/**
+	 * Gzip request bodies of at least <code>compressionThreshold</code> bytes, and all chunked ones.
+	 * Compressed bodies are always sent chunked since their length isn't known up front. The server
+	 * has to accept <code>Content-Encoding: gzip</code> requests. A negative threshold, the default,
+	 * turns this off.
+	 */
+	public HttpClientTransport setCompressionThreshold(long compressionThreshold) {
+		assertNotStarted();
+		this.compressionThreshold = compressionThreshold;
+		return this;
+	}
+
+	public boolean isHttp2PriorKnowledge() {
+		return http2PriorKnowledge;
+	}
+
+	/**
+	 * Talk HTTP/2 over cleartext connections to servers known to support it, without asking first
+	 * (RFC 7540 3.4). Each host gets one connection, over which every request is multiplexed as a
+	 * stream of its own. Responses aren't compressed, request bodies aren't gzipped and requests
+	 * aren't pipelined. Filters added to this transport only see HTTP/1.1 traffic.
+	 */
+	public HttpClientTransport setHttp2PriorKnowledge(boolean http2PriorKnowledge) {
+		assertNotStarted();
+		this.http2PriorKnowledge = http2PriorKnowledge;
+		return this;
+	}
+
+	public int getMaxPendingBytesPerConnection() {
+		return maxPendingBytesPerConnection;
+	}
+
+	/**
+	 * Cap the bytes that may be waiting in each connection's write queue. A write that would go over
+	 * fails, so streamed request bodies hold back to stay under it. -1, the default, leaves the queue
+	 * unbounded.
+	 *
+	 * @see AsyncHttpClient#setMaxQueuedBytes(long)
+	 */
+	public HttpClientTransport setMaxPendingBytesPerConnection(int maxPendingBytesPerConnection) {
+		assertNotStarted();
+		this.maxPendingBytesPerConnection = maxPendingBytesPerConnection;
+		return this;
+	}
+
+	public Executor getCallbackExecutor() {
+		return callbackExecutor;
+	}
+
+	/**
+	 * Run {@link ResponseCallback}s on <code>callbackExecutor</code> instead of the thread that
+	 * completed the response. That's an I/O thread, and with {@link #setSameThreadIOStrategy(boolean)}
+	 * a selector thread, so a slow callback holds up other connections. Pass {@link
+	 * #getWorkerThreadPool()} to use Grizzly's worker threads, or <code>null</code>, the default, to
+	 * run callbacks inline. Clients can set their own.
+	 */
+	public HttpClientTransport setCallbackExecutor(Executor callbackExecutor) {
+		this.callbackExecutor = callbackExecutor;
+		return this;
+	}
+
+	/**
+	 * @return the worker threads the filter chain runs on, starting the transport if it isn't already,
+	 *         or <code>null</code> if it runs on the selector threads.
+	 */
+	public ExecutorService getWorkerThreadPool() throws IOException {
+		return getTransport().getWorkerThreadPool();
+	}
+
+	public boolean isCoalesceRequests() {
+		return coalesceRequests;
+	}
+
+	/**
+	 * Have identical <code>GET</code> and <code>HEAD</code> requests that are in flight at the same
+	 * time, from any client using this transport, share one exchange with the server. Requests are
+	 * identical if they go to the same host and port with the same method, path, query and headers.
+	 * Every caller still gets a {@link Response} of its own, whose body is a read-only view of the
+	 * shared one. Off by default.
+	 */
+	public HttpClientTransport setCoalesceRequests(boolean coalesceRequests) {
+		this.coalesceRequests = coalesceRequests;
+		return this;
+	}
+
+	SingleFlight getSingleFlight() {
+		return singleFlight;
+	}
+
+	public BufferPool getBufferPool() {
+		return bufferPool;
+	}
+
+	public HttpClientTransport setBufferPool(BufferPool bufferPool) {
+		assertNotStarted();
+		this.bufferPool = bufferPool;
+		return this;
+	}
+
+	/**
+	 * @return where timings and counts are reported, or <code>null</code> if they aren't.
+	 */
+	public HttpClientMetrics getMetrics() {
+		return metrics;
+	}
+
+	/**
+	 * Report timings and counts somewhere other than JMX, or nowhere if <code>metrics</code> is
+	 * <code>null</code>.
+	 */
+	public HttpClientTransport setMetrics(HttpClientMetrics metrics) {
+		assertNotStarted();
+		this.metrics = metrics;
+		return this;
+	}
+
+	public HostResolver getHostResolver() {
+		return hostResolver;
+	}
+
+	/**
+	 * Resolve host names with a differently configured resolver, or share one between transports.
+	 */
+	public HttpClientTransport setHostResolver(HostResolver hostResolver) {
+		assertNotStarted();
+		this.hostResolver = hostResolver;
+		return this;
+	}
+
+	public FilterChain getFilterChain() {
+		return filterChain;
+	}
+
+	public ConnectionPool getConnectionPool() {
+		return connectionPool;
+	}
+
+	/**
+	 * Insert a filter just before the {@link RequestResponseFilter}. This affects every client
+	 * sharing this transport.
+	 */
+	public HttpClientTransport addUpstreamFilter(Filter filter) {
+		filterChain.add(findRequestResponseFilterIndex() - 1, filter);
+		return this;
+	}
+
+	public HttpClientTransport addFilter(int idx, Filter filter) {
+		filterChain.add(idx, filter);
+		return this;
+	}
+
+	public HttpClientTransport addDownstreamFilter(Filter filter) {
+		filterChain.add(filter);
+		return this;
+	}
+
+	public boolean isStarted() {
+		return null != transport;
+	}
+
+	public boolean isStopped() {
+		return stopped;
+	}
+
+	/**
+	 * Start the selector and worker threads if they aren't running already.
+	 */
+	public synchronized HttpClientTransport start() throws IOException {
+		if (stopped) {
+			throw new IllegalStateException("This transport has been stopped");
+		}
+		if (null == transport) {
+			TCPNIOTransportBuilder tb = TCPNIOTransportBuilder.newInstance();
+			tb.setTcpNoDelay(true);
+			tb.setKeepAlive(true);
+			if (sameThreadIOStrategy) {
+				tb.setIOStrategy(SameThreadIOStrategy.getInstance());
+			}
+			// Grizzly threads keep a thread-local pool created by their config's memory manager, which
+			// has to match the transport's.
+			MemoryManager memoryManager = bufferPool.getMemoryManager();
+			tb.setMemoryManager(memoryManager);
+			tb.getSelectorThreadPoolConfig()
+					.setCorePoolSize(selectorThreads)
+					.setMaxPoolSize(selectorThreads)
+					.setMemoryManager(memoryManager);
+			ThreadPoolConfig workerConfig = tb.getWorkerThreadPoolConfig();
+			if (null != workerConfig) {
+				workerConfig.setCorePoolSize(workerThreads)
+						.setMaxPoolSize(workerThreads)
+						.setMemoryManager(memoryManager);
+			}
+			TCPNIOTransport t = tb.build();
+			t.setSelectorRunnersCount(selectorThreads);
+			t.setProcessor(http2PriorKnowledge ? http2FilterChain : filterChain);
+			t.getAsyncQueueIO().getWriter().setMaxPendingBytesPerConnection(maxPendingBytesPerConnection);
+			t.start();
+			transport = t;
+			connectionPool.start();
+			if (null != metrics) {
+				metrics.started(this);
+			}
+			if (log.isDebugEnabled())
+				log.debug("Started transport with " + selectorThreads + " selector threads and "
+						+ (sameThreadIOStrategy ? "no" : workerThreads) + " worker threads");
+		}
+		return this;
+	}
+
+	/**
+	 * Close every pooled connection and stop the selector and worker threads.
+	 */
+	public synchronized void stop() throws IOException {
+		if (!stopped) {
+			stopped = true;
+			connectionPool.close();
+			if (null != transport) {
+				transport.stop();
+				if (null != metrics) {
+					metrics.stopped(this);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Every send goes through here, so once the transport is running it's handed out without taking
+	 * the lock {@link #start()} needs.
+	 */
+	TCPNIOTransport getTransport() throws IOException {
+		TCPNIOTransport t = transport;
+		if (null != t && !stopped) {
+			return t;
+		}
+		return start().transport;
+	}
+
+	synchronized void retain() {
+		if (stopped) {
+			throw new IllegalStateException("This transport has been stopped");
+		}
+		references++;
+	}
+
+	/**
+	 * Drop a reference taken by {@link #retain()}, stopping the transport once nothing uses it, unless
+	 * it's the default transport.
+	 */
+	synchronized void release() throws IOException {
+		if (references > 0 && --references == 0 && this != defaultTransport) {
+			stop();
+		}
+	}
+
+	private int findRequestResponseFilterIndex() {
+		for (int i = 0; i < filterChain.size(); i++) {
+			if (filterChain.get(i) instanceof RequestResponseFilter) {
+				return i;
+			}
+		}
+		throw new IllegalStateException("No HttpClientFilter found in the filter chain! This should not happen.");
+	}
+
+	private synchronized void assertNotStarted() {
+		if (null != transport || stopped) {
+			throw new IllegalStateException("Threads and memory can only be configured before the transport is started");
+		}
+	}
+
+}
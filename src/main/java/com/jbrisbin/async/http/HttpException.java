@@ -26,4 +26,8 @@ public class HttpException extends Exception {
 		this.status = status;
 	}
 
+	public int getStatus() {
+		return status;
+	}
+
 }
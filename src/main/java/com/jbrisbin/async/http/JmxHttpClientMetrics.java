@@ -0,0 +1,196 @@
+package com.jbrisbin.async.http;
+
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The {@link HttpClientMetrics} every {@link HttpClientTransport} starts out with. Counts go into
+ * striped counters and timings into fixed-size histograms, so recording never allocates or blocks.
+ * While its transport is running, it's registered with the platform MBean server as
+ * <code>com.jbrisbin.async.http:type=HttpClientTransport,name=transport-N</code>.
+ * <p>
+ * Use one instance per transport.
+ *
+ * @author Jon Brisbin <jon@jbrisbin.com>
+ */
+public class JmxHttpClientMetrics implements HttpClientMetrics, JmxHttpClientMetricsMXBean {
+
+	private static final Logger log = LoggerFactory.getLogger(JmxHttpClientMetrics.class);
+	private static final AtomicInteger transportIds = new AtomicInteger();
+	private static final int MAX_STATUS = 600;
+	private static final double NANOS_PER_MILLI = 1000000.0;
+
+	private final StripedCounter connects = new StripedCounter();
+	private final StripedCounter connectFailures = new StripedCounter();
+	private final AtomicHistogram connectTime = new AtomicHistogram();
+	private final StripedCounter requests = new StripedCounter();
+	private final StripedCounter finished = new StripedCounter();
+	private final StripedCounter bytesSent = new StripedCounter();
+	private final StripedCounter bytesReceived = new StripedCounter();
+	private final AtomicHistogram timeToFirstByte = new AtomicHistogram();
+	private final AtomicHistogram latency = new AtomicHistogram();
+	private final AtomicLongArray errors = new AtomicLongArray(MAX_STATUS);
+	private volatile ConnectionPool connectionPool = null;
+	private volatile ObjectName objectName = null;
+
+	@Override public void started(HttpClientTransport transport) {
+		connectionPool = transport.getConnectionPool();
+		try {
+			ObjectName name = new ObjectName("com.jbrisbin.async.http:type=HttpClientTransport,name=transport-" + transportIds.incrementAndGet());
+			ManagementFactory.getPlatformMBeanServer().registerMBean(this, name);
+			objectName = name;
+		} catch (JMException e) {
+			log.warn("Couldn't register transport metrics with JMX: " + e.getMessage(), e);
+		}
+	}
+
+	@Override public void stopped(HttpClientTransport transport) {
+		ObjectName name = objectName;
+		if (null != name) {
+			objectName = null;
+			try {
+				ManagementFactory.getPlatformMBeanServer().unregisterMBean(name);
+			} catch (JMException e) {
+				log.warn("Couldn't unregister transport metrics from JMX: " + e.getMessage(), e);
+			}
+		}
+	}
+
+	/**
+	 * @return the name this is registered with JMX under, or <code>null</code> if it isn't.
+	 */
+	public ObjectName getObjectName() {
+		return objectName;
+	}
+
+	@Override public void connected(String host, int port, long nanos) {
+		connects.increment();
+		connectTime.record(nanos);
+	}
+
+	@Override public void connectFailed(String host, int port) {
+		connectFailures.increment();
+	}
+
+	@Override public void requestStarted(Request request) {
+		requests.increment();
+	}
+
+	@Override public void bytesSent(long bytes) {
+		bytesSent.add(bytes);
+	}
+
+	@Override public void firstByte(Request request, long nanos) {
+		timeToFirstByte.record(nanos);
+	}
+
+	@Override public void bytesReceived(long bytes) {
+		bytesReceived.add(bytes);
+	}
+
+	@Override public void requestCompleted(Request request, int status, long nanos) {
+		latency.record(nanos);
+		finished.increment();
+	}
+
+	@Override public void requestFailed(Request request, int status, long nanos) {
+		errors.incrementAndGet(status > 0 && status < MAX_STATUS ? status : 0);
+		finished.increment();
+	}
+
+	@Override public long getConnectCount() {
+		return connects.sum();
+	}
+
+	@Override public long getConnectFailureCount() {
+		return connectFailures.sum();
+	}
+
+	@Override public double getConnectTimeMean() {
+		return connectTime.getMean() / NANOS_PER_MILLI;
+	}
+
+	@Override public double getConnectTime99thPercentile() {
+		return connectTime.getValueAtPercentile(99) / NANOS_PER_MILLI;
+	}
+
+	@Override public long getRequestCount() {
+		return requests.sum();
+	}
+
+	@Override public long getInFlightCount() {
+		// Read finished first so a request completing in between can't make this negative
+		long done = finished.sum();
+		return requests.sum() - done;
+	}
+
+	@Override public long getBytesSent() {
+		return bytesSent.sum();
+	}
+
+	@Override public long getBytesReceived() {
+		return bytesReceived.sum();
+	}
+
+	@Override public double getTimeToFirstByteMean() {
+		return timeToFirstByte.getMean() / NANOS_PER_MILLI;
+	}
+
+	@Override public double getTimeToFirstByte99thPercentile() {
+		return timeToFirstByte.getValueAtPercentile(99) / NANOS_PER_MILLI;
+	}
+
+	@Override public double getLatencyMean() {
+		return latency.getMean() / NANOS_PER_MILLI;
+	}
+
+	@Override public double getLatency50thPercentile() {
+		return latency.getValueAtPercentile(50) / NANOS_PER_MILLI;
+	}
+
+	@Override public double getLatency99thPercentile() {
+		return latency.getValueAtPercentile(99) / NANOS_PER_MILLI;
+	}
+
+	@Override public double getLatency999thPercentile() {
+		return latency.getValueAtPercentile(99.9) / NANOS_PER_MILLI;
+	}
+
+	@Override public int getConnectionCount() {
+		ConnectionPool pool = connectionPool;
+		return (null != pool ? pool.getConnectionCount() : 0);
+	}
+
+	@Override public int getIdleConnectionCount() {
+		ConnectionPool pool = connectionPool;
+		return (null != pool ? pool.getIdleCount() : 0);
+	}
+
+	@Override public long getErrorCount() {
+		long count = 0;
+		for (int i = 0; i < MAX_STATUS; i++) {
+			count += errors.get(i);
+		}
+		return count;
+	}
+
+	@Override public Map<Integer, Long> getErrorCountsByStatus() {
+		Map<Integer, Long> counts = new TreeMap<Integer, Long>();
+		for (int i = 0; i < MAX_STATUS; i++) {
+			long count = errors.get(i);
+			if (count > 0) {
+				counts.put(i, count);
+			}
+		}
+		return counts;
+	}
+
+}
@@ -0,0 +1,52 @@
+package com.jbrisbin.async.http;
+
+import java.util.Map;
+
+/**
+ * What {@link JmxHttpClientMetrics} exposes over JMX. Times are in milliseconds.
+ *
+ * @author Jon Brisbin <jon@jbrisbin.com>
+ */
+public interface JmxHttpClientMetricsMXBean {
+
+	long getConnectCount();
+
+	long getConnectFailureCount();
+
+	double getConnectTimeMean();
+
+	double getConnectTime99thPercentile();
+
+	long getRequestCount();
+
+	long getInFlightCount();
+
+	long getBytesSent();
+
+	long getBytesReceived();
+
+	double getTimeToFirstByteMean();
+
+	double getTimeToFirstByte99thPercentile();
+
+	double getLatencyMean();
+
+	double getLatency50thPercentile();
+
+	double getLatency99thPercentile();
+
+	double getLatency999thPercentile();
+
+	int getConnectionCount();
+
+	int getIdleConnectionCount();
+
+	long getErrorCount();
+
+	/**
+	 * @return error counts keyed by the status of the {@link HttpException} a request failed with, or
+	 *         0 for requests that failed any other way.
+	 */
+	Map<Integer, Long> getErrorCountsByStatus();
+
+}
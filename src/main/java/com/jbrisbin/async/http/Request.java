@@ -4,22 +4,49 @@ import java.io.IOException;
 import java.net.URL;
 import java.nio.ByteBuffer;
 import java.nio.channels.ReadableByteChannel;
-import java.nio.channels.WritableByteChannel;
 import java.util.HashMap;
+import java.util.LinkedList;
 import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
 
+import org.glassfish.grizzly.Buffer;
+import org.glassfish.grizzly.CompletionHandler;
+import org.glassfish.grizzly.Connection;
+import org.glassfish.grizzly.WriteResult;
 import org.glassfish.grizzly.http.HttpRequestPacket;
 import org.glassfish.grizzly.memory.ByteBufferWrapper;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 /**
  * @author Jon Brisbin <jon@jbrisbin.com>
  */
 public class Request {
 
+	private static final Logger log = LoggerFactory.getLogger(Request.class);
 	static final int BUFFER_SIZE = 8192;
+	/**
+	 * Written in place of the request itself to finish it.
+	 */
+	static final Object FINISH = new Object();
 
 	public enum Method {
-		GET, PUT, POST, DELETE, HEAD
+		GET(true), PUT(true), POST(false), DELETE(true), HEAD(true);
+
+		private final boolean idempotent;
+
+		Method(boolean idempotent) {
+			this.idempotent = idempotent;
+		}
+
+		/**
+		 * @return whether sending this request twice has the same effect as sending it once (RFC 2616
+		 *         9.1.2), which is what makes it safe to pipeline or retry.
+		 */
+		public boolean isIdempotent() {
+			return idempotent;
+		}
 	}
 
 	protected URL url;
@@ -32,19 +59,31 @@ public class Request {
 	protected ReadableByteChannel readableByteChannel;
 	protected Response response;
 	protected HttpRequestPacket request = null;
+	protected volatile Connection connection = null;
 	protected boolean complete = false;
 	protected boolean chunked = false;
+	protected long connectTimeout = -1;
+	protected long readTimeout = -1;
+	protected long requestTimeout = -1;
+	private RequestTemplate template = null;
+	private final ReentrantLock writeLock = new ReentrantLock();
+	private LinkedList<Object> pendingWrites = null;
+	private boolean leasing = false;
+	private Throwable connectFailure = null;
+	private volatile long lastActivity = 0;
+	private volatile HashedWheelTimer.Timeout readDeadline = null;
+	private volatile HashedWheelTimer.Timeout requestDeadline = null;
 
 	public Request(URL url, Method method) {
 		this.url = url;
-		this.client = new AsyncHttpClient(url.getHost(), url.getPort());
+		this.client = new AsyncHttpClient(url.getHost(), getPort(url));
 		this.method = method;
 		this.response = new Response(this);
 	}
 
 	public Request(URL url, Method method, Map<String, String> headers) {
 		this.url = url;
-		this.client = new AsyncHttpClient(url.getHost(), url.getPort());
+		this.client = new AsyncHttpClient(url.getHost(), getPort(url));
 		this.method = method;
 		setHeaders(headers);
 		this.response = new Response(this);
@@ -52,7 +91,7 @@ public class Request {
 
 	public Request(URL url, Method method, Map<String, String> headers, ByteBuffer body, String contentType) {
 		this.url = url;
-		this.client = new AsyncHttpClient(url.getHost(), url.getPort());
+		this.client = new AsyncHttpClient(url.getHost(), getPort(url));
 		this.method = method;
 		setHeaders(headers);
 		this.body = body;
@@ -61,6 +100,19 @@ public class Request {
 		this.response = new Response(this);
 	}
 
+	/**
+	 * A request made from a template, whose client and headers are the template's.
+	 */
+	Request(URL url, RequestTemplate template) {
+		this.url = url;
+		this.client = template.getClient();
+		this.method = template.getMethod();
+		this.headers = template.getHeaders();
+		this.contentType = template.getContentType();
+		this.template = template;
+		this.response = new Response(this);
+	}
+
 	public URL getUrl() {
 		return url;
 	}
@@ -78,8 +130,10 @@ public class Request {
 	}
 
 	public Request setHeaders(Map<String, String> headers) {
-		if (null != headers)
+		if (null != headers) {
+			detachFromTemplate();
 			this.headers.putAll(headers);
+		}
 		return this;
 	}
 
@@ -88,6 +142,7 @@ public class Request {
 	}
 
 	public Request setContentType(String contentType) {
+		detachFromTemplate();
 		this.contentType = contentType;
 		return this;
 	}
@@ -127,6 +182,53 @@ public class Request {
 		return response;
 	}
 
+	/**
+	 * @return how long, in milliseconds, to wait for a connection, or -1 to use the client's connect
+	 *         timeout.
+	 */
+	public long getConnectTimeout() {
+		return connectTimeout;
+	}
+
+	public Request setConnectTimeout(long connectTimeout) {
+		this.connectTimeout = connectTimeout;
+		return this;
+	}
+
+	/**
+	 * @return how long, in milliseconds, the connection may go without sending or receiving anything
+	 *         once the request has one, or -1 to use the client's read timeout. 0 waits forever.
+	 */
+	public long getReadTimeout() {
+		return readTimeout;
+	}
+
+	public Request setReadTimeout(long readTimeout) {
+		this.readTimeout = readTimeout;
+		return this;
+	}
+
+	/**
+	 * @return how long, in milliseconds, the whole exchange may take from the moment the request is
+	 *         sent, or -1 to use the client's request timeout. 0 waits forever.
+	 */
+	public long getRequestTimeout() {
+		return requestTimeout;
+	}
+
+	public Request setRequestTimeout(long requestTimeout) {
+		this.requestTimeout = requestTimeout;
+		return this;
+	}
+
+	/**
+	 * @return the template whose headers this request is sent with, or <code>null</code> if it wasn't
+	 *         made from one or has headers of its own since.
+	 */
+	RequestTemplate getTemplate() {
+		return template;
+	}
+
 	HttpRequestPacket getRequest() {
 		return request;
 	}
@@ -136,6 +238,251 @@ public class Request {
 		return this;
 	}
 
+	Connection getConnection() {
+		return connection;
+	}
+
+	/**
+	 * Write the request, a {@link Buffer} of its body or {@link #FINISH} to its connection, or hold on
+	 * to it until the request has one.
+	 *
+	 * @return <code>true</code> if this was the first write of a request that doesn't have a
+	 *         connection yet, in which case the caller has to lease one.
+	 */
+	boolean write(Object message) throws IOException {
+		return write(message, null);
+	}
+
+	/**
+	 * Write a message, telling <code>handler</code>, if there is one, once it's been written or
+	 * dropped.
+	 *
+	 * @see #write(Object)
+	 */
+	@SuppressWarnings({"unchecked"})
+	boolean write(Object message, CompletionHandler<WriteResult> handler) throws IOException {
+		Connection c;
+		writeLock.lock();
+		try {
+			c = connection;
+			if (null == c) {
+				if (null != connectFailure) {
+					IOException failure = new IOException("Couldn't get a connection for " + url, connectFailure);
+					dispose(message);
+					if (null != handler) {
+						handler.failed(failure);
+					}
+					throw failure;
+				}
+				if (null == pendingWrites) {
+					pendingWrites = new LinkedList<Object>();
+				}
+				pendingWrites.add(null != handler ? new PendingWrite(message, handler) : message);
+				boolean lease = !leasing;
+				leasing = true;
+				return lease;
+			}
+		} finally {
+			writeLock.unlock();
+		}
+		lastActivity = System.nanoTime();
+		c.write(prepare(message), handler);
+		return false;
+	}
+
+	/**
+	 * Bind the request to the connection it was leased and write everything that was waiting for it,
+	 * in order.
+	 *
+	 * @return <code>false</code> if the request failed while it was waiting, in which case it has no
+	 *         use for the connection.
+	 */
+	@SuppressWarnings({"unchecked"})
+	boolean connected(Connection connection) throws IOException {
+		lastActivity = System.nanoTime();
+		writeLock.lock();
+		try {
+			if (null != connectFailure) {
+				// Gave up waiting for it
+				return false;
+			}
+			this.connection = connection;
+			if (null != pendingWrites) {
+				Object message;
+				while (null != (message = pendingWrites.poll())) {
+					if (message instanceof PendingWrite) {
+						PendingWrite pw = (PendingWrite) message;
+						connection.write(prepare(pw.message), pw.handler);
+					} else {
+						connection.write(prepare(message));
+					}
+				}
+				pendingWrites = null;
+			}
+			return true;
+		} finally {
+			writeLock.unlock();
+		}
+	}
+
+	/**
+	 * Drop everything that was waiting for a connection. Later writes fail with <code>failure</code>.
+	 */
+	void connectFailed(Throwable failure) {
+		writeLock.lock();
+		try {
+			connectFailure = failure;
+			LinkedList<Object> dropped = pendingWrites;
+			// Let go of the queue first, since a failed write's handler may well abort the request and so
+			// come back here
+			pendingWrites = null;
+			if (null != dropped) {
+				for (Object message : dropped) {
+					if (message instanceof PendingWrite) {
+						dispose(((PendingWrite) message).message);
+						((PendingWrite) message).handler.failed(failure);
+					} else {
+						dispose(message);
+					}
+				}
+			}
+		} finally {
+			writeLock.unlock();
+		}
+	}
+
+	/**
+	 * Start the clocks on the request's read and total deadlines. Both are stopped by the response
+	 * completing, one way or another.
+	 *
+	 * @param readTimeout    milliseconds, or 0 for none.
+	 * @param requestTimeout milliseconds, or 0 for none.
+	 */
+	void startDeadlines(long readTimeout, long requestTimeout) {
+		HashedWheelTimer timer = HashedWheelTimer.DEFAULT;
+		if (requestTimeout > 0) {
+			requestDeadline = timer.schedule(new Deadline(RequestTimeoutException.Kind.REQUEST, requestTimeout), requestTimeout, TimeUnit.MILLISECONDS);
+		}
+		if (readTimeout > 0) {
+			lastActivity = System.nanoTime();
+			readDeadline = timer.schedule(new Deadline(RequestTimeoutException.Kind.READ, readTimeout), readTimeout, TimeUnit.MILLISECONDS);
+		}
+		if (response.isDone()) {
+			// Beaten to it, by a failed lease most likely
+			cancelDeadlines();
+		}
+	}
+
+	void cancelDeadlines() {
+		HashedWheelTimer.Timeout t = requestDeadline;
+		if (null != t) {
+			t.cancel();
+		}
+		t = readDeadline;
+		if (null != t) {
+			t.cancel();
+		}
+	}
+
+	/**
+	 * Note that something was read from the connection, which puts off the read deadline.
+	 */
+	void readActivity() {
+		lastActivity = System.nanoTime();
+	}
+
+	/**
+	 * Fail the response with <code>failure</code> and give up on the exchange. The connection is closed
+	 * since whatever is left of the response would still be on its way, unless it's HTTP/2, where just
+	 * the request's stream is reset; a lease that hasn't come through yet hands its connection back to
+	 * the pool unused.
+	 */
+	void abort(Throwable failure) {
+		if (response.isDone()) {
+			return;
+		}
+		if (log.isDebugEnabled())
+			log.debug(failure.getMessage());
+		Connection c;
+		writeLock.lock();
+		try {
+			c = connection;
+		} finally {
+			writeLock.unlock();
+		}
+		if (null == c) {
+			connectFailed(failure);
+		}
+		response.getFuture().failure(failure);
+		if (null != c) {
+			Http2Session session = Http2Session.of(c);
+			if (null != session) {
+				// Only this request's stream has to go
+				session.cancel(this);
+			} else {
+				ConnectionPool.release(c, false);
+			}
+		}
+	}
+
+	/**
+	 * @return whether the whole request can be sent again: an idempotent method whose body, if it has
+	 *         one, is in memory.
+	 */
+	boolean isRepeatable() {
+		return method.isIdempotent()
+				&& !(this instanceof Upload)
+				&& null == readableByteChannel
+				&& null == request
+				&& null == connection;
+	}
+
+	/**
+	 * @return a copy of this request, with a response of its own, to send in its place.
+	 */
+	Request newAttempt() {
+		Request attempt = new Request(url, method, headers);
+		attempt.client = client;
+		attempt.contentType = contentType;
+		attempt.contentLength = contentLength;
+		attempt.body = (null != body ? body.duplicate() : null);
+		attempt.chunked = chunked;
+		attempt.connectTimeout = connectTimeout;
+		attempt.readTimeout = readTimeout;
+		attempt.requestTimeout = requestTimeout;
+		if (null != template) {
+			attempt.headers = headers;
+			attempt.template = template;
+		}
+		return attempt;
+	}
+
+	/**
+	 * Give the request a copy of the template's headers that it can change.
+	 */
+	private void detachFromTemplate() {
+		if (null != template) {
+			headers = new HashMap<String, String>(headers);
+			template = null;
+		}
+	}
+
+	private Object prepare(Object message) {
+		if (FINISH == message) {
+			complete = true;
+			return this;
+		} else if (message instanceof Buffer) {
+			return request.httpContentBuilder().content((Buffer) message).build();
+		}
+		return message;
+	}
+
+	private static void dispose(Object message) {
+		if (message instanceof Buffer) {
+			((Buffer) message).tryDispose();
+		}
+	}
+
 	Request setComplete(boolean complete) {
 		this.complete = complete;
 		return this;
@@ -158,7 +505,7 @@ public class Request {
 		return client.send(this);
 	}
 
-	public WritableByteChannel start() throws IOException {
+	public RequestByteChannel start() throws IOException {
 		return client.start(this);
 	}
 
@@ -166,6 +513,57 @@ public class Request {
 		return client.complete(this);
 	}
 
+	/**
+	 * Times out the request when it fires, unless it's a read deadline and there's been activity since
+	 * it was set, in which case it's put off until the read timeout has passed since the last of it.
+	 * A response whose reading the caller has paused isn't timed out for the server being quiet.
+	 */
+	private class Deadline implements Runnable {
+		private final RequestTimeoutException.Kind kind;
+		private final long timeout;
+
+		private Deadline(RequestTimeoutException.Kind kind, long timeout) {
+			this.kind = kind;
+			this.timeout = timeout;
+		}
+
+		@Override public void run() {
+			if (response.isDone()) {
+				return;
+			}
+			if (kind == RequestTimeoutException.Kind.READ) {
+				long remaining = TimeUnit.MILLISECONDS.toNanos(timeout) - (System.nanoTime() - lastActivity);
+				if (remaining > 0 || response.isPaused()) {
+					readDeadline = HashedWheelTimer.DEFAULT.schedule(this, (remaining > 0 ? remaining : TimeUnit.MILLISECONDS.toNanos(timeout)), TimeUnit.NANOSECONDS);
+					if (response.isDone()) {
+						readDeadline.cancel();
+					}
+					return;
+				}
+				abort(new RequestTimeoutException("Nothing read from " + url + " for " + timeout + "ms", kind));
+			} else {
+				abort(new RequestTimeoutException("No response from " + url + " within " + timeout + "ms", kind));
+			}
+		}
+	}
+
+	private static int getPort(URL url) {
+		return (url.getPort() > 0 ? url.getPort() : url.getDefaultPort());
+	}
+
+	/**
+	 * A write waiting for a connection whose writer wants to know when it's gone out.
+	 */
+	private static class PendingWrite {
+		private final Object message;
+		private final CompletionHandler<WriteResult> handler;
+
+		private PendingWrite(Object message, CompletionHandler<WriteResult> handler) {
+			this.message = message;
+			this.handler = handler;
+		}
+	}
+
 	@Override public String toString() {
 		return "Request {" +
 				"\r\n\turl=" + url +
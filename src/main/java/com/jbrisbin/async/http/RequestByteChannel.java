@@ -0,0 +1,261 @@
+package com.jbrisbin.async.http;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.WritableByteChannel;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.glassfish.grizzly.Buffer;
+import org.glassfish.grizzly.EmptyCompletionHandler;
+import org.glassfish.grizzly.WriteResult;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Streams the body of a request started with {@link AsyncHttpClient#start(Request)}. Each write is
+ * copied and queued for the connection, which sends it as a chunk of its own if the request is
+ * chunked. Finish the request with {@link AsyncHttpClient#complete(Request)}.
+ * <p>
+ * Only so many bytes, {@link AsyncHttpClient#getMaxQueuedBytes()}, may be waiting to go out at
+ * once, so a producer that's faster than the connection can't fill the heap. A write never queues
+ * more than there's room for. A blocking channel, the default, makes the writer wait for the
+ * connection to catch up until all of it is queued. A non-blocking one takes what fits, which may be
+ * nothing, returns how much that was, and runs its {@link #setWritableListener(Runnable) writable
+ * listener} once there's room again. Don't block in a write on one of the transport's own threads,
+ * since they're what drains the queue.
+ * <p>
+ * If a chunk can't be written the request is aborted, and every write after that throws.
+ *
+ * @author Jon Brisbin <jon@jbrisbin.com>
+ */
+public class RequestByteChannel implements WritableByteChannel {
+
+	private static final Logger log = LoggerFactory.getLogger(RequestByteChannel.class);
+	/**
+	 * How often a blocked writer checks whether the request has failed underneath it.
+	 */
+	private static final long RECHECK_MILLIS = 100;
+
+	private final AsyncHttpClient client;
+	private final Request request;
+	private final long maxQueuedBytes;
+	private final AtomicLong queuedBytes = new AtomicLong(0);
+	private final ReentrantLock lock = new ReentrantLock();
+	private final Condition drained = lock.newCondition();
+	private volatile boolean blocking = true;
+	private volatile boolean open = true;
+	private volatile Runnable writableListener = null;
+
+	RequestByteChannel(AsyncHttpClient client, Request request, long maxQueuedBytes) {
+		this.client = client;
+		this.request = request;
+		this.maxQueuedBytes = maxQueuedBytes;
+	}
+
+	public Request getRequest() {
+		return request;
+	}
+
+	public boolean isBlocking() {
+		return blocking;
+	}
+
+	/**
+	 * @param blocking whether a write waits for room in the write queue, or writes nothing if there
+	 *                 isn't any.
+	 */
+	public RequestByteChannel setBlocking(boolean blocking) {
+		this.blocking = blocking;
+		return this;
+	}
+
+	/**
+	 * Run <code>listener</code> each time the bytes waiting to be written drop back under the limit,
+	 * on whichever thread finished the write that made room. A non-blocking producer can pick up where
+	 * it left off from there.
+	 */
+	public RequestByteChannel setWritableListener(Runnable listener) {
+		this.writableListener = listener;
+		return this;
+	}
+
+	/**
+	 * @return whether a write would be taken right away.
+	 */
+	public boolean isWritable() {
+		return queuedBytes.get() < maxQueuedBytes;
+	}
+
+	/**
+	 * @return how many bytes written to this channel haven't gone out yet.
+	 */
+	public long getQueuedBytes() {
+		return queuedBytes.get();
+	}
+
+	/**
+	 * Queue as much of <code>src</code> as there's room for. A blocking channel waits for room until
+	 * all of it is queued; a non-blocking one returns as soon as it runs out, having taken part of
+	 * <code>src</code> or none of it.
+	 *
+	 * @throws IOException if the channel is closed or the request has already failed.
+	 */
+	@Override public int write(ByteBuffer src) throws IOException {
+		if (!open) {
+			throw new ClosedChannelException();
+		}
+		int written = 0;
+		while (src.hasRemaining()) {
+			assertNotDone();
+			int size = reserve(src.remaining());
+			if (size == 0) {
+				if (!blocking) {
+					break;
+				}
+				awaitWritable();
+				continue;
+			}
+			// The caller is free to reuse its buffer once this returns, so the bytes are copied into a
+			// pooled buffer that Grizzly disposes of, and so returns to the pool, once it's been written.
+			ByteBuffer slice = src.duplicate();
+			slice.limit(slice.position() + size);
+			Buffer chunk = client.getTransport().getBufferPool().copyOf(slice);
+			src.position(src.position() + size);
+			written += size;
+			client.write(request, chunk, new Written(size));
+		}
+		return written;
+	}
+
+	@Override public boolean isOpen() {
+		return open;
+	}
+
+	/**
+	 * Stop taking writes. Doesn't finish the request; that's up to {@link
+	 * AsyncHttpClient#complete(Request)}.
+	 */
+	@Override public void close() throws IOException {
+		open = false;
+	}
+
+	private void awaitWritable() throws IOException {
+		lock.lock();
+		try {
+			while (!isWritable()) {
+				assertNotDone();
+				drained.await(RECHECK_MILLIS, TimeUnit.MILLISECONDS);
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted waiting to write the body of " + request.getUrl());
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	private void assertNotDone() throws IOException {
+		Response response = request.getResponse();
+		if (response.isDone()) {
+			// Failed, timed out or cancelled, or the server answered without waiting for the whole body
+			Throwable cause = null;
+			try {
+				response.get();
+			} catch (ExecutionException e) {
+				cause = e.getCause();
+			} catch (CancellationException e) {
+				cause = e;
+			} catch (InterruptedException e) {
+				// It's done, so get() doesn't wait
+				Thread.currentThread().interrupt();
+			}
+			String message = "The response to " + request.getMethod() + " " + request.getUrl() + " is already done";
+			throw (null != cause ? new IOException(message + ": " + cause.getMessage(), cause) : new IOException(message));
+		}
+	}
+
+	/**
+	 * Claim room in the write queue for up to <code>wanted</code> bytes. Never more than the limit,
+	 * which is already no more than the transport's own, is claimed in all, so the connection's write
+	 * queue can't refuse a write for being too full.
+	 *
+	 * @return how many bytes were claimed, 0 if the queue is full.
+	 */
+	private int reserve(int wanted) {
+		while (true) {
+			long queued = queuedBytes.get();
+			long room = maxQueuedBytes - queued;
+			if (room <= 0) {
+				return 0;
+			}
+			int size = (int) Math.min(wanted, room);
+			if (queuedBytes.compareAndSet(queued, queued + size)) {
+				return size;
+			}
+		}
+	}
+
+	private void dequeued(long size) {
+		long queued = queuedBytes.addAndGet(-size);
+		if (queued >= maxQueuedBytes || queued + size < maxQueuedBytes) {
+			// Only crossing back under the limit is worth telling anyone about
+			return;
+		}
+		signalWriters();
+		Runnable listener = writableListener;
+		if (null != listener) {
+			try {
+				listener.run();
+			} catch (RuntimeException e) {
+				log.error("Writable listener failed: " + e.getMessage(), e);
+			}
+		}
+	}
+
+	private void signalWriters() {
+		lock.lock();
+		try {
+			drained.signalAll();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * A chunk of the body that didn't make it out leaves a hole in it, so the whole request has to go.
+	 * Failing the response is what makes later writes, and any writer still waiting for room, throw.
+	 */
+	private void writeFailed(long size, Throwable failure) {
+		request.abort(failure);
+		dequeued(size);
+		signalWriters();
+	}
+
+	private class Written extends EmptyCompletionHandler<WriteResult> {
+		private final long size;
+
+		private Written(long size) {
+			this.size = size;
+		}
+
+		@Override public void completed(WriteResult result) {
+			dequeued(size);
+		}
+
+		@Override public void failed(Throwable throwable) {
+			writeFailed(size, throwable);
+		}
+
+		@Override public void cancelled() {
+			writeFailed(size, new CancellationException("Writing the body of " + request.getUrl() + " was cancelled"));
+		}
+	}
+
+}
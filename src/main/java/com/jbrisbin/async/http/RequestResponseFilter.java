@@ -2,8 +2,11 @@ package com.jbrisbin.async.http;
 
 import java.io.IOException;
 import java.util.Map;
-import java.util.Stack;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
 
+import org.glassfish.grizzly.Buffer;
+import org.glassfish.grizzly.Connection;
 import org.glassfish.grizzly.Grizzly;
 import org.glassfish.grizzly.attributes.Attribute;
 import org.glassfish.grizzly.filterchain.BaseFilter;
@@ -26,9 +29,36 @@ import org.slf4j.LoggerFactory;
 public class RequestResponseFilter extends BaseFilter {
 
 	private static final Logger log = LoggerFactory.getLogger(RequestResponseFilter.class);
-	private static final Attribute<Request> PENDING_REQUEST = Grizzly.DEFAULT_ATTRIBUTE_BUILDER.createAttribute("pending-request");
+	private static final Attribute<Queue<Request>> IN_FLIGHT = Grizzly.DEFAULT_ATTRIBUTE_BUILDER.createAttribute("in-flight-requests");
+	private static final String ACCEPT_ENCODING = "Accept-Encoding";
+	private static final String CONTENT_ENCODING = "Content-Encoding";
+	static final String COMPRESSED_ENCODINGS = CompressionContentEncoding.GZIP + ", " + CompressionContentEncoding.DEFLATE;
 
-	private Stack<Request> pendingRequests = new Stack<Request>();
+	private final HttpClientTransport transport;
+
+	public RequestResponseFilter() {
+		this(null);
+	}
+
+	/**
+	 * @param transport the transport whose {@link HttpClientMetrics} requests are reported to.
+	 */
+	public RequestResponseFilter(HttpClientTransport transport) {
+		this.transport = transport;
+	}
+
+	/**
+	 * Register a request as in flight on a connection. Responses are matched to requests in the order
+	 * they were registered, so requests have to be registered in the order they're written.
+	 */
+	static void enqueue(Connection connection, Request request) {
+		Queue<Request> inFlight = IN_FLIGHT.get(connection);
+		if (null == inFlight) {
+			inFlight = new ConcurrentLinkedQueue<Request>();
+			IN_FLIGHT.set(connection, inFlight);
+		}
+		inFlight.offer(request);
+	}
 
 	@Override public NextAction handleRead(FilterChainContext ctx) throws IOException {
 		HttpContent content = ctx.getMessage();
@@ -36,105 +66,107 @@ public class RequestResponseFilter extends BaseFilter {
 		HttpStatus status = ((HttpResponsePacket) header).getHttpStatus();
 		int statusCode = status.getStatusCode();
 
-		Request request = PENDING_REQUEST.get(ctx.getAttributes());
+		Queue<Request> inFlight = IN_FLIGHT.get(ctx.getConnection());
+		Request request = (null != inFlight ? inFlight.peek() : null);
 		if (null == request) {
-			synchronized (pendingRequests) {
-				if (!pendingRequests.empty()) {
-					request = pendingRequests.peek();
-					PENDING_REQUEST.set(ctx.getAttributes(), request);
-				} else {
-					log.error("Response from server without matching request: " + content);
-					throw new IllegalStateException(new String(status.getReasonPhraseBytes()));
-				}
+			if (!ctx.getConnection().isOpen()) {
+				// The rest of a response that was given up on, read before the connection closed
+				if (log.isDebugEnabled())
+					log.debug("Dropping response on closed connection: " + content);
+				return ctx.getStopAction();
 			}
+			log.error("Response from server without matching request: " + content);
+			throw new IllegalStateException(new String(status.getReasonPhraseBytes()));
 		}
+		request.readActivity();
 		Response response = request.getResponse();
-		response.setStatus(statusCode);
-		Map<String, String> respHeaders = response.getHeaders();
-		for (String name : header.getHeaders().names()) {
-			String val = header.getHeader(name);
-			respHeaders.put(name, val);
+		if (response.isResumedRead(content)) {
+			// This chunk was delivered before reading was paused
+			return ctx.getStopAction();
+		}
+		if (!response.isHeadersReceived()) {
+			// Only the first chunk of a response brings its headers
+			response.setStatus(statusCode);
+			response.getHeaders().read(header.getHeaders());
+			response.headersReceived();
+		}
+		HttpClientMetrics metrics = getMetrics();
+		if (null != metrics && null != content.getContent()) {
+			metrics.bytesReceived(content.getContent().remaining());
 		}
 
-		if (null != content.getContent() && statusCode >= 200 && statusCode < 300) {
-			response.addContent(content.getContent().toByteBuffer(), content.isLast());
-		} else {
-			switch (statusCode) {
-				case 400:
-				case 403:
-				case 404:
-				case 500:
-					response.getFuture().failure(new HttpException(new String(status.getReasonPhraseBytes()), statusCode));
-					break;
+		if (content.isLast()) {
+			inFlight.poll();
+			boolean truncated = CompressionContentEncoding.isTruncated(header);
+			// Hand the connection back before completing the response so a caller that sends its next
+			// request from a callback gets to reuse it. Pipelined connections stay leased until the last
+			// response is in.
+			boolean keepAlive = !truncated && request.isComplete() && isKeepAlive(header);
+			if (!keepAlive || inFlight.isEmpty()) {
+				ConnectionPool.release(ctx.getConnection(), keepAlive);
+			}
+			if (truncated && statusCode < 400) {
+				// An error fails the response for its status, whatever's left of its body
+				if (null != content.getContent()) {
+					content.getContent().tryDispose();
+				}
+				response.getFuture().failure(new IOException("The compressed body of " + request.getUrl() + " ended before all of it was read"));
+				return ctx.getStopAction();
 			}
 		}
 
-		if (content.isLast()) {
-			pendingRequests.pop();
-			PENDING_REQUEST.remove(ctx.getAttributes());
-			return ctx.getStopAction();
-		} else {
-			return ctx.getStopAction(content);
+		complete(response, statusCode, content.getContent(), content.isLast());
+
+		if (!content.isLast() && response.suspendRead(ctx, content)) {
+			return ctx.getSuspendAction();
+		}
+		return ctx.getStopAction();
+	}
+
+	/**
+	 * Hand a response a chunk of its body, or fail it with an {@link HttpException} if its status is an
+	 * error. A redirect or <code>304 Not Modified</code> completes like any other response, for the
+	 * caller to act on. Shared by HTTP/1.1 and {@link Http2Session}.
+	 */
+	static void complete(Response response, int statusCode, Buffer content, boolean last) throws IOException {
+		if (statusCode >= 200 && statusCode < 400) {
+			response.addContent(content, last);
+		} else if (statusCode >= 400) {
+			HttpStatus status = HttpStatus.getHttpStatus(statusCode);
+			response.getFuture().failure(new HttpException(new String(status.getReasonPhraseBytes()), statusCode));
 		}
 	}
 
 	@SuppressWarnings({"unchecked"})
 	@Override public NextAction handleWrite(FilterChainContext ctx) throws IOException {
 		Object o = ctx.getMessage();
+		HttpClientMetrics metrics = getMetrics();
 		if (o instanceof Request) {
 			Request request = (Request) o;
 			if (null != request) {
 				if (null == request.getRequest()) {
 					// Start this request by sending the headers
-					String urlPath = request.getUrl().getPath();
-					if (null != request.getUrl().getQuery()) {
-						urlPath += "?" + request.getUrl().getQuery();
-					}
-					HttpRequestPacket.Builder rb = HttpRequestPacket.builder()
-							.protocol(Protocol.HTTP_1_1)
-							.uri(urlPath);
-					// Method
-					switch (request.getMethod()) {
-						case HEAD:
-							rb.method(Method.HEAD);
-							request.setComplete(true);
-							break;
-						case GET:
-							rb.method(Method.GET);
-							request.setComplete(true);
-							break;
-						case PUT:
-							rb.method(Method.PUT);
-							break;
-						case POST:
-							rb.method(Method.POST);
-							break;
-						case DELETE:
-							rb.method(Method.DELETE);
-							request.setComplete(true);
-							break;
-					}
-					// Custom headers
-					Map<String, String> headers = request.getHeaders();
-					for (Map.Entry<String, String> hentry : headers.entrySet()) {
-						rb.header(hentry.getKey(), hentry.getValue());
-					}
-					// Content-Type
-					if (null != request.getContentType()) {
-						rb.contentType(request.getContentType());
-					}
-					// Content-Length
-					if (request.isChunked()) {
-						headers.put("Transfer-Encoding", "chunked");
+					boolean acceptCompressed = (null != transport && transport.isAcceptCompressed());
+					RequestTemplate template = request.getTemplate();
+					HttpRequestPacket requestp;
+					if (null != template) {
+						// The codec adds the template's headers, already encoded, to the request line
+						requestp = template.createRequestPacket(request, acceptCompressed);
 					} else {
-						rb.contentLength(request.getContentLength());
+						requestp = createRequestPacket(request);
+						if (acceptCompressed && !hasHeader(request, ACCEPT_ENCODING)) {
+							requestp.addHeader(ACCEPT_ENCODING, COMPRESSED_ENCODINGS);
+						}
+					}
+					if (null != transport && shouldCompress(request, transport.getCompressionThreshold())) {
+						CompressionContentEncoding.compress(requestp);
 					}
-
-					// Write request
-					HttpRequestPacket requestp = rb.build();
 					if (log.isDebugEnabled())
-						log.debug("Writing " + request.getMethod() + " " + urlPath);
-					pendingRequests.push(request);
+						log.debug("Writing " + request.getMethod() + " " + requestp.getRequestURI());
+					if (null != metrics) {
+						// Before the write, which a fast enough response could otherwise beat
+						request.getResponse().started(metrics);
+					}
 					ctx.write(requestp);
 
 					request.setRequest(requestp);
@@ -142,6 +174,9 @@ public class RequestResponseFilter extends BaseFilter {
 
 				// Body
 				if (null != request.getBody()) {
+					if (null != metrics) {
+						metrics.bytesSent(request.getBody().remaining());
+					}
 					HttpContent hc = request.getRequest().httpContentBuilder()
 							.content(new ByteBufferWrapper(request.getBody()))
 							.build();
@@ -152,17 +187,121 @@ public class RequestResponseFilter extends BaseFilter {
 				}
 
 				if (request.isComplete()) {
-					if (log.isDebugEnabled())
-						log.debug("Finishing request: " + request);
-					ctx.write(request.getRequest().httpTrailerBuilder().build());
+					if (request instanceof Upload) {
+						// The file goes out after any body chunks; the writer finishes the request itself
+						new FileUploadWriter(ctx.getConnection(), (Upload) request).start();
+					} else {
+						if (log.isDebugEnabled())
+							log.debug("Finishing request: " + request);
+						ctx.write(request.getRequest().httpTrailerBuilder().build());
+					}
 				}
 				ctx.setMessage(null);
 			}
 
 			return ctx.getStopAction();
 		} else {
+			// Body chunks written straight to the connection, by RequestByteChannel or FileUploadWriter
+			if (null != metrics && o instanceof HttpContent && null != ((HttpContent) o).getContent()) {
+				metrics.bytesSent(((HttpContent) o).getContent().remaining());
+			}
 			return ctx.getInvokeAction();
 		}
 	}
 
+	/**
+	 * Build the request line and headers for a request. Marks requests that never have a body as
+	 * complete.
+	 */
+	static HttpRequestPacket createRequestPacket(Request request) {
+		String urlPath = request.getUrl().getPath();
+		if (null != request.getUrl().getQuery()) {
+			urlPath += "?" + request.getUrl().getQuery();
+		}
+		HttpRequestPacket.Builder rb = HttpRequestPacket.builder()
+				.protocol(Protocol.HTTP_1_1)
+				.uri(urlPath);
+		// Method
+		switch (request.getMethod()) {
+			case HEAD:
+				rb.method(Method.HEAD);
+				request.setComplete(true);
+				break;
+			case GET:
+				rb.method(Method.GET);
+				request.setComplete(true);
+				break;
+			case PUT:
+				rb.method(Method.PUT);
+				break;
+			case POST:
+				rb.method(Method.POST);
+				break;
+			case DELETE:
+				rb.method(Method.DELETE);
+				request.setComplete(true);
+				break;
+		}
+		// Custom headers
+		Map<String, String> headers = request.getHeaders();
+		for (Map.Entry<String, String> hentry : headers.entrySet()) {
+			rb.header(hentry.getKey(), hentry.getValue());
+		}
+		// Content-Type
+		if (null != request.getContentType()) {
+			rb.contentType(request.getContentType());
+		}
+		// Content-Length
+		if (request.isChunked()) {
+			rb.chunked(true);
+		} else {
+			rb.contentLength(request.getContentLength());
+		}
+		return rb.build();
+	}
+
+	@Override public NextAction handleClose(FilterChainContext ctx) throws IOException {
+		Queue<Request> inFlight = IN_FLIGHT.remove(ctx.getConnection());
+		if (null != inFlight) {
+			Request request;
+			while (null != (request = inFlight.poll())) {
+				request.getResponse().getFuture().failure(new IOException("Connection closed before the response was complete"));
+			}
+		}
+		return ctx.getInvokeAction();
+	}
+
+	private HttpClientMetrics getMetrics() {
+		return (null != transport ? transport.getMetrics() : null);
+	}
+
+	private static boolean shouldCompress(Request request, long threshold) {
+		if (threshold < 0 || request instanceof Upload || hasHeader(request, CONTENT_ENCODING)) {
+			// A file goes out as is, and a body that's already encoded stays that way
+			return false;
+		}
+		Long contentLength = request.getContentLength();
+		return request.isChunked() || (null != contentLength && contentLength >= threshold);
+	}
+
+	private static boolean hasHeader(Request request, String name) {
+		if (null != request.getHeaders()) {
+			for (String key : request.getHeaders().keySet()) {
+				if (name.equalsIgnoreCase(key)) {
+					return true;
+				}
+			}
+		}
+		return false;
+	}
+
+	private static boolean isKeepAlive(HttpHeader header) {
+		String connection = header.getHeader(Http11Headers.CONNECTION);
+		if (Protocol.HTTP_1_1 == header.getProtocol()) {
+			return !"close".equalsIgnoreCase(connection);
+		} else {
+			return "keep-alive".equalsIgnoreCase(connection);
+		}
+	}
+
 }
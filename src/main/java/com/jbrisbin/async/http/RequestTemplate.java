@@ -0,0 +1,165 @@
+package com.jbrisbin.async.http;
+
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.glassfish.grizzly.Grizzly;
+import org.glassfish.grizzly.attributes.Attribute;
+import org.glassfish.grizzly.http.HttpHeader;
+import org.glassfish.grizzly.http.HttpRequestPacket;
+import org.glassfish.grizzly.http.Method;
+import org.glassfish.grizzly.http.Protocol;
+
+/**
+ * Requests to one client that differ only in their path and query, and body. The method and the
+ * headers that never change, <code>Host</code> among them, are encoded once when the template is
+ * made, and every request made from it sends those same bytes. Only the request line and the body's
+ * length are encoded per request.
+ * <p>
+ * A request made from a template shares the template's headers, which can't be changed in place.
+ * Adding headers with {@link Request#setHeaders(Map)}, or changing its content type, gives the
+ * request headers of its own, and it's sent like any other. Over HTTP/2 the headers are encoded by
+ * the connection as usual.
+ *
+ * @author Jon Brisbin <jon@jbrisbin.com>
+ * @see AsyncHttpClient#template(Request.Method, Map)
+ */
+public class RequestTemplate {
+
+	private static final Charset ISO_8859_1 = Charset.forName("ISO-8859-1");
+	private static final Attribute<byte[]> ENCODED_HEADERS = Grizzly.DEFAULT_ATTRIBUTE_BUILDER.createAttribute("template-encoded-headers");
+	private static final String HOST = "Host";
+	private static final String ACCEPT_ENCODING = "Accept-Encoding";
+
+	private final AsyncHttpClient client;
+	private final Request.Method method;
+	private final Method httpMethod;
+	private final Map<String, String> headers;
+	private final String contentType;
+	private final byte[] encodedHeaders;
+	private final byte[] encodedHeadersAcceptingCompressed;
+
+	RequestTemplate(AsyncHttpClient client, Request.Method method, Map<String, String> headers, String contentType) {
+		this.client = client;
+		this.method = method;
+		this.httpMethod = httpMethod(method);
+		this.headers = Collections.unmodifiableMap(null != headers ? new HashMap<String, String>(headers) : new HashMap<String, String>());
+		this.contentType = contentType;
+
+		StringBuilder fixed = new StringBuilder();
+		if (null == ResponseCache.header(this.headers, HOST)) {
+			fixed.append(HOST).append(": ").append(client.getHost());
+			if (80 != client.getPort()) {
+				fixed.append(':').append(client.getPort());
+			}
+			fixed.append("\r\n");
+		}
+		for (Map.Entry<String, String> h : this.headers.entrySet()) {
+			fixed.append(h.getKey()).append(": ").append(h.getValue()).append("\r\n");
+		}
+		if (hasBody() && null != contentType) {
+			fixed.append(Http11Headers.CONTENT_TYPE).append(": ").append(contentType).append("\r\n");
+		}
+		this.encodedHeaders = (fixed + "\r\n").getBytes(ISO_8859_1);
+		if (null == ResponseCache.header(this.headers, ACCEPT_ENCODING)) {
+			fixed.append(ACCEPT_ENCODING).append(": ").append(RequestResponseFilter.COMPRESSED_ENCODINGS).append("\r\n");
+		}
+		this.encodedHeadersAcceptingCompressed = (fixed + "\r\n").getBytes(ISO_8859_1);
+	}
+
+	public AsyncHttpClient getClient() {
+		return client;
+	}
+
+	public Request.Method getMethod() {
+		return method;
+	}
+
+	/**
+	 * @return the headers every request made from this template is sent with, besides
+	 *         <code>Host</code>, <code>Content-Type</code> and the body's length.
+	 */
+	public Map<String, String> getHeaders() {
+		return headers;
+	}
+
+	public String getContentType() {
+		return contentType;
+	}
+
+	/**
+	 * @param uri the path and query of the request, starting with <code>/</code>.
+	 */
+	public Request newRequest(String uri) throws MalformedURLException {
+		return new Request(new URL("http", client.getHost(), client.getPort(), uri), this);
+	}
+
+	/**
+	 * @param uri  the path and query of the request, starting with <code>/</code>.
+	 * @param body the whole body, sent with the template's content type.
+	 */
+	public Request newRequest(String uri, ByteBuffer body) throws MalformedURLException {
+		Request request = newRequest(uri);
+		request.setBody(body);
+		request.setContentLength((long) body.remaining());
+		return request;
+	}
+
+	/**
+	 * Build the part of the request's header that isn't in the template: the request line and the
+	 * length of the body. Marks requests that never have a body as complete.
+	 *
+	 * @param acceptCompressed whether to ask for a compressed response, unless the template already
+	 *                         says what it accepts.
+	 */
+	HttpRequestPacket createRequestPacket(Request request, boolean acceptCompressed) {
+		HttpRequestPacket.Builder rb = HttpRequestPacket.builder()
+				.protocol(Protocol.HTTP_1_1)
+				.method(httpMethod)
+				.uri(request.getUrl().getFile());
+		if (request.isChunked()) {
+			rb.chunked(true);
+		} else {
+			rb.contentLength(request.getContentLength());
+		}
+		if (!hasBody()) {
+			request.setComplete(true);
+		}
+		HttpRequestPacket requestp = rb.build();
+		ENCODED_HEADERS.set(requestp, (acceptCompressed ? encodedHeadersAcceptingCompressed : encodedHeaders));
+		return requestp;
+	}
+
+	/**
+	 * @return the template's headers, ending with the blank line that ends the header, if
+	 *         <code>header</code> is a request made from a template.
+	 */
+	static byte[] encodedHeaders(HttpHeader header) {
+		return ENCODED_HEADERS.get(header);
+	}
+
+	private static Method httpMethod(Request.Method method) {
+		switch (method) {
+			case HEAD:
+				return Method.HEAD;
+			case GET:
+				return Method.GET;
+			case PUT:
+				return Method.PUT;
+			case POST:
+				return Method.POST;
+			default:
+				return Method.DELETE;
+		}
+	}
+
+	private boolean hasBody() {
+		return Request.Method.PUT == method || Request.Method.POST == method;
+	}
+
+}
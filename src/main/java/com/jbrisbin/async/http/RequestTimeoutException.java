@@ -0,0 +1,46 @@
+package com.jbrisbin.async.http;
+
+import java.util.concurrent.TimeoutException;
+
+/**
+ * What a {@link Response} fails with when one of its request's deadlines passes.
+ *
+ * @author Jon Brisbin <jon@jbrisbin.com>
+ */
+public class RequestTimeoutException extends TimeoutException {
+
+	private static final long serialVersionUID = 1L;
+
+	public enum Kind {
+		/**
+		 * No connection could be had within the connect timeout.
+		 */
+		CONNECT,
+		/**
+		 * Nothing was sent or received for longer than the read timeout.
+		 */
+		READ,
+		/**
+		 * The whole exchange took longer than the request timeout.
+		 */
+		REQUEST
+	}
+
+	private final Kind kind;
+
+	public RequestTimeoutException(String s, Kind kind) {
+		super(s);
+		this.kind = kind;
+	}
+
+	public RequestTimeoutException(String s, Throwable throwable, Kind kind) {
+		super(s);
+		initCause(throwable);
+		this.kind = kind;
+	}
+
+	public Kind getKind() {
+		return kind;
+	}
+
+}
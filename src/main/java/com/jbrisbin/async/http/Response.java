@@ -2,57 +2,112 @@ package com.jbrisbin.async.http;
 
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.channels.WritableByteChannel;
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.Collection;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CancellationException;
 import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
 import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 
+import org.glassfish.grizzly.Buffer;
+import org.glassfish.grizzly.Connection;
+import org.glassfish.grizzly.filterchain.FilterChainContext;
+import org.glassfish.grizzly.http.HttpContent;
 import org.glassfish.grizzly.impl.FutureImpl;
 import org.glassfish.grizzly.impl.SafeFutureImpl;
+import org.glassfish.grizzly.memory.ByteBufferArray;
+import org.glassfish.grizzly.nio.NIOConnection;
+import org.glassfish.grizzly.nio.SelectorHandlerTask;
+import org.glassfish.grizzly.nio.SelectorRunner;
+import org.reactivestreams.Publisher;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 /**
  * @author Jon Brisbin <jon@jbrisbin.com>
  */
 public class Response implements Future<ByteBuffer> {
 
+	private static final Logger log = LoggerFactory.getLogger(Response.class);
+	/**
+	 * Takes the place of the callback stack once the response is done, so a callback added after that
+	 * is run right away instead of being pushed.
+	 */
+	private static final CallbackNode COMPLETED = new CallbackNode(null, null);
+
+	private static final int READING = 0;
+	private static final int PAUSING = 1;
+	private static final int SUSPENDING = 2;
+	private static final int SUSPENDED = 3;
+
+	private static final int AGGREGATING = 0;
+	private static final int STREAMING = 1;
+	private static final int AGGREGATED = 2;
+
 	private final Request request;
 	private final FutureImpl<ByteBuffer> future;
-	private ConcurrentLinkedQueue<ResponseCallback> callbacks = new ConcurrentLinkedQueue<ResponseCallback>();
-	private WritableByteChannel writableByteChannel = null;
+	private final AtomicReference<CallbackNode> callbacks = new AtomicReference<CallbackNode>();
+	private volatile Executor callbackExecutor = null;
+	private volatile WritableByteChannel writableByteChannel = null;
 	private int status;
-	private Map<String, String> headers = new HashMap<String, String>();
+	private final ResponseHeaders headers = new ResponseHeaders();
 	private String contentType;
 	private Long contentLength = 0L;
-	private List<ByteBuffer> body = new ArrayList<ByteBuffer>();
-	private final String writeMutex = "write";
+	/*
+	 * The body is only ever appended to by the thread reading the response, one chunk at a time, so
+	 * the chunk list needs no lock. The only other thread that cares is one setting a channel to write
+	 * the body to, which agrees with the reader on who writes what through bodyState.
+	 */
+	private Chunk firstChunk = null;
+	private Chunk lastChunk = null;
+	private final AtomicInteger bodyState = new AtomicInteger(AGGREGATING);
+	private volatile ByteBuffer aggregated = null;
+	private ResponseConsumer consumer = null;
+	private boolean headersReceived = false;
+	private final AtomicInteger readState = new AtomicInteger(READING);
+	private FilterChainContext suspendedContext = null;
+	private HttpContent suspendedContent = null;
+	private HttpContent resumedContent = null;
+	private volatile HttpClientMetrics metrics = null;
+	private long startNanos = 0;
+	private Throwable failureCause = null;
+	private volatile Runnable doneListener = null;
+	private volatile Runnable resumeListener = null;
 
 	Response(Request request) {
 		this.request = request;
 		future = new SafeFutureImpl<ByteBuffer>() {
 			@Override public void failure(Throwable failure) {
+				if (isDone()) {
+					// Timed out and then failed by the connection closing, say
+					return;
+				}
+				failureCause = failure;
 				super.failure(failure);
-				for (ResponseCallback callback : callbacks) {
-					callback.failure(headers, failure);
+				if (null != consumer) {
+					consumer.failed(Response.this, failure);
 				}
 			}
 
 			@Override protected void done(int lifeCounter) {
 				super.done(lifeCounter);
-				List<ResponseCallback> toRemove = new ArrayList<ResponseCallback>();
-				for (ResponseCallback callback : callbacks) {
-					callback.success(headers, getResult());
-					if (callback.isWatch()) {
-						toRemove.add(callback);
-					}
-				}
-				for (ResponseCallback callback : toRemove) {
-					callbacks.remove(callback);
+				Response.this.request.cancelDeadlines();
+				recordCompletion();
+				// Whoever swaps in COMPLETED owns every callback pushed before it
+				dispatch(callbacks.getAndSet(COMPLETED));
+				Runnable listener = doneListener;
+				if (null != listener) {
+					listener.run();
 				}
 			}
 		};
@@ -70,7 +125,11 @@ public class Response implements Future<ByteBuffer> {
 		this.status = status;
 	}
 
-	public Map<String, String> getHeaders() {
+	/**
+	 * @return the response's headers, with names matched without regard to case and every value of
+	 *         a repeated header kept.
+	 */
+	public ResponseHeaders getHeaders() {
 		return headers;
 	}
 
@@ -80,10 +139,9 @@ public class Response implements Future<ByteBuffer> {
 
 	public void setHeaders(Map<String, String> headers, boolean overwrite) {
 		if (overwrite) {
-			this.headers = headers;
-		} else {
-			this.headers.putAll(headers);
+			this.headers.clear();
 		}
+		this.headers.putAll(headers);
 	}
 
 	public String getContentType() {
@@ -99,32 +157,311 @@ public class Response implements Future<ByteBuffer> {
 	}
 
 	public byte[] getContent() {
-		if (future.isDone() && null != future.getResult())
-			return future.getResult().array();
-		else
+		ByteBuffer result = (future.isDone() ? future.getResult() : null);
+		if (null == result)
 			return null;
+		if (result.hasArray() && result.arrayOffset() == 0 && result.position() == 0 && result.remaining() == result.array().length)
+			return result.array();
+		// A read-only view of a body shared with other responses, say
+		byte[] content = new byte[result.remaining()];
+		result.duplicate().get(content);
+		return content;
 	}
 
-	void addContent(ByteBuffer buffer, boolean isLast) throws IOException {
-		synchronized (writeMutex) {
-			if (null != writableByteChannel) {
-				contentLength += writableByteChannel.write(buffer);
-			} else {
-				if (null != buffer) {
-					body.add(buffer);
-					contentLength += buffer.remaining();
+	public ResponseConsumer getConsumer() {
+		return consumer;
+	}
+
+	/**
+	 * Stream the body to a consumer as it arrives instead of aggregating it. Has to be set before the
+	 * request is sent. When a consumer is set, the future completes with a <code>null</code> body.
+	 */
+	public Response setConsumer(ResponseConsumer consumer) {
+		this.consumer = consumer;
+		return this;
+	}
+
+	/**
+	 * Stop reading from the connection after the current chunk, so a slow consumer throttles the
+	 * socket rather than buffering. Has no effect once the last chunk has been read.
+	 */
+	public Response pause() {
+		readState.compareAndSet(READING, PAUSING);
+		return this;
+	}
+
+	/**
+	 * Start reading from the connection again. If reading was actually suspended, the chunks already
+	 * read from the socket are delivered on one of the transport's threads, never the caller's, and
+	 * reading picks up once they have been.
+	 */
+	public Response resume() {
+		for (; ; ) {
+			int state = readState.get();
+			if (state == READING) {
+				return this;
+			} else if (state == PAUSING || state == SUSPENDING) {
+				// A read that's still being parked is picked back up by the thread parking it
+				if (readState.compareAndSet(state, READING)) {
+					return resumed();
 				}
-				if (isLast && contentLength > 0) {
-					ByteBuffer fullBuffer = ByteBuffer.allocate(contentLength.intValue());
-					for (ByteBuffer b : body) {
-						fullBuffer.put(b);
+			} else if (readState.compareAndSet(SUSPENDED, READING)) {
+				resumeRead();
+				return resumed();
+			}
+		}
+	}
+
+	private Response resumed() {
+		Runnable listener = resumeListener;
+		if (null != listener) {
+			listener.run();
+		}
+		return this;
+	}
+
+	public boolean isPaused() {
+		return readState.get() != READING;
+	}
+
+	/**
+	 * Start timing the response once the request line and headers have been written.
+	 */
+	void started(HttpClientMetrics metrics) {
+		startNanos = System.nanoTime();
+		this.metrics = metrics;
+		metrics.requestStarted(request);
+	}
+
+	boolean isHeadersReceived() {
+		return headersReceived;
+	}
+
+	void headersReceived() {
+		if (!headersReceived) {
+			headersReceived = true;
+			HttpClientMetrics m = metrics;
+			if (null != m) {
+				m.firstByte(request, System.nanoTime() - startNanos);
+			}
+			if (null != consumer) {
+				consumer.headers(this);
+			}
+		}
+	}
+
+	private void recordCompletion() {
+		HttpClientMetrics m = metrics;
+		if (null == m) {
+			return;
+		}
+		long nanos = System.nanoTime() - startNanos;
+		Throwable cause = failureCause;
+		if (future.isCancelled() || null != cause) {
+			m.requestFailed(request, (cause instanceof HttpException ? ((HttpException) cause).getStatus() : 0), nanos);
+		} else {
+			m.requestCompleted(request, status, nanos);
+		}
+	}
+
+	/**
+	 * Park the read that delivered <code>content</code> if the consumer asked to pause.
+	 *
+	 * @return <code>true</code> if the filter chain has to be suspended.
+	 */
+	boolean suspendRead(FilterChainContext ctx, HttpContent content) {
+		if (!readState.compareAndSet(PAUSING, SUSPENDING)) {
+			return false;
+		}
+		suspendedContext = ctx;
+		suspendedContent = content;
+		// Grizzly's I/O strategy keeps READ interest off while the read is suspended, and turns it back
+		// on once the resumed read has run to the end
+		ctx.suspend();
+		if (!readState.compareAndSet(SUSPENDING, SUSPENDED)) {
+			// Resumed while it was being parked
+			resumeRead();
+		}
+		return true;
+	}
+
+	/**
+	 * Run the rest of the suspended read, which delivers whatever had already been read from the
+	 * socket, on a worker thread or, if the transport has none, on the connection's selector thread
+	 * once it's done with what it's doing. Reading from the socket picks up once that's finished,
+	 * unless the read is suspended again.
+	 */
+	private void resumeRead() {
+		final FilterChainContext ctx = suspendedContext;
+		resumedContent = suspendedContent;
+		suspendedContext = null;
+		suspendedContent = null;
+		runOnTransportThread(ctx.getConnection(), new Runnable() {
+			@Override public void run() {
+				ctx.resume();
+			}
+		});
+	}
+
+	/**
+	 * Run <code>task</code> on one of <code>connection</code>'s worker threads or, if the transport has
+	 * none, on its selector thread once that's done with what it's doing. The response fails if the
+	 * connection closes before the task gets to run.
+	 */
+	void runOnTransportThread(Connection connection, final Runnable task) {
+		Executor workers = connection.getTransport().getWorkerThreadPool();
+		if (null != workers) {
+			try {
+				workers.execute(task);
+				return;
+			} catch (RejectedExecutionException e) {
+				// The transport is stopping; its selector thread still finishes off pending tasks
+			}
+		}
+		SelectorRunner runner = ((NIOConnection) connection).getSelectorRunner();
+		runner.getPendingTasks().offer(new SelectorHandlerTask() {
+			@Override public void run(SelectorRunner selectorRunner) {
+				task.run();
+			}
+
+			@Override public void cancel() {
+				future.failure(new IOException("Connection closed while reading was paused"));
+			}
+		});
+		runner.wakeupSelector();
+	}
+
+	/**
+	 * @return <code>true</code> if <code>content</code> was delivered before reading was suspended and
+	 *         is only being seen again because the filter chain resumed.
+	 */
+	boolean isResumedRead(HttpContent content) {
+		if (null != resumedContent && resumedContent == content) {
+			resumedContent = null;
+			return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Publish the body to a Reactive Streams subscriber as it arrives instead of aggregating it, reading
+	 * from the connection only as fast as the subscriber asks for chunks. Has to be called before the
+	 * request is sent. The publisher takes a single subscriber.
+	 */
+	public Publisher<ByteBuffer> asPublisher() {
+		ResponsePublisher publisher = new ResponsePublisher(this);
+		setConsumer(publisher);
+		return publisher;
+	}
+
+	/**
+	 * Write the body straight into a channel as it arrives instead of aggregating it. Has to be called
+	 * before the request is sent.
+	 */
+	public Response transferTo(WritableByteChannel channel) {
+		return setConsumer(new ChannelResponseConsumer(channel));
+	}
+
+	/**
+	 * Write the body into a file as it arrives, starting at <code>position</code>. Has to be called
+	 * before the request is sent.
+	 */
+	public Response transferTo(FileChannel channel, long position) {
+		return setConsumer(new ChannelResponseConsumer(channel, position));
+	}
+
+	void addContent(Buffer buffer, boolean isLast) throws IOException {
+		if (null != consumer) {
+			if (null != buffer && buffer.hasRemaining()) {
+				contentLength += buffer.remaining();
+				if (buffer.isComposite()) {
+					// Hand over each underlying buffer rather than copying them into one
+					ByteBufferArray array = buffer.toByteBufferArray();
+					ByteBuffer[] buffers = array.getArray();
+					for (int i = 0; i < array.size(); i++) {
+						consumer.chunk(this, buffers[i]);
 					}
-					fullBuffer.rewind();
-					future.result(fullBuffer);
-				} else if (isLast) {
-					future.result(null);
+					array.restore();
+					array.recycle();
+				} else {
+					consumer.chunk(this, buffer.toByteBuffer());
 				}
 			}
+			if (isLast) {
+				consumer.completed(this);
+				future.result(null);
+			}
+			return;
+		}
+		addContent(null != buffer ? buffer.toByteBuffer() : null, isLast);
+	}
+
+	void addContent(ByteBuffer buffer, boolean isLast) throws IOException {
+		if (bodyState.get() == STREAMING) {
+			writeToChannel(buffer, isLast);
+			return;
+		}
+		if (null != buffer && buffer.hasRemaining()) {
+			Chunk chunk = new Chunk(buffer);
+			if (null == lastChunk) {
+				firstChunk = chunk;
+			} else {
+				lastChunk.next = chunk;
+			}
+			lastChunk = chunk;
+			contentLength += buffer.remaining();
+		}
+		if (!isLast) {
+			return;
+		}
+		ByteBuffer full = aggregate();
+		aggregated = full;
+		if (bodyState.compareAndSet(AGGREGATING, AGGREGATED)) {
+			firstChunk = lastChunk = null;
+			future.result(full);
+		} else {
+			// A channel was set while the last chunk was on its way in
+			writeToChannel(null, true);
+		}
+	}
+
+	/**
+	 * The body as one buffer. A body that arrived as a single chunk filling a heap buffer of its own is
+	 * handed over as is; anything else is copied once into a buffer of exactly the right size, since
+	 * the body has to be a single array for {@link #getContent()}.
+	 */
+	private ByteBuffer aggregate() {
+		if (null == firstChunk) {
+			return null;
+		}
+		ByteBuffer first = firstChunk.buffer;
+		if (null == firstChunk.next && first.hasArray() && first.arrayOffset() == 0
+				&& first.position() == 0 && first.limit() == first.array().length) {
+			return first;
+		}
+		ByteBuffer full = ByteBuffer.allocate(contentLength.intValue());
+		for (Chunk c = firstChunk; null != c; c = c.next) {
+			full.put(c.buffer.duplicate());
+		}
+		full.flip();
+		return full;
+	}
+
+	/**
+	 * Write whatever has been collected so far, then <code>buffer</code>, to the channel. Only called
+	 * by the reading thread once the body is being streamed.
+	 */
+	private void writeToChannel(ByteBuffer buffer, boolean isLast) throws IOException {
+		WritableByteChannel channel = writableByteChannel;
+		for (Chunk c = firstChunk; null != c; c = c.next) {
+			channel.write(c.buffer);
+		}
+		firstChunk = lastChunk = null;
+		if (null != buffer) {
+			contentLength += channel.write(buffer);
+		}
+		if (isLast) {
+			future.result(null);
 		}
 	}
 
@@ -153,46 +490,265 @@ public class Response implements Future<ByteBuffer> {
 		return writableByteChannel;
 	}
 
+	/**
+	 * Write the body to <code>channel</code> instead of aggregating it. Whatever has arrived already is
+	 * written first; once the whole body is in, setting a channel writes the body to it right away.
+	 *
+	 * @see #transferTo(WritableByteChannel)
+	 */
 	public void setWritableByteChannel(WritableByteChannel channel) throws IOException {
 		this.writableByteChannel = channel;
-		if (null != writableByteChannel) {
-			synchronized (writeMutex) {
-				if (body.size() > 0) {
-					for (ByteBuffer b : body) {
-						writableByteChannel.write(b);
-					}
-				}
-			}
+		if (null == channel || bodyState.compareAndSet(AGGREGATING, STREAMING)) {
+			// The reading thread writes what it's collected so far with its next chunk
+			return;
+		}
+		ByteBuffer full = aggregated;
+		if (bodyState.get() == AGGREGATED && null != full) {
+			channel.write(full.duplicate());
 		}
 	}
 
+	/**
+	 * Run <code>listener</code> once the response is done, however that happens, after any listener
+	 * added before it. Has to be added before the request is sent, from the thread sending it.
+	 */
+	void addDoneListener(final Runnable listener) {
+		final Runnable before = doneListener;
+		if (null == before) {
+			this.doneListener = listener;
+			return;
+		}
+		this.doneListener = new Runnable() {
+			@Override public void run() {
+				before.run();
+				listener.run();
+			}
+		};
+	}
+
+	/**
+	 * Run <code>listener</code> whenever reading is resumed after a pause.
+	 */
+	void setResumeListener(Runnable listener) {
+		this.resumeListener = listener;
+	}
+
+	/**
+	 * Complete with what another response to the same request was completed with.
+	 */
+	void completeFrom(Response other, ByteBuffer body) {
+		copyFrom(other);
+		future.result(body);
+	}
+
+	/**
+	 * Complete with a response held by a {@link ResponseCache}.
+	 *
+	 * @param age how old, in milliseconds, the cached response is.
+	 */
+	void completeFromCache(int status, ResponseHeaders headers, ByteBuffer body, long age) {
+		this.status = status;
+		this.headers.addAll(headers);
+		this.headers.put(Http11Headers.AGE, String.valueOf(age / 1000));
+		contentLength = (long) (null != body ? body.remaining() : 0);
+		future.result(body);
+	}
+
+	/**
+	 * Fail with why another response to the same request failed, keeping its status and headers.
+	 */
+	void failFrom(Response other, Throwable failure) {
+		copyFrom(other);
+		future.failure(failure);
+	}
+
+	private void copyFrom(Response other) {
+		status = other.status;
+		headers.addAll(other.headers);
+		contentType = other.contentType;
+		contentLength = other.contentLength;
+	}
+
+	/**
+	 * Have <code>callback</code> told how the response turned out, exactly once. If it's already done,
+	 * the callback is dispatched right away.
+	 */
 	public Response addCallback(ResponseCallback callback) {
-		if (future.isDone()) {
-			callback.success(headers, future.getResult());
-		} else {
-			callbacks.add(callback);
+		for (; ; ) {
+			CallbackNode head = callbacks.get();
+			if (COMPLETED == head) {
+				dispatch(new CallbackNode(callback, null));
+				return this;
+			}
+			if (callbacks.compareAndSet(head, new CallbackNode(callback, head))) {
+				return this;
+			}
 		}
-		return this;
 	}
 
+	/**
+	 * Run <code>listener</code> once every one of <code>responses</code> is done, however each of them
+	 * turned out, from the callback of whichever finishes last. Lets a caller fan in without blocking
+	 * on each {@link #get()}.
+	 */
+	public static void whenAll(Collection<Response> responses, final Runnable listener) {
+		final AtomicInteger remaining = new AtomicInteger(responses.size() + 1);
+		ResponseCallback countdown = new ResponseCallback() {
+			@Override public boolean isWatch() {
+				return false;
+			}
+
+			@Override public void success(Map<String, String> headers, ByteBuffer body) {
+				countDown();
+			}
+
+			@Override public void failure(Map<String, String> headers, Throwable t) {
+				countDown();
+			}
+
+			private void countDown() {
+				if (remaining.decrementAndGet() == 0) {
+					listener.run();
+				}
+			}
+		};
+		for (Response response : responses) {
+			response.addCallback(countdown);
+		}
+		// The extra count keeps an empty or already completed group from finishing before this
+		if (remaining.decrementAndGet() == 0) {
+			listener.run();
+		}
+	}
+
+	/**
+	 * @return a copy of the callbacks that haven't been run yet, in the order they were added.
+	 * @deprecated adding to the returned queue has no effect; use {@link #addCallback(ResponseCallback)}.
+	 */
+	@Deprecated
 	public ConcurrentLinkedQueue<ResponseCallback> getCallbacks() {
-		return callbacks;
+		ConcurrentLinkedQueue<ResponseCallback> pending = new ConcurrentLinkedQueue<ResponseCallback>();
+		CallbackNode head = callbacks.get();
+		if (COMPLETED != head) {
+			// The stack is still shared, so it's copied rather than reversed
+			List<ResponseCallback> newestFirst = new ArrayList<ResponseCallback>();
+			for (CallbackNode node = head; null != node; node = node.next) {
+				newestFirst.add(node.callback);
+			}
+			for (int i = newestFirst.size() - 1; i >= 0; i--) {
+				pending.add(newestFirst.get(i));
+			}
+		}
+		return pending;
+	}
+
+	/**
+	 * Run callbacks on <code>executor</code> rather than on the thread that completes the response, or
+	 * on that thread if it's <code>null</code>. Has to be set before the request is sent.
+	 */
+	void setCallbackExecutor(Executor executor) {
+		this.callbackExecutor = executor;
+	}
+
+	private void dispatch(CallbackNode head) {
+		if (null == head || COMPLETED == head) {
+			return;
+		}
+		final CallbackNode toRun = reverse(head);
+		Executor executor = callbackExecutor;
+		if (null != executor) {
+			try {
+				executor.execute(new Runnable() {
+					@Override public void run() {
+						runCallbacks(toRun);
+					}
+				});
+				return;
+			} catch (RejectedExecutionException e) {
+				// Shut down, most likely; the callbacks still have to hear about it
+				if (log.isDebugEnabled())
+					log.debug("Callback executor rejected callbacks, running them inline: " + e.getMessage());
+			}
+		}
+		runCallbacks(toRun);
+	}
+
+	private void runCallbacks(CallbackNode toRun) {
+		Throwable failure = failureCause;
+		if (null == failure && future.isCancelled()) {
+			failure = new CancellationException();
+		}
+		ByteBuffer result = (null == failure ? future.getResult() : null);
+		for (CallbackNode node = toRun; null != node; node = node.next) {
+			ResponseCallback callback = node.callback;
+			try {
+				if (null != failure) {
+					callback.failure(headers, failure);
+				} else {
+					callback.success(headers, result);
+				}
+			} catch (RuntimeException e) {
+				// One broken callback doesn't keep the rest from running
+				log.error("Callback failed: " + e.getMessage(), e);
+			}
+		}
+	}
+
+	/**
+	 * Turn the stack starting at <code>head</code> around in place, so it runs oldest first. Only
+	 * done once the stack has been swapped out for {@link #COMPLETED}, when nothing else can see it.
+	 *
+	 * @return the oldest callback, now at the head.
+	 */
+	private static CallbackNode reverse(CallbackNode head) {
+		CallbackNode reversed = null;
+		CallbackNode node = head;
+		while (null != node) {
+			CallbackNode next = node.next;
+			node.next = reversed;
+			reversed = node;
+			node = next;
+		}
+		return reversed;
 	}
 
 	public FutureImpl<ByteBuffer> getFuture() {
 		return future;
 	}
 
+	/**
+	 * A callback pushed onto the stack that {@link #addCallback(ResponseCallback)} and completion race
+	 * for.
+	 */
+	private static class CallbackNode {
+		private final ResponseCallback callback;
+		private CallbackNode next;
+
+		private CallbackNode(ResponseCallback callback, CallbackNode next) {
+			this.callback = callback;
+			this.next = next;
+		}
+	}
+
+	private static final class Chunk {
+		private final ByteBuffer buffer;
+		private Chunk next;
+
+		private Chunk(ByteBuffer buffer) {
+			this.buffer = buffer;
+		}
+	}
+
 	@Override public String toString() {
 		return "Response {" +
 				"\r\n\tfuture=" + future +
-				", \r\n\tcallbacks=" + callbacks +
+				", \r\n\tcallbacks=" + getCallbacks() +
 				", \r\n\twritableByteChannel=" + writableByteChannel +
 				", \r\n\tstatus=" + status +
 				", \r\n\theaders=" + headers +
 				", \r\n\tcontentType='" + contentType + '\'' +
 				", \r\n\tcontentLength=" + contentLength +
-				", \r\n\tbody=" + body +
+				", \r\n\tbody=" + aggregated +
 				"\r\n}";
 	}
 }
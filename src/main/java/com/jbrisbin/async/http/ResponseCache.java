@@ -0,0 +1,517 @@
+package com.jbrisbin.async.http;
+
+import static com.jbrisbin.async.http.Http11Headers.*;
+
+import java.nio.ByteBuffer;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.glassfish.grizzly.http.util.FastHttpDateFormat;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A private HTTP cache (RFC 7234) for the <code>GET</code>s an {@link AsyncHttpClient} sends. A
+ * response is stored if its status is cacheable, nothing says <code>no-store</code> and it either
+ * says how long it's fresh for, with <code>Cache-Control: max-age</code> or <code>Expires</code>, or
+ * carries a validator. While it's fresh it's served without going to the network. Once it's stale,
+ * or if either side asked for <code>no-cache</code>, it's revalidated with <code>If-None-Match</code>
+ * or <code>If-Modified-Since</code> and a <code>304</code> is answered from the cache. A
+ * <code>PUT</code>, <code>POST</code> or <code>DELETE</code> drops what's stored for its URL.
+ * <p>
+ * Bodies are held in a least-recently-used map bounded by the bytes it holds, optionally off the
+ * heap in direct buffers. One cache can be shared by several clients; entries are keyed by the
+ * host and port a request is sent to as well as its path.
+ *
+ * @author Jon Brisbin <jon@jbrisbin.com>
+ */
+public class ResponseCache {
+
+	private static final Logger log = LoggerFactory.getLogger(ResponseCache.class);
+	/**
+	 * Rough cost of an entry beyond its body and headers.
+	 */
+	private static final int ENTRY_OVERHEAD = 128;
+	private static final long MAX_HEURISTIC_LIFETIME = TimeUnit.DAYS.toMillis(1);
+
+	private final ReentrantLock lock = new ReentrantLock();
+	private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<String, Entry>(64, 0.75f, true);
+	private long size = 0;
+	private volatile long maxSize;
+	private volatile long maxEntrySize;
+	private volatile boolean offHeap = false;
+	private final StripedCounter hits = new StripedCounter();
+	private final StripedCounter misses = new StripedCounter();
+	private final StripedCounter revalidations = new StripedCounter();
+	private final StripedCounter evictions = new StripedCounter();
+
+	public ResponseCache() {
+		this(32 * 1024 * 1024);
+	}
+
+	/**
+	 * @param maxSize how many bytes of bodies and headers the cache may hold.
+	 */
+	public ResponseCache(long maxSize) {
+		this.maxSize = maxSize;
+		this.maxEntrySize = Math.max(maxSize / 8, 1);
+	}
+
+	/**
+	 * @return how many bytes of bodies and headers the cache may hold before it evicts the least
+	 *         recently used entries.
+	 */
+	public long getMaxSize() {
+		return maxSize;
+	}
+
+	public ResponseCache setMaxSize(long maxSize) {
+		this.maxSize = maxSize;
+		lock.lock();
+		try {
+			evict();
+		} finally {
+			lock.unlock();
+		}
+		return this;
+	}
+
+	/**
+	 * @return the biggest single response that's stored, so one large body can't push out everything
+	 *         else. Defaults to an eighth of the cache.
+	 */
+	public long getMaxEntrySize() {
+		return maxEntrySize;
+	}
+
+	public ResponseCache setMaxEntrySize(long maxEntrySize) {
+		this.maxEntrySize = maxEntrySize;
+		return this;
+	}
+
+	public boolean isOffHeap() {
+		return offHeap;
+	}
+
+	/**
+	 * Keep bodies stored from now on in direct buffers, out of the way of the garbage collector. Each
+	 * hit copies its body back onto the heap.
+	 */
+	public ResponseCache setOffHeap(boolean offHeap) {
+		this.offHeap = offHeap;
+		return this;
+	}
+
+	/**
+	 * @return how many responses were served from the cache without going to the network.
+	 */
+	public long getHitCount() {
+		return hits.sum();
+	}
+
+	/**
+	 * @return how many cacheable requests went to the network and got a full response.
+	 */
+	public long getMissCount() {
+		return misses.sum();
+	}
+
+	/**
+	 * @return how many stale responses the server confirmed were still good with a <code>304</code>.
+	 */
+	public long getRevalidationCount() {
+		return revalidations.sum();
+	}
+
+	/**
+	 * @return how many entries were dropped to make room for others.
+	 */
+	public long getEvictionCount() {
+		return evictions.sum();
+	}
+
+	/**
+	 * @return how many bytes the cache holds.
+	 */
+	public long getSize() {
+		lock.lock();
+		try {
+			return size;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	public int getEntryCount() {
+		lock.lock();
+		try {
+			return entries.size();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	public void clear() {
+		lock.lock();
+		try {
+			entries.clear();
+			size = 0;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * @return whether a response to <code>request</code> could come from, or go into, the cache.
+	 */
+	boolean isCacheable(Request request) {
+		return Request.Method.GET == request.getMethod()
+				&& null == request.getResponse().getConsumer()
+				&& !directives(header(request.getHeaders(), CACHE_CONTROL)).containsKey("no-store");
+	}
+
+	/**
+	 * @return whether sending <code>request</code> makes whatever's stored for its URL out of date.
+	 */
+	static boolean invalidates(Request request) {
+		Request.Method method = request.getMethod();
+		return Request.Method.GET != method && Request.Method.HEAD != method;
+	}
+
+	static String key(AsyncHttpClient client, Request request) {
+		return client.getHost() + ":" + client.getPort() + request.getUrl().getFile();
+	}
+
+	/**
+	 * @return the entry stored for <code>key</code> that can answer <code>request</code>, fresh or
+	 *         not, or <code>null</code> if there isn't one.
+	 */
+	Entry get(String key, Request request) {
+		Entry entry;
+		lock.lock();
+		try {
+			entry = entries.get(key);
+		} finally {
+			lock.unlock();
+		}
+		if (null == entry) {
+			return null;
+		}
+		for (Map.Entry<String, String> vary : entry.vary.entrySet()) {
+			if (!equal(vary.getValue(), header(request.getHeaders(), vary.getKey()))) {
+				return null;
+			}
+		}
+		return entry;
+	}
+
+	/**
+	 * @return whether <code>entry</code> can be served for <code>request</code> without asking the
+	 *         server.
+	 */
+	boolean isFresh(Entry entry, Request request, long now) {
+		if (entry.noCache) {
+			return false;
+		}
+		Map<String, String> cc = directives(header(request.getHeaders(), CACHE_CONTROL));
+		if (cc.containsKey("no-cache") || "no-cache".equalsIgnoreCase(header(request.getHeaders(), PRAGMA))) {
+			return false;
+		}
+		long age = entry.age(now);
+		long maxAge = seconds(cc.get("max-age"));
+		if (maxAge >= 0 && age > maxAge * 1000) {
+			return false;
+		}
+		return age < entry.lifetime;
+	}
+
+	void hit() {
+		hits.increment();
+	}
+
+	void miss() {
+		misses.increment();
+	}
+
+	/**
+	 * Store a response that came back from the network, if it may be.
+	 *
+	 * @param requestTime  when the request was sent.
+	 * @param responseTime when the response came back.
+	 */
+	void put(String key, Request request, Response response, ByteBuffer body, long requestTime, long responseTime) {
+		ResponseHeaders headers = response.getHeaders();
+		if (!isStorable(request, response.getStatus(), headers)) {
+			remove(key);
+			return;
+		}
+		store(key, new Entry(response.getStatus(), headers, copy(body, offHeap), request, requestTime, responseTime));
+	}
+
+	/**
+	 * Freshen a stored response with the headers of the <code>304</code> that revalidated it.
+	 *
+	 * @return the freshened entry.
+	 */
+	Entry revalidated(String key, Entry stale, Request request, Response notModified, long requestTime, long responseTime) {
+		revalidations.increment();
+		ResponseHeaders headers = new ResponseHeaders().addAll(stale.headers);
+		ResponseHeaders updated = notModified.getHeaders();
+		for (String name : updated.keySet()) {
+			if (!CONTENT_LENGTH.equalsIgnoreCase(name)) {
+				headers.remove(name);
+				for (String value : updated.getAll(name)) {
+					headers.add(name, value);
+				}
+			}
+		}
+		Entry entry = new Entry(stale.status, headers, stale.body, request, requestTime, responseTime);
+		if (isStorable(request, stale.status, headers)) {
+			store(key, entry);
+		} else {
+			remove(key);
+		}
+		return entry;
+	}
+
+	void remove(String key) {
+		lock.lock();
+		try {
+			Entry entry = entries.remove(key);
+			if (null != entry) {
+				size -= entry.size;
+			}
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	private void store(String key, Entry entry) {
+		if (entry.size > maxEntrySize) {
+			remove(key);
+			return;
+		}
+		lock.lock();
+		try {
+			Entry previous = entries.put(key, entry);
+			if (null != previous) {
+				size -= previous.size;
+			}
+			size += entry.size;
+			evict();
+		} finally {
+			lock.unlock();
+		}
+		if (log.isDebugEnabled())
+			log.debug("Cached " + key + " for " + entry.lifetime + "ms");
+	}
+
+	/**
+	 * Drop least recently used entries until the cache is within its size. Has to be called holding
+	 * the lock.
+	 */
+	private void evict() {
+		Iterator<Entry> i = entries.values().iterator();
+		while (size > maxSize && i.hasNext()) {
+			Entry eldest = i.next();
+			i.remove();
+			size -= eldest.size;
+			evictions.increment();
+		}
+	}
+
+	private static boolean isStorable(Request request, int status, Map<String, String> headers) {
+		switch (status) {
+			case 200:
+			case 203:
+			case 204:
+			case 300:
+			case 301:
+				break;
+			default:
+				return false;
+		}
+		Map<String, String> cc = directives(header(headers, CACHE_CONTROL));
+		if (cc.containsKey("no-store") || "*".equals(header(headers, VARY))) {
+			return false;
+		}
+		if (null != header(request.getHeaders(), AUTHORIZATION)
+				&& !(cc.containsKey("public") || cc.containsKey("must-revalidate") || cc.containsKey("s-maxage"))) {
+			// RFC 7234 3.2
+			return false;
+		}
+		return cc.containsKey("max-age")
+				|| null != header(headers, EXPIRES)
+				|| null != header(headers, ETAG)
+				|| null != header(headers, LAST_MODIFIED);
+	}
+
+	private static ByteBuffer copy(ByteBuffer body, boolean direct) {
+		if (null == body) {
+			return null;
+		}
+		ByteBuffer copy = (direct ? ByteBuffer.allocateDirect(body.remaining()) : ByteBuffer.allocate(body.remaining()));
+		copy.put(body.duplicate());
+		copy.flip();
+		return copy;
+	}
+
+	/**
+	 * Parse a <code>Cache-Control</code> header into its directives, with names lower-cased and values
+	 * unquoted.
+	 */
+	static Map<String, String> directives(String cacheControl) {
+		if (null == cacheControl) {
+			return Collections.emptyMap();
+		}
+		Map<String, String> directives = new HashMap<String, String>();
+		for (String directive : cacheControl.split(",")) {
+			int eq = directive.indexOf('=');
+			String name = (eq < 0 ? directive : directive.substring(0, eq)).trim().toLowerCase();
+			String value = (eq < 0 ? null : directive.substring(eq + 1).trim());
+			if (null != value && value.length() > 1 && value.startsWith("\"") && value.endsWith("\"")) {
+				value = value.substring(1, value.length() - 1);
+			}
+			if (name.length() > 0) {
+				directives.put(name, value);
+			}
+		}
+		return directives;
+	}
+
+	/**
+	 * @return a delta-seconds value, or -1 if there isn't a valid one.
+	 */
+	private static long seconds(String value) {
+		if (null == value) {
+			return -1;
+		}
+		try {
+			return Math.max(Long.parseLong(value), 0);
+		} catch (NumberFormatException e) {
+			return -1;
+		}
+	}
+
+	/**
+	 * @return an HTTP date in milliseconds, or -1 if there isn't a valid one.
+	 */
+	private static long date(String value) {
+		return (null != value ? FastHttpDateFormat.parseDate(value, null) : -1);
+	}
+
+	static String header(Map<String, String> headers, String name) {
+		if (null == headers) {
+			return null;
+		}
+		String value = headers.get(name);
+		if (null != value) {
+			return value;
+		}
+		for (Map.Entry<String, String> h : headers.entrySet()) {
+			if (name.equalsIgnoreCase(h.getKey())) {
+				return h.getValue();
+			}
+		}
+		return null;
+	}
+
+	private static boolean equal(String a, String b) {
+		return (null == a ? null == b : a.equals(b));
+	}
+
+	/**
+	 * A stored response, with what's needed to work out its age (RFC 7234 4.2.3) and how long it's
+	 * fresh for (4.2.1). Its headers are a copy of its own, every value of repeated ones included,
+	 * which nothing changes once it's been made.
+	 */
+	static class Entry {
+		final int status;
+		final ResponseHeaders headers;
+		final ByteBuffer body;
+		final Map<String, String> vary;
+		final String etag;
+		final String lastModified;
+		final boolean noCache;
+		final long lifetime;
+		final long size;
+		private final long correctedInitialAge;
+		private final long responseTime;
+
+		private Entry(int status, ResponseHeaders headers, ByteBuffer body, Request request, long requestTime, long responseTime) {
+			this.status = status;
+			this.headers = new ResponseHeaders().addAll(headers);
+			this.body = body;
+			this.responseTime = responseTime;
+			this.etag = header(headers, ETAG);
+			this.lastModified = header(headers, LAST_MODIFIED);
+
+			Map<String, String> cc = directives(header(headers, CACHE_CONTROL));
+			this.noCache = cc.containsKey("no-cache") || "no-cache".equalsIgnoreCase(header(headers, PRAGMA));
+
+			long date = date(header(headers, DATE));
+			if (date < 0) {
+				date = responseTime;
+			}
+			long apparentAge = Math.max(0, responseTime - date);
+			long ageValue = Math.max(seconds(header(headers, AGE)), 0) * 1000;
+			this.correctedInitialAge = Math.max(apparentAge, ageValue + (responseTime - requestTime));
+
+			long maxAge = seconds(cc.get("max-age"));
+			String expires = header(headers, EXPIRES);
+			long lastModifiedDate = date(lastModified);
+			if (maxAge >= 0) {
+				lifetime = maxAge * 1000;
+			} else if (null != expires) {
+				// An Expires that can't be parsed means already expired
+				long expiresDate = date(expires);
+				lifetime = (expiresDate < 0 ? 0 : Math.max(expiresDate - date, 0));
+			} else if (lastModifiedDate >= 0) {
+				// Heuristic freshness (4.2.2)
+				lifetime = Math.min((Math.max(date - lastModifiedDate, 0)) / 10, MAX_HEURISTIC_LIFETIME);
+			} else {
+				lifetime = 0;
+			}
+
+			Map<String, String> vary = new HashMap<String, String>();
+			String varyHeader = header(headers, VARY);
+			if (null != varyHeader) {
+				for (String name : varyHeader.split(",")) {
+					name = name.trim();
+					if (name.length() > 0) {
+						vary.put(name, header(request.getHeaders(), name));
+					}
+				}
+			}
+			this.vary = vary;
+
+			long headerSize = 0;
+			for (String name : headers.keySet()) {
+				for (String value : headers.getAll(name)) {
+					headerSize += 2 * (name.length() + (null != value ? value.length() : 0));
+				}
+			}
+			this.size = ENTRY_OVERHEAD + headerSize + (null != body ? body.remaining() : 0);
+		}
+
+		/**
+		 * @return how old, in milliseconds, the response is <code>now</code>.
+		 */
+		long age(long now) {
+			return correctedInitialAge + Math.max(now - responseTime, 0);
+		}
+
+		/**
+		 * @return a copy of the body the caller is free to keep, on the heap.
+		 */
+		ByteBuffer body() {
+			return copy(body, false);
+		}
+	}
+
+}
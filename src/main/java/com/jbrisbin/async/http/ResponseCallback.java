@@ -4,14 +4,26 @@ import java.nio.ByteBuffer;
 import java.util.Map;
 
 /**
+ * Told how a {@link Response} turned out. Each callback is run exactly once, with either {@link
+ * #success(Map, ByteBuffer)} or {@link #failure(Map, Throwable)}, on the executor the client or
+ * transport was configured with.
+ *
  * @author Jon Brisbin <jon@jbrisbin.com>
  */
 public interface ResponseCallback {
 
+	/**
+	 * No longer consulted: a response only completes once, so every callback runs once.
+	 */
 	boolean isWatch();
 
 	void success(Map<String, String> headers, ByteBuffer body);
 
+	/**
+	 * @param t an {@link HttpException} for an error status, a {@link RequestTimeoutException}, a
+	 *          {@link java.util.concurrent.CancellationException} if the response was cancelled, or
+	 *          whatever else went wrong.
+	 */
 	void failure(Map<String, String> headers, Throwable t);
 
 }
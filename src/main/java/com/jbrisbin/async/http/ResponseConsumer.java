@@ -0,0 +1,32 @@
+package com.jbrisbin.async.http;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Receives a response body chunk by chunk as it's read from the connection, instead of having it
+ * aggregated into a single buffer. A consumer that can't keep up can call {@link Response#pause()}
+ * to stop reading from the connection and {@link Response#resume()} once it's ready for more.
+ *
+ * @author Jon Brisbin <jon@jbrisbin.com>
+ */
+public interface ResponseConsumer {
+
+	/**
+	 * Called once the status and headers of the response are known, before any chunks.
+	 */
+	void headers(Response response);
+
+	/**
+	 * Called for each chunk of the body. The buffer may be reused once this method returns, so copy
+	 * anything that needs to be kept.
+	 */
+	void chunk(Response response, ByteBuffer chunk);
+
+	/**
+	 * Called after the last chunk has been read.
+	 */
+	void completed(Response response);
+
+	void failed(Response response, Throwable t);
+
+}
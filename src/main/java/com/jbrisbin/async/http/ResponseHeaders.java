@@ -0,0 +1,403 @@
+package com.jbrisbin.async.http;
+
+import java.nio.charset.Charset;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+import org.glassfish.grizzly.Buffer;
+import org.glassfish.grizzly.http.util.BufferChunk;
+import org.glassfish.grizzly.http.util.DataChunk;
+import org.glassfish.grizzly.http.util.MimeHeaders;
+
+/**
+ * The headers of a {@link Response}, as a map from each header's name to its first value. Names are
+ * matched without regard to case, and every value of a header that's repeated, like
+ * <code>Set-Cookie</code> or <code>Link</code>, is kept; {@link #getAll(String)} has them all.
+ * <p>
+ * Headers read off the wire are copied once per response, as the bytes Grizzly parsed them from,
+ * into a single array, since Grizzly goes on to reuse the buffer it read them into. A name or value
+ * only becomes a <code>String</code> once somebody asks for it.
+ * <p>
+ * Like the rest of a {@link Response}, the headers are filled in by the thread reading the response
+ * and should be left alone until they've been received.
+ *
+ * @author Jon Brisbin <jon@jbrisbin.com>
+ */
+public class ResponseHeaders extends AbstractMap<String, String> {
+
+	private static final Charset ISO_8859_1 = Charset.forName("ISO-8859-1");
+	private static final int INITIAL_FIELDS = 16;
+
+	/*
+	 * Field i's name and value are names[i] and values[i], or if those are still null, the bytes
+	 * between ranges[4i] and ranges[4i + 1], and ranges[4i + 2] and ranges[4i + 3].
+	 */
+	private byte[] bytes = null;
+	private int[] ranges = new int[INITIAL_FIELDS * 4];
+	private String[] names = new String[INITIAL_FIELDS];
+	private String[] values = new String[INITIAL_FIELDS];
+	private int fields = 0;
+	private Set<Map.Entry<String, String>> entrySet = null;
+
+	/**
+	 * @return every value of the header <code>name</code>, in the order they were received, or an
+	 *         empty list if there's no such header.
+	 */
+	public List<String> getAll(String name) {
+		List<String> all = null;
+		for (int i = 0; i < fields; i++) {
+			if (nameIs(i, name)) {
+				if (null == all) {
+					all = new ArrayList<String>(2);
+				}
+				all.add(value(i));
+			}
+		}
+		return (null != all ? all : Collections.<String>emptyList());
+	}
+
+	/**
+	 * Add a value for <code>name</code>, keeping any it already has.
+	 */
+	public ResponseHeaders add(String name, String value) {
+		ensureCapacity(fields + 1);
+		names[fields] = name;
+		values[fields] = value;
+		fields++;
+		return this;
+	}
+
+	/**
+	 * Add every value of every header in <code>other</code>.
+	 */
+	public ResponseHeaders addAll(ResponseHeaders other) {
+		ensureCapacity(fields + other.fields);
+		for (int i = 0; i < other.fields; i++) {
+			add(other.name(i), other.value(i));
+		}
+		return this;
+	}
+
+	@Override public String get(Object key) {
+		int i = indexOf(key);
+		return (i >= 0 ? value(i) : null);
+	}
+
+	@Override public boolean containsKey(Object key) {
+		return indexOf(key) >= 0;
+	}
+
+	/**
+	 * Replace every value of the header <code>name</code> with <code>value</code>.
+	 *
+	 * @return the header's first value before, if it had one.
+	 */
+	@Override public String put(String name, String value) {
+		int i = indexOf(name);
+		if (i < 0) {
+			add(name, value);
+			return null;
+		}
+		String old = value(i);
+		removeFrom(i + 1, name);
+		names[i] = name;
+		values[i] = value;
+		return old;
+	}
+
+	/**
+	 * Remove every value of the header <code>key</code>.
+	 *
+	 * @return the header's first value, if it had one.
+	 */
+	@Override public String remove(Object key) {
+		int i = indexOf(key);
+		if (i < 0) {
+			return null;
+		}
+		String old = value(i);
+		removeFrom(i, (String) key);
+		return old;
+	}
+
+	@Override public void clear() {
+		bytes = null;
+		for (int i = 0; i < fields; i++) {
+			names[i] = null;
+			values[i] = null;
+		}
+		fields = 0;
+	}
+
+	@Override public Set<Map.Entry<String, String>> entrySet() {
+		if (null == entrySet) {
+			entrySet = new EntrySet();
+		}
+		return entrySet;
+	}
+
+	/**
+	 * Copy the fields of headers Grizzly has just parsed, after any that are here already.
+	 */
+	void read(MimeHeaders headers) {
+		int count = headers.size();
+		if (0 == count) {
+			return;
+		}
+		int length = 0;
+		for (int i = 0; i < count; i++) {
+			length += headers.getName(i).getLength() + headers.getValue(i).getLength();
+		}
+		int pos;
+		if (null == bytes) {
+			bytes = new byte[length];
+			pos = 0;
+		} else {
+			// Fields already read keep their ranges into the old bytes, which are copied over as they are
+			byte[] more = new byte[bytes.length + length];
+			System.arraycopy(bytes, 0, more, 0, bytes.length);
+			pos = bytes.length;
+			bytes = more;
+		}
+		ensureCapacity(fields + count);
+		for (int i = 0; i < count; i++) {
+			int r = fields * 4;
+			ranges[r] = pos;
+			pos = copy(headers.getName(i), pos);
+			ranges[r + 1] = pos;
+			ranges[r + 2] = pos;
+			pos = copy(headers.getValue(i), pos);
+			ranges[r + 3] = pos;
+			names[fields] = null;
+			values[fields] = null;
+			fields++;
+		}
+	}
+
+	private int copy(DataChunk chunk, int pos) {
+		if (DataChunk.Type.Buffer == chunk.getType()) {
+			BufferChunk bc = chunk.getBufferChunk();
+			Buffer buffer = bc.getBuffer();
+			for (int i = bc.getStart(), end = bc.getEnd(); i < end; i++) {
+				bytes[pos++] = buffer.get(i);
+			}
+		} else {
+			String s = chunk.toString();
+			for (int i = 0, len = s.length(); i < len; i++) {
+				bytes[pos++] = (byte) s.charAt(i);
+			}
+		}
+		return pos;
+	}
+
+	private String name(int i) {
+		String name = names[i];
+		if (null == name) {
+			name = new String(bytes, ranges[i * 4], ranges[i * 4 + 1] - ranges[i * 4], ISO_8859_1);
+			names[i] = name;
+		}
+		return name;
+	}
+
+	private String value(int i) {
+		String value = values[i];
+		if (null == value) {
+			value = new String(bytes, ranges[i * 4 + 2], ranges[i * 4 + 3] - ranges[i * 4 + 2], ISO_8859_1);
+			values[i] = value;
+		}
+		return value;
+	}
+
+	/**
+	 * Compare field <code>i</code>'s name to <code>name</code>, ignoring case, without making a
+	 * <code>String</code> of it.
+	 */
+	private boolean nameIs(int i, String name) {
+		String n = names[i];
+		if (null != n) {
+			return n.equalsIgnoreCase(name);
+		}
+		int start = ranges[i * 4];
+		int length = name.length();
+		if (ranges[i * 4 + 1] - start != length) {
+			return false;
+		}
+		for (int k = 0; k < length; k++) {
+			int b = bytes[start + k] & 0xff;
+			char c = name.charAt(k);
+			if (b != c && toLower(b) != toLower(c)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private static int toLower(int c) {
+		return (c >= 'A' && c <= 'Z' ? c + ('a' - 'A') : c);
+	}
+
+	private int indexOf(Object key) {
+		if (!(key instanceof String)) {
+			return -1;
+		}
+		for (int i = 0; i < fields; i++) {
+			if (nameIs(i, (String) key)) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * @return whether field <code>i</code> is the first with its name.
+	 */
+	private boolean isFirst(int i) {
+		for (int j = 0; j < i; j++) {
+			if (sameName(i, j)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Compare the names of fields <code>i</code> and <code>j</code>, ignoring case, without making a
+	 * <code>String</code> of either.
+	 */
+	private boolean sameName(int i, int j) {
+		if (null != names[i]) {
+			return nameIs(j, names[i]);
+		}
+		if (null != names[j]) {
+			return nameIs(i, names[j]);
+		}
+		int start = ranges[i * 4];
+		int otherStart = ranges[j * 4];
+		int length = ranges[i * 4 + 1] - start;
+		if (ranges[j * 4 + 1] - otherStart != length) {
+			return false;
+		}
+		for (int k = 0; k < length; k++) {
+			int a = bytes[start + k] & 0xff;
+			int b = bytes[otherStart + k] & 0xff;
+			if (a != b && toLower(a) != toLower(b)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private void removeFrom(int from, String name) {
+		int to = from;
+		for (int i = from; i < fields; i++) {
+			if (nameIs(i, name)) {
+				continue;
+			}
+			if (to != i) {
+				System.arraycopy(ranges, i * 4, ranges, to * 4, 4);
+				names[to] = names[i];
+				values[to] = values[i];
+			}
+			to++;
+		}
+		for (int i = to; i < fields; i++) {
+			names[i] = null;
+			values[i] = null;
+		}
+		fields = to;
+	}
+
+	private void ensureCapacity(int capacity) {
+		if (capacity <= names.length) {
+			return;
+		}
+		int grown = Math.max(capacity, names.length * 2);
+		int[] r = new int[grown * 4];
+		System.arraycopy(ranges, 0, r, 0, fields * 4);
+		ranges = r;
+		String[] n = new String[grown];
+		System.arraycopy(names, 0, n, 0, fields);
+		names = n;
+		String[] v = new String[grown];
+		System.arraycopy(values, 0, v, 0, fields);
+		values = v;
+	}
+
+	/**
+	 * One entry per header, with its first value.
+	 */
+	private class EntrySet extends AbstractSet<Map.Entry<String, String>> {
+		@Override public Iterator<Map.Entry<String, String>> iterator() {
+			return new Iterator<Map.Entry<String, String>>() {
+				private int next = advance(0);
+				private String last = null;
+
+				private int advance(int from) {
+					int i = from;
+					while (i < fields && !isFirst(i)) {
+						i++;
+					}
+					return i;
+				}
+
+				@Override public boolean hasNext() {
+					return next < fields;
+				}
+
+				@Override public Map.Entry<String, String> next() {
+					if (next >= fields) {
+						throw new NoSuchElementException();
+					}
+					int i = next;
+					last = name(i);
+					next = advance(i + 1);
+					return new Entry(last, value(i));
+				}
+
+				@Override public void remove() {
+					if (null == last) {
+						throw new IllegalStateException();
+					}
+					int removed = indexOf(last);
+					if (removed >= 0) {
+						ResponseHeaders.this.remove(last);
+						// Whatever was after it has moved down
+						next = advance(removed);
+					}
+					last = null;
+				}
+			};
+		}
+
+		@Override public int size() {
+			int size = 0;
+			for (int i = 0; i < fields; i++) {
+				if (isFirst(i)) {
+					size++;
+				}
+			}
+			return size;
+		}
+	}
+
+	private class Entry extends AbstractMap.SimpleEntry<String, String> {
+		private static final long serialVersionUID = 1L;
+
+		private Entry(String name, String value) {
+			super(name, value);
+		}
+
+		@Override public String setValue(String value) {
+			put(getKey(), value);
+			return super.setValue(value);
+		}
+	}
+
+}
@@ -0,0 +1,183 @@
+package com.jbrisbin.async.http;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.reactivestreams.Publisher;
+import org.reactivestreams.Subscriber;
+import org.reactivestreams.Subscription;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Publishes the body of a {@link Response} to a single Reactive Streams {@link Subscriber}, one chunk
+ * per <code>onNext</code>. Demand is mapped onto {@link Response#pause()} and {@link
+ * Response#resume()}: once the subscriber has been given every chunk it asked for, reading from the
+ * connection stops until it asks for more, so a slow subscriber throttles the socket. Chunks read
+ * before reading could stop are held until they're asked for.
+ * <p>
+ * Each chunk is a copy the subscriber is free to keep. Cancelling the subscription gives up on the
+ * response. A failure is signalled as soon as it happens, and any chunks not yet asked for are
+ * dropped.
+ *
+ * @author Jon Brisbin <jon@jbrisbin.com>
+ */
+class ResponsePublisher implements Publisher<ByteBuffer>, ResponseConsumer, Subscription {
+
+	private static final Logger log = LoggerFactory.getLogger(ResponsePublisher.class);
+
+	private final Response response;
+	private final AtomicBoolean subscribed = new AtomicBoolean(false);
+	private final ConcurrentLinkedQueue<ByteBuffer> chunks = new ConcurrentLinkedQueue<ByteBuffer>();
+	private final AtomicLong demand = new AtomicLong(0);
+	private final AtomicInteger draining = new AtomicInteger(0);
+	private volatile Subscriber<? super ByteBuffer> subscriber = null;
+	private volatile boolean completed = false;
+	private volatile Throwable failure = null;
+	private volatile boolean cancelled = false;
+	private boolean terminated = false;
+
+	ResponsePublisher(Response response) {
+		this.response = response;
+	}
+
+	@Override public void subscribe(Subscriber<? super ByteBuffer> s) {
+		if (null == s) {
+			throw new NullPointerException("Subscriber can't be null");
+		}
+		if (!subscribed.compareAndSet(false, true)) {
+			s.onSubscribe(new Subscription() {
+				@Override public void request(long n) {
+				}
+
+				@Override public void cancel() {
+				}
+			});
+			s.onError(new IllegalStateException("A response body can only be subscribed to once"));
+			return;
+		}
+		s.onSubscribe(this);
+		subscriber = s;
+		drain();
+	}
+
+	@Override public void request(long n) {
+		if (n <= 0) {
+			failure = new IllegalArgumentException("Requested " + n + " chunks; has to be more than none (Reactive Streams 3.9)");
+			completed = true;
+			abort();
+			drain();
+			return;
+		}
+		for (; ; ) {
+			long current = demand.get();
+			long next = current + n;
+			if (next < 0) {
+				// Long.MAX_VALUE means unbounded
+				next = Long.MAX_VALUE;
+			}
+			if (demand.compareAndSet(current, next)) {
+				break;
+			}
+		}
+		drain();
+	}
+
+	@Override public void cancel() {
+		if (!cancelled) {
+			cancelled = true;
+			chunks.clear();
+			abort();
+		}
+	}
+
+	@Override public void headers(Response response) {
+		// Stop reading after the first chunk unless some have been asked for already
+		drain();
+	}
+
+	@Override public void chunk(Response response, ByteBuffer chunk) {
+		if (cancelled) {
+			return;
+		}
+		ByteBuffer copy = ByteBuffer.allocate(chunk.remaining());
+		copy.put(chunk);
+		copy.flip();
+		chunks.add(copy);
+		drain();
+	}
+
+	@Override public void completed(Response response) {
+		completed = true;
+		drain();
+	}
+
+	@Override public void failed(Response response, Throwable t) {
+		if (null == failure) {
+			failure = t;
+		}
+		completed = true;
+		drain();
+	}
+
+	private void abort() {
+		response.getRequest().abort(new CancellationException("Subscriber cancelled the response body"));
+	}
+
+	/**
+	 * Hand the subscriber as many chunks as it's asked for, then stop or restart reading to match what
+	 * it still wants. Only one thread drains at a time; the others leave it to that one.
+	 */
+	private void drain() {
+		if (draining.getAndIncrement() != 0) {
+			return;
+		}
+		int missed = 1;
+		do {
+			Subscriber<? super ByteBuffer> s = subscriber;
+			if (null != s && !cancelled && !terminated) {
+				ByteBuffer chunk;
+				while (demand.get() > 0 && null != (chunk = chunks.poll())) {
+					if (demand.get() != Long.MAX_VALUE) {
+						demand.decrementAndGet();
+					}
+					try {
+						s.onNext(chunk);
+					} catch (RuntimeException e) {
+						// Breaks Reactive Streams 2.13, but the connection still has to be let go of
+						log.error("Subscriber failed: " + e.getMessage(), e);
+						cancel();
+						break;
+					}
+				}
+				if (completed && null != failure) {
+					// An error doesn't wait on demand (Reactive Streams 1.4 and 3.9), so it goes ahead of
+					// whatever chunks are still held
+					chunks.clear();
+				}
+				if (completed && chunks.isEmpty() && !cancelled) {
+					terminated = true;
+					Throwable t = failure;
+					if (null != t) {
+						s.onError(t);
+					} else {
+						s.onComplete();
+					}
+				}
+			}
+			if (!completed && !cancelled) {
+				if (demand.get() > 0) {
+					response.resume();
+				} else {
+					response.pause();
+				}
+			}
+			missed = draining.addAndGet(-missed);
+		} while (missed != 0);
+	}
+
+}
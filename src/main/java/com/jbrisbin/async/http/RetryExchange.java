@@ -0,0 +1,250 @@
+package com.jbrisbin.async.http;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Sends a request as many times as its {@link RetryPolicy} allows and completes its {@link Response}
+ * with the first attempt that succeeds. Each attempt is a copy of the request with a response of its
+ * own, so the caller's request is never written and its response only completes once.
+ * <p>
+ * The request timeout bounds the whole exchange rather than each attempt: it's started once, on the
+ * caller's request, and every attempt is given only what's left of it. Once the caller's response is
+ * done, by timing out or being cancelled, any attempt still in flight is aborted.
+ *
+ * @author Jon Brisbin <jon@jbrisbin.com>
+ */
+class RetryExchange {
+
+	private static final Logger log = LoggerFactory.getLogger(RetryExchange.class);
+
+	private final AsyncHttpClient client;
+	private final Request request;
+	private final RetryPolicy policy;
+	private final ReentrantLock lock = new ReentrantLock();
+	private final List<Attempt> attempts = new ArrayList<Attempt>(2);
+	private int retries = 0;
+	private boolean retryPending = false;
+	private boolean hedged = false;
+	private boolean done = false;
+	private HashedWheelTimer.Timeout hedgeTimeout = null;
+	private final long totalTimeout;
+	private final long deadline;
+
+	RetryExchange(AsyncHttpClient client, Request request, RetryPolicy policy) {
+		this.client = client;
+		this.request = request;
+		this.policy = policy;
+		this.totalTimeout = client.totalTimeout(request);
+		this.deadline = (totalTimeout > 0 ? System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(totalTimeout) : 0);
+	}
+
+	void start() {
+		if (totalTimeout > 0) {
+			request.startDeadlines(0, totalTimeout);
+		}
+		request.getResponse().addDoneListener(new Runnable() {
+			@Override public void run() {
+				abandon();
+			}
+		});
+		send();
+		long hedgeDelay = policy.hedgeDelay(request);
+		if (hedgeDelay >= 0) {
+			HashedWheelTimer.Timeout t = HashedWheelTimer.DEFAULT.schedule(new Runnable() {
+				@Override public void run() {
+					hedge();
+				}
+			}, hedgeDelay, TimeUnit.MILLISECONDS);
+			lock.lock();
+			try {
+				hedgeTimeout = t;
+				if (done) {
+					t.cancel();
+				}
+			} finally {
+				lock.unlock();
+			}
+		}
+	}
+
+	private void send() {
+		Attempt attempt;
+		lock.lock();
+		try {
+			if (done || request.getResponse().isDone()) {
+				// Cancelled by the caller
+				return;
+			}
+			attempt = new Attempt(request.newAttempt());
+			if (totalTimeout > 0) {
+				long remaining = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+				if (remaining <= 0) {
+					// The caller's deadline is about to fail the response
+					return;
+				}
+				attempt.request.setRequestTimeout(remaining);
+			}
+			attempts.add(attempt);
+		} finally {
+			lock.unlock();
+		}
+		attempt.request.getResponse().addDoneListener(attempt);
+		try {
+			client.sendAttempt(attempt.request);
+		} catch (IOException e) {
+			// Already failed the attempt's response, which is handled like any other failure
+			if (log.isDebugEnabled())
+				log.debug(e.getMessage(), e);
+		}
+	}
+
+	private void hedge() {
+		lock.lock();
+		try {
+			if (done || hedged || retryPending || attempts.size() != 1) {
+				return;
+			}
+			hedged = true;
+		} finally {
+			lock.unlock();
+		}
+		if (log.isDebugEnabled())
+			log.debug("Hedging " + request.getMethod() + " " + request.getUrl());
+		send();
+	}
+
+	private void succeeded(Attempt winner, ByteBuffer body) {
+		List<Attempt> losers;
+		lock.lock();
+		try {
+			if (done) {
+				return;
+			}
+			done = true;
+			attempts.remove(winner);
+			losers = new ArrayList<Attempt>(attempts);
+			attempts.clear();
+			if (null != hedgeTimeout) {
+				hedgeTimeout.cancel();
+			}
+		} finally {
+			lock.unlock();
+		}
+		policy.succeeded(request, System.nanoTime() - winner.start);
+		for (Attempt loser : losers) {
+			loser.request.abort(new CancellationException("Another attempt at " + request.getUrl() + " won"));
+		}
+		request.getResponse().completeFrom(winner.request.getResponse(), body);
+	}
+
+	private void failed(Attempt attempt, Throwable failure) {
+		long delay;
+		lock.lock();
+		try {
+			if (done || !attempts.remove(attempt)) {
+				return;
+			}
+			if (!attempts.isEmpty()) {
+				// The other attempt may yet succeed
+				return;
+			}
+			boolean outOfTime = (totalTimeout > 0 && deadline - System.nanoTime() <= 0);
+			delay = (outOfTime || request.getResponse().isDone() ? -1 : policy.retryDelay(request, ++retries, failure));
+			if (delay < 0) {
+				done = true;
+				if (null != hedgeTimeout) {
+					hedgeTimeout.cancel();
+				}
+			} else {
+				retryPending = true;
+			}
+		} finally {
+			lock.unlock();
+		}
+		if (delay < 0) {
+			request.getResponse().failFrom(attempt.request.getResponse(), failure);
+			return;
+		}
+		if (log.isDebugEnabled())
+			log.debug("Retrying " + request.getMethod() + " " + request.getUrl() + " in " + delay + "ms: " + failure);
+		Runnable retry = new Runnable() {
+			@Override public void run() {
+				lock.lock();
+				try {
+					retryPending = false;
+				} finally {
+					lock.unlock();
+				}
+				send();
+			}
+		};
+		if (delay > 0) {
+			HashedWheelTimer.DEFAULT.schedule(retry, delay, TimeUnit.MILLISECONDS);
+		} else {
+			retry.run();
+		}
+	}
+
+	/**
+	 * Called once the caller's response is done. Unless that was this exchange completing it, the
+	 * caller has given up, or its deadline has passed, so nothing still in flight is wanted.
+	 */
+	private void abandon() {
+		List<Attempt> abandoned;
+		lock.lock();
+		try {
+			if (done) {
+				return;
+			}
+			done = true;
+			abandoned = new ArrayList<Attempt>(attempts);
+			attempts.clear();
+			if (null != hedgeTimeout) {
+				hedgeTimeout.cancel();
+			}
+		} finally {
+			lock.unlock();
+		}
+		for (Attempt attempt : abandoned) {
+			attempt.request.abort(new CancellationException("The response to " + request.getUrl() + " is already done"));
+		}
+	}
+
+	private class Attempt implements Runnable {
+		private final Request request;
+		private final long start = System.nanoTime();
+
+		private Attempt(Request request) {
+			this.request = request;
+		}
+
+		/**
+		 * Called once the attempt's response is done.
+		 */
+		@Override public void run() {
+			Response response = request.getResponse();
+			if (response.isCancelled()) {
+				return;
+			}
+			try {
+				succeeded(this, response.getFuture().get());
+			} catch (ExecutionException e) {
+				failed(this, e.getCause());
+			} catch (InterruptedException e) {
+				// It's done, so get() doesn't wait
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+
+}
@@ -0,0 +1,36 @@
+package com.jbrisbin.async.http;
+
+/**
+ * Decides whether, and when, an {@link AsyncHttpClient} tries an idempotent request again. Only
+ * requests whose whole body is in memory and whose response is aggregated are retried or hedged;
+ * everything else is sent once, as if there were no policy.
+ * <p>
+ * Policies are called from I/O and timer threads and have to be thread-safe and quick.
+ *
+ * @author Jon Brisbin <jon@jbrisbin.com>
+ * @see DefaultRetryPolicy
+ */
+public interface RetryPolicy {
+
+	/**
+	 * @param retries how many times the request has been retried already, including this one.
+	 * @param failure why the last attempt failed: an {@link HttpException} for an error status,
+	 *                a {@link RequestTimeoutException} or an {@link java.io.IOException}.
+	 * @return how long, in milliseconds, to wait before retrying, or -1 to give up and fail the
+	 *         response with <code>failure</code>.
+	 */
+	long retryDelay(Request request, int retries, Throwable failure);
+
+	/**
+	 * @return how long, in milliseconds, to wait for a response before sending a duplicate of the
+	 *         request on another connection, or -1 to never do that. Whichever response comes back
+	 *         first is used and the other request is cancelled.
+	 */
+	long hedgeDelay(Request request);
+
+	/**
+	 * Called with how long each successful attempt took.
+	 */
+	void succeeded(Request request, long nanos);
+
+}
@@ -0,0 +1,157 @@
+package com.jbrisbin.async.http;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Shares one exchange with the server between identical <code>GET</code> and <code>HEAD</code>
+ * requests that are in flight at the same time, whichever client sends them. Requests are identical
+ * if they go to the same host and port with the same method, path, query and headers. Each caller's
+ * {@link Response} completes from the shared one with its own read-only view of the body.
+ *
+ * @author Jon Brisbin <jon@jbrisbin.com>
+ * @see HttpClientTransport#setCoalesceRequests(boolean)
+ */
+class SingleFlight {
+
+	private static final Logger log = LoggerFactory.getLogger(SingleFlight.class);
+
+	private final ConcurrentHashMap<String, Flight> flights = new ConcurrentHashMap<String, Flight>();
+
+	/**
+	 * @return whether <code>request</code> may share its exchange with others.
+	 */
+	static boolean isCoalescable(Request request) {
+		Request.Method method = request.getMethod();
+		return (Request.Method.GET == method || Request.Method.HEAD == method)
+				&& null == request.getBody()
+				&& null == request.getResponse().getConsumer()
+				&& !(request instanceof Upload);
+	}
+
+	/**
+	 * Join the exchange already in flight for an identical request, or start one.
+	 */
+	void send(AsyncHttpClient client, Request request) throws IOException {
+		String key = key(client, request);
+		Flight flight = null;
+		for (; ; ) {
+			Flight existing = flights.get(key);
+			if (null != existing) {
+				if (existing.join(request)) {
+					if (log.isDebugEnabled())
+						log.debug("Joined the request in flight for " + key);
+					return;
+				}
+				// It's completing; it'll take itself out of the map
+				flights.remove(key, existing);
+				continue;
+			}
+			if (null == flight) {
+				flight = new Flight(key, request);
+			}
+			if (null == flights.putIfAbsent(key, flight)) {
+				break;
+			}
+		}
+		flight.attempt.getResponse().addDoneListener(flight);
+		client.startExchange(flight.attempt);
+	}
+
+	static String key(AsyncHttpClient client, Request request) {
+		StringBuilder key = new StringBuilder()
+				.append(request.getMethod()).append(' ')
+				.append(client.getHost()).append(':').append(client.getPort())
+				.append(request.getUrl().getFile());
+		// Any header could be one the response varies on
+		Map<String, String> headers = new TreeMap<String, String>(String.CASE_INSENSITIVE_ORDER);
+		headers.putAll(request.getHeaders());
+		for (Map.Entry<String, String> h : headers.entrySet()) {
+			key.append('\n').append(h.getKey().toLowerCase()).append(':').append(h.getValue());
+		}
+		return key.toString();
+	}
+
+	private class Flight implements Runnable {
+		private final String key;
+		private final Request attempt;
+		private final ReentrantLock lock = new ReentrantLock();
+		private final List<Request> waiting = new ArrayList<Request>(4);
+		private boolean landed = false;
+
+		private Flight(String key, Request request) {
+			this.key = key;
+			this.attempt = request.newAttempt();
+			waiting.add(request);
+		}
+
+		/**
+		 * @return whether <code>request</code> will complete with this flight, which it can't once the
+		 *         flight's response is done.
+		 */
+		private boolean join(Request request) {
+			lock.lock();
+			try {
+				if (landed) {
+					return false;
+				}
+				waiting.add(request);
+				return true;
+			} finally {
+				lock.unlock();
+			}
+		}
+
+		/**
+		 * Called once the shared response is done.
+		 */
+		@Override public void run() {
+			List<Request> requests;
+			lock.lock();
+			try {
+				landed = true;
+				requests = new ArrayList<Request>(waiting);
+				waiting.clear();
+			} finally {
+				lock.unlock();
+			}
+			flights.remove(key, this);
+
+			Response response = attempt.getResponse();
+			ByteBuffer body = null;
+			Throwable failure = null;
+			try {
+				body = response.getFuture().get();
+			} catch (ExecutionException e) {
+				failure = e.getCause();
+			} catch (InterruptedException e) {
+				// It's done, so get() doesn't wait
+				Thread.currentThread().interrupt();
+				return;
+			} catch (RuntimeException e) {
+				// Cancelled
+				failure = e;
+			}
+			if (log.isDebugEnabled() && requests.size() > 1)
+				log.debug("Completing " + requests.size() + " requests for " + key + " from one response");
+			for (Request request : requests) {
+				if (null != failure) {
+					request.getResponse().failFrom(response, failure);
+				} else {
+					request.getResponse().completeFrom(response, null != body ? body.asReadOnlyBuffer() : null);
+				}
+			}
+		}
+	}
+
+}
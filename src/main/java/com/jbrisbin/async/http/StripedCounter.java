@@ -0,0 +1,43 @@
+package com.jbrisbin.async.http;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A counter spread over several cache lines, picked by thread, so threads updating it at the same
+ * time don't contend on a single variable. Reading it sums every stripe.
+ *
+ * @author Jon Brisbin <jon@jbrisbin.com>
+ */
+class StripedCounter {
+
+	// 8 longs to a 64-byte cache line
+	private static final int PADDING_SHIFT = 3;
+	private static final int STRIPES = stripes();
+
+	private final AtomicLongArray cells = new AtomicLongArray(STRIPES << PADDING_SHIFT);
+
+	void increment() {
+		add(1);
+	}
+
+	void add(long delta) {
+		cells.getAndAdd(((int) Thread.currentThread().getId() & (STRIPES - 1)) << PADDING_SHIFT, delta);
+	}
+
+	long sum() {
+		long sum = 0;
+		for (int i = 0; i < STRIPES; i++) {
+			sum += cells.get(i << PADDING_SHIFT);
+		}
+		return sum;
+	}
+
+	private static int stripes() {
+		int stripes = 1;
+		while (stripes < Runtime.getRuntime().availableProcessors() * 2) {
+			stripes <<= 1;
+		}
+		return stripes;
+	}
+
+}
@@ -6,6 +6,10 @@ import java.nio.ByteBuffer;
 import java.util.Map;
 
 /**
+ * A request whose body is a file. The file is written straight from memory-mapped regions of its
+ * {@link java.nio.channels.FileChannel}, so its contents never pass through the Java heap. If a
+ * body buffer is given too, it's written ahead of the file.
+ *
  * @author Jon Brisbin <jon@jbrisbin.com>
  */
 public class Upload extends Request {
@@ -15,23 +19,30 @@ public class Upload extends Request {
 	public Upload(URL url, Method method, File upload) {
 		super(url, method);
 		this.upload = upload;
-		if (method != Method.PUT || method != Method.POST) {
-			throw new IllegalArgumentException("Uploads have to use PUT or POST");
-		}
+		checkMethod(method);
+		contentLength = upload.length();
 	}
 
 	public Upload(URL url, Method method, Map<String, String> headers, File upload) {
 		super(url, method, headers);
 		this.upload = upload;
-		if (method != Method.PUT || method != Method.POST) {
-			throw new IllegalArgumentException("Uploads have to use PUT or POST");
-		}
+		checkMethod(method);
+		contentLength = upload.length();
 	}
 
 	public Upload(URL url, Method method, Map<String, String> headers, ByteBuffer body, String contentType, File upload) {
 		super(url, method, headers, body, contentType);
 		this.upload = upload;
-		if (method != Method.PUT || method != Method.POST) {
+		checkMethod(method);
+		contentLength += upload.length();
+	}
+
+	public File getFile() {
+		return upload;
+	}
+
+	private static void checkMethod(Method method) {
+		if (method != Method.PUT && method != Method.POST) {
 			throw new IllegalArgumentException("Uploads have to use PUT or POST");
 		}
 	}
@@ -0,0 +1,323 @@
+package com.jbrisbin.async.http
+
+import java.util.concurrent.CopyOnWriteArrayList
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.TimeUnit
+import org.glassfish.grizzly.Connection
+import org.glassfish.grizzly.EmptyCompletionHandler
+import spock.lang.Specification
+import static com.jbrisbin.async.http.test.TestHttpServer.waitFor
+
+/**
+ * @author Jon Brisbin <jon@jbrisbin.com>
+ */
+class ConnectionPoolSpec extends Specification {
+
+	ServerSocket serverSocket
+	List<Socket> accepted = new CopyOnWriteArrayList<Socket>()
+	HttpClientTransport transport
+	ConnectionPool pool
+
+	/**
+	 * What a lease was given, once it's been given it.
+	 */
+	static class Lease extends EmptyCompletionHandler<Connection> {
+		final CountDownLatch done = new CountDownLatch(1)
+		volatile Connection connection
+		volatile Throwable failure
+
+		void completed(Connection connection) {
+			this.connection = connection
+			done.countDown()
+		}
+
+		void failed(Throwable failure) {
+			this.failure = failure
+			done.countDown()
+		}
+
+		Lease await() {
+			assert done.await(10, TimeUnit.SECONDS)
+			this
+		}
+
+		boolean isDone() {
+			0 == done.count
+		}
+	}
+
+	def setup() {
+		// Accepts connections and leaves them be; the pool never writes to them
+		serverSocket = new ServerSocket(0, 50, InetAddress.getByName("localhost"))
+		Thread.startDaemon("test-pool-server") {
+			while (!serverSocket.closed) {
+				try {
+					accepted << serverSocket.accept()
+				} catch (IOException ignored) {
+					return
+				}
+			}
+		}
+		transport = new HttpClientTransport()
+		pool = transport.connectionPool
+	}
+
+	def cleanup() {
+		transport.stop()
+		serverSocket.close()
+		accepted.each { it.close() }
+	}
+
+	Lease lease(long timeout = 10000) {
+		Lease lease = new Lease()
+		pool.lease(transport.transport, "localhost", serverSocket.localPort, timeout, TimeUnit.MILLISECONDS, lease)
+		lease
+	}
+
+	def "Test a connection released as reusable is leased again"() {
+
+		when:
+		Connection first = lease().await().connection
+		ConnectionPool.release(first, true)
+
+		then:
+		pool.connectionCount == 1
+		pool.idleCount == 1
+
+		when:
+		Connection second = lease().await().connection
+		waitFor { accepted.size() > 0 }
+
+		then:
+		second.is(first)
+		pool.connectionCount == 1
+		pool.idleCount == 0
+		accepted.size() == 1
+
+	}
+
+	def "Test a connection released as not reusable is closed"() {
+
+		when:
+		Connection connection = lease().await().connection
+		ConnectionPool.release(connection, false)
+		waitFor { !connection.open }
+
+		then:
+		!connection.open
+		pool.connectionCount == 0
+		pool.idleCount == 0
+
+		when:
+		Connection next = lease().await().connection
+
+		then:
+		!next.is(connection)
+		pool.connectionCount == 1
+
+	}
+
+	def "Test releasing a connection twice doesn't pool it twice"() {
+
+		when:
+		Connection connection = lease().await().connection
+		ConnectionPool.release(connection, true)
+		ConnectionPool.release(connection, true)
+
+		then:
+		pool.idleCount == 1
+		pool.connectionCount == 1
+
+	}
+
+	def "Test a lease waits for a full route and is handed the next connection released"() {
+
+		given:
+		pool.maxConnectionsPerRoute = 1
+
+		when:
+		Connection first = lease().await().connection
+		Lease waiting = lease()
+		Thread.sleep(200)
+
+		then:
+		!waiting.done
+		pool.connectionCount == 1
+
+		when:
+		ConnectionPool.release(first, true)
+		waiting.await()
+		waitFor { accepted.size() > 0 }
+
+		then:
+		waiting.connection.is(first)
+		pool.idleCount == 0
+		accepted.size() == 1
+
+	}
+
+	def "Test a waiting lease opens its own connection when a leased one is closed"() {
+
+		given:
+		pool.maxConnectionsPerRoute = 1
+
+		when:
+		Connection first = lease().await().connection
+		Lease waiting = lease()
+		ConnectionPool.release(first, false)
+		waiting.await()
+
+		then:
+		null != waiting.connection
+		!waiting.connection.is(first)
+		pool.connectionCount == 1
+
+	}
+
+	def "Test a lease that waits too long for a full route times out"() {
+
+		given:
+		pool.maxConnectionsPerRoute = 1
+
+		when:
+		lease().await()
+		Lease waiting = lease(100).await()
+
+		then:
+		waiting.failure instanceof RequestTimeoutException
+		((RequestTimeoutException) waiting.failure).kind == RequestTimeoutException.Kind.CONNECT
+		pool.connectionCount == 1
+
+	}
+
+	def "Test idle connections past the idle timeout are evicted"() {
+
+		given:
+		pool.idleTimeout = 100
+
+		when:
+		Connection connection = lease().await().connection
+		ConnectionPool.release(connection, true)
+		pool.evictExpired()
+
+		then:
+		pool.idleCount == 1
+
+		when:
+		Thread.sleep(200)
+		pool.evictExpired()
+		waitFor { !connection.open }
+
+		then:
+		pool.idleCount == 0
+		pool.connectionCount == 0
+		!connection.open
+
+	}
+
+	def "Test a connection past its maximum lifetime isn't reused"() {
+
+		given:
+		pool.maxLifetime = 100
+
+		when:
+		Connection old = lease().await().connection
+		Thread.sleep(200)
+		ConnectionPool.release(old, true)
+		Connection next = lease().await().connection
+		waitFor { accepted.size() > 1 }
+
+		then:
+		!next.is(old)
+		pool.connectionCount == 1
+		accepted.size() == 2
+
+	}
+
+	def "Test an idle connection the server closes leaves the pool"() {
+
+		when:
+		Connection connection = lease().await().connection
+		ConnectionPool.release(connection, true)
+		waitFor { accepted.size() == 1 }
+		accepted[0].close()
+		waitFor { pool.idleCount == 0 }
+
+		then:
+		pool.idleCount == 0
+		pool.connectionCount == 0
+		!lease().await().connection.is(connection)
+
+	}
+
+	def "Test stopping the transport fails waiting leases and closes its connections"() {
+
+		given:
+		pool.maxConnectionsPerRoute = 1
+
+		when:
+		Connection leased = lease().await().connection
+		Lease waiting = lease()
+		transport.stop()
+		waiting.await()
+
+		then:
+		waiting.failure instanceof IOException
+		waitFor { !leased.open }
+		!leased.open
+
+	}
+
+	def "Test idle connections are only evicted in the background while the transport runs"() {
+
+		given:
+		HttpClientTransport unstarted = new HttpClientTransport()
+
+		expect:
+		// Nothing on the timer holds on to a transport that never started
+		null == unstarted.connectionPool.evictionTask
+		null == pool.evictionTask
+
+		when:
+		transport.start()
+		HashedWheelTimer.Timeout eviction = pool.evictionTask
+
+		then:
+		null != eviction
+		!eviction.cancelled
+
+		when:
+		transport.stop()
+
+		then:
+		pool.evictionTask.cancelled
+
+	}
+
+	def "Test addresses are tried alternating between IPv6 and IPv4, starting from the one given"() {
+
+		given:
+		Map<String, InetAddress> byName = [
+				a4: InetAddress.getByAddress("h", [10, 0, 0, 1] as byte[]),
+				b4: InetAddress.getByAddress("h", [10, 0, 0, 2] as byte[]),
+				c4: InetAddress.getByAddress("h", [10, 0, 0, 3] as byte[]),
+				a6: InetAddress.getByAddress("h", ([0xfd] + [0] * 14 + [1]) as byte[]),
+				b6: InetAddress.getByAddress("h", ([0xfd] + [0] * 14 + [2]) as byte[])
+		]
+		InetAddress[] addresses = resolved.collect { byName[it] } as InetAddress[]
+
+		expect:
+		ConnectionPool.order(addresses, first).collect { a -> byName.find { it.value == a }.key } == tried
+
+		where:
+		resolved                         | first | tried
+		["a4", "b4", "c4", "a6", "b6"]   | 0     | ["a4", "a6", "b4", "b6", "c4"]
+		["a4", "b4", "c4", "a6", "b6"]   | 1     | ["b4", "a6", "c4", "b6", "a4"]
+		["a4", "b4", "c4", "a6", "b6"]   | 3     | ["a6", "a4", "b6", "b4", "c4"]
+		["a6", "b6", "a4"]               | 0     | ["a6", "a4", "b6"]
+		["a4", "b4"]                     | 1     | ["b4", "a4"]
+		["a4"]                           | 0     | ["a4"]
+
+	}
+
+}
@@ -0,0 +1,171 @@
+package com.jbrisbin.async.http
+
+import java.util.concurrent.CopyOnWriteArrayList
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicInteger
+import spock.lang.Specification
+
+/**
+ * @author Jon Brisbin <jon@jbrisbin.com>
+ */
+class HashedWheelTimerSpec extends Specification {
+
+	// Eight 10ms ticks, so anything past 80ms goes round the wheel more than once
+	HashedWheelTimer timer = new HashedWheelTimer("test-timer", 10, TimeUnit.MILLISECONDS, 5)
+
+	def "Test timeouts run in the order they're due, whatever order they were scheduled in"() {
+
+		given:
+		List<Long> delays = [150L, 30L, 250L, 90L, 60L, 400L, 120L]
+		List<Long> ran = new CopyOnWriteArrayList<Long>()
+		CountDownLatch done = new CountDownLatch(delays.size())
+
+		when:
+		delays.each { long delay ->
+			timer.schedule({ ran << delay; done.countDown() } as Runnable, delay, TimeUnit.MILLISECONDS)
+		}
+		done.await(5, TimeUnit.SECONDS)
+
+		then:
+		ran == new ArrayList<Long>(delays).sort()
+
+	}
+
+	def "Test a timeout never runs before its delay has passed"() {
+
+		given:
+		List<Long> delays = [1L, 15L, 75L, 85L, 170L, 300L]
+		List<Long> early = new CopyOnWriteArrayList<Long>()
+		CountDownLatch done = new CountDownLatch(delays.size())
+
+		when:
+		delays.each { long delay ->
+			long start = System.nanoTime()
+			timer.schedule({
+				if (System.nanoTime() - start < TimeUnit.MILLISECONDS.toNanos(delay)) {
+					early << delay
+				}
+				done.countDown()
+			} as Runnable, delay, TimeUnit.MILLISECONDS)
+		}
+		boolean finished = done.await(5, TimeUnit.SECONDS)
+
+		then:
+		finished
+		early.empty
+
+	}
+
+	def "Test a timeout due after several turns of the wheel waits for all of them"() {
+
+		given:
+		long start = System.nanoTime()
+		long ranAfter = -1
+		CountDownLatch done = new CountDownLatch(1)
+
+		when:
+		// Four turns and a bit, so it shares a bucket with timeouts due far sooner
+		timer.schedule({ ranAfter = System.nanoTime() - start; done.countDown() } as Runnable, 330, TimeUnit.MILLISECONDS)
+		done.await(5, TimeUnit.SECONDS)
+
+		then:
+		TimeUnit.NANOSECONDS.toMillis(ranAfter) >= 330
+
+	}
+
+	def "Test a cancelled timeout doesn't run and the ones beside it still do"() {
+
+		given:
+		List<Integer> ran = new CopyOnWriteArrayList<Integer>()
+		CountDownLatch done = new CountDownLatch(3)
+
+		when:
+		// All five share a bucket; cancel the first, a middle one and the last
+		List<HashedWheelTimer.Timeout> timeouts = (0..4).collect { int i ->
+			timer.schedule({ ran << i; done.countDown() } as Runnable, 50, TimeUnit.MILLISECONDS)
+		}
+		boolean cancelled = [0, 2, 4].every { timeouts[it].cancel() }
+		done.await(5, TimeUnit.SECONDS)
+		// Long enough for the cancelled ones to have run, had they been going to
+		Thread.sleep(100)
+
+		then:
+		cancelled
+		ran as Set == [1, 3] as Set
+		timeouts[2].cancelled
+		!timeouts[1].cancelled
+
+	}
+
+	def "Test a timeout can't be cancelled once it has run, or twice"() {
+
+		given:
+		CountDownLatch done = new CountDownLatch(1)
+
+		when:
+		HashedWheelTimer.Timeout ran = timer.schedule({ done.countDown() } as Runnable, 10, TimeUnit.MILLISECONDS)
+		done.await(5, TimeUnit.SECONDS)
+		HashedWheelTimer.Timeout pending = timer.schedule({} as Runnable, 1, TimeUnit.MINUTES)
+
+		then:
+		!ran.cancel()
+		!ran.cancelled
+		pending.cancel()
+		!pending.cancel()
+
+	}
+
+	def "Test a task that throws doesn't stop the ones after it"() {
+
+		given:
+		CountDownLatch done = new CountDownLatch(1)
+
+		when:
+		timer.schedule({ throw new IllegalStateException("expected") } as Runnable, 10, TimeUnit.MILLISECONDS)
+		timer.schedule({ done.countDown() } as Runnable, 40, TimeUnit.MILLISECONDS)
+
+		then:
+		done.await(5, TimeUnit.SECONDS)
+
+	}
+
+	def "Test a task can schedule another"() {
+
+		given:
+		CountDownLatch done = new CountDownLatch(1)
+
+		when:
+		timer.schedule({
+			timer.schedule({ done.countDown() } as Runnable, 20, TimeUnit.MILLISECONDS)
+		} as Runnable, 20, TimeUnit.MILLISECONDS)
+
+		then:
+		done.await(5, TimeUnit.SECONDS)
+
+	}
+
+	def "Test many timeouts scheduled from many threads all run once"() {
+
+		given:
+		AtomicInteger ran = new AtomicInteger()
+		CountDownLatch done = new CountDownLatch(10000)
+
+		when:
+		List<Thread> threads = (1..10).collect { int t ->
+			Thread.start {
+				1000.times { int i ->
+					timer.schedule({ ran.incrementAndGet(); done.countDown() } as Runnable, (t * i) % 200, TimeUnit.MILLISECONDS)
+				}
+			}
+		}
+		threads*.join()
+		done.await(10, TimeUnit.SECONDS)
+		Thread.sleep(50)
+
+		then:
+		ran.get() == 10000
+
+	}
+
+}
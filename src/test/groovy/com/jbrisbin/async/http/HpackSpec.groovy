@@ -0,0 +1,145 @@
+package com.jbrisbin.async.http
+
+import spock.lang.Specification
+
+/**
+ * Header blocks from the examples in RFC 7541 Appendix C.
+ *
+ * @author Jon Brisbin <jon@jbrisbin.com>
+ */
+class HpackSpec extends Specification {
+
+	static byte[] hex(String s) {
+		s = s.replaceAll("\\s", "")
+		byte[] b = new byte[s.length() / 2]
+		for (int i = 0; i < b.length; i++) {
+			b[i] = (byte) Integer.parseInt(s.substring(2 * i, 2 * i + 2), 16)
+		}
+		b
+	}
+
+	static List<List<String>> decode(Hpack.Decoder decoder, String block) {
+		byte[] b = hex(block)
+		decoder.decode(b, 0, b.length).collect { it as List }
+	}
+
+	static String encode(Hpack.Encoder encoder, List<List<String>> headers) {
+		ByteArrayOutputStream out = new ByteArrayOutputStream()
+		encoder.startBlock(out)
+		headers.each { encoder.encode(it[0], it[1], out) }
+		out.toByteArray().collect { String.format("%02x", it & 0xff) }.join("")
+	}
+
+	def "Test literal header fields (RFC 7541 C2)"() {
+
+		expect:
+		decode(new Hpack.Decoder(), block) == headers
+
+		where:
+		block                                                         | headers
+		"400a637573746f6d2d6b65790d637573746f6d2d686561646572"         | [["custom-key", "custom-header"]]
+		"040c2f73616d706c652f70617468"                                 | [[":path", "/sample/path"]]
+		"100870617373776f726406736563726574"                           | [["password", "secret"]]
+		"82"                                                           | [[":method", "GET"]]
+
+	}
+
+	def "Test decoding requests without Huffman coding (RFC 7541 C3)"() {
+
+		given:
+		Hpack.Decoder decoder = new Hpack.Decoder()
+
+		expect:
+		decode(decoder, "828684410f7777772e6578616d706c652e636f6d") == C_REQUEST_1
+		decode(decoder, "828684be58086e6f2d6361636865") == C_REQUEST_2
+		decode(decoder, "828785bf400a637573746f6d2d6b65790c637573746f6d2d76616c7565") == C_REQUEST_3
+
+	}
+
+	def "Test decoding requests with Huffman coding (RFC 7541 C4)"() {
+
+		given:
+		Hpack.Decoder decoder = new Hpack.Decoder()
+
+		expect:
+		decode(decoder, C4_1) == C_REQUEST_1
+		decode(decoder, C4_2) == C_REQUEST_2
+		decode(decoder, C4_3) == C_REQUEST_3
+
+	}
+
+	def "Test encoding requests, which Huffman codes what it indexes (RFC 7541 C4)"() {
+
+		given:
+		Hpack.Encoder encoder = new Hpack.Encoder()
+
+		expect:
+		encode(encoder, C_REQUEST_1) == C4_1
+		encode(encoder, C_REQUEST_2) == C4_2
+		encode(encoder, C_REQUEST_3) == C4_3
+
+	}
+
+	def "Test decoding responses with Huffman coding and evictions from a 256 byte table (RFC 7541 C6)"() {
+
+		given:
+		Hpack.Decoder decoder = new Hpack.Decoder()
+
+		expect:
+		// The examples assume SETTINGS_HEADER_TABLE_SIZE of 256, so the first block starts by saying so
+		decode(decoder, "3fe101" + "488264025885aec3771a4b6196d07abe941054d444a8200595040b8166e082a62d1bff6e919d29ad171863c78f0b97c8e9ae82ae43d3") == [
+				[":status", "302"],
+				["cache-control", "private"],
+				["date", "Mon, 21 Oct 2013 20:13:21 GMT"],
+				["location", "https://www.example.com"]
+		]
+		decode(decoder, "4883640effc1c0bf") == [
+				[":status", "307"],
+				["cache-control", "private"],
+				["date", "Mon, 21 Oct 2013 20:13:21 GMT"],
+				["location", "https://www.example.com"]
+		]
+		decode(decoder, "88c16196d07abe941054d444a8200595040b8166e084a62d1bffc05a839bd9ab77ad94e7821dd7f2e6c7b335dfdfcd5b3960d5af27087f3672c1ab270fb5291f9587316065c003ed4ee5b1063d5007") == [
+				[":status", "200"],
+				["cache-control", "private"],
+				["date", "Mon, 21 Oct 2013 20:13:22 GMT"],
+				["location", "https://www.example.com"],
+				["content-encoding", "gzip"],
+				["set-cookie", "foo=ASDJKHQKBZXOQWEOPIUAXQWEOIU; max-age=3600; version=1"]
+		]
+
+	}
+
+	def "Test malformed blocks are refused"() {
+
+		when:
+		decode(new Hpack.Decoder(), block)
+
+		then:
+		thrown(IOException)
+
+		where:
+		block << [
+				// Index past the end of an empty dynamic table
+				"be",
+				// String longer than the block
+				"400a6375",
+				// Integer that never ends
+				"ffffffffffff"
+		]
+
+	}
+
+	static final List<List<String>> C_REQUEST_1 = [
+			[":method", "GET"], [":scheme", "http"], [":path", "/"], [":authority", "www.example.com"]
+	]
+	static final List<List<String>> C_REQUEST_2 = C_REQUEST_1 + [["cache-control", "no-cache"]]
+	static final List<List<String>> C_REQUEST_3 = [
+			[":method", "GET"], [":scheme", "https"], [":path", "/index.html"], [":authority", "www.example.com"],
+			["custom-key", "custom-value"]
+	]
+	static final String C4_1 = "828684418cf1e3c2e5f23a6ba0ab90f4ff"
+	static final String C4_2 = "828684be5886a8eb10649cbf"
+	static final String C4_3 = "828785bf408825a849e95ba97d7f8925a849e95bb8e8b4bf"
+
+}
@@ -0,0 +1,260 @@
+package com.jbrisbin.async.http
+
+import java.nio.ByteBuffer
+import java.util.concurrent.CopyOnWriteArrayList
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.ExecutionException
+import java.util.concurrent.TimeUnit
+import spock.lang.Specification
+import static com.jbrisbin.async.http.test.TestHttpServer.text
+
+/**
+ * @author Jon Brisbin <jon@jbrisbin.com>
+ */
+class Http2SessionSpec extends Specification {
+
+	TestHttp2Server server
+	HttpClientTransport transport
+	AsyncHttpClient client
+
+	def setup() {
+		server = new TestHttp2Server().start()
+		transport = new HttpClientTransport().setHttp2PriorKnowledge(true)
+		client = AsyncHttpClient.connect("localhost", server.port, transport)
+	}
+
+	def cleanup() {
+		client.dispose()
+		transport.stop()
+		server.stop()
+	}
+
+	Request get(String path) {
+		new Request(new URL(server.url(path)), Request.Method.GET)
+	}
+
+	def "Test a GET gets its status, headers and body"() {
+
+		given:
+		server.handler = { TestHttp2Server.Exchange ex ->
+			ex.respond(200, ["content-type": "text/plain", "x-riak-vclock": "a85hYGBgzGDKBVI", "set-cookie": "a=1"],
+					(ex.headers[":method"] + " " + ex.headers[":path"]).bytes)
+		}
+
+		when:
+		Response response = client.send(get("/riak/bucket/key?r=2"))
+		ByteBuffer body = response.get(10, TimeUnit.SECONDS)
+
+		then:
+		text(body) == "GET /riak/bucket/key?r=2"
+		response.status == 200
+		response.headers.get("X-Riak-Vclock") == "a85hYGBgzGDKBVI"
+		response.headers.get("x-riak-vclock") == "a85hYGBgzGDKBVI"
+		response.headers.get("Set-Cookie") == "a=1"
+		server.framesOfType(TestHttp2Server.HEADERS)[0].streamId == 1
+
+	}
+
+	def "Test requests in flight at once share one connection"() {
+
+		given:
+		server.handler = { TestHttp2Server.Exchange ex ->
+			Thread.sleep(50)
+			ex.respond(200, [:], ex.headers[":path"].bytes)
+		}
+
+		when:
+		List<Response> responses = (1..20).collect { client.send(get("/" + it)) }
+		List<String> bodies = responses.collect { text(it.get(10, TimeUnit.SECONDS)) }
+
+		then:
+		bodies == (1..20).collect { "/" + it }
+		server.connections.get() == 1
+		server.framesOfType(TestHttp2Server.HEADERS)*.streamId as Set == (1..39).step(2) as Set
+
+	}
+
+	def "Test a PUT's body is sent in DATA frames"() {
+
+		given:
+		byte[] body = new byte[100000]
+		new Random(1).nextBytes(body)
+		byte[] received = null
+		server.handler = { TestHttp2Server.Exchange ex ->
+			received = ex.body.toByteArray()
+			ex.respond(204, [:], null)
+		}
+
+		when:
+		Request request = new Request(new URL(server.url("/upload")), Request.Method.PUT, [:], ByteBuffer.wrap(body), "application/octet-stream")
+		Response response = client.send(request)
+		response.get(10, TimeUnit.SECONDS)
+
+		then:
+		response.status == 204
+		Arrays.equals(received, body)
+
+	}
+
+	def "Test a body bigger than the flow control windows arrives whole"() {
+
+		given:
+		byte[] body = new byte[8 * 1024 * 1024]
+		new Random(2).nextBytes(body)
+		server.handler = { TestHttp2Server.Exchange ex -> ex.respond(200, [:], body) }
+
+		when:
+		ByteBuffer received = client.send(get("/big")).get(30, TimeUnit.SECONDS)
+
+		then:
+		received == ByteBuffer.wrap(body)
+		!server.framesOfType(TestHttp2Server.WINDOW_UPDATE).findAll { it.streamId == 1 }.empty
+
+	}
+
+	def "Test DATA that arrives while paused is held and delivered in order on resume"() {
+
+		given:
+		byte[] body = new byte[4 * 1024 * 1024]
+		new Random(3).nextBytes(body)
+		server.handler = { TestHttp2Server.Exchange ex -> ex.respond(200, [:], body) }
+		ByteArrayOutputStream received = new ByteArrayOutputStream()
+		CountDownLatch paused = new CountDownLatch(1)
+		CountDownLatch done = new CountDownLatch(1)
+		List<Thread> threadsAfterResume = new CopyOnWriteArrayList<Thread>()
+		boolean resumed = false
+		Request request = get("/big")
+		request.response.setConsumer(new ResponseConsumer() {
+			void headers(Response response) {
+			}
+
+			void chunk(Response response, ByteBuffer chunk) {
+				byte[] bytes = new byte[chunk.remaining()]
+				chunk.get(bytes)
+				synchronized (received) {
+					received.write(bytes)
+				}
+				if (resumed) {
+					threadsAfterResume << Thread.currentThread()
+				} else if (1 == paused.count) {
+					response.pause()
+					paused.countDown()
+				}
+			}
+
+			void completed(Response response) {
+				done.countDown()
+			}
+
+			void failed(Response response, Throwable t) {
+			}
+		})
+
+		when:
+		Response response = client.send(request)
+		paused.await(10, TimeUnit.SECONDS)
+		int deliveredWhenPaused = received.size()
+		// Long enough for the server to use up the stream's window
+		Thread.sleep(500)
+		int deliveredWhilePaused = received.size()
+		resumed = true
+		response.resume()
+		response.get(30, TimeUnit.SECONDS)
+		done.await(10, TimeUnit.SECONDS)
+
+		then:
+		deliveredWhilePaused == deliveredWhenPaused
+		received.size() == body.length
+		Arrays.equals(received.toByteArray(), body)
+		!threadsAfterResume.empty
+		!threadsAfterResume.contains(Thread.currentThread())
+
+	}
+
+	def "Test a stream reset by the server fails only its own response"() {
+
+		given:
+		server.handler = { TestHttp2Server.Exchange ex ->
+			if (ex.headers[":path"] == "/reset") {
+				ex.reset(0x2)
+			} else {
+				ex.respond(200, [:], "ok".bytes)
+			}
+		}
+
+		when:
+		Response reset = client.send(get("/reset"))
+		Response ok = client.send(get("/ok"))
+		reset.get(10, TimeUnit.SECONDS)
+
+		then:
+		ExecutionException e = thrown()
+		e.cause.message.contains("reset")
+		text(ok.get(10, TimeUnit.SECONDS)) == "ok"
+
+	}
+
+	def "Test an error status fails the response"() {
+
+		given:
+		server.handler = { TestHttp2Server.Exchange ex -> ex.respond(404, [:], "missing".bytes) }
+
+		when:
+		client.send(get("/missing")).get(10, TimeUnit.SECONDS)
+
+		then:
+		ExecutionException e = thrown()
+		e.cause instanceof HttpException
+		((HttpException) e.cause).status == 404
+
+	}
+
+	def "Test a PING is answered with the same payload"() {
+
+		given:
+		byte[] payload = [1, 2, 3, 4, 5, 6, 7, 8] as byte[]
+
+		when:
+		client.send(get("/")).get(10, TimeUnit.SECONDS)
+		server.frame(TestHttp2Server.PING, 0, 0, payload)
+		long deadline = System.currentTimeMillis() + 5000
+		while (server.framesOfType(TestHttp2Server.PING).empty && System.currentTimeMillis() < deadline) {
+			Thread.sleep(10)
+		}
+		List<TestHttp2Server.Frame> pings = server.framesOfType(TestHttp2Server.PING)
+
+		then:
+		pings.size() == 1
+		pings[0].flags == 0x1
+		Arrays.equals(pings[0].payload, payload)
+
+	}
+
+	def "Test a frame bigger than allowed ends the connection with FRAME_SIZE_ERROR"() {
+
+		given:
+		server.handler = { TestHttp2Server.Exchange ex ->
+			ex.sendHeaders([[":status", "200"]], false)
+			ex.session.frame(TestHttp2Server.DATA, 0, ex.streamId, new byte[TestHttp2Server.MAX_FRAME_SIZE + 1])
+		}
+
+		when:
+		client.send(get("/")).get(10, TimeUnit.SECONDS)
+
+		then:
+		thrown(ExecutionException)
+
+		when:
+		long deadline = System.currentTimeMillis() + 5000
+		while (server.framesOfType(TestHttp2Server.GOAWAY).empty && System.currentTimeMillis() < deadline) {
+			Thread.sleep(10)
+		}
+		List<TestHttp2Server.Frame> goAways = server.framesOfType(TestHttp2Server.GOAWAY)
+
+		then:
+		goAways.size() == 1
+		TestHttp2Server.int32(goAways[0].payload, 4) == 0x6
+
+	}
+
+}
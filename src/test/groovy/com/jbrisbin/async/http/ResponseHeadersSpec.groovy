@@ -0,0 +1,201 @@
+package com.jbrisbin.async.http
+
+import java.nio.ByteBuffer
+import org.glassfish.grizzly.Buffer
+import org.glassfish.grizzly.http.util.MimeHeaders
+import org.glassfish.grizzly.memory.ByteBufferWrapper
+import spock.lang.Specification
+
+/**
+ * @author Jon Brisbin <jon@jbrisbin.com>
+ */
+class ResponseHeadersSpec extends Specification {
+
+	/**
+	 * Headers as Grizzly leaves them once it's parsed them: ranges of the buffer they were read into.
+	 */
+	static MimeHeaders wire(List<List<String>> fields) {
+		StringBuilder raw = new StringBuilder()
+		fields.each { raw.append(it[0]).append(": ").append(it[1]).append("\r\n") }
+		Buffer buffer = new ByteBufferWrapper(ByteBuffer.wrap(raw.toString().getBytes("ISO-8859-1")))
+		MimeHeaders headers = new MimeHeaders()
+		int pos = 0
+		fields.each {
+			int valueStart = pos + it[0].length() + 2
+			headers.addValue(buffer, pos, pos + it[0].length()).setBuffer(buffer, valueStart, valueStart + it[1].length())
+			pos = valueStart + it[1].length() + 2
+		}
+		headers
+	}
+
+	static ResponseHeaders read(List<List<String>> fields) {
+		ResponseHeaders headers = new ResponseHeaders()
+		headers.read(wire(fields))
+		headers
+	}
+
+	static final List<List<String>> FIELDS = [
+			["Content-Type", "text/plain"],
+			["Set-Cookie", "a=1"],
+			["Link", "</a>; rel=next"],
+			["set-cookie", "b=2"],
+			["SET-COOKIE", "c=3"]
+	]
+
+	def "Test names are matched without regard to case and the first value wins"() {
+
+		when:
+		ResponseHeaders headers = read(FIELDS)
+
+		then:
+		headers.get("content-type") == "text/plain"
+		headers.get("Set-Cookie") == "a=1"
+		headers.get("SET-cookie") == "a=1"
+		headers.containsKey("LINK")
+		!headers.containsKey("Content-Length")
+		headers.get("Content-Length") == null
+
+	}
+
+	def "Test every value of a repeated header is kept in order"() {
+
+		when:
+		ResponseHeaders headers = read(FIELDS)
+
+		then:
+		headers.getAll("set-cookie") == ["a=1", "b=2", "c=3"]
+		headers.getAll("Link") == ["</a>; rel=next"]
+		headers.getAll("Missing") == []
+
+	}
+
+	def "Test the map has one entry per header, under the first name it was seen with"() {
+
+		when:
+		ResponseHeaders headers = read(FIELDS)
+
+		then:
+		headers.size() == 3
+		headers.keySet() as List == ["Content-Type", "Set-Cookie", "Link"]
+		headers.entrySet().collect { it.value } == ["text/plain", "a=1", "</a>; rel=next"]
+
+	}
+
+	def "Test counting and looking up headers doesn't make strings of the names"() {
+
+		given:
+		ResponseHeaders headers = read(FIELDS)
+
+		when:
+		int size = headers.size()
+		boolean found = headers.containsKey("link")
+
+		then:
+		size == 3
+		found
+		headers.@names.every { null == it }
+		headers.@values.every { null == it }
+
+	}
+
+	def "Test names read off the wire match names added as strings"() {
+
+		given:
+		ResponseHeaders headers = new ResponseHeaders()
+		headers.add("x-riak-vclock", "first")
+
+		when:
+		headers.read(wire([["X-Riak-Vclock", "second"], ["Content-Type", "text/plain"]]))
+
+		then:
+		headers.size() == 2
+		headers.get("X-RIAK-VCLOCK") == "first"
+		headers.getAll("x-riak-vclock") == ["first", "second"]
+
+	}
+
+	def "Test headers read in two goes, like trailers after headers, keep their values"() {
+
+		given:
+		ResponseHeaders headers = read(FIELDS)
+
+		when:
+		headers.read(wire([["X-Checksum", "abc"], ["set-cookie", "d=4"]]))
+
+		then:
+		headers.get("Content-Type") == "text/plain"
+		headers.get("x-checksum") == "abc"
+		headers.getAll("Set-Cookie") == ["a=1", "b=2", "c=3", "d=4"]
+		headers.size() == 4
+
+	}
+
+	def "Test put replaces every value and remove drops them all"() {
+
+		given:
+		ResponseHeaders headers = read(FIELDS)
+
+		when:
+		String old = headers.put("SET-COOKIE", "z=9")
+		String removed = headers.remove("link")
+
+		then:
+		old == "a=1"
+		removed == "</a>; rel=next"
+		headers.getAll("Set-Cookie") == ["z=9"]
+		!headers.containsKey("Link")
+		headers.size() == 2
+		headers.get("Content-Type") == "text/plain"
+
+	}
+
+	def "Test removing through the entry set iterator"() {
+
+		given:
+		ResponseHeaders headers = read(FIELDS)
+
+		when:
+		Iterator<Map.Entry<String, String>> i = headers.entrySet().iterator()
+		while (i.hasNext()) {
+			if (i.next().key.equalsIgnoreCase("set-cookie")) {
+				i.remove()
+			}
+		}
+
+		then:
+		headers.keySet() as List == ["Content-Type", "Link"]
+		headers.getAll("set-cookie") == []
+
+	}
+
+	def "Test addAll copies every value, and the copy stands on its own"() {
+
+		given:
+		ResponseHeaders headers = read(FIELDS)
+
+		when:
+		ResponseHeaders copy = new ResponseHeaders().addAll(headers)
+		headers.clear()
+
+		then:
+		headers.isEmpty()
+		copy.getAll("set-cookie") == ["a=1", "b=2", "c=3"]
+		copy.size() == 3
+
+	}
+
+	def "Test many fields grow the arrays they're kept in"() {
+
+		given:
+		List<List<String>> fields = (1..100).collect { ["X-Header-" + (it % 40), "v" + it] }
+
+		when:
+		ResponseHeaders headers = read(fields)
+
+		then:
+		headers.size() == 40
+		headers.getAll("x-header-1") == ["v1", "v41", "v81"]
+
+	}
+
+}
@@ -0,0 +1,278 @@
+package com.jbrisbin.async.http
+
+import java.util.concurrent.CopyOnWriteArrayList
+import java.util.concurrent.atomic.AtomicInteger
+
+/**
+ * A bare-bones HTTP/2 server, prior knowledge only, on a loopback socket. Each stream the client opens
+ * is handed, once its request is complete, to <code>handler</code> on a thread of its own, which
+ * answers it through the {@link TestHttp2Server.Exchange}. DATA sent that way waits for flow control
+ * credit like a real server's would. Everything the client sends is recorded in <code>frames</code>.
+ * Package-private, since it shares {@link Hpack} with the client.
+ *
+ * @author Jon Brisbin <jon@jbrisbin.com>
+ */
+class TestHttp2Server {
+
+	static final int DATA = 0x0
+	static final int HEADERS = 0x1
+	static final int RST_STREAM = 0x3
+	static final int SETTINGS = 0x4
+	static final int PING = 0x6
+	static final int GOAWAY = 0x7
+	static final int WINDOW_UPDATE = 0x8
+	static final int CONTINUATION = 0x9
+	static final int MAX_FRAME_SIZE = 16384
+
+	Closure handler = { Exchange ex -> ex.respond(200, [:], "ok".bytes) }
+	final List<Frame> frames = new CopyOnWriteArrayList<Frame>()
+	final AtomicInteger connections = new AtomicInteger()
+
+	private ServerSocket serverSocket
+	private final List<Session> sessions = new CopyOnWriteArrayList<Session>()
+
+	static class Frame {
+		int type
+		int flags
+		int streamId
+		byte[] payload
+	}
+
+	static class Exchange {
+		Session session
+		int streamId
+		Map<String, String> headers = new LinkedHashMap<String, String>()
+		ByteArrayOutputStream body = new ByteArrayOutputStream()
+
+		void respond(int status, Map<String, String> headers, byte[] body) {
+			boolean empty = (null == body || 0 == body.length)
+			sendHeaders([[":status", String.valueOf(status)]] + headers.collect { k, v -> [k, v] }, empty)
+			if (!empty) {
+				sendData(body, true)
+			}
+		}
+
+		void sendHeaders(List<List<String>> fields, boolean endStream) {
+			session.sendHeaders(streamId, fields, endStream)
+		}
+
+		/**
+		 * Send <code>data</code> in frames as big as allowed, waiting for window as it goes.
+		 */
+		void sendData(byte[] data, boolean endStream) {
+			session.sendData(streamId, data, endStream)
+		}
+
+		void reset(int code) {
+			session.frame(RST_STREAM, 0, streamId, int32(code))
+		}
+	}
+
+	TestHttp2Server start() {
+		serverSocket = new ServerSocket(0, 50, InetAddress.getByName("localhost"))
+		Thread.startDaemon("test-http2-server") {
+			while (!serverSocket.closed) {
+				Socket socket
+				try {
+					socket = serverSocket.accept()
+				} catch (IOException ignored) {
+					return
+				}
+				connections.incrementAndGet()
+				Session session = new Session(server: this, socket: socket)
+				sessions << session
+				Thread.startDaemon("test-http2-connection") {
+					session.serve()
+				}
+			}
+		}
+		this
+	}
+
+	int getPort() {
+		serverSocket.localPort
+	}
+
+	String url(String path) {
+		"http://localhost:${port}${path}"
+	}
+
+	/**
+	 * Write a raw frame on every open connection.
+	 */
+	void frame(int type, int flags, int streamId, byte[] payload) {
+		sessions.each { it.frame(type, flags, streamId, payload) }
+	}
+
+	List<Frame> framesOfType(int type) {
+		frames.findAll { it.type == type }
+	}
+
+	void stop() {
+		serverSocket?.close()
+		sessions.each { it.socket.close() }
+	}
+
+	static byte[] int32(int v) {
+		[(byte) (v >>> 24), (byte) (v >>> 16), (byte) (v >>> 8), (byte) v] as byte[]
+	}
+
+	static int int32(byte[] b, int i) {
+		((b[i] & 0xff) << 24) | ((b[i + 1] & 0xff) << 16) | ((b[i + 2] & 0xff) << 8) | (b[i + 3] & 0xff)
+	}
+
+	static class Session {
+		TestHttp2Server server
+		Socket socket
+		private OutputStream out
+		private final Hpack.Decoder decoder = new Hpack.Decoder()
+		private final Hpack.Encoder encoder = new Hpack.Encoder()
+		private final Map<Integer, Exchange> exchanges = new HashMap<Integer, Exchange>()
+		private final Map<Integer, Long> streamWindows = new HashMap<Integer, Long>()
+		private long connectionWindow = 65535
+		private long initialWindow = 65535
+
+		void serve() {
+			try {
+				DataInputStream input = new DataInputStream(new BufferedInputStream(socket.inputStream))
+				out = new BufferedOutputStream(socket.outputStream)
+				byte[] preface = new byte[24]
+				input.readFully(preface)
+				frame(SETTINGS, 0, 0, new byte[0])
+				ByteArrayOutputStream block = null
+				int blockStreamId = 0
+				boolean blockEndStream = false
+				while (true) {
+					int length = (input.readUnsignedByte() << 16) | (input.readUnsignedByte() << 8) | input.readUnsignedByte()
+					Frame f = new Frame(type: input.readUnsignedByte(), flags: input.readUnsignedByte(), streamId: input.readInt() & 0x7fffffff)
+					f.payload = new byte[length]
+					input.readFully(f.payload)
+					server.frames << f
+					switch (f.type) {
+						case HEADERS:
+						case CONTINUATION:
+							if (f.type == HEADERS) {
+								block = new ByteArrayOutputStream()
+								blockStreamId = f.streamId
+								blockEndStream = (f.flags & 0x1) != 0
+							}
+							block.write(f.payload)
+							if ((f.flags & 0x4) != 0) {
+								byte[] b = block.toByteArray()
+								Exchange ex = new Exchange(session: this, streamId: blockStreamId)
+								decoder.decode(b, 0, b.length).each { ex.headers[it[0]] = it[1] }
+								synchronized (this) {
+									exchanges[blockStreamId] = ex
+									streamWindows[blockStreamId] = initialWindow
+								}
+								if (blockEndStream) {
+									handle(ex)
+								}
+							}
+							break
+						case DATA:
+							Exchange ex = exchanges[f.streamId]
+							ex?.body?.write(f.payload)
+							if (f.payload.length > 0) {
+								// Hand the credit straight back
+								frame(WINDOW_UPDATE, 0, 0, TestHttp2Server.int32(f.payload.length))
+								if ((f.flags & 0x1) == 0) {
+									frame(WINDOW_UPDATE, 0, f.streamId, TestHttp2Server.int32(f.payload.length))
+								}
+							}
+							if ((f.flags & 0x1) != 0 && null != ex) {
+								handle(ex)
+							}
+							break
+						case SETTINGS:
+							if ((f.flags & 0x1) == 0) {
+								for (int i = 0; i < f.payload.length; i += 6) {
+									int id = ((f.payload[i] & 0xff) << 8) | (f.payload[i + 1] & 0xff)
+									if (id == 0x4) {
+										synchronized (this) {
+											initialWindow = TestHttp2Server.int32(f.payload, i + 2)
+										}
+									}
+								}
+								frame(SETTINGS, 0x1, 0, new byte[0])
+							}
+							break
+						case WINDOW_UPDATE:
+							long increment = TestHttp2Server.int32(f.payload, 0) & 0x7fffffff
+							synchronized (this) {
+								if (f.streamId == 0) {
+									connectionWindow += increment
+								} else if (streamWindows.containsKey(f.streamId)) {
+									streamWindows[f.streamId] = streamWindows[f.streamId] + increment
+								}
+								notifyAll()
+							}
+							break
+						case RST_STREAM:
+							synchronized (this) {
+								streamWindows.remove(f.streamId)
+								notifyAll()
+							}
+							break
+					}
+				}
+			} catch (IOException ignored) {
+			} finally {
+				socket.close()
+				synchronized (this) {
+					notifyAll()
+				}
+			}
+		}
+
+		private void handle(Exchange ex) {
+			Thread.startDaemon("test-http2-stream-" + ex.streamId) {
+				try {
+					server.handler.call(ex)
+				} catch (IOException ignored) {
+				}
+			}
+		}
+
+		synchronized void frame(int type, int flags, int streamId, byte[] payload) {
+			out.write([(byte) (payload.length >>> 16), (byte) (payload.length >>> 8), (byte) payload.length,
+					(byte) type, (byte) flags] as byte[])
+			out.write(TestHttp2Server.int32(streamId))
+			out.write(payload)
+			out.flush()
+		}
+
+		synchronized void sendHeaders(int streamId, List<List<String>> fields, boolean endStream) {
+			ByteArrayOutputStream block = new ByteArrayOutputStream()
+			encoder.startBlock(block)
+			fields.each { encoder.encode(it[0], it[1], block) }
+			frame(HEADERS, 0x4 | (endStream ? 0x1 : 0), streamId, block.toByteArray())
+		}
+
+		void sendData(int streamId, byte[] data, boolean endStream) {
+			int offset = 0
+			while (offset < data.length) {
+				int length
+				synchronized (this) {
+					while (!socket.closed && streamWindows.containsKey(streamId)
+							&& (connectionWindow <= 0 || streamWindows[streamId] <= 0)) {
+						wait(100)
+					}
+					if (socket.closed || !streamWindows.containsKey(streamId)) {
+						throw new IOException("Stream " + streamId + " is gone")
+					}
+					length = (int) Math.min(Math.min(data.length - offset, MAX_FRAME_SIZE), Math.min(connectionWindow, streamWindows[streamId]))
+					connectionWindow -= length
+					streamWindows[streamId] = streamWindows[streamId] - length
+					boolean last = endStream && offset + length == data.length
+					frame(DATA, (last ? 0x1 : 0), streamId, Arrays.copyOfRange(data, offset, offset + length))
+				}
+				offset += length
+			}
+			if (0 == data.length && endStream) {
+				frame(DATA, 0x1, streamId, new byte[0])
+			}
+		}
+	}
+
+}
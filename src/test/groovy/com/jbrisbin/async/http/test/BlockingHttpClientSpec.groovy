@@ -0,0 +1,211 @@
+package com.jbrisbin.async.http.test
+
+import com.jbrisbin.async.http.BlockingHttpClient
+import com.jbrisbin.async.http.HttpClientTransport
+import com.jbrisbin.async.http.HttpException
+import com.jbrisbin.async.http.Request
+import com.jbrisbin.async.http.RequestTimeoutException
+import com.jbrisbin.async.http.Response
+import java.util.concurrent.CancellationException
+import java.util.concurrent.CopyOnWriteArrayList
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.ExecutionException
+import java.util.concurrent.TimeUnit
+import spock.lang.Specification
+import static com.jbrisbin.async.http.test.TestHttpServer.text
+
+/**
+ * @author Jon Brisbin <jon@jbrisbin.com>
+ */
+class BlockingHttpClientSpec extends Specification {
+
+	TestHttpServer server
+	HttpClientTransport transport
+	BlockingHttpClient client
+
+	def setup() {
+		server = new TestHttpServer().start()
+		server.handler = { TestHttpServer.Exchange ex -> TestHttpServer.response(200, [:], ex.uri.bytes) }
+		transport = new HttpClientTransport()
+		client = BlockingHttpClient.connect("localhost", server.port, transport)
+	}
+
+	def cleanup() {
+		client.dispose()
+		transport.stop()
+		server.stop()
+	}
+
+	def "Test a call returns once the response is done"() {
+
+		when:
+		Response got = client.get(server.url("/get"))
+		Response put = client.put(server.url("/put"), "text/plain", "body".bytes)
+
+		then:
+		got.done
+		got.status == 200
+		text(got.get()) == "/get"
+		put.status == 200
+		server.exchanges[1].method == "PUT"
+		server.exchanges[1].body == "body".bytes
+		server.exchanges[1].header("Content-Type") == "text/plain"
+
+	}
+
+	def "Test an error status is thrown as an IOException caused by an HttpException"() {
+
+		given:
+		server.handler = { TestHttpServer.Exchange ex -> TestHttpServer.response(status, [:], "no".bytes) }
+
+		when:
+		client.get(server.url("/error"))
+
+		then:
+		IOException e = thrown()
+		e.cause instanceof HttpException
+		((HttpException) e.cause).status == status
+
+		where:
+		status << [404, 500, 503]
+
+	}
+
+	def "Test a failed exchange is thrown as the IOException it failed with"() {
+
+		given:
+		// Closes the connection without answering
+		server.handler = { TestHttpServer.Exchange ex -> null }
+
+		when:
+		client.delete(server.url("/dropped"))
+
+		then:
+		IOException e = thrown()
+		!(e.cause instanceof HttpException)
+
+	}
+
+	def "Test a timed call that runs out of time gives up on its request"() {
+
+		given:
+		CountDownLatch release = new CountDownLatch(1)
+		server.handler = { TestHttpServer.Exchange ex ->
+			if (ex.uri == "/slow") {
+				release.await(10, TimeUnit.SECONDS)
+			}
+			TestHttpServer.response(200, [:], ex.uri.bytes)
+		}
+		Request request = new Request(new URL(server.url("/slow")), Request.Method.GET)
+
+		when:
+		Long start = System.currentTimeMillis()
+		client.execute(request, 200, TimeUnit.MILLISECONDS)
+
+		then:
+		IOException e = thrown()
+		System.currentTimeMillis() - start < 5000
+		e.cause instanceof RequestTimeoutException
+		((RequestTimeoutException) e.cause).kind == RequestTimeoutException.Kind.REQUEST
+		request.response.done
+
+		when:
+		request.response.get()
+
+		then:
+		ExecutionException failed = thrown()
+		failed.cause instanceof RequestTimeoutException
+
+		when:
+		// The aborted connection isn't reused
+		release.countDown()
+		Response next = client.execute(new Request(new URL(server.url("/next")), Request.Method.GET), 5, TimeUnit.SECONDS)
+
+		then:
+		text(next.get()) == "/next"
+		server.connections.get() == 2
+
+	}
+
+	def "Test a timed call that answers in time returns the response"() {
+
+		when:
+		Response response = client.execute(new Request(new URL(server.url("/quick")), Request.Method.GET), 5, TimeUnit.SECONDS)
+
+		then:
+		text(response.get()) == "/quick"
+
+	}
+
+	def "Test interrupting a waiting caller aborts its request"() {
+
+		given:
+		CountDownLatch received = new CountDownLatch(1)
+		CountDownLatch release = new CountDownLatch(1)
+		server.handler = { TestHttpServer.Exchange ex ->
+			received.countDown()
+			release.await(10, TimeUnit.SECONDS)
+			TestHttpServer.response(200, [:], "late".bytes)
+		}
+		Request request = new Request(new URL(server.url("/interrupted")), Request.Method.GET)
+		Throwable failure = null
+		boolean stillInterrupted = false
+
+		when:
+		Thread caller = Thread.start {
+			try {
+				client.execute(request)
+			} catch (Throwable t) {
+				failure = t
+				stillInterrupted = Thread.currentThread().interrupted
+			}
+		}
+		received.await(10, TimeUnit.SECONDS)
+		caller.interrupt()
+		caller.join(5000)
+		release.countDown()
+
+		then:
+		!caller.alive
+		failure instanceof InterruptedIOException
+		stillInterrupted
+		request.response.done
+
+		when:
+		request.response.get()
+
+		then:
+		ExecutionException e = thrown()
+		e.cause instanceof CancellationException
+
+	}
+
+	def "Test many threads can block on one transport at once"() {
+
+		given:
+		int callers = 200
+		CountDownLatch start = new CountDownLatch(1)
+		List<String> bodies = new CopyOnWriteArrayList<String>()
+		List<Throwable> failures = new CopyOnWriteArrayList<Throwable>()
+
+		when:
+		List<Thread> threads = (1..callers).collect { int i ->
+			Thread.start {
+				start.await()
+				try {
+					bodies << text(client.get(server.url("/caller/" + i)).get())
+				} catch (Throwable t) {
+					failures << t
+				}
+			}
+		}
+		start.countDown()
+		threads*.join(30000)
+
+		then:
+		failures.empty
+		bodies as Set == (1..callers).collect { "/caller/" + it } as Set
+
+	}
+
+}
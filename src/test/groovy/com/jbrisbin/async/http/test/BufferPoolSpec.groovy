@@ -0,0 +1,129 @@
+package com.jbrisbin.async.http.test
+
+import com.jbrisbin.async.http.AsyncHttpClient
+import com.jbrisbin.async.http.BufferPool
+import com.jbrisbin.async.http.HttpClientTransport
+import com.jbrisbin.async.http.Request
+import java.nio.ByteBuffer
+import java.nio.channels.WritableByteChannel
+import java.util.concurrent.TimeUnit
+import org.glassfish.grizzly.Buffer
+import spock.lang.Specification
+
+/**
+ * @author Jon Brisbin <jon@jbrisbin.com>
+ */
+class BufferPoolSpec extends Specification {
+
+	BufferPool pool = new BufferPool(false, 64 * 1024, 4)
+
+	byte[] bytes(int size) {
+		byte[] b = new byte[size]
+		new Random(size).nextBytes(b)
+		b
+	}
+
+	def "Test disposed buffers go back to their size class"() {
+
+		when:
+		Buffer first = pool.acquire(1000)
+		int firstCapacity = first.capacity()
+		first.dispose()
+		int pooledAfterDispose = pool.pooledCount
+		Buffer second = pool.acquire(600)
+
+		then:
+		firstCapacity == 1024
+		pooledAfterDispose == 1
+		pool.pooledCount == 0
+		second.capacity() == 1024
+		second.position() == 0
+		second.limit() == 600
+
+	}
+
+	def "Test no more than maxPooledPerSize idle buffers are kept"() {
+
+		when:
+		List<Buffer> buffers = (1..6).collect { pool.acquire(512) }
+		buffers.each { it.dispose() }
+		buffers[0].dispose()
+
+		then:
+		pool.pooledCount == 4
+
+	}
+
+	def "Test get(ByteBuffer) copies what fits when the buffer has more left than the destination"() {
+
+		given:
+		byte[] src = bytes(size)
+		Buffer buffer = pool.copyOf(ByteBuffer.wrap(src))
+		ByteArrayOutputStream out = new ByteArrayOutputStream()
+
+		when:
+		while (buffer.hasRemaining()) {
+			ByteBuffer dst = ByteBuffer.allocate(3000)
+			buffer.get(dst)
+			dst.flip()
+			out.write(dst.array(), 0, dst.remaining())
+		}
+
+		then:
+		Arrays.equals(out.toByteArray(), src)
+
+		where:
+		// Pooled, and bigger than the largest size class
+		size << [10000, 100000]
+
+	}
+
+	def "Test buffers bigger than the largest size class are released to the memory manager"() {
+
+		when:
+		Buffer buffer = pool.acquire(100000)
+		int capacity = buffer.capacity()
+		buffer.dispose()
+
+		then:
+		capacity >= 100000
+		pool.pooledCount == 0
+
+	}
+
+	def "Test streaming a body bigger than the socket buffer"() {
+
+		given:
+		TestHttpServer server = new TestHttpServer().start()
+		// Reads slowly enough that the client's writes back up behind a full socket
+		server.bodyReadDelay = 1
+		HttpClientTransport transport = new HttpClientTransport()
+		AsyncHttpClient client = AsyncHttpClient.connect("localhost", server.port, transport)
+		byte[] body = bytes(4 * 1024 * 1024)
+
+		when:
+		Request request = new Request(new URL(server.url("/upload")), Request.Method.PUT)
+		request.contentType = "application/octet-stream"
+		request.contentLength = (long) body.length
+		WritableByteChannel channel = client.start(request)
+		for (int offset = 0; offset < body.length; offset += writeSize) {
+			channel.write(ByteBuffer.wrap(body, offset, Math.min(writeSize, body.length - offset)))
+		}
+		client.complete(request).get(60, TimeUnit.SECONDS)
+
+		then:
+		server.exchanges.size() == 1
+		server.exchanges[0].body.length == body.length
+		Arrays.equals(server.exchanges[0].body, body)
+
+		cleanup:
+		client.dispose()
+		server.stop()
+
+		where:
+		// Pooled chunks, and chunks bigger than the largest size class
+		writeSize << [32 * 1024, 512 * 1024]
+
+	}
+
+}
@@ -0,0 +1,272 @@
+package com.jbrisbin.async.http.test
+
+import com.jbrisbin.async.http.AsyncHttpClient
+import com.jbrisbin.async.http.HttpClientTransport
+import com.jbrisbin.async.http.Request
+import com.jbrisbin.async.http.RequestByteChannel
+import com.jbrisbin.async.http.Response
+import java.nio.ByteBuffer
+import java.util.concurrent.ExecutionException
+import java.util.concurrent.TimeUnit
+import java.util.zip.CRC32
+import java.util.zip.Deflater
+import java.util.zip.DeflaterOutputStream
+import java.util.zip.GZIPInputStream
+import java.util.zip.GZIPOutputStream
+import spock.lang.Specification
+
+/**
+ * @author Jon Brisbin <jon@jbrisbin.com>
+ */
+class CompressionSpec extends Specification {
+
+	TestHttpServer server
+	HttpClientTransport transport
+	AsyncHttpClient client
+	// Compresses well, but not so well that it all inflates from one read
+	byte[] body = body(200 * 1024)
+
+	def setup() {
+		server = new TestHttpServer().start()
+		transport = new HttpClientTransport()
+		client = AsyncHttpClient.connect("localhost", server.port, transport)
+	}
+
+	def cleanup() {
+		client.dispose()
+		transport.stop()
+		server.stop()
+	}
+
+	static byte[] body(int size) {
+		Random random = new Random(11)
+		ByteArrayOutputStream out = new ByteArrayOutputStream()
+		while (out.size() < size) {
+			out.write(("line " + random.nextInt(1000) + " of the body\n").bytes)
+		}
+		Arrays.copyOf(out.toByteArray(), size)
+	}
+
+	static byte[] gzip(byte[] bytes) {
+		ByteArrayOutputStream out = new ByteArrayOutputStream()
+		GZIPOutputStream gz = new GZIPOutputStream(out)
+		gz.write(bytes)
+		gz.close()
+		out.toByteArray()
+	}
+
+	/**
+	 * Gzip with a file name and a comment in the header, so it's longer than the first read.
+	 */
+	static byte[] gzipWithName(byte[] bytes) {
+		ByteArrayOutputStream out = new ByteArrayOutputStream()
+		out.write([0x1f, 0x8b, 8, 8 | 16, 0, 0, 0, 0, 0, 0xff] as byte[])
+		out.write("body.txt\u0000a comment about the body\u0000".bytes)
+		out.write(rawDeflate(bytes))
+		CRC32 crc = new CRC32()
+		crc.update(bytes)
+		[crc.value, bytes.length].each { long v ->
+			4.times { out.write((int) (v >> (it * 8)) & 0xff) }
+		}
+		out.toByteArray()
+	}
+
+	static byte[] zlib(byte[] bytes) {
+		ByteArrayOutputStream out = new ByteArrayOutputStream()
+		DeflaterOutputStream zl = new DeflaterOutputStream(out)
+		zl.write(bytes)
+		zl.close()
+		out.toByteArray()
+	}
+
+	static byte[] rawDeflate(byte[] bytes) {
+		ByteArrayOutputStream out = new ByteArrayOutputStream()
+		DeflaterOutputStream raw = new DeflaterOutputStream(out, new Deflater(Deflater.DEFAULT_COMPRESSION, true))
+		raw.write(bytes)
+		raw.close()
+		out.toByteArray()
+	}
+
+	static byte[] gunzip(byte[] bytes) {
+		new GZIPInputStream(new ByteArrayInputStream(bytes)).bytes
+	}
+
+	/**
+	 * The pieces of <code>bytes</code> between each of <code>cuts</code>, which past the end of the
+	 * bytes are ignored.
+	 */
+	static List<byte[]> split(byte[] bytes, List<Integer> cuts) {
+		List<Integer> at = ([0] + cuts.findAll { it > 0 && it < bytes.length } + [bytes.length]).unique().sort()
+		(0..<at.size() - 1).collect { Arrays.copyOfRange(bytes, at[it], at[it + 1]) }
+	}
+
+	/**
+	 * Cuts at the very start, through the middle and just before the 8 byte gzip trailer.
+	 */
+	static List<Integer> cuts(byte[] bytes) {
+		[1, 2, 5, 11, 30, bytes.length.intdiv(3), bytes.length.intdiv(2), bytes.length - 6, bytes.length - 4, bytes.length - 1]
+	}
+
+	static List<byte[]> chunked(String encoding, byte[] bytes) {
+		List<byte[]> pieces = [("HTTP/1.1 200 OK\r\nContent-Encoding: " + encoding + "\r\nTransfer-Encoding: chunked\r\n\r\n").bytes]
+		split(bytes, cuts(bytes)).each { byte[] chunk ->
+			ByteArrayOutputStream out = new ByteArrayOutputStream()
+			out.write((Integer.toHexString(chunk.length) + "\r\n").bytes)
+			out.write(chunk)
+			out.write("\r\n".bytes)
+			pieces << out.toByteArray()
+		}
+		pieces << "0\r\n\r\n".bytes
+		pieces
+	}
+
+	static List<byte[]> sized(String encoding, byte[] bytes) {
+		[("HTTP/1.1 200 OK\r\nContent-Encoding: " + encoding + "\r\nContent-Length: " + bytes.length + "\r\n\r\n").bytes] + split(bytes, cuts(bytes))
+	}
+
+	static byte[] bytes(ByteBuffer buffer) {
+		byte[] bytes = new byte[buffer.remaining()]
+		buffer.duplicate().get(bytes)
+		bytes
+	}
+
+	Request get(String path) {
+		new Request(new URL(server.url(path)), Request.Method.GET)
+	}
+
+	def "Test a compressed body read in pieces is inflated whole"() {
+
+		given:
+		byte[] encoded = encode.call(body)
+		server.handler = { TestHttpServer.Exchange ex -> (framing == "chunked" ? chunked(encoding, encoded) : sized(encoding, encoded)) }
+
+		when:
+		Response response = client.send(get("/compressed"))
+		ByteBuffer received = response.get(10, TimeUnit.SECONDS)
+
+		then:
+		server.exchanges[0].header("Accept-Encoding") == "gzip, deflate"
+		bytes(received) == body
+
+		where:
+		encoding  | framing   | encode
+		"gzip"    | "chunked" | CompressionSpec.&gzip
+		"gzip"    | "sized"   | CompressionSpec.&gzip
+		"x-gzip"  | "chunked" | CompressionSpec.&gzip
+		"gzip"    | "chunked" | CompressionSpec.&gzipWithName
+		"deflate" | "chunked" | CompressionSpec.&zlib
+		"deflate" | "sized"   | CompressionSpec.&zlib
+		"deflate" | "chunked" | CompressionSpec.&rawDeflate
+		"deflate" | "sized"   | CompressionSpec.&rawDeflate
+
+	}
+
+	def "Test a compressed body that's cut short or fails its gzip trailer fails the response"() {
+
+		given:
+		byte[] encoded = encode.call(body)
+		byte[] broken = damage.call(encoded)
+		server.handler = { TestHttpServer.Exchange ex -> chunked(encoding, broken) }
+
+		when:
+		client.send(get("/broken")).get(10, TimeUnit.SECONDS)
+
+		then:
+		thrown(ExecutionException)
+
+		where:
+		encoding  | encode                        | damage
+		"gzip"    | CompressionSpec.&gzip         | { byte[] b -> Arrays.copyOf(b, b.length.intdiv(2)) }
+		"gzip"    | CompressionSpec.&gzip         | { byte[] b -> Arrays.copyOf(b, b.length - 8) }
+		"gzip"    | CompressionSpec.&gzip         | { byte[] b -> Arrays.copyOf(b, b.length - 3) }
+		"gzip"    | CompressionSpec.&gzip         | { byte[] b -> byte[] c = b.clone(); c[c.length - 8] ^= 1; c }
+		"gzip"    | CompressionSpec.&gzip         | { byte[] b -> byte[] c = b.clone(); c[c.length - 1] ^= 1; c }
+		"deflate" | CompressionSpec.&zlib         | { byte[] b -> Arrays.copyOf(b, b.length.intdiv(2)) }
+		"deflate" | CompressionSpec.&rawDeflate   | { byte[] b -> Arrays.copyOf(b, b.length.intdiv(2)) }
+
+	}
+
+	def "Test compressed bodies one after another on a connection each inflate on their own"() {
+
+		given:
+		List<byte[]> bodies = (1..6).collect { body(1000 * it * it) }
+		server.handler = { TestHttpServer.Exchange ex ->
+			int i = Integer.parseInt(ex.uri.substring(1))
+			(i % 2 ? chunked("gzip", gzip(bodies[i])) : chunked("deflate", (i % 3 ? rawDeflate(bodies[i]) : zlib(bodies[i]))))
+		}
+
+		when:
+		List<byte[]> received = (0..5).collect { bytes(client.send(get("/" + it)).get(10, TimeUnit.SECONDS)) }
+
+		then:
+		received == bodies
+		server.connections.get() == 1
+
+	}
+
+	def "Test responses aren't asked to be compressed when the transport doesn't want them"() {
+
+		given:
+		transport.acceptCompressed = false
+
+		when:
+		client.send(get("/plain")).get(10, TimeUnit.SECONDS)
+
+		then:
+		null == server.exchanges[0].header("Accept-Encoding")
+
+	}
+
+	def "Test a body at least as big as the compression threshold is gzipped and round-trips"() {
+
+		given:
+		transport.compressionThreshold = 1024
+		server.handler = { TestHttpServer.Exchange ex -> TestHttpServer.response(204, [:], null) }
+		byte[] sent = body(size)
+
+		when:
+		Response response = client.send(new Request(new URL(server.url("/put")), Request.Method.PUT, [:], ByteBuffer.wrap(sent), "text/plain"))
+		response.get(10, TimeUnit.SECONDS)
+		TestHttpServer.Exchange ex = server.exchanges[0]
+
+		then:
+		response.status == 204
+		ex.header("Content-Encoding") == encoding
+		(encoding ? gunzip(ex.body) : ex.body) == sent
+		(encoding ? ex.header("Transfer-Encoding") == "chunked" && ex.body.length < sent.length : ex.header("Content-Length") == String.valueOf(size))
+
+		where:
+		size       | encoding
+		100        | null
+		1023       | null
+		1024       | "gzip"
+		200 * 1024 | "gzip"
+
+	}
+
+	def "Test a body streamed in small writes is gzipped without the writes the encoder holds back hanging"() {
+
+		given:
+		transport.compressionThreshold = 0
+		client.maxQueuedBytes = 4096
+		server.handler = { TestHttpServer.Exchange ex -> TestHttpServer.response(204, [:], null) }
+		Request request = new Request(new URL(server.url("/stream")), Request.Method.PUT).setChunked(true)
+		request.contentType = "text/plain"
+
+		when:
+		RequestByteChannel channel = client.start(request)
+		// Far smaller than the deflater emits, so most writes produce nothing to send
+		for (int i = 0; i < body.length; i += 100) {
+			channel.write(ByteBuffer.wrap(body, i, Math.min(100, body.length - i)))
+		}
+		Response response = client.complete(request)
+		response.get(10, TimeUnit.SECONDS)
+
+		then:
+		response.status == 204
+		server.exchanges[0].header("Content-Encoding") == "gzip"
+		gunzip(server.exchanges[0].body) == body
+
+	}
+
+}
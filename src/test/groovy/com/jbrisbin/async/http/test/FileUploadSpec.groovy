@@ -0,0 +1,96 @@
+package com.jbrisbin.async.http.test
+
+import com.jbrisbin.async.http.AsyncHttpClient
+import com.jbrisbin.async.http.HttpClientTransport
+import com.jbrisbin.async.http.Request
+import com.jbrisbin.async.http.Upload
+import java.nio.ByteBuffer
+import java.util.concurrent.TimeUnit
+import spock.lang.Specification
+
+/**
+ * @author Jon Brisbin <jon@jbrisbin.com>
+ */
+class FileUploadSpec extends Specification {
+
+	// FileUploadWriter.REGION_SIZE, which is how much of the file is mapped at a time
+	static final int REGION_SIZE = 8 * 1024 * 1024
+
+	TestHttpServer server
+	HttpClientTransport transport
+	AsyncHttpClient client
+	File file
+
+	def setup() {
+		server = new TestHttpServer().start()
+		transport = new HttpClientTransport()
+		client = AsyncHttpClient.connect("localhost", server.port, transport)
+		file = File.createTempFile("upload", ".bin")
+	}
+
+	def cleanup() {
+		client.dispose()
+		transport.stop()
+		server.stop()
+		file.delete()
+	}
+
+	byte[] fill(int size) {
+		byte[] bytes = new byte[size]
+		new Random(size).nextBytes(bytes)
+		file.bytes = bytes
+		bytes
+	}
+
+	def "Test a file is uploaded byte for byte however many regions it spans"() {
+
+		given:
+		byte[] contents = fill(size)
+
+		when:
+		client.send(new Upload(new URL(server.url("/upload")), Request.Method.PUT, file)).get(30, TimeUnit.SECONDS)
+
+		then:
+		server.exchanges.size() == 1
+		server.exchanges[0].header("Content-Length") == String.valueOf(size)
+		Arrays.equals(server.exchanges[0].body, contents)
+
+		where:
+		size << [0, 4272, REGION_SIZE, REGION_SIZE + 1, 2 * REGION_SIZE + 12345]
+
+	}
+
+	def "Test a body given along with the file is sent ahead of it"() {
+
+		given:
+		byte[] contents = fill(REGION_SIZE + 4321)
+		byte[] prefix = "prefix:".bytes
+		ByteArrayOutputStream expected = new ByteArrayOutputStream()
+		expected.write(prefix)
+		expected.write(contents)
+
+		when:
+		client.send(new Upload(new URL(server.url("/upload")), Request.Method.POST, [:], ByteBuffer.wrap(prefix), "application/octet-stream", file)).get(30, TimeUnit.SECONDS)
+
+		then:
+		server.exchanges[0].method == "POST"
+		Arrays.equals(server.exchanges[0].body, expected.toByteArray())
+
+	}
+
+	def "Test the connection is reused once a multi-region upload is done"() {
+
+		given:
+		byte[] contents = fill(REGION_SIZE + 1)
+
+		when:
+		2.times { client.send(new Upload(new URL(server.url("/upload/" + it)), Request.Method.PUT, file)).get(30, TimeUnit.SECONDS) }
+
+		then:
+		server.exchanges*.uri == ["/upload/0", "/upload/1"]
+		server.exchanges.every { Arrays.equals(it.body, contents) }
+		server.connections.get() == 1
+
+	}
+
+}
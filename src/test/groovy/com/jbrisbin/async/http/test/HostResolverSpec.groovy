@@ -0,0 +1,364 @@
+package com.jbrisbin.async.http.test
+
+import com.jbrisbin.async.http.AsyncHttpClient
+import com.jbrisbin.async.http.HostResolver
+import com.jbrisbin.async.http.HttpClientTransport
+import com.jbrisbin.async.http.Request
+import java.nio.ByteBuffer
+import java.util.concurrent.CopyOnWriteArrayList
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.ExecutionException
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicInteger
+import org.glassfish.grizzly.EmptyCompletionHandler
+import spock.lang.Specification
+import static com.jbrisbin.async.http.test.TestHttpServer.waitFor
+
+/**
+ * @author Jon Brisbin <jon@jbrisbin.com>
+ */
+class HostResolverSpec extends Specification {
+
+	/**
+	 * Answers from a map instead of DNS, counting the queries it's asked and holding them up until
+	 * it's let go if need be.
+	 */
+	static class MapResolver extends HostResolver {
+		final Map<String, List<InetAddress>> hosts = [:]
+		final List<String> queries = new CopyOnWriteArrayList<String>()
+		volatile CountDownLatch gate = new CountDownLatch(0)
+
+		protected InetAddress[] getAllByName(String host) throws UnknownHostException {
+			queries << host
+			gate.await(10, TimeUnit.SECONDS)
+			List<InetAddress> addresses = hosts[host]
+			if (null == addresses) {
+				throw new UnknownHostException(host)
+			}
+			addresses as InetAddress[]
+		}
+
+		int queriesOf(String host) {
+			queries.count(host)
+		}
+	}
+
+	/**
+	 * What a resolve was given, and on which thread.
+	 */
+	static class Answer extends EmptyCompletionHandler<InetAddress[]> {
+		final CountDownLatch done = new CountDownLatch(1)
+		volatile InetAddress[] addresses
+		volatile Throwable failure
+		volatile Thread thread
+
+		void completed(InetAddress[] addresses) {
+			this.addresses = addresses
+			thread = Thread.currentThread()
+			done.countDown()
+		}
+
+		void failed(Throwable failure) {
+			this.failure = failure
+			thread = Thread.currentThread()
+			done.countDown()
+		}
+
+		Answer await() {
+			assert done.await(10, TimeUnit.SECONDS)
+			this
+		}
+	}
+
+	MapResolver resolver = new MapResolver()
+	InetAddress first = InetAddress.getByAddress("a.test", [10, 0, 0, 1] as byte[])
+	InetAddress second = InetAddress.getByAddress("a.test", [10, 0, 0, 2] as byte[])
+
+	Answer resolve(String host) {
+		Answer answer = new Answer()
+		resolver.resolve(host, answer)
+		answer
+	}
+
+	def "Test an address literal is answered on the calling thread without a query"() {
+
+		when:
+		Answer answer = resolve(literal)
+
+		then:
+		answer.thread == Thread.currentThread()
+		answer.addresses.length == 1
+		resolver.queries.empty
+
+		where:
+		literal << ["127.0.0.1", "::1"]
+
+	}
+
+	def "Test a host is looked up once and then answered from the cache until it expires"() {
+
+		given:
+		resolver.hosts["a.test"] = [first]
+		resolver.positiveTtl = 200
+
+		when:
+		Answer looked = resolve("a.test").await()
+		Answer cached = resolve("a.test").await()
+
+		then:
+		looked.addresses == [first] as InetAddress[]
+		looked.thread != Thread.currentThread()
+		cached.addresses == [first] as InetAddress[]
+		cached.thread == Thread.currentThread()
+		resolver.queriesOf("a.test") == 1
+
+	}
+
+	def "Test an expired host is answered with what it had while it's looked up again"() {
+
+		given:
+		resolver.hosts["a.test"] = [first]
+		resolver.positiveTtl = 100
+		resolve("a.test").await()
+		resolver.hosts["a.test"] = [second]
+		resolver.gate = new CountDownLatch(1)
+		Thread.sleep(150)
+
+		when:
+		Answer stale = resolve("a.test").await()
+		Answer alsoStale = resolve("a.test").await()
+		resolver.gate.countDown()
+		waitFor { resolve("a.test").await().addresses == [second] as InetAddress[] }
+		Answer fresh = resolve("a.test").await()
+
+		then:
+		stale.addresses == [first] as InetAddress[]
+		stale.thread == Thread.currentThread()
+		alsoStale.addresses == [first] as InetAddress[]
+		fresh.addresses == [second] as InetAddress[]
+		// The first lookup and one refresh, however many asked while it was running
+		resolver.queriesOf("a.test") == 2
+
+	}
+
+	def "Test a host that expired more than a TTL ago waits for its addresses to be looked up again"() {
+
+		given:
+		resolver.hosts["a.test"] = [first]
+		resolver.positiveTtl = 100
+		resolve("a.test").await()
+		resolver.hosts["a.test"] = [second]
+		Thread.sleep(250)
+
+		when:
+		Answer fresh = resolve("a.test").await()
+
+		then:
+		fresh.addresses == [second] as InetAddress[]
+		fresh.thread != Thread.currentThread()
+		resolver.queriesOf("a.test") == 2
+
+	}
+
+	def "Test a host that can't be resolved keeps failing without a query until that expires"() {
+
+		given:
+		resolver.negativeTtl = 150
+
+		when:
+		Answer failed = resolve("missing.test").await()
+		Answer cached = resolve("missing.test").await()
+
+		then:
+		failed.failure instanceof UnknownHostException
+		cached.failure.is(failed.failure)
+		cached.thread == Thread.currentThread()
+		resolver.queriesOf("missing.test") == 1
+
+		when:
+		resolver.hosts["missing.test"] = [first]
+		Thread.sleep(200)
+		Answer found = resolve("missing.test").await()
+
+		then:
+		found.addresses == [first] as InetAddress[]
+		resolver.queriesOf("missing.test") == 2
+
+	}
+
+	def "Test concurrent lookups of a host share one query"() {
+
+		given:
+		resolver.hosts["a.test"] = [first, second]
+		resolver.gate = new CountDownLatch(1)
+
+		when:
+		List<Answer> answers = (1..20).collect { resolve("a.test") }
+		waitFor { resolver.queries.size() > 0 }
+		Thread.sleep(50)
+		resolver.gate.countDown()
+		answers*.await()
+
+		then:
+		resolver.queriesOf("a.test") == 1
+		answers.every { it.addresses == [first, second] as InetAddress[] }
+
+	}
+
+	def "Test a full cache makes room by dropping the host that expires soonest"() {
+
+		given:
+		resolver.maxEntries = 3
+		(1..5).each {
+			resolver.hosts["h" + it + ".test"] = [first]
+		}
+
+		when:
+		(1..5).each {
+			resolve("h" + it + ".test").await()
+			// So each expires after the one before it
+			Thread.sleep(5)
+		}
+		resolver.queries.clear()
+		(3..5).each { resolve("h" + it + ".test").await() }
+
+		then:
+		resolver.queries.empty
+
+		when:
+		resolve("h1.test").await()
+
+		then:
+		resolver.queries == ["h1.test"]
+
+	}
+
+	def "Test clear forgets every host"() {
+
+		given:
+		resolver.hosts["a.test"] = [first]
+		resolve("a.test").await()
+
+		when:
+		resolver.clear()
+		resolve("a.test").await()
+
+		then:
+		resolver.queriesOf("a.test") == 2
+
+	}
+
+	def "Test a host with no addresses fails to connect instead of dividing by zero"() {
+
+		given:
+		HttpClientTransport transport = new HttpClientTransport().setHostResolver(resolver)
+		resolver.hosts["empty.test"] = []
+		AsyncHttpClient client = AsyncHttpClient.connect("empty.test", 80, transport)
+
+		when:
+		client.send(new Request(new URL("http://empty.test/"), Request.Method.GET)).get(10, TimeUnit.SECONDS)
+
+		then:
+		ExecutionException e = thrown()
+		e.cause instanceof UnknownHostException
+
+		cleanup:
+		client.dispose()
+		transport.stop()
+
+	}
+
+	def "Test an address that doesn't answer is skipped for the next after the attempt delay, and closed if it answers late"() {
+
+		given:
+		TestHttpServer server = new TestHttpServer().start()
+		Integer port = server.port
+		// Same port on another loopback address, with a backlog filled so connecting to it hangs
+		ServerSocket silent = new ServerSocket()
+		silent.bind(new InetSocketAddress("127.0.0.2", port), 1)
+		List<Socket> fillers = (1..2).collect { new Socket("127.0.0.2", port) }
+		resolver.hosts["multi.test"] = [InetAddress.getByName("127.0.0.2"), InetAddress.getByName("127.0.0.1")]
+		HttpClientTransport transport = new HttpClientTransport().setHostResolver(resolver)
+		transport.connectionPool.connectAttemptDelay = 300
+		AsyncHttpClient client = AsyncHttpClient.connect("multi.test", port, transport)
+
+		when:
+		Long start = System.currentTimeMillis()
+		ByteBuffer body = client.send(new Request(new URL("http://multi.test:" + port + "/failover"), Request.Method.GET)).get(10, TimeUnit.SECONDS)
+		Long took = System.currentTimeMillis() - start
+
+		then:
+		body.remaining() == 2
+		took >= 300
+		took < 3000
+		server.exchanges[0].uri == "/failover"
+
+		when:
+		// Make room, so the attempt still waiting on the silent address gets through when it retries
+		List<Socket> queued = (1..2).collect { silent.accept() }
+		silent.soTimeout = 10000
+		Socket late = silent.accept()
+		late.soTimeout = 5000
+		Integer read = late.inputStream.read()
+
+		then:
+		// Whoever won first, the late connection is let go of without a request on it
+		-1 == read
+		!fillers.any { it.localPort == late.port }
+
+		cleanup:
+		client?.dispose()
+		transport?.stop()
+		(fillers + (queued ?: [])).each { it.close() }
+		late?.close()
+		silent.close()
+		server.stop()
+
+	}
+
+	def "Test the first address tried moves along with each new connection"() {
+
+		given:
+		TestHttpServer one = new TestHttpServer().start()
+		// A second server on the same port on another loopback address
+		ServerSocket other = new ServerSocket()
+		other.bind(new InetSocketAddress("127.0.0.2", one.port), 50)
+		AtomicInteger otherAccepted = new AtomicInteger()
+		Thread.startDaemon {
+			while (!other.closed) {
+				try {
+					Socket s = other.accept()
+					otherAccepted.incrementAndGet()
+					s.inputStream.read()
+					s.outputStream.write(TestHttpServer.response(200, [:], "two".bytes))
+					s.outputStream.flush()
+				} catch (IOException ignored) {
+				}
+			}
+		}
+		resolver.hosts["multi.test"] = [InetAddress.getByName("127.0.0.1"), InetAddress.getByName("127.0.0.2")]
+		HttpClientTransport transport = new HttpClientTransport().setHostResolver(resolver)
+		AsyncHttpClient client = AsyncHttpClient.connect("multi.test", one.port, transport)
+		// Held open, so each request needs a connection of its own
+		one.handler = { TestHttpServer.Exchange ex ->
+			Thread.sleep(300)
+			TestHttpServer.response(200, [:], "one".bytes)
+		}
+
+		when:
+		List responses = (1..4).collect { client.send(new Request(new URL("http://multi.test:" + one.port + "/" + it), Request.Method.GET)) }
+		responses*.get(10, TimeUnit.SECONDS)
+
+		then:
+		one.connections.get() == 2
+		otherAccepted.get() == 2
+
+		cleanup:
+		client.dispose()
+		transport.stop()
+		other.close()
+		one.stop()
+
+	}
+
+}
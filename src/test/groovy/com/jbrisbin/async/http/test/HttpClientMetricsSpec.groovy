@@ -0,0 +1,290 @@
+package com.jbrisbin.async.http.test
+
+import com.jbrisbin.async.http.AsyncHttpClient
+import com.jbrisbin.async.http.HttpClientMetrics
+import com.jbrisbin.async.http.HttpClientTransport
+import com.jbrisbin.async.http.JmxHttpClientMetrics
+import com.jbrisbin.async.http.Request
+import com.jbrisbin.async.http.Response
+import java.lang.management.ManagementFactory
+import java.nio.ByteBuffer
+import java.util.concurrent.CopyOnWriteArrayList
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.ExecutionException
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicInteger
+import java.util.concurrent.atomic.AtomicLong
+import javax.management.ObjectName
+import spock.lang.Specification
+import static com.jbrisbin.async.http.test.TestHttpServer.waitFor
+
+/**
+ * @author Jon Brisbin <jon@jbrisbin.com>
+ */
+class HttpClientMetricsSpec extends Specification {
+
+	/**
+	 * Keeps everything it's told.
+	 */
+	static class RecordingMetrics implements HttpClientMetrics {
+		final AtomicInteger starts = new AtomicInteger()
+		final AtomicInteger stops = new AtomicInteger()
+		final List<Long> connectTimes = new CopyOnWriteArrayList<Long>()
+		final List<String> connectedTo = new CopyOnWriteArrayList<String>()
+		final List<String> connectFailures = new CopyOnWriteArrayList<String>()
+		final List<Request> started = new CopyOnWriteArrayList<Request>()
+		final Map<Request, Long> firstBytes = new IdentityHashMap<Request, Long>()
+		final Map<Request, Long> completed = new IdentityHashMap<Request, Long>()
+		final Map<Request, Integer> completedStatus = new IdentityHashMap<Request, Integer>()
+		final Map<Request, Integer> failedStatus = new IdentityHashMap<Request, Integer>()
+		final AtomicLong sent = new AtomicLong()
+		final AtomicLong received = new AtomicLong()
+
+		void started(HttpClientTransport transport) {
+			starts.incrementAndGet()
+		}
+
+		void stopped(HttpClientTransport transport) {
+			stops.incrementAndGet()
+		}
+
+		void connected(String host, int port, long nanos) {
+			connectedTo << host + ":" + port
+			connectTimes << nanos
+		}
+
+		void connectFailed(String host, int port) {
+			connectFailures << host + ":" + port
+		}
+
+		void requestStarted(Request request) {
+			started << request
+		}
+
+		void bytesSent(long bytes) {
+			sent.addAndGet(bytes)
+		}
+
+		synchronized void firstByte(Request request, long nanos) {
+			firstBytes[request] = nanos
+		}
+
+		void bytesReceived(long bytes) {
+			received.addAndGet(bytes)
+		}
+
+		synchronized void requestCompleted(Request request, int status, long nanos) {
+			completed[request] = nanos
+			completedStatus[request] = status
+		}
+
+		synchronized void requestFailed(Request request, int status, long nanos) {
+			completed[request] = nanos
+			failedStatus[request] = status
+		}
+
+		synchronized int getFinished() {
+			completed.size()
+		}
+
+		int getInFlight() {
+			started.size() - finished
+		}
+	}
+
+	TestHttpServer server
+	HttpClientTransport transport
+	AsyncHttpClient client
+	RecordingMetrics metrics = new RecordingMetrics()
+
+	def setup() {
+		server = new TestHttpServer().start()
+		server.handler = { TestHttpServer.Exchange ex ->
+			switch (ex.uri) {
+				case "/slow":
+					Thread.sleep(100)
+					return TestHttpServer.response(200, [:], "slow".bytes)
+				case "/missing":
+					return TestHttpServer.response(404, [:], "gone".bytes)
+				case "/busy":
+					return TestHttpServer.response(503, [:], "busy".bytes)
+				case "/dropped":
+					return null
+				default:
+					return TestHttpServer.response(200, [:], new byte[1000])
+			}
+		}
+		transport = new HttpClientTransport().setMetrics(metrics)
+		client = AsyncHttpClient.connect("localhost", server.port, transport)
+	}
+
+	def cleanup() {
+		client.dispose()
+		transport.stop()
+		server.stop()
+	}
+
+	Request get(String path) {
+		new Request(new URL(server.url(path)), Request.Method.GET)
+	}
+
+	static void quietly(Response response) {
+		try {
+			response.get(10, TimeUnit.SECONDS)
+		} catch (ExecutionException ignored) {
+		}
+	}
+
+	def "Test a request records a connect, its time to first byte, its latency and its bytes"() {
+
+		given:
+		Request request = get("/slow")
+
+		when:
+		client.send(request).get(10, TimeUnit.SECONDS)
+		waitFor { metrics.finished == 1 }
+
+		then:
+		metrics.starts.get() == 1
+		metrics.connectedTo == ["localhost:" + server.port]
+		metrics.connectTimes[0] > 0
+		metrics.started == [request]
+		metrics.firstBytes[request] >= TimeUnit.MILLISECONDS.toNanos(100)
+		metrics.completed[request] >= metrics.firstBytes[request]
+		metrics.completedStatus[request] == 200
+		metrics.received.get() == 4
+		metrics.sent.get() == 0
+		metrics.inFlight == 0
+
+	}
+
+	def "Test request bodies are counted as they're sent"() {
+
+		when:
+		client.send(new Request(new URL(server.url("/put")), Request.Method.PUT, [:], ByteBuffer.wrap(new byte[3000]), "text/plain")).get(10, TimeUnit.SECONDS)
+		waitFor { metrics.finished == 1 }
+
+		then:
+		metrics.sent.get() == 3000
+		metrics.received.get() == 1000
+
+	}
+
+	def "Test a connection reused from the pool isn't counted as a connect"() {
+
+		when:
+		3.times { client.send(get("/reuse")).get(10, TimeUnit.SECONDS) }
+		waitFor { metrics.finished == 3 }
+
+		then:
+		metrics.connectedTo.size() == 1
+		metrics.started.size() == 3
+		metrics.received.get() == 3000
+
+	}
+
+	def "Test requests are in flight until they're done"() {
+
+		given:
+		CountDownLatch release = new CountDownLatch(1)
+		server.handler = { TestHttpServer.Exchange ex ->
+			release.await(10, TimeUnit.SECONDS)
+			TestHttpServer.response(200, [:], "ok".bytes)
+		}
+
+		when:
+		List<Response> responses = (1..3).collect { client.send(get("/held/" + it)) }
+		waitFor { server.exchanges.size() == 3 }
+		int inFlightWhileHeld = metrics.inFlight
+		release.countDown()
+		responses*.get(10, TimeUnit.SECONDS)
+		waitFor { metrics.finished == 3 }
+
+		then:
+		inFlightWhileHeld == 3
+		metrics.inFlight == 0
+
+	}
+
+	def "Test failures are recorded with their status, or 0 when there isn't one"() {
+
+		given:
+		Request missing = get("/missing")
+		Request busy = get("/busy")
+		Request dropped = get("/dropped")
+
+		when:
+		[missing, busy, dropped].each { quietly(client.send(it)) }
+		waitFor { metrics.finished == 3 }
+
+		then:
+		metrics.failedStatus[missing] == 404
+		metrics.failedStatus[busy] == 503
+		metrics.failedStatus[dropped] == 0
+		metrics.completedStatus.isEmpty()
+		metrics.inFlight == 0
+
+	}
+
+	def "Test a connection that can't be made is recorded as a connect failure"() {
+
+		given:
+		ServerSocket closed = new ServerSocket(0, 1, InetAddress.getByName("localhost"))
+		Integer port = closed.localPort
+		closed.close()
+		AsyncHttpClient refused = AsyncHttpClient.connect("localhost", port, transport)
+
+		when:
+		quietly(refused.send(new Request(new URL("http://localhost:" + port + "/"), Request.Method.GET)))
+
+		then:
+		metrics.connectFailures == ["localhost:" + port]
+		metrics.connectedTo.empty
+
+		cleanup:
+		refused.dispose()
+
+	}
+
+	def "Test the default metrics count what happened and are registered with JMX while the transport runs"() {
+
+		given:
+		JmxHttpClientMetrics jmx = new JmxHttpClientMetrics()
+		HttpClientTransport jmxTransport = new HttpClientTransport().setMetrics(jmx)
+		AsyncHttpClient jmxClient = AsyncHttpClient.connect("localhost", server.port, jmxTransport)
+
+		when:
+		jmxClient.send(get("/one")).get(10, TimeUnit.SECONDS)
+		jmxClient.send(new Request(new URL(server.url("/put")), Request.Method.PUT, [:], ByteBuffer.wrap(new byte[500]), "text/plain")).get(10, TimeUnit.SECONDS)
+		["/missing", "/missing", "/busy", "/dropped"].each { quietly(jmxClient.send(get(it))) }
+		waitFor { jmx.inFlightCount == 0 && jmx.requestCount == 6 }
+		ObjectName name = jmx.objectName
+
+		then:
+		jmx.requestCount == 6
+		jmx.inFlightCount == 0
+		// Error statuses keep the connection; only the dropped one, sent last, loses it
+		jmx.connectCount == 1
+		jmx.connectFailureCount == 0
+		jmx.connectTimeMean > 0
+		jmx.bytesSent == 500
+		jmx.bytesReceived == 2000 + 4 + 4 + 4
+		jmx.timeToFirstByteMean > 0
+		// The dropped request has a latency but never got a first byte, so the means aren't comparable
+		jmx.latencyMean > 0
+		jmx.errorCount == 4
+		jmx.errorCountsByStatus == [0: 1L, 404: 2L, 503: 1L]
+		null != name
+		ManagementFactory.platformMBeanServer.getAttribute(name, "RequestCount") == 6L
+
+		when:
+		jmxClient.dispose()
+		jmxTransport.stop()
+
+		then:
+		null == jmx.objectName
+		!ManagementFactory.platformMBeanServer.isRegistered(name)
+
+	}
+
+}
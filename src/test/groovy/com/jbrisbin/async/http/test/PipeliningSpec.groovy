@@ -0,0 +1,119 @@
+package com.jbrisbin.async.http.test
+
+import com.jbrisbin.async.http.AsyncHttpClient
+import com.jbrisbin.async.http.HttpClientTransport
+import com.jbrisbin.async.http.Request
+import com.jbrisbin.async.http.Response
+import java.nio.ByteBuffer
+import java.util.concurrent.TimeUnit
+import spock.lang.Specification
+import static com.jbrisbin.async.http.test.TestHttpServer.text
+
+/**
+ * @author Jon Brisbin <jon@jbrisbin.com>
+ */
+class PipeliningSpec extends Specification {
+
+	TestHttpServer server
+	HttpClientTransport transport
+	AsyncHttpClient client
+
+	def setup() {
+		server = new TestHttpServer().start()
+		server.handler = { TestHttpServer.Exchange ex ->
+			if (ex.method == "HEAD") {
+				// A HEAD response says how long the body would be, but has none
+				TestHttpServer.response(200, ["Content-Length": "1024"], null)
+			} else {
+				TestHttpServer.response(200, [:], ex.uri.bytes)
+			}
+		}
+		transport = new HttpClientTransport()
+		client = AsyncHttpClient.connect("localhost", server.port, transport)
+	}
+
+	def cleanup() {
+		client.dispose()
+		server.stop()
+	}
+
+	def "Test GET, HEAD and GET pipelined on one connection"() {
+
+		given:
+		Request[] batch = [
+				new Request(new URL(server.url("/first")), Request.Method.GET),
+				new Request(new URL(server.url("/second")), Request.Method.HEAD),
+				new Request(new URL(server.url("/third")), Request.Method.GET)
+		]
+
+		when:
+		List<Response> responses = client.send(batch)
+		ByteBuffer first = responses[0].get(10, TimeUnit.SECONDS)
+		responses[1].get(10, TimeUnit.SECONDS)
+		ByteBuffer third = responses[2].get(10, TimeUnit.SECONDS)
+
+		then:
+		text(first) == "/first"
+		responses[1].status == 200
+		!responses[1].content
+		text(third) == "/third"
+		server.exchanges*.method == ["GET", "HEAD", "GET"]
+		server.exchanges*.uri == ["/first", "/second", "/third"]
+		server.connections.get() == 1
+
+	}
+
+	def "Test the response after one without a body is parsed when they're read together"() {
+
+		given:
+		server.handler = { TestHttpServer.Exchange ex ->
+			if (ex.method == "HEAD") {
+				// Answer the next request along with this one, in a single write
+				ByteArrayOutputStream both = new ByteArrayOutputStream()
+				both.write(TestHttpServer.response(200, ["Content-Length": "1024"], null))
+				both.write(TestHttpServer.response(200, [:], "/third".bytes))
+				both.toByteArray()
+			} else if (ex.uri == "/third") {
+				new byte[0]
+			} else {
+				TestHttpServer.response(200, [:], ex.uri.bytes)
+			}
+		}
+		Request[] batch = [
+				new Request(new URL(server.url("/first")), Request.Method.GET),
+				new Request(new URL(server.url("/second")), Request.Method.HEAD),
+				new Request(new URL(server.url("/third")), Request.Method.GET)
+		]
+
+		when:
+		List<Response> responses = client.send(batch)
+		responses[1].get(10, TimeUnit.SECONDS)
+		ByteBuffer third = responses[2].get(10, TimeUnit.SECONDS)
+
+		then:
+		responses[1].status == 200
+		text(third) == "/third"
+		server.connections.get() == 1
+
+	}
+
+	def "Test requests that aren't idempotent aren't pipelined"() {
+
+		given:
+		Request[] batch = [
+				new Request(new URL(server.url("/first")), Request.Method.GET),
+				new Request(new URL(server.url("/second")), Request.Method.POST, [:], ByteBuffer.wrap("body".bytes), "text/plain")
+		]
+
+		when:
+		List<Response> responses = client.send(batch)
+		responses.each { it.get(10, TimeUnit.SECONDS) }
+
+		then:
+		server.exchanges.size() == 2
+		server.exchanges.find { it.method == "POST" }.body == "body".bytes
+		server.connections.get() == 2
+
+	}
+
+}
@@ -0,0 +1,149 @@
+package com.jbrisbin.async.http.test
+
+import com.jbrisbin.async.http.AsyncHttpClient
+import com.jbrisbin.async.http.HttpClientTransport
+import com.jbrisbin.async.http.Request
+import com.jbrisbin.async.http.RequestByteChannel
+import com.jbrisbin.async.http.Response
+import java.nio.ByteBuffer
+import java.util.concurrent.ExecutionException
+import java.util.concurrent.TimeUnit
+import spock.lang.Specification
+
+/**
+ * @author Jon Brisbin <jon@jbrisbin.com>
+ */
+class RequestByteChannelSpec extends Specification {
+
+	static final int LIMIT = 64 * 1024
+
+	TestHttpServer server
+	HttpClientTransport transport
+	AsyncHttpClient client
+	// More than the socket buffers on either end can hold while the server isn't reading
+	byte[] body = new byte[32 * 1024 * 1024]
+
+	def setup() {
+		new Random(7).nextBytes(body)
+		server = new TestHttpServer().start()
+		transport = new HttpClientTransport()
+	}
+
+	def cleanup() {
+		client?.dispose()
+		server.stop()
+	}
+
+	Request upload() {
+		Request request = new Request(new URL(server.url("/upload")), Request.Method.PUT)
+		request.contentType = "application/octet-stream"
+		request.contentLength = (long) body.length
+		request
+	}
+
+	def "Test a non-blocking write takes only what fits"() {
+
+		given:
+		server.bodyReadDelay = 100
+		client = AsyncHttpClient.connect("localhost", server.port, transport).setMaxQueuedBytes(LIMIT)
+		Request request = upload()
+		RequestByteChannel channel = client.start(request).setBlocking(false)
+		ByteBuffer src = ByteBuffer.wrap(body)
+		Object writable = new Object()
+		channel.setWritableListener({ synchronized (writable) { writable.notifyAll() } } as Runnable)
+		long mostQueued = 0
+
+		when:
+		int first = channel.write(src)
+		server.bodyReadDelay = 0
+		while (src.hasRemaining()) {
+			synchronized (writable) {
+				if (0 == channel.write(src)) {
+					writable.wait(100)
+				}
+			}
+			mostQueued = Math.max(mostQueued, channel.queuedBytes)
+		}
+		client.complete(request).get(30, TimeUnit.SECONDS)
+
+		then:
+		first < body.length
+		mostQueued <= LIMIT
+		Arrays.equals(server.exchanges[0].body, body)
+
+	}
+
+	def "Test a blocking write bigger than the transport's queue limit waits its way through"() {
+
+		given:
+		server.bodyReadDelay = 100
+		transport.setMaxPendingBytesPerConnection(LIMIT)
+		client = AsyncHttpClient.connect("localhost", server.port, transport)
+		Request request = upload()
+		RequestByteChannel channel = client.start(request)
+		Thread.startDaemon {
+			Thread.sleep(500)
+			server.bodyReadDelay = 0
+		}
+
+		when:
+		int written = channel.write(ByteBuffer.wrap(body))
+		client.complete(request).get(30, TimeUnit.SECONDS)
+
+		then:
+		written == body.length
+		Arrays.equals(server.exchanges[0].body, body)
+
+	}
+
+	def "Test a write that fails aborts the request and later writes throw"() {
+
+		given:
+		// Hangs up on whoever connects, without reading anything
+		ServerSocket rude = new ServerSocket(0, 50, InetAddress.getByName("localhost"))
+		Thread.startDaemon {
+			while (!rude.closed) {
+				try {
+					Socket socket = rude.accept()
+					socket.setSoLinger(true, 0)
+					socket.close()
+				} catch (IOException ignored) {
+				}
+			}
+		}
+		client = AsyncHttpClient.connect("localhost", rude.localPort, transport).setMaxQueuedBytes(LIMIT)
+		Request request = new Request(new URL("http://localhost:${rude.localPort}/upload"), Request.Method.PUT)
+		request.contentType = "application/octet-stream"
+		request.contentLength = 1024L * 1024 * 1024
+		RequestByteChannel channel = client.start(request)
+		Response response = request.response
+		Long deadline = System.currentTimeMillis() + 10000
+		IOException failure = null
+
+		when:
+		while (null == failure && System.currentTimeMillis() < deadline) {
+			try {
+				channel.write(ByteBuffer.wrap(body, 0, 16 * 1024))
+			} catch (IOException e) {
+				failure = e
+			}
+		}
+		response.get(1, TimeUnit.SECONDS)
+
+		then:
+		null != failure
+		thrown(ExecutionException)
+		response.done
+
+		when:
+		channel.write(ByteBuffer.wrap(body, 0, 1))
+
+		then:
+		thrown(IOException)
+
+		cleanup:
+		rude.close()
+
+	}
+
+}
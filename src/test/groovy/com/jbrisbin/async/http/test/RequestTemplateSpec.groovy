@@ -0,0 +1,171 @@
+package com.jbrisbin.async.http.test
+
+import com.jbrisbin.async.http.AsyncHttpClient
+import com.jbrisbin.async.http.HttpClientTransport
+import com.jbrisbin.async.http.Request
+import com.jbrisbin.async.http.RequestTemplate
+import com.jbrisbin.async.http.Response
+import java.nio.ByteBuffer
+import java.util.concurrent.TimeUnit
+import spock.lang.Specification
+import static com.jbrisbin.async.http.test.TestHttpServer.text
+
+/**
+ * @author Jon Brisbin <jon@jbrisbin.com>
+ */
+class RequestTemplateSpec extends Specification {
+
+	TestHttpServer server
+	HttpClientTransport transport
+	AsyncHttpClient client
+
+	def setup() {
+		server = new TestHttpServer().start()
+		server.handler = { TestHttpServer.Exchange ex -> TestHttpServer.response(200, [:], ex.uri.bytes) }
+		transport = new HttpClientTransport()
+		client = AsyncHttpClient.connect("localhost", server.port, transport)
+	}
+
+	def cleanup() {
+		client.dispose()
+		transport.stop()
+		server.stop()
+	}
+
+	/**
+	 * The names of the header lines sent, lower-cased, in the order they were sent.
+	 */
+	static List<String> names(TestHttpServer.Exchange ex) {
+		ex.headerLines.collect { it.substring(0, it.indexOf(':')).toLowerCase() }
+	}
+
+	def "Test a GET from a template sends its request line and the template's headers once each"() {
+
+		given:
+		RequestTemplate template = client.template(Request.Method.GET, ["Accept": "application/json", "X-Riak-ClientId": "spec"])
+
+		when:
+		ByteBuffer body = client.send(template.newRequest("/riak/bucket/key?r=2")).get(10, TimeUnit.SECONDS)
+		TestHttpServer.Exchange ex = server.exchanges[0]
+
+		then:
+		text(body) == "/riak/bucket/key?r=2"
+		ex.method == "GET"
+		ex.uri == "/riak/bucket/key?r=2"
+		ex.header("Host") == "localhost:" + server.port
+		ex.header("Accept") == "application/json"
+		ex.header("X-Riak-ClientId") == "spec"
+		names(ex).size() == (names(ex) as Set).size()
+		ex.header("Content-Length") in [null, "0"]
+		!names(ex).contains("content-type")
+
+	}
+
+	def "Test a template sends the caller's headers just as the request it stands in for does"() {
+
+		given:
+		Map<String, String> headers = ["Accept": "application/json", "X-Riak-ClientId": "spec"]
+		RequestTemplate template = client.template(Request.Method.GET, headers)
+
+		when:
+		client.send(new Request(new URL(server.url("/plain")), Request.Method.GET, headers)).get(10, TimeUnit.SECONDS)
+		client.send(template.newRequest("/templated")).get(10, TimeUnit.SECONDS)
+
+		then:
+		["accept", "x-riak-clientid", "accept-encoding"].every { server.exchanges[0].header(it) == server.exchanges[1].header(it) }
+		server.exchanges[1].header("Accept-Encoding")
+
+	}
+
+	def "Test a PUT from a template sends its body with the template's content type and the body's length"() {
+
+		given:
+		RequestTemplate template = client.template(Request.Method.PUT, ["X-Riak-Meta-Spec": "yes"], "application/json")
+		byte[] received = null
+		server.handler = { TestHttpServer.Exchange ex ->
+			received = ex.body
+			TestHttpServer.response(204, [:], null)
+		}
+
+		when:
+		Response response = client.send(template.newRequest("/riak/bucket/key", ByteBuffer.wrap(json.bytes)))
+		response.get(10, TimeUnit.SECONDS)
+		TestHttpServer.Exchange ex = server.exchanges[0]
+
+		then:
+		response.status == 204
+		ex.method == "PUT"
+		new String(received) == json
+		ex.header("Content-Type") == "application/json"
+		ex.header("Content-Length") == String.valueOf(json.bytes.length)
+		ex.header("X-Riak-Meta-Spec") == "yes"
+		names(ex).size() == (names(ex) as Set).size()
+
+		where:
+		json << ['{"a":1}', "", '{"long":"' + ("x" * 20000) + '"}']
+
+	}
+
+	def "Test a Host header in the template is sent instead of the client's"() {
+
+		given:
+		RequestTemplate template = client.template(Request.Method.GET, ["host": "riak.example.com"])
+
+		when:
+		client.send(template.newRequest("/host")).get(10, TimeUnit.SECONDS)
+		TestHttpServer.Exchange ex = server.exchanges[0]
+
+		then:
+		ex.header("Host") == "riak.example.com"
+		names(ex).count("host") == 1
+
+	}
+
+	def "Test many requests from one template each get their own path"() {
+
+		given:
+		RequestTemplate template = client.template(Request.Method.GET, ["Accept": "text/plain"])
+
+		when:
+		List<Response> responses = (1..50).collect { client.send(template.newRequest("/keys/" + it + "?n=" + it)) }
+		List<String> bodies = responses.collect { text(it.get(10, TimeUnit.SECONDS)) }
+
+		then:
+		bodies == (1..50).collect { "/keys/" + it + "?n=" + it }
+		server.exchanges.every { it.header("Accept") == "text/plain" }
+
+	}
+
+	def "Test a request given headers of its own keeps the template's and adds them"() {
+
+		given:
+		RequestTemplate template = client.template(Request.Method.GET, ["Accept": "text/plain"])
+
+		when:
+		Request request = template.newRequest("/own").setHeaders(["X-Extra": "1"])
+		client.send(request).get(10, TimeUnit.SECONDS)
+		client.send(template.newRequest("/shared")).get(10, TimeUnit.SECONDS)
+
+		then:
+		null == request.template
+		server.exchanges[0].header("Accept") == "text/plain"
+		server.exchanges[0].header("X-Extra") == "1"
+		server.exchanges[1].header("X-Extra") == null
+		template.headers == ["Accept": "text/plain"]
+
+	}
+
+	def "Test the template's headers can't be changed through it"() {
+
+		given:
+		RequestTemplate template = client.template(Request.Method.GET, ["Accept": "text/plain"])
+
+		when:
+		template.headers.put("X-Sneaky", "1")
+
+		then:
+		thrown(UnsupportedOperationException)
+
+	}
+
+}
@@ -0,0 +1,278 @@
+package com.jbrisbin.async.http.test
+
+import com.jbrisbin.async.http.AsyncHttpClient
+import com.jbrisbin.async.http.HttpClientTransport
+import com.jbrisbin.async.http.Request
+import com.jbrisbin.async.http.Response
+import com.jbrisbin.async.http.ResponseCache
+import java.nio.ByteBuffer
+import java.util.concurrent.TimeUnit
+import spock.lang.Specification
+
+/**
+ * @author Jon Brisbin <jon@jbrisbin.com>
+ */
+class ResponseCacheSpec extends Specification {
+
+	TestHttpServer server
+	HttpClientTransport transport
+	AsyncHttpClient client
+	ResponseCache cache = new ResponseCache()
+	int version = 0
+
+	def setup() {
+		server = new TestHttpServer().start()
+		transport = new HttpClientTransport()
+		client = AsyncHttpClient.connect("localhost", server.port, transport).setResponseCache(cache)
+	}
+
+	def cleanup() {
+		client.dispose()
+		server.stop()
+	}
+
+	Response get(String path, Map<String, String> headers = [:]) {
+		Response response = client.send(new Request(new URL(server.url(path)), Request.Method.GET, headers))
+		response.get(10, TimeUnit.SECONDS)
+		response
+	}
+
+	static String text(Response response) {
+		TestHttpServer.text(response.get())
+	}
+
+	def "Test a fresh response is served without going to the network"() {
+
+		given:
+		server.handler = { TestHttpServer.Exchange ex ->
+			TestHttpServer.response(200, ["Cache-Control": "max-age=60"], ("v" + (++version)).bytes)
+		}
+
+		when:
+		Response first = get("/fresh")
+		Response second = get("/fresh")
+
+		then:
+		text(first) == "v1"
+		text(second) == "v1"
+		second.headers.get("Age") == "0"
+		second.headers.get("Cache-Control") == "max-age=60"
+		server.exchanges.size() == 1
+		cache.hitCount == 1
+		cache.missCount == 1
+
+	}
+
+	def "Test every value of a repeated header is served from the cache and freshened on revalidation"() {
+
+		given:
+		server.handler = { TestHttpServer.Exchange ex ->
+			if (ex.header("If-None-Match")) {
+				TestHttpServer.response(304, ["ETag": '"abc"', "link": "</c>; rel=next"], null)
+			} else {
+				// A map can't repeat a key, so the second Link goes in under another case
+				TestHttpServer.response(200, ["Cache-Control": "max-age=0", "ETag": '"abc"', "Link": "</a>; rel=next", "LINK": "</b>; rel=prev", "X-Kept": "yes"], "body".bytes)
+			}
+		}
+
+		when:
+		get("/links")
+		Response revalidated = get("/links")
+
+		then:
+		revalidated.headers.getAll("Link") == ["</c>; rel=next"]
+		revalidated.headers.get("X-Kept") == "yes"
+
+		when:
+		server.handler = { TestHttpServer.Exchange ex ->
+			TestHttpServer.response(200, ["Cache-Control": "max-age=60", "Link": "</a>; rel=next", "LINK": "</b>; rel=prev"], "body".bytes)
+		}
+		get("/links2")
+		Response hit = get("/links2")
+
+		then:
+		hit.headers.getAll("link") == ["</a>; rel=next", "</b>; rel=prev"]
+
+	}
+
+	def "Test a stale response is revalidated and a 304 answered from the cache"() {
+
+		given:
+		server.handler = { TestHttpServer.Exchange ex ->
+			if (ex.header("If-None-Match") == '"abc"') {
+				TestHttpServer.response(304, ["ETag": '"abc"', "X-Checked": "yes"], null)
+			} else {
+				TestHttpServer.response(200, ["Cache-Control": "max-age=0", "ETag": '"abc"', "X-Checked": "no"], "body".bytes)
+			}
+		}
+
+		when:
+		Response first = get("/stale")
+		Response second = get("/stale")
+
+		then:
+		text(first) == "body"
+		second.status == 200
+		text(second) == "body"
+		second.headers.get("X-Checked") == "yes"
+		server.exchanges.size() == 2
+		server.exchanges[1].header("If-None-Match") == '"abc"'
+		cache.revalidationCount == 1
+
+	}
+
+	def "Test a response that varies on a header is only served to requests that match"() {
+
+		given:
+		server.handler = { TestHttpServer.Exchange ex ->
+			TestHttpServer.response(200, ["Cache-Control": "max-age=60", "Vary": "Accept-Language"], ex.header("Accept-Language").bytes)
+		}
+
+		when:
+		Response en = get("/vary", ["Accept-Language": "en"])
+		Response fr = get("/vary", ["Accept-Language": "fr"])
+		Response frAgain = get("/vary", ["Accept-Language": "fr"])
+
+		then:
+		text(en) == "en"
+		text(fr) == "fr"
+		text(frAgain) == "fr"
+		server.exchanges.size() == 2
+		cache.hitCount == 1
+
+	}
+
+	def "Test the age the server reports counts against freshness"() {
+
+		given:
+		server.handler = { TestHttpServer.Exchange ex ->
+			TestHttpServer.response(200, ["Cache-Control": "max-age=60", "Age": age], "aged".bytes)
+		}
+
+		when:
+		get("/aged")
+		Response second = get("/aged")
+
+		then:
+		server.exchanges.size() == (fresh ? 1 : 2)
+		!fresh || Integer.parseInt(second.headers.get("Age")) >= Integer.parseInt(age)
+
+		where:
+		age   | fresh
+		"30"  | true
+		"120" | false
+
+	}
+
+	def "Test a request can ask for a younger response than is stored"() {
+
+		given:
+		server.handler = { TestHttpServer.Exchange ex ->
+			TestHttpServer.response(200, ["Cache-Control": "max-age=600", "Age": "30"], "aged".bytes)
+		}
+
+		when:
+		get("/young")
+		get("/young", ["Cache-Control": "max-age=10"])
+		get("/young", ["Cache-Control": "no-cache"])
+		get("/young")
+
+		then:
+		server.exchanges.size() == 3
+		cache.hitCount == 1
+
+	}
+
+	def "Test a heuristic lifetime from Last-Modified"() {
+
+		given:
+		long now = System.currentTimeMillis()
+		server.handler = { TestHttpServer.Exchange ex ->
+			TestHttpServer.response(200, [
+					"Date": httpDate(now),
+					"Last-Modified": httpDate(now - TimeUnit.HOURS.toMillis(10))
+			], "old".bytes)
+		}
+
+		when:
+		get("/heuristic")
+		get("/heuristic")
+
+		then:
+		// A tenth of ten hours is an hour
+		server.exchanges.size() == 1
+
+	}
+
+	def "Test responses that mustn't be stored aren't"() {
+
+		given:
+		server.handler = { TestHttpServer.Exchange ex -> TestHttpServer.response(status, headers, "x".bytes) }
+
+		when:
+		try {
+			get("/no")
+		} catch (Exception ignored) {
+			// 4xx and 5xx fail the response
+		}
+
+		then:
+		cache.entryCount == 0
+
+		where:
+		status | headers
+		200    | ["Cache-Control": "no-store, max-age=60"]
+		200    | ["Cache-Control": "max-age=60", "Vary": "*"]
+		200    | [:]
+		404    | ["Cache-Control": "max-age=60"]
+
+	}
+
+	def "Test a PUT drops what's stored for its URL"() {
+
+		given:
+		server.handler = { TestHttpServer.Exchange ex ->
+			TestHttpServer.response(200, ["Cache-Control": "max-age=60"], ex.method.bytes)
+		}
+
+		when:
+		get("/put")
+		client.send(new Request(new URL(server.url("/put")), Request.Method.PUT, [:], ByteBuffer.wrap("x".bytes), "text/plain")).get(10, TimeUnit.SECONDS)
+		get("/put")
+
+		then:
+		server.exchanges*.method == ["GET", "PUT", "GET"]
+
+	}
+
+	def "Test the cache is charged for the bytes it holds"() {
+
+		given:
+		byte[] body = new byte[10000]
+		server.handler = { TestHttpServer.Exchange ex ->
+			TestHttpServer.response(200, ["Cache-Control": "max-age=60"], body)
+		}
+		cache.setMaxSize(25000).setMaxEntrySize(25000)
+
+		when:
+		get("/a")
+		long oneEntry = cache.size
+		get("/b")
+		get("/c")
+
+		then:
+		oneEntry >= body.length
+		oneEntry < body.length + 1024
+		cache.entryCount == 2
+		cache.evictionCount == 1
+		cache.size <= 25000
+
+	}
+
+	static String httpDate(long millis) {
+		java.text.SimpleDateFormat format = new java.text.SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss zzz", Locale.US)
+		format.timeZone = TimeZone.getTimeZone("GMT")
+		format.format(new Date(millis))
+	}
+
+}
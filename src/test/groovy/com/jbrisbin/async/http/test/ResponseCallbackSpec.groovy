@@ -0,0 +1,243 @@
+package com.jbrisbin.async.http.test
+
+import com.jbrisbin.async.http.AsyncHttpClient
+import com.jbrisbin.async.http.HttpClientTransport
+import com.jbrisbin.async.http.HttpException
+import com.jbrisbin.async.http.Request
+import com.jbrisbin.async.http.Response
+import com.jbrisbin.async.http.ResponseCallback
+import java.nio.ByteBuffer
+import java.util.concurrent.CancellationException
+import java.util.concurrent.CopyOnWriteArrayList
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.Executor
+import java.util.concurrent.ExecutorService
+import java.util.concurrent.Executors
+import java.util.concurrent.RejectedExecutionException
+import java.util.concurrent.ThreadFactory
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicInteger
+import spock.lang.Specification
+import static com.jbrisbin.async.http.test.TestHttpServer.waitFor
+
+/**
+ * @author Jon Brisbin <jon@jbrisbin.com>
+ */
+class ResponseCallbackSpec extends Specification {
+
+	TestHttpServer server
+	HttpClientTransport transport
+	AsyncHttpClient client
+
+	def setup() {
+		server = new TestHttpServer().start()
+		server.handler = { TestHttpServer.Exchange ex ->
+			(ex.uri == "/fail" ? TestHttpServer.response(500, [:], "no".bytes) : TestHttpServer.response(200, [:], ex.uri.bytes))
+		}
+		transport = new HttpClientTransport()
+		client = AsyncHttpClient.connect("localhost", server.port, transport)
+	}
+
+	def cleanup() {
+		client.dispose()
+		transport.stop()
+		server.stop()
+	}
+
+	/**
+	 * Counts how many times it's told each way, and on which threads.
+	 */
+	static class CountingCallback implements ResponseCallback {
+		final AtomicInteger successes = new AtomicInteger()
+		final AtomicInteger failures = new AtomicInteger()
+		final List<Throwable> thrown = new CopyOnWriteArrayList<Throwable>()
+		final List<Thread> threads = new CopyOnWriteArrayList<Thread>()
+		final CountDownLatch told = new CountDownLatch(1)
+		final List<Integer> order
+		final int id
+
+		CountingCallback(List<Integer> order = null, int id = 0) {
+			this.order = order
+			this.id = id
+		}
+
+		boolean isWatch() {
+			false
+		}
+
+		void success(Map<String, String> headers, ByteBuffer body) {
+			successes.incrementAndGet()
+			told(null)
+		}
+
+		void failure(Map<String, String> headers, Throwable t) {
+			failures.incrementAndGet()
+			told(t)
+		}
+
+		private void told(Throwable t) {
+			if (null != t) {
+				thrown << t
+			}
+			threads << Thread.currentThread()
+			order?.add(id)
+			told.countDown()
+		}
+
+		int getRuns() {
+			successes.get() + failures.get()
+		}
+	}
+
+	Request get(String path) {
+		new Request(new URL(server.url(path)), Request.Method.GET)
+	}
+
+	def "Test each callback runs exactly once when adding races completion"() {
+
+		given:
+		int requests = 200
+		int perRequest = 20
+		List<CountingCallback> all = new CopyOnWriteArrayList<CountingCallback>()
+
+		when:
+		(1..requests).each { int i ->
+			Response response = client.send(get("/race/" + i))
+			CountDownLatch go = new CountDownLatch(1)
+			// Two threads adding while the response completes on a transport thread
+			List<Thread> adders = (1..2).collect {
+				Thread.start {
+					go.await()
+					(perRequest / 2).times {
+						CountingCallback callback = new CountingCallback()
+						all << callback
+						response.addCallback(callback)
+					}
+				}
+			}
+			go.countDown()
+			adders*.join()
+		}
+		waitFor(50) { all.every { it.runs > 0 } }
+
+		then:
+		all.size() == requests * perRequest
+		all.every { it.runs == 1 && it.successes.get() == 1 }
+
+	}
+
+	def "Test callbacks added before completion run in the order they were added"() {
+
+		given:
+		CountDownLatch release = new CountDownLatch(1)
+		server.handler = { TestHttpServer.Exchange ex ->
+			release.await(10, TimeUnit.SECONDS)
+			TestHttpServer.response(200, [:], "ok".bytes)
+		}
+		List<Integer> order = new CopyOnWriteArrayList<Integer>()
+
+		when:
+		Response response = client.send(get("/ordered"))
+		List<CountingCallback> callbacks = (0..9).collect { new CountingCallback(order, it) }
+		callbacks.each { response.addCallback(it) }
+		release.countDown()
+		waitFor(50) { order.size() == 10 }
+
+		then:
+		order == (0..9).toList()
+
+	}
+
+	def "Test a failed response calls failure and never success"() {
+
+		given:
+		CountingCallback before = new CountingCallback()
+		CountingCallback after = new CountingCallback()
+
+		when:
+		Response response = client.send(get("/fail")).addCallback(before)
+		waitFor(50) { response.done }
+		response.addCallback(after)
+		waitFor(50) { before.runs > 0 && after.runs > 0 }
+
+		then:
+		[before, after].every { it.failures.get() == 1 && it.successes.get() == 0 }
+		[before, after].every { it.thrown[0] instanceof HttpException && ((HttpException) it.thrown[0]).status == 500 }
+
+	}
+
+	def "Test cancelling a response tells its callbacks with a CancellationException"() {
+
+		given:
+		CountDownLatch release = new CountDownLatch(1)
+		server.handler = { TestHttpServer.Exchange ex ->
+			release.await(10, TimeUnit.SECONDS)
+			TestHttpServer.response(200, [:], "late".bytes)
+		}
+		CountingCallback callback = new CountingCallback()
+
+		when:
+		Response response = client.send(get("/cancelled")).addCallback(callback)
+		response.cancel(true)
+		release.countDown()
+		waitFor(50) { callback.runs > 0 }
+		// The late response mustn't tell it again
+		Thread.sleep(200)
+
+		then:
+		response.cancelled
+		callback.runs == 1
+		callback.failures.get() == 1
+		callback.thrown[0] instanceof CancellationException
+
+	}
+
+	def "Test callbacks run on the configured executor"() {
+
+		given:
+		ExecutorService executor = Executors.newFixedThreadPool(2, { Runnable r -> new Thread(r, "spec-callbacks") } as ThreadFactory)
+		client.callbackExecutor = executor
+		CountingCallback before = new CountingCallback()
+		CountingCallback after = new CountingCallback()
+
+		when:
+		Response response = client.send(get("/executor")).addCallback(before)
+		waitFor(50) { response.done }
+		response.addCallback(after)
+		waitFor(50) { before.runs > 0 && after.runs > 0 }
+
+		then:
+		[before, after].every { it.runs == 1 && it.threads[0].name == "spec-callbacks" }
+
+		cleanup:
+		executor.shutdown()
+
+	}
+
+	def "Test callbacks an executor turns away still run, on the thread that completed the response"() {
+
+		given:
+		AtomicInteger rejected = new AtomicInteger()
+		client.callbackExecutor = { Runnable r ->
+			rejected.incrementAndGet()
+			throw new RejectedExecutionException("shut down")
+		} as Executor
+		CountingCallback before = new CountingCallback()
+		CountingCallback after = new CountingCallback()
+
+		when:
+		Response response = client.send(get("/rejected")).addCallback(before)
+		waitFor(50) { before.runs > 0 }
+		response.addCallback(after)
+
+		then:
+		// Added once it's done, it's run inline by whoever adds it
+		after.runs == 1
+		after.threads[0] == Thread.currentThread()
+		before.runs == 1
+		before.threads[0] != Thread.currentThread()
+		rejected.get() == 2
+
+	}
+
+}
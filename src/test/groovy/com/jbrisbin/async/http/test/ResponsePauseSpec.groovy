@@ -0,0 +1,138 @@
+package com.jbrisbin.async.http.test
+
+import com.jbrisbin.async.http.AsyncHttpClient
+import com.jbrisbin.async.http.HttpClientTransport
+import com.jbrisbin.async.http.Request
+import com.jbrisbin.async.http.Response
+import com.jbrisbin.async.http.ResponseConsumer
+import java.nio.ByteBuffer
+import java.util.concurrent.CopyOnWriteArrayList
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.TimeUnit
+import spock.lang.Specification
+
+/**
+ * @author Jon Brisbin <jon@jbrisbin.com>
+ */
+class ResponsePauseSpec extends Specification {
+
+	static final int BODY_SIZE = 4 * 1024 * 1024
+
+	TestHttpServer server
+	HttpClientTransport transport
+	AsyncHttpClient client
+	byte[] body = new byte[BODY_SIZE]
+
+	def setup() {
+		new Random(42).nextBytes(body)
+		server = new TestHttpServer().start()
+		server.handler = { TestHttpServer.Exchange ex -> TestHttpServer.response(200, [:], body) }
+		transport = new HttpClientTransport()
+		client = AsyncHttpClient.connect("localhost", server.port, transport)
+	}
+
+	def cleanup() {
+		client.dispose()
+		server.stop()
+	}
+
+	def "Test nothing is delivered while paused and the rest arrives after resuming"() {
+
+		given:
+		ByteArrayOutputStream received = new ByteArrayOutputStream()
+		CountDownLatch paused = new CountDownLatch(1)
+		List<Thread> threadsAfterResume = new CopyOnWriteArrayList<Thread>()
+		boolean resumed = false
+		ResponseConsumer consumer = new ResponseConsumer() {
+			void headers(Response response) {
+			}
+
+			void chunk(Response response, ByteBuffer chunk) {
+				byte[] bytes = new byte[chunk.remaining()]
+				chunk.get(bytes)
+				synchronized (received) {
+					received.write(bytes)
+				}
+				if (resumed) {
+					threadsAfterResume << Thread.currentThread()
+				} else if (1 == paused.count) {
+					response.pause()
+					paused.countDown()
+				}
+			}
+
+			void completed(Response response) {
+			}
+
+			void failed(Response response, Throwable t) {
+			}
+		}
+		Request request = new Request(new URL(server.url("/big")), Request.Method.GET)
+		request.response.setConsumer(consumer)
+
+		when:
+		Response response = client.send(request)
+		paused.await(10, TimeUnit.SECONDS)
+		int deliveredWhenPaused = received.size()
+		Thread.sleep(250)
+		int deliveredAfterWaiting = received.size()
+		resumed = true
+		response.resume()
+		response.get(10, TimeUnit.SECONDS)
+
+		then:
+		deliveredWhenPaused < BODY_SIZE
+		deliveredAfterWaiting == deliveredWhenPaused
+		received.size() == BODY_SIZE
+		Arrays.equals(received.toByteArray(), body)
+		!threadsAfterResume.empty
+		!threadsAfterResume.contains(Thread.currentThread())
+
+	}
+
+	def "Test pausing after every chunk and resuming from another thread"() {
+
+		given:
+		transport.setSameThreadIOStrategy(sameThread)
+		ByteArrayOutputStream received = new ByteArrayOutputStream()
+		Thread resumer
+		Request request = new Request(new URL(server.url("/big")), Request.Method.GET)
+		request.response.setConsumer(new ResponseConsumer() {
+			void headers(Response response) {
+			}
+
+			void chunk(Response response, ByteBuffer chunk) {
+				byte[] bytes = new byte[chunk.remaining()]
+				chunk.get(bytes)
+				received.write(bytes)
+				response.pause()
+			}
+
+			void completed(Response response) {
+			}
+
+			void failed(Response response, Throwable t) {
+			}
+		})
+
+		when:
+		Response response = client.send(request)
+		resumer = Thread.startDaemon {
+			while (!response.done) {
+				response.resume()
+				Thread.sleep(1)
+			}
+		}
+		response.get(30, TimeUnit.SECONDS)
+		resumer.join(1000)
+
+		then:
+		received.size() == BODY_SIZE
+		Arrays.equals(received.toByteArray(), body)
+
+		where:
+		sameThread << [false, true]
+
+	}
+
+}
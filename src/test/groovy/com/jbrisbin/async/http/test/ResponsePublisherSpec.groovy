@@ -0,0 +1,331 @@
+package com.jbrisbin.async.http.test
+
+import com.jbrisbin.async.http.AsyncHttpClient
+import com.jbrisbin.async.http.HttpClientTransport
+import com.jbrisbin.async.http.Request
+import com.jbrisbin.async.http.Response
+import java.nio.ByteBuffer
+import java.util.concurrent.CancellationException
+import java.util.concurrent.CopyOnWriteArrayList
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.ExecutionException
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicInteger
+import org.reactivestreams.Publisher
+import org.reactivestreams.Subscriber
+import org.reactivestreams.Subscription
+import spock.lang.Specification
+
+/**
+ * @author Jon Brisbin <jon@jbrisbin.com>
+ */
+class ResponsePublisherSpec extends Specification {
+
+	static final int BODY_SIZE = 4 * 1024 * 1024
+
+	TestHttpServer server
+	HttpClientTransport transport
+	AsyncHttpClient client
+	byte[] body = new byte[BODY_SIZE]
+
+	def setup() {
+		new Random(18).nextBytes(body)
+		server = new TestHttpServer().start()
+		server.handler = { TestHttpServer.Exchange ex ->
+			(ex.uri == "/fail" ? TestHttpServer.response(500, [:], "no".bytes) : TestHttpServer.response(200, [:], body))
+		}
+		transport = new HttpClientTransport()
+		client = AsyncHttpClient.connect("localhost", server.port, transport)
+	}
+
+	def cleanup() {
+		client.dispose()
+		transport.stop()
+		server.stop()
+	}
+
+	/**
+	 * Asks for <code>initial</code> chunks when subscribed and otherwise only when told to, and keeps
+	 * everything it's given.
+	 */
+	static class RecordingSubscriber implements Subscriber<ByteBuffer> {
+		final long initial
+		final ByteArrayOutputStream received = new ByteArrayOutputStream()
+		final List<Throwable> errors = new CopyOnWriteArrayList<Throwable>()
+		final AtomicInteger chunks = new AtomicInteger()
+		final AtomicInteger completions = new AtomicInteger()
+		final CountDownLatch firstChunk = new CountDownLatch(1)
+		final CountDownLatch terminated = new CountDownLatch(1)
+		volatile Subscription subscription
+
+		RecordingSubscriber(long initial) {
+			this.initial = initial
+		}
+
+		void onSubscribe(Subscription s) {
+			subscription = s
+			if (initial > 0) {
+				s.request(initial)
+			}
+		}
+
+		void onNext(ByteBuffer chunk) {
+			byte[] bytes = new byte[chunk.remaining()]
+			chunk.get(bytes)
+			synchronized (received) {
+				received.write(bytes)
+			}
+			chunks.incrementAndGet()
+			firstChunk.countDown()
+		}
+
+		void onError(Throwable t) {
+			errors << t
+			terminated.countDown()
+		}
+
+		void onComplete() {
+			completions.incrementAndGet()
+			terminated.countDown()
+		}
+
+		int size() {
+			synchronized (received) {
+				received.size()
+			}
+		}
+	}
+
+	Request get(String path) {
+		new Request(new URL(server.url(path)), Request.Method.GET)
+	}
+
+	def "Test an unbounded subscriber gets the whole body intact and one onComplete"() {
+
+		given:
+		Request request = get("/all")
+		RecordingSubscriber subscriber = new RecordingSubscriber(Long.MAX_VALUE)
+		request.response.asPublisher().subscribe(subscriber)
+
+		when:
+		client.send(request)
+		boolean terminated = subscriber.terminated.await(10, TimeUnit.SECONDS)
+		Thread.sleep(100)
+
+		then:
+		terminated
+		subscriber.errors.empty
+		subscriber.completions.get() == 1
+		Arrays.equals(subscriber.received.toByteArray(), body)
+
+	}
+
+	def "Test reading stops once the subscriber has what it asked for and starts again when it asks for more"() {
+
+		given:
+		Request request = get("/slow")
+		RecordingSubscriber subscriber = new RecordingSubscriber(1)
+		request.response.asPublisher().subscribe(subscriber)
+
+		when:
+		Response response = client.send(request)
+		subscriber.firstChunk.await(10, TimeUnit.SECONDS)
+		Thread.sleep(250)
+		int chunksWhileWaiting = subscriber.chunks.get()
+		boolean pausedWhileWaiting = response.paused
+		boolean doneWhileWaiting = response.done
+
+		then:
+		chunksWhileWaiting == 1
+		pausedWhileWaiting
+		!doneWhileWaiting
+
+		when:
+		subscriber.subscription.request(Long.MAX_VALUE)
+		subscriber.terminated.await(10, TimeUnit.SECONDS)
+
+		then:
+		subscriber.completions.get() == 1
+		Arrays.equals(subscriber.received.toByteArray(), body)
+
+	}
+
+	def "Test a subscriber that asks for nothing gets nothing"() {
+
+		given:
+		Request request = get("/none")
+		RecordingSubscriber subscriber = new RecordingSubscriber(0)
+		request.response.asPublisher().subscribe(subscriber)
+
+		when:
+		Response response = client.send(request)
+		Thread.sleep(300)
+
+		then:
+		subscriber.chunks.get() == 0
+		!response.done
+
+		cleanup:
+		subscriber.subscription.cancel()
+
+	}
+
+	def "Test cancelling the subscription gives up on the exchange"() {
+
+		given:
+		Request request = get("/cancelled")
+		RecordingSubscriber subscriber = new RecordingSubscriber(1)
+		request.response.asPublisher().subscribe(subscriber)
+
+		when:
+		Response response = client.send(request)
+		subscriber.firstChunk.await(10, TimeUnit.SECONDS)
+		subscriber.subscription.cancel()
+		response.get(10, TimeUnit.SECONDS)
+
+		then:
+		ExecutionException e = thrown()
+		e.cause instanceof CancellationException
+		response.done
+		subscriber.completions.get() == 0
+		subscriber.errors.empty
+		subscriber.size() < BODY_SIZE
+
+	}
+
+	def "Test asking for no chunks is an error even with chunks held back"() {
+
+		given:
+		Request request = get("/invalid")
+		RecordingSubscriber subscriber = new RecordingSubscriber(0)
+		request.response.asPublisher().subscribe(subscriber)
+
+		when:
+		client.send(request)
+		// Reading stops after the first chunk, which is held until it's asked for
+		Thread.sleep(300)
+		subscriber.subscription.request(requested)
+		boolean terminated = subscriber.terminated.await(5, TimeUnit.SECONDS)
+
+		then:
+		terminated
+		subscriber.errors.size() == 1
+		subscriber.errors[0] instanceof IllegalArgumentException
+		subscriber.completions.get() == 0
+		subscriber.chunks.get() == 0
+
+		where:
+		requested << [0L, -1L]
+
+	}
+
+	def "Test an error status reaches the subscriber as onError"() {
+
+		given:
+		Request request = get("/fail")
+		RecordingSubscriber subscriber = new RecordingSubscriber(Long.MAX_VALUE)
+		request.response.asPublisher().subscribe(subscriber)
+
+		when:
+		client.send(request)
+		subscriber.terminated.await(10, TimeUnit.SECONDS)
+
+		then:
+		subscriber.errors.size() == 1
+		subscriber.completions.get() == 0
+
+	}
+
+	def "Test a second subscriber is turned away with onError"() {
+
+		given:
+		Request request = get("/twice")
+		Publisher<ByteBuffer> publisher = request.response.asPublisher()
+		RecordingSubscriber first = new RecordingSubscriber(Long.MAX_VALUE)
+		RecordingSubscriber second = new RecordingSubscriber(Long.MAX_VALUE)
+
+		when:
+		publisher.subscribe(first)
+		publisher.subscribe(second)
+		client.send(request)
+		first.terminated.await(10, TimeUnit.SECONDS)
+
+		then:
+		null != second.subscription
+		second.errors.size() == 1
+		second.errors[0] instanceof IllegalStateException
+		second.chunks.get() == 0
+		first.completions.get() == 1
+		Arrays.equals(first.received.toByteArray(), body)
+
+	}
+
+	def "Test whenAll runs straight away for no responses"() {
+
+		given:
+		AtomicInteger runs = new AtomicInteger()
+
+		when:
+		Response.whenAll([], { runs.incrementAndGet() } as Runnable)
+
+		then:
+		runs.get() == 1
+
+	}
+
+	def "Test whenAll runs once when every response is already done"() {
+
+		given:
+		List<Response> responses = [client.send(get("/one")), client.send(get("/fail"))]
+		responses.each {
+			try {
+				it.get(10, TimeUnit.SECONDS)
+			} catch (ExecutionException ignored) {
+			}
+		}
+		AtomicInteger runs = new AtomicInteger()
+		CountDownLatch ran = new CountDownLatch(1)
+
+		when:
+		// A waiter can wake before the thread completing the response has run its callbacks, so this
+		// may run on that thread rather than this one
+		Response.whenAll(responses, { runs.incrementAndGet(); ran.countDown() } as Runnable)
+		boolean finished = ran.await(5, TimeUnit.SECONDS)
+		Thread.sleep(100)
+
+		then:
+		finished
+		runs.get() == 1
+
+	}
+
+	def "Test whenAll runs once, after the last of a mix of successes and failures"() {
+
+		given:
+		CountDownLatch release = new CountDownLatch(1)
+		server.handler = { TestHttpServer.Exchange ex ->
+			if (ex.uri == "/held") {
+				release.await(10, TimeUnit.SECONDS)
+			}
+			(ex.uri.startsWith("/fail") ? TestHttpServer.response(500, [:], "no".bytes) : TestHttpServer.response(200, [:], "ok".bytes))
+		}
+		List<Response> responses = [client.send(get("/ok")), client.send(get("/fail")), client.send(get("/held"))]
+		AtomicInteger runs = new AtomicInteger()
+		CountDownLatch ran = new CountDownLatch(1)
+
+		when:
+		Response.whenAll(responses, { runs.incrementAndGet(); ran.countDown() } as Runnable)
+		Thread.sleep(200)
+		int runsWhileHeld = runs.get()
+		release.countDown()
+		ran.await(10, TimeUnit.SECONDS)
+		Thread.sleep(100)
+
+		then:
+		runsWhileHeld == 0
+		runs.get() == 1
+		responses.every { it.done }
+
+	}
+
+}
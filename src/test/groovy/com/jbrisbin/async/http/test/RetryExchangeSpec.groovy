@@ -0,0 +1,295 @@
+package com.jbrisbin.async.http.test
+
+import com.jbrisbin.async.http.AsyncHttpClient
+import com.jbrisbin.async.http.DefaultRetryPolicy
+import com.jbrisbin.async.http.HttpClientTransport
+import com.jbrisbin.async.http.HttpException
+import com.jbrisbin.async.http.Request
+import com.jbrisbin.async.http.RequestTimeoutException
+import com.jbrisbin.async.http.Response
+import com.jbrisbin.async.http.RetryPolicy
+import java.nio.ByteBuffer
+import java.util.concurrent.CopyOnWriteArrayList
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.ExecutionException
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicInteger
+import spock.lang.Specification
+import static com.jbrisbin.async.http.test.TestHttpServer.text
+import static com.jbrisbin.async.http.test.TestHttpServer.waitFor
+
+/**
+ * @author Jon Brisbin <jon@jbrisbin.com>
+ */
+class RetryExchangeSpec extends Specification {
+
+	TestHttpServer server
+	HttpClientTransport transport
+	AsyncHttpClient client
+
+	/**
+	 * Retries straight away, up to a limit, never hedges unless told to, and remembers what it was
+	 * asked.
+	 */
+	static class RecordingPolicy implements RetryPolicy {
+		int maxRetries = 3
+		long delay = 0
+		long hedge = -1
+		final List<Integer> retries = new CopyOnWriteArrayList<Integer>()
+		final List<Throwable> failures = new CopyOnWriteArrayList<Throwable>()
+		final AtomicInteger successes = new AtomicInteger()
+
+		long retryDelay(Request request, int retries, Throwable failure) {
+			this.retries << retries
+			failures << failure
+			(retries > maxRetries ? -1 : delay)
+		}
+
+		long hedgeDelay(Request request) {
+			hedge
+		}
+
+		void succeeded(Request request, long nanos) {
+			successes.incrementAndGet()
+		}
+	}
+
+	RecordingPolicy policy = new RecordingPolicy()
+
+	def setup() {
+		server = new TestHttpServer().start()
+		transport = new HttpClientTransport()
+		client = AsyncHttpClient.connect("localhost", server.port, transport).setRetryPolicy(policy)
+	}
+
+	def cleanup() {
+		client.dispose()
+		transport.stop()
+		server.stop()
+	}
+
+	Request request(String path, Request.Method method = Request.Method.GET) {
+		new Request(new URL(server.url(path)), method)
+	}
+
+	int leased() {
+		transport.connectionPool.connectionCount - transport.connectionPool.idleCount
+	}
+
+	def "Test an error status is retried until an attempt succeeds"() {
+
+		given:
+		server.handler = { TestHttpServer.Exchange ex ->
+			(server.exchanges.size() < 3 ? TestHttpServer.response(503, [:], "busy".bytes) : TestHttpServer.response(200, [:], "ok".bytes))
+		}
+
+		when:
+		Response response = client.send(request("/flaky"))
+		ByteBuffer body = response.get(10, TimeUnit.SECONDS)
+
+		then:
+		text(body) == "ok"
+		response.status == 200
+		server.exchanges.size() == 3
+		policy.retries == [1, 2]
+		policy.failures.every { it instanceof HttpException && ((HttpException) it).status == 503 }
+		policy.successes.get() == 1
+
+	}
+
+	def "Test the response fails with the last attempt's failure once the policy gives up"() {
+
+		given:
+		policy.maxRetries = 2
+		server.handler = { TestHttpServer.Exchange ex ->
+			TestHttpServer.response(500 + server.exchanges.size(), [:], "no".bytes)
+		}
+
+		when:
+		Response response = client.send(request("/down"))
+		response.get(10, TimeUnit.SECONDS)
+
+		then:
+		ExecutionException e = thrown()
+		e.cause instanceof HttpException
+		((HttpException) e.cause).status == 503
+		response.status == 503
+		server.exchanges.size() == 3
+		policy.successes.get() == 0
+
+	}
+
+	def "Test a connection the server drops is retried"() {
+
+		given:
+		server.handler = { TestHttpServer.Exchange ex ->
+			(1 == server.exchanges.size() ? null : TestHttpServer.response(200, [:], "ok".bytes))
+		}
+
+		when:
+		ByteBuffer body = client.send(request("/dropped")).get(10, TimeUnit.SECONDS)
+
+		then:
+		text(body) == "ok"
+		server.exchanges.size() == 2
+		policy.failures.size() == 1
+		policy.failures[0] instanceof IOException
+
+	}
+
+	def "Test a request that isn't idempotent is sent once"() {
+
+		given:
+		server.handler = { TestHttpServer.Exchange ex -> TestHttpServer.response(503, [:], "busy".bytes) }
+
+		when:
+		client.send(new Request(new URL(server.url("/post")), Request.Method.POST, [:], ByteBuffer.wrap("x".bytes), "text/plain")).get(10, TimeUnit.SECONDS)
+
+		then:
+		thrown(ExecutionException)
+		server.exchanges.size() == 1
+		policy.retries.empty
+
+	}
+
+	def "Test a slow attempt is hedged and the quicker answer wins"() {
+
+		given:
+		policy.hedge = 100
+		server.handler = { TestHttpServer.Exchange ex ->
+			if (1 == ex.connection) {
+				Thread.sleep(2000)
+				TestHttpServer.response(200, [:], "slow".bytes)
+			} else {
+				TestHttpServer.response(200, [:], "fast".bytes)
+			}
+		}
+
+		when:
+		long start = System.currentTimeMillis()
+		ByteBuffer body = client.send(request("/hedged")).get(10, TimeUnit.SECONDS)
+		long took = System.currentTimeMillis() - start
+
+		then:
+		text(body) == "fast"
+		took < 2000
+		server.exchanges*.connection as Set == [1, 2] as Set
+		policy.successes.get() == 1
+
+	}
+
+	def "Test an attempt that answers before the hedge delay isn't hedged"() {
+
+		given:
+		policy.hedge = 500
+
+		when:
+		ByteBuffer body = client.send(request("/quick")).get(10, TimeUnit.SECONDS)
+		Thread.sleep(700)
+
+		then:
+		text(body) == "ok"
+		server.exchanges.size() == 1
+
+	}
+
+	def "Test cancelling the response stops the retries"() {
+
+		given:
+		policy.delay = 300
+		CountDownLatch failedOnce = new CountDownLatch(1)
+		server.handler = { TestHttpServer.Exchange ex ->
+			failedOnce.countDown()
+			TestHttpServer.response(503, [:], "busy".bytes)
+		}
+
+		when:
+		Response response = client.send(request("/cancelled"))
+		failedOnce.await(10, TimeUnit.SECONDS)
+		// The first attempt has failed and the retry is waiting out its delay
+		Thread.sleep(100)
+		response.cancel(true)
+		Thread.sleep(600)
+
+		then:
+		response.cancelled
+		server.exchanges.size() == 1
+
+	}
+
+	def "Test the request timeout bounds every attempt together rather than each one"() {
+
+		given:
+		policy.hedge = 100
+		CountDownLatch release = new CountDownLatch(1)
+		server.handler = { TestHttpServer.Exchange ex ->
+			release.await(10, TimeUnit.SECONDS)
+			TestHttpServer.response(200, [:], "late".bytes)
+		}
+		Request slow = request("/slow").setRequestTimeout(500)
+
+		when:
+		Long start = System.currentTimeMillis()
+		client.send(slow).get(10, TimeUnit.SECONDS)
+
+		then:
+		ExecutionException e = thrown()
+		e.cause instanceof RequestTimeoutException
+		// One attempt, its hedge and a retry or two, but all within the one deadline
+		System.currentTimeMillis() - start < 1500
+
+		cleanup:
+		release.countDown()
+
+	}
+
+	def "Test cancelling the response aborts the attempts still in flight"() {
+
+		given:
+		policy.hedge = 100
+		CountDownLatch release = new CountDownLatch(1)
+		server.handler = { TestHttpServer.Exchange ex ->
+			release.await(10, TimeUnit.SECONDS)
+			TestHttpServer.response(200, [:], "late".bytes)
+		}
+
+		when:
+		Response response = client.send(request("/abandoned"))
+		waitFor { transport.connectionPool.connectionCount == 2 }
+		response.cancel(true)
+		waitFor { leased() == 0 }
+
+		then:
+		response.cancelled
+		// Closed, or pooled if the lease hadn't come through, rather than left leased until the server
+		// gets round to answering
+		leased() == 0
+
+		cleanup:
+		release.countDown()
+
+	}
+
+	def "Test the default policy backs off and only retries what's worth retrying"() {
+
+		given:
+		DefaultRetryPolicy defaults = new DefaultRetryPolicy().setMaxRetries(2).setBackoff(10)
+		client.retryPolicy = defaults
+		server.handler = { TestHttpServer.Exchange ex -> TestHttpServer.response(status, [:], "x".bytes) }
+
+		when:
+		client.send(request("/default")).get(10, TimeUnit.SECONDS)
+
+		then:
+		ExecutionException e = thrown()
+		((HttpException) e.cause).status == status
+		server.exchanges.size() == attempts
+
+		where:
+		status | attempts
+		503    | 3
+		404    | 1
+
+	}
+
+}
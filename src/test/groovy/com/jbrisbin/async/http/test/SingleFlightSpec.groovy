@@ -0,0 +1,212 @@
+package com.jbrisbin.async.http.test
+
+import com.jbrisbin.async.http.AsyncHttpClient
+import com.jbrisbin.async.http.HttpClientTransport
+import com.jbrisbin.async.http.HttpException
+import com.jbrisbin.async.http.Request
+import com.jbrisbin.async.http.Response
+import java.nio.ByteBuffer
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.ExecutionException
+import java.util.concurrent.TimeUnit
+import spock.lang.Specification
+import static com.jbrisbin.async.http.test.TestHttpServer.text
+
+/**
+ * @author Jon Brisbin <jon@jbrisbin.com>
+ */
+class SingleFlightSpec extends Specification {
+
+	TestHttpServer server
+	HttpClientTransport transport
+	AsyncHttpClient client
+	// Holds every response back until the test has sent everything it wants in flight
+	CountDownLatch release = new CountDownLatch(1)
+
+	def setup() {
+		server = new TestHttpServer().start()
+		transport = new HttpClientTransport().setCoalesceRequests(true)
+		client = AsyncHttpClient.connect("localhost", server.port, transport)
+	}
+
+	def cleanup() {
+		release.countDown()
+		client.dispose()
+		transport.stop()
+		server.stop()
+	}
+
+	Request get(String path, Map<String, String> headers = [:]) {
+		new Request(new URL(server.url(path)), Request.Method.GET, headers)
+	}
+
+	void waitForExchanges(int count) {
+		long deadline = System.currentTimeMillis() + 5000
+		while (server.exchanges.size() < count && System.currentTimeMillis() < deadline) {
+			Thread.sleep(10)
+		}
+		// Long enough for anything else that was going to arrive to have
+		Thread.sleep(100)
+	}
+
+	def "Test identical requests in flight at once share one exchange"() {
+
+		given:
+		server.handler = { TestHttpServer.Exchange ex ->
+			release.await(10, TimeUnit.SECONDS)
+			TestHttpServer.response(200, ["X-Served": "once"], "shared".bytes)
+		}
+
+		when:
+		List<Response> responses = (1..10).collect { client.send(get("/same")) }
+		waitForExchanges(1)
+		release.countDown()
+		List<ByteBuffer> bodies = responses.collect { it.get(10, TimeUnit.SECONDS) }
+
+		then:
+		server.exchanges.size() == 1
+		bodies.every { text(it) == "shared" }
+		bodies.every { it.readOnly }
+		responses.every { it.status == 200 && it.headers.get("X-Served") == "once" }
+
+	}
+
+	def "Test each caller reads the shared body on its own"() {
+
+		given:
+		server.handler = { TestHttpServer.Exchange ex ->
+			release.await(10, TimeUnit.SECONDS)
+			TestHttpServer.response(200, [:], "abcdef".bytes)
+		}
+
+		when:
+		Response first = client.send(get("/read"))
+		Response second = client.send(get("/read"))
+		waitForExchanges(1)
+		release.countDown()
+		ByteBuffer a = first.get(10, TimeUnit.SECONDS)
+		a.position(a.limit())
+		ByteBuffer b = second.get(10, TimeUnit.SECONDS)
+
+		then:
+		server.exchanges.size() == 1
+		!a.hasRemaining()
+		text(b) == "abcdef"
+
+	}
+
+	def "Test requests that differ in path, query or headers don't share"() {
+
+		given:
+		server.handler = { TestHttpServer.Exchange ex ->
+			release.await(10, TimeUnit.SECONDS)
+			TestHttpServer.response(200, [:], ex.uri.bytes)
+		}
+
+		when:
+		List<Response> responses = [
+				client.send(get("/a")),
+				client.send(get("/b")),
+				client.send(get("/a?x=1")),
+				client.send(get("/a", ["Accept": "text/plain"])),
+				client.send(get("/a", ["accept": "text/plain"]))
+		]
+		waitForExchanges(4)
+		release.countDown()
+		responses*.get(10, TimeUnit.SECONDS)
+
+		then:
+		server.exchanges.size() == 4
+		server.exchanges*.uri as Set == ["/a", "/b", "/a?x=1"] as Set
+
+	}
+
+	def "Test a failed exchange fails every caller that shared it"() {
+
+		given:
+		server.handler = { TestHttpServer.Exchange ex ->
+			release.await(10, TimeUnit.SECONDS)
+			TestHttpServer.response(503, [:], "busy".bytes)
+		}
+
+		when:
+		List<Response> responses = (1..3).collect { client.send(get("/failing")) }
+		waitForExchanges(1)
+		release.countDown()
+		List<Throwable> failures = responses.collect { Response r ->
+			try {
+				r.get(10, TimeUnit.SECONDS)
+				null
+			} catch (ExecutionException e) {
+				e.cause
+			}
+		}
+
+		then:
+		server.exchanges.size() == 1
+		failures.every { it instanceof HttpException && ((HttpException) it).status == 503 }
+		responses.every { it.status == 503 }
+
+	}
+
+	def "Test a request sent after the exchange has landed starts another"() {
+
+		given:
+		release.countDown()
+
+		when:
+		client.send(get("/again")).get(10, TimeUnit.SECONDS)
+		client.send(get("/again")).get(10, TimeUnit.SECONDS)
+
+		then:
+		server.exchanges.size() == 2
+
+	}
+
+	def "Test clients sharing a transport share flights"() {
+
+		given:
+		AsyncHttpClient other = AsyncHttpClient.connect("localhost", server.port, transport)
+		server.handler = { TestHttpServer.Exchange ex ->
+			release.await(10, TimeUnit.SECONDS)
+			TestHttpServer.response(200, [:], "ok".bytes)
+		}
+
+		when:
+		Response mine = client.send(get("/shared"))
+		Response theirs = other.send(get("/shared"))
+		waitForExchanges(1)
+		release.countDown()
+
+		then:
+		text(mine.get(10, TimeUnit.SECONDS)) == "ok"
+		text(theirs.get(10, TimeUnit.SECONDS)) == "ok"
+		server.exchanges.size() == 1
+
+		cleanup:
+		other.dispose()
+
+	}
+
+	def "Test requests other than GET and HEAD are never shared"() {
+
+		given:
+		server.handler = { TestHttpServer.Exchange ex ->
+			release.await(10, TimeUnit.SECONDS)
+			TestHttpServer.response(200, [:], "ok".bytes)
+		}
+
+		when:
+		List<Response> responses = (1..2).collect {
+			client.send(new Request(new URL(server.url("/put")), Request.Method.PUT, [:], ByteBuffer.wrap("x".bytes), "text/plain"))
+		}
+		waitForExchanges(2)
+		release.countDown()
+		responses*.get(10, TimeUnit.SECONDS)
+
+		then:
+		server.exchanges.size() == 2
+
+	}
+
+}
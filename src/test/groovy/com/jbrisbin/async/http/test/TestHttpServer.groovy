@@ -0,0 +1,205 @@
+package com.jbrisbin.async.http.test
+
+import java.nio.ByteBuffer
+import java.util.concurrent.CopyOnWriteArrayList
+import java.util.concurrent.atomic.AtomicInteger
+
+/**
+ * A bare-bones HTTP/1.1 server on a loopback socket, so specs don't need anything running. Requests
+ * on a connection are answered one at a time, in order, by <code>handler</code>, which is given a
+ * {@link TestHttpServer.Exchange} and returns the whole response, usually built with
+ * {@link #response(int, Map, byte[])}. Returning <code>null</code> closes the connection instead.
+ * A list of byte arrays is written one at a time, with a pause after each, so the client reads them
+ * separately.
+ *
+ * @author Jon Brisbin <jon@jbrisbin.com>
+ */
+class TestHttpServer {
+
+	Closure handler = { Exchange ex -> response(200, [:], "ok".bytes) }
+	/** Milliseconds to wait before each read of a request body, to play a slow reader. */
+	long bodyReadDelay = 0
+	/** Milliseconds to wait after writing each piece of a response given as a list. */
+	long pieceDelay = 20
+	final List<Exchange> exchanges = new CopyOnWriteArrayList<Exchange>()
+	final AtomicInteger connections = new AtomicInteger()
+
+	private ServerSocket serverSocket
+	private final List<Socket> sockets = new CopyOnWriteArrayList<Socket>()
+
+	static class Exchange {
+		int connection
+		String method
+		String uri
+		Map<String, String> headers = new LinkedHashMap<String, String>()
+		/** The header lines exactly as they were sent, in order. */
+		List<String> headerLines = []
+		byte[] body
+
+		String header(String name) {
+			headers[name.toLowerCase()]
+		}
+	}
+
+	TestHttpServer start() {
+		serverSocket = new ServerSocket(0, 50, InetAddress.getByName("localhost"))
+		Thread.startDaemon("test-http-server") {
+			while (!serverSocket.closed) {
+				Socket socket
+				try {
+					socket = serverSocket.accept()
+				} catch (IOException ignored) {
+					return
+				}
+				sockets << socket
+				int connection = connections.incrementAndGet()
+				Thread.startDaemon("test-http-connection-" + connection) {
+					serve(socket, connection)
+				}
+			}
+		}
+		this
+	}
+
+	int getPort() {
+		serverSocket.localPort
+	}
+
+	String url(String path) {
+		"http://localhost:${port}${path}"
+	}
+
+	void stop() {
+		serverSocket?.close()
+		sockets.each { it.close() }
+	}
+
+	static byte[] response(int status, Map<String, String> headers, byte[] body) {
+		ByteArrayOutputStream out = new ByteArrayOutputStream()
+		StringBuilder head = new StringBuilder("HTTP/1.1 ${status} Status ${status}\r\n")
+		headers.each { k, v -> head.append("${k}: ${v}\r\n") }
+		if (!headers.keySet().any { it.equalsIgnoreCase("Content-Length") || it.equalsIgnoreCase("Transfer-Encoding") }) {
+			head.append("Content-Length: ${null != body ? body.length : 0}\r\n")
+		}
+		head.append("\r\n")
+		out.write(head.toString().getBytes("ISO-8859-1"))
+		if (null != body) {
+			out.write(body)
+		}
+		out.toByteArray()
+	}
+
+	/**
+	 * The bytes left in <code>buffer</code> as a String, without moving its position.
+	 */
+	static String text(ByteBuffer buffer) {
+		byte[] bytes = new byte[buffer.remaining()]
+		buffer.duplicate().get(bytes)
+		new String(bytes)
+	}
+
+	/**
+	 * Poll <code>condition</code> until it holds, giving up after 10 seconds so the assertion that
+	 * follows can fail instead.
+	 */
+	static void waitFor(Closure<Boolean> condition) {
+		waitFor(0, condition)
+	}
+
+	/**
+	 * Like {@link #waitFor(Closure)}, then wait another <code>settle</code> milliseconds for anything
+	 * that was going to happen twice to have done so.
+	 */
+	static void waitFor(long settle, Closure<Boolean> condition) {
+		long deadline = System.currentTimeMillis() + 10000
+		while (!condition.call() && System.currentTimeMillis() < deadline) {
+			Thread.sleep(5)
+		}
+		if (settle > 0) {
+			Thread.sleep(settle)
+		}
+	}
+
+	private void serve(Socket socket, int connection) {
+		try {
+			InputStream input = new BufferedInputStream(socket.inputStream)
+			OutputStream output = socket.outputStream
+			String requestLine
+			while (null != (requestLine = readLine(input)) && requestLine) {
+				String[] parts = requestLine.split(" ")
+				Exchange ex = new Exchange(connection: connection, method: parts[0], uri: parts[1])
+				String line
+				while ((line = readLine(input))) {
+					ex.headerLines << line
+					int colon = line.indexOf(':')
+					ex.headers[line.substring(0, colon).trim().toLowerCase()] = line.substring(colon + 1).trim()
+				}
+				ex.body = readBody(input, ex)
+				exchanges << ex
+				Object reply = handler.call(ex)
+				if (null == reply) {
+					break
+				}
+				if (reply instanceof List) {
+					reply.each { byte[] piece ->
+						output.write(piece)
+						output.flush()
+						Thread.sleep(pieceDelay)
+					}
+				} else {
+					output.write((byte[]) reply)
+					output.flush()
+				}
+			}
+		} catch (IOException ignored) {
+		} finally {
+			socket.close()
+		}
+	}
+
+	private byte[] readBody(InputStream input, Exchange ex) {
+		ByteArrayOutputStream body = new ByteArrayOutputStream()
+		if ("chunked".equalsIgnoreCase(ex.header("Transfer-Encoding"))) {
+			int size
+			while ((size = Integer.parseInt(readLine(input).split(";")[0].trim(), 16)) > 0) {
+				copy(input, body, size)
+				readLine(input)
+			}
+			// Trailers, up to the blank line
+			while (readLine(input)) {
+			}
+		} else if (ex.header("Content-Length")) {
+			copy(input, body, Long.parseLong(ex.header("Content-Length")))
+		}
+		body.toByteArray()
+	}
+
+	private void copy(InputStream input, OutputStream out, long length) {
+		byte[] buffer = new byte[8192]
+		while (length > 0) {
+			if (bodyReadDelay > 0) {
+				Thread.sleep(bodyReadDelay)
+			}
+			int read = input.read(buffer, 0, (int) Math.min(buffer.length, length))
+			if (read < 0) {
+				throw new EOFException()
+			}
+			out.write(buffer, 0, read)
+			length -= read
+		}
+	}
+
+	private static String readLine(InputStream input) {
+		StringBuilder line = new StringBuilder()
+		int c
+		while ((c = input.read()) >= 0) {
+			if (c == 10) {
+				return line.toString()
+			} else if (c != 13) {
+				line.append((char) c)
+			}
+		}
+		(line.length() > 0 ? line.toString() : null)
+	}
+
+}
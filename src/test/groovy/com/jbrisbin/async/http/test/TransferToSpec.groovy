@@ -0,0 +1,181 @@
+package com.jbrisbin.async.http.test
+
+import com.jbrisbin.async.http.AsyncHttpClient
+import com.jbrisbin.async.http.HttpClientTransport
+import com.jbrisbin.async.http.Request
+import java.nio.ByteBuffer
+import java.nio.channels.Channels
+import java.nio.channels.FileChannel
+import java.nio.channels.WritableByteChannel
+import java.util.concurrent.ExecutionException
+import java.util.concurrent.TimeUnit
+import spock.lang.Specification
+
+/**
+ * @author Jon Brisbin <jon@jbrisbin.com>
+ */
+class TransferToSpec extends Specification {
+
+	static final int OFFSET = 1000
+
+	TestHttpServer server
+	HttpClientTransport transport
+	AsyncHttpClient client
+	File file
+	RandomAccessFile raf
+	byte[] body = new byte[3 * 1024 * 1024 + 17]
+
+	def setup() {
+		new Random(6).nextBytes(body)
+		server = new TestHttpServer().start()
+		// Sent in pieces flushed apart, so it's read as many chunks
+		server.handler = { TestHttpServer.Exchange ex ->
+			String length = String.valueOf(body.length)
+			byte[] whole = TestHttpServer.response(200, ["Content-Length": length], body)
+			int head = whole.length - body.length
+			[whole[0..<head + 1000] as byte[], whole[head + 1000..<head + 200000] as byte[], whole[head + 200000..<whole.length] as byte[]]
+		}
+		transport = new HttpClientTransport()
+		client = AsyncHttpClient.connect("localhost", server.port, transport)
+		file = File.createTempFile("transfer", ".bin")
+		raf = new RandomAccessFile(file, "rw")
+	}
+
+	def cleanup() {
+		client.dispose()
+		transport.stop()
+		server.stop()
+		raf.close()
+		file.delete()
+	}
+
+	byte[] read(FileChannel channel, long position, int length) {
+		ByteBuffer bytes = ByteBuffer.allocate(length)
+		while (bytes.hasRemaining() && channel.read(bytes, position + bytes.position()) > 0) {
+		}
+		bytes.array()
+	}
+
+	def "Test a body transferred into a file lands byte for byte at the position given"() {
+
+		given:
+		FileChannel channel = raf.channel
+		byte[] before = new byte[OFFSET]
+		Arrays.fill(before, (byte) 'x')
+		channel.write(ByteBuffer.wrap(before), 0)
+		channel.position(123)
+		Request request = new Request(new URL(server.url("/download")), Request.Method.GET)
+		request.response.transferTo(channel, OFFSET)
+
+		when:
+		client.send(request).get(30, TimeUnit.SECONDS)
+
+		then:
+		channel.size() == OFFSET + body.length
+		read(channel, 0, OFFSET) == before
+		Arrays.equals(read(channel, OFFSET, body.length), body)
+		// Written at explicit positions, leaving the channel's own alone
+		channel.position() == 123
+
+	}
+
+	def "Test two bodies transferred into one file side by side don't overlap"() {
+
+		given:
+		FileChannel channel = raf.channel
+		List<Request> requests = (0..1).collect {
+			Request request = new Request(new URL(server.url("/part/" + it)), Request.Method.GET)
+			request.response.transferTo(channel, OFFSET + it * body.length)
+			request
+		}
+
+		when:
+		requests.collect { client.send(it) }*.get(30, TimeUnit.SECONDS)
+
+		then:
+		channel.size() == OFFSET + 2 * body.length
+		Arrays.equals(read(channel, OFFSET, body.length), body)
+		Arrays.equals(read(channel, OFFSET + body.length, body.length), body)
+
+	}
+
+	def "Test a body transferred into a plain channel is written in order"() {
+
+		given:
+		ByteArrayOutputStream out = new ByteArrayOutputStream()
+		Request request = new Request(new URL(server.url("/stream")), Request.Method.GET)
+		request.response.transferTo(Channels.newChannel(out))
+
+		when:
+		client.send(request).get(30, TimeUnit.SECONDS)
+
+		then:
+		Arrays.equals(out.toByteArray(), body)
+
+	}
+
+	def "Test a channel given to the client takes the body of the next response and no other"() {
+
+		given:
+		ByteArrayOutputStream out = new ByteArrayOutputStream()
+		client.transferTo(Channels.newChannel(out))
+
+		when:
+		ByteBuffer transferred = client.send(new Request(new URL(server.url("/first")), Request.Method.GET)).get(30, TimeUnit.SECONDS)
+		ByteBuffer aggregated = client.send(new Request(new URL(server.url("/second")), Request.Method.GET)).get(30, TimeUnit.SECONDS)
+
+		then:
+		null == transferred
+		Arrays.equals(out.toByteArray(), body)
+		aggregated.remaining() == body.length
+
+	}
+
+	def "Test the body of an error response isn't written to the channel"() {
+
+		given:
+		server.handler = { TestHttpServer.Exchange ex -> TestHttpServer.response(404, [:], "not here".bytes) }
+		ByteArrayOutputStream out = new ByteArrayOutputStream()
+		client.transferTo(Channels.newChannel(out))
+
+		when:
+		client.send(new Request(new URL(server.url("/missing")), Request.Method.GET)).get(30, TimeUnit.SECONDS)
+
+		then:
+		thrown(ExecutionException)
+		out.size() == 0
+
+	}
+
+	def "Test a channel that fails or takes nothing aborts the request instead of reading the rest"() {
+
+		given:
+		WritableByteChannel broken = [
+				write: { ByteBuffer src -> write.call(src) },
+				isOpen: { true },
+				close: { }
+		] as WritableByteChannel
+		Request request = new Request(new URL(server.url("/broken")), Request.Method.GET)
+		request.response.transferTo(broken)
+
+		when:
+		client.send(request).get(30, TimeUnit.SECONDS)
+
+		then:
+		ExecutionException e = thrown()
+		e.cause instanceof IOException
+
+		when:
+		// The connection was closed rather than drained, so the next request needs another
+		ByteBuffer next = client.send(new Request(new URL(server.url("/next")), Request.Method.GET)).get(30, TimeUnit.SECONDS)
+
+		then:
+		next.remaining() == body.length
+		server.connections.get() == 2
+
+		where:
+		write << [{ ByteBuffer src -> throw new IOException("Disk full") }, { ByteBuffer src -> 0 }]
+
+	}
+
+}